@@ -17,18 +17,30 @@
 package bzh.plealog.blastviewer;
 
 import java.awt.BorderLayout;
+import java.io.IOException;
+import java.util.Enumeration;
 import java.util.List;
 
 import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
 
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
 import bzh.plealog.bioinfo.api.data.searchjob.QueryBase;
+import bzh.plealog.bioinfo.api.data.searchjob.SJFileSummary;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput.FEATURES_CONTAINER;
 import bzh.plealog.bioinfo.api.data.searchresult.SRRequestInfo;
-import bzh.plealog.bioinfo.data.searchjob.InMemoryQuery;
-import bzh.plealog.bioinfo.data.searchresult.SRUtils;
 import bzh.plealog.bioinfo.ui.blast.core.BlastEntry;
+import bzh.plealog.blastviewer.data.DiskBackedQuery;
+import bzh.plealog.blastviewer.data.IncrementalQuery;
+import bzh.plealog.blastviewer.data.IndexedQuery;
+import bzh.plealog.blastviewer.data.QueryResultView;
+import bzh.plealog.blastviewer.data.SummaryQuery;
+import bzh.plealog.blastviewer.loader.StringPool;
+import bzh.plealog.blastviewer.resources.BVMessages;
 import bzh.plealog.blastviewer.summary.QueryOverviewPanel;
 import bzh.plealog.blastviewer.summary.SRCOverviewPanel;
 
@@ -42,7 +54,14 @@ public class BlastQueryViewer extends JPanel {
   private SRCOverviewPanel _bcoOverview;
 
   private BlastSummaryViewerController _bvController;
+  //query currently displayed
+  private QueryBase _query;
   
+  //used when data are provided while being loaded
+  private SROutput _streamedResult;
+  private IncrementalQuery _streamedQuery;
+  private StringPool _streamedPool;
+
   /**
    * Default constructor.
    */
@@ -59,10 +78,36 @@ public class BlastQueryViewer extends JPanel {
   public void setContent(SROutput so) {
     BlastEntry entry = prepareEntry(so);
     QueryBase query = prepareQuery(entry);
+    boolean queryFeatures = hasQueryFeatures(so, query);
+    
+    if (query instanceof DiskBackedQuery) {
+      // results are now stored on disk: only keep the request data in memory
+      so = prepareHeader(so);
+      entry.setResult(so);
+    }
+    setContent(so, entry, query, queryFeatures);
+  }
+  
+  /**
+   * Set the content of this viewer using a query reading its results on
+   * demand from an indexed data file.
+   * 
+   * @param query the query to display
+   */
+  public void setContent(IndexedQuery query) {
+    BlastEntry entry = prepareEntry(query.getHeader());
     
+    initQuery(query, entry);
+    setContent(query.getHeader(), entry, query, 
+        hasQueryFeatures(query.getHeader(), query));
+  }
+  
+  private void setContent(SROutput so, BlastEntry entry, QueryBase query, 
+      boolean queryFeatures) {
+    _query = query;
     //Complete Summary
     _completeSummary.setData(query, so);
-    if( ! so.checkQueryFeatures().equals(FEATURES_CONTAINER.none)) {
+    if (queryFeatures) {
       _completeSummary.showQueryWithClassificationSummaryTab();
     }
 
@@ -74,6 +119,92 @@ public class BlastQueryViewer extends JPanel {
 
   }
   
+  /**
+   * Release resources used by this viewer, e.g. temporary files or opened
+   * data files. Has to be called when this viewer is no longer displayed.
+   */
+  public void dispose() {
+    if (_query instanceof DiskBackedQuery) {
+      ((DiskBackedQuery) _query).close();
+    } else if (_query instanceof IndexedQuery) {
+      ((IndexedQuery) _query).close();
+    }
+    _query = null;
+  }
+  
+  /**
+   * Start to display a result that is still being loaded. Use
+   * appendContent() to add iterations, then completeContent() when
+   * data loading is over.
+   * 
+   * @param header a result containing request info and parameters. Usually,
+   * it does not yet contain any iteration.
+   */
+  public void startContent(SROutput header) {
+    BlastEntry entry = prepareEntry(header);
+    
+    _streamedResult = header;
+    _streamedQuery = new IncrementalQuery();
+    _streamedPool = new StringPool();
+    initQuery(_streamedQuery, entry);
+    for (int i = 0; i < header.countIteration(); i++) {
+      addStreamedResult(i);
+    }
+    _completeSummary.setData(_streamedQuery, header);
+    _summary.setContent(_streamedQuery, entry);
+    _bcoOverview.setQuery(_streamedQuery);
+  }
+  
+  /**
+   * Add new iterations to the result currently displayed. Has to be called
+   * from the Swing event dispatch thread.
+   * 
+   * @param iterations the new iterations
+   * @param updateOverview figure out whether or not charts have to be
+   * updated. Since charts are costly to compute, callers should update them
+   * less often than the summary table.
+   */
+  public void appendContent(List<SRIteration> iterations, boolean updateOverview) {
+    int idx;
+    
+    for (SRIteration iteration : iterations) {
+      idx = _streamedResult.countIteration();
+      _streamedResult.addIteration(iteration);
+      addStreamedResult(idx);
+    }
+    _summary.refreshContent(false);
+    if (updateOverview) {
+      _completeSummary.updateContent();
+    }
+  }
+  
+  /**
+   * Terminate the display of a result that has been loaded in a streaming way.
+   * Has to be called from the Swing event dispatch thread.
+   */
+  public void completeContent() {
+    _summary.refreshContent(true);
+    _completeSummary.updateContent();
+    if( ! _streamedResult.checkQueryFeatures().equals(FEATURES_CONTAINER.none)) {
+      _completeSummary.showQueryWithClassificationSummaryTab();
+    }
+    _bcoOverview.setQuery(_streamedQuery);
+    _streamedPool.dumpStats();
+    _streamedResult = null;
+    _streamedQuery = null;
+    _streamedPool = null;
+  }
+  
+  /**
+   * Extract an iteration of the result currently streamed and add it to
+   * the query.
+   */
+  private void addStreamedResult(int idx) {
+    SROutput sro = new QueryResultView(_streamedResult, idx);
+    _streamedPool.deduplicateClassification(sro);
+    _streamedQuery.addResult(sro);
+  }
+  
   /**
    * Create the UI.
    */
@@ -97,23 +228,90 @@ public class BlastQueryViewer extends JPanel {
    * Wraps a BlastEntry object into a QueryBase.
    */
   private QueryBase prepareQuery(BlastEntry entry) {
+    if (DiskBackedQuery.isRequired(entry.getResult())) {
+      try {
+        return prepareDiskBackedQuery(entry);
+      } catch (IOException e) {
+        // not enough resources: try to do the job in memory
+        EZLogger.warn(e.toString());
+      }
+    }
     //Prepare a View from the Model
-    InMemoryQuery query;
-    query = new InMemoryQuery();
-    List<SROutput> results = SRUtils.splitMultiResult(entry.getResult());
-    for(SROutput sro : results) {
+    IncrementalQuery query;
+    query = new IncrementalQuery();
+    SROutput result = entry.getResult();
+    SROutput sro;
+    // each query gets a view on its own part of the result: nothing is copied
+    // except classification terms IDs
+    StringPool pool = new StringPool();
+    for (int i = 0; i < result.countIteration(); i++) {
+      sro = new QueryResultView(result, i);
+      pool.deduplicateClassification(sro);
       query.addResult(sro);
     }
+    pool.dumpStats();
+    initQuery(query, entry);
+    return query;
+  }
+  /**
+   * Wraps a BlastEntry object into a QueryBase storing its results on disk.
+   * Results are split one at a time so that they are never all in memory.
+   */
+  private QueryBase prepareDiskBackedQuery(BlastEntry entry) throws IOException {
+    DiskBackedQuery query = new DiskBackedQuery(DiskBackedQuery.DEFAULT_CACHE_SIZE);
+    SROutput result = entry.getResult();
+    long tim = System.currentTimeMillis();
+    
+    for (int i = 0; i < result.countIteration(); i++) {
+      query.addResult(new QueryResultView(result, i));
+    }
+    initQuery(query, entry);
+    EZLogger.info(String.format(BVMessages.getString("BlastQueryViewer.msg1"),
+        query.sequences(), System.currentTimeMillis() - tim));
+    return query;
+  }
+  /**
+   * Returns a result containing request info and parameters of a result, but
+   * none of its iterations.
+   */
+  private SROutput prepareHeader(SROutput so) {
+    SROutput header = CoreSystemConfigurator.getSRFactory().createBOutput();
+    header.setRequestInfo(so.getRequestInfo());
+    header.setBlastOutputParam(so.getBlastOutputParam());
+    header.setBlastType(so.getBlastType());
+    return header;
+  }
+  /**
+   * Figures out whether or not some queries have features. When the result
+   * does not contain its iterations, summaries of the query are used.
+   */
+  private boolean hasQueryFeatures(SROutput so, QueryBase query) {
+    Enumeration<SJFileSummary> summaries;
+    
+    if (so.countIteration() != 0) {
+      return !so.checkQueryFeatures().equals(FEATURES_CONTAINER.none);
+    }
+    summaries = query.getSummaries();
+    while (summaries.hasMoreElements()) {
+      if (summaries.nextElement().getQueryClassification() != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+  /**
+   * Initializes a query from a BlastEntry object.
+   */
+  private void initQuery(SummaryQuery query, BlastEntry entry) {
     query.setDatabankName(entry.getDbName());
     query.setEngineSysName(entry.getBlastClientName());
     query.setJobName(entry.getName());
     // a Blast result loaded from a file is always OK
     query.setStatus(QueryBase.OK);
     // query not provided in blastFile
-    query.setQueyPath("n/a");
+    query.setQueryPath("n/a");
     // not appropriate here
     query.setRID("n/a");
-    return query;
   }
   /**
    * Wraps a SROutput object into a BlastEntry.
@@ -102,10 +102,11 @@ public class BlastSummaryViewerController {
     _mainTab.setSelectedComponent(_summary);
   }
   /**
-   * Update the content of the query overview panel.
+   * Update the content of the query overview panel when classification data
+   * have changed.
    * */
   public void updateQueryOverviewContent() {
-    _completeSummary.updateContent();
+    _completeSummary.updateAnnotations();
   }
   
   /**
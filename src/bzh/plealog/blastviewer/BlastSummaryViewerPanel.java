@@ -22,11 +22,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
@@ -72,7 +70,10 @@ import bzh.plealog.blastviewer.actions.summary.GlobalFilterAction;
 import bzh.plealog.blastviewer.actions.summary.GlobalSaveAction;
 import bzh.plealog.blastviewer.actions.summary.ImportIprScanDomainsAction;
 import bzh.plealog.blastviewer.actions.summary.OpenBasicViewerAction;
+import bzh.plealog.blastviewer.data.QueryResultView;
 import bzh.plealog.blastviewer.resources.BVMessages;
+import bzh.plealog.blastviewer.summary.FilteredSummaryTableModel;
+import bzh.plealog.blastviewer.summary.SummarySearchIndex;
 import bzh.plealog.blastviewer.util.BlastViewerOpener;
 
 /**
@@ -87,6 +88,8 @@ public class BlastSummaryViewerPanel extends JPanel {
   protected SummaryTable _summaryTable;
   protected BlastHitTable _hitListPane;
   private BlastEntry _entry;
+  private QueryBaseUI _qBaseUI;
+  private boolean _refreshing;
   private JLabel _resultStatusTxt;
   private JRadioButton          _rbAllQueries;
   private JRadioButton          _rbMatchQueries;
@@ -100,6 +103,7 @@ public class BlastSummaryViewerPanel extends JPanel {
   private MyImportIprScanDomainsAction _importIprScan;
   private BlastSummaryViewerController _bvController;
   private JButton _startSearchBtn;
+  private SummarySearchIndex _searchIndex;
   
   /**
    * Default constructor.
@@ -129,16 +133,82 @@ public class BlastSummaryViewerPanel extends JPanel {
     _openBasicViewerAction.setEnabled(false);
     _viewQueryIPRAction.setEnabled(false);
 
-    QueryBaseUI qBaseUI;
-    qBaseUI = new QueryBaseUI(query);
-    SummaryTableModel resultTableModel = new SummaryTableModel();
-    resultTableModel.setQuery(qBaseUI);
+    _qBaseUI = new QueryBaseUI(query);
+    SummaryTableModel resultTableModel = new FilteredSummaryTableModel();
+    resultTableModel.setQuery(_qBaseUI);
     //set the data model and add the link between summary viewer and detail viewer
     _summaryTable.setModel(resultTableModel);
     //_summaryTable.setRowSelectionInterval(0, 0);
     updateViewTypeRows();
     
     updateActions(entry.getResult());
+    startSearchIndex();
+  }
+
+  /**
+   * Start building the search index of the table. A previous index, if any,
+   * is released.
+   */
+  private void startSearchIndex() {
+    if (_searchIndex != null) {
+      _searchIndex.cancel();
+    }
+    _searchIndex = new SummarySearchIndex(
+        (SummaryTableModel) _summaryTable.getModel(), _qBaseUI);
+    _searchIndex.start();
+  }
+
+  /**
+   * Refresh the viewer when new results have been added to the query
+   * passed in to setContent(). Current view type and selection are preserved.
+   * 
+   * @param done set to true when the query is complete, i.e. no more data will
+   * be added.
+   */
+  public void refreshContent(boolean done) {
+    SummaryTableModel model = (SummaryTableModel) _summaryTable.getModel();
+    int[] selection;
+    int i, row;
+    
+    if (_qBaseUI == null) {
+      return;
+    }
+    selection = _summaryTable.convertSelectedRowsToSelectedSummaries(
+        _summaryTable.getSelectedRows());
+    _refreshing = true;
+    try {
+      // resetting the query is the only way to clear model internal caches
+      model.setQuery(_qBaseUI);
+      model.setViewType(getViewType());
+      ListSelectionModel lsm = _summaryTable.getSelectionModel();
+      lsm.setValueIsAdjusting(true);
+      for (i = 0; i < selection.length; i++) {
+        row = _summaryTable.convertSummaryIdxToTableRow(selection[i]);
+        if (row != -1) {
+          lsm.addSelectionInterval(row, row);
+        }
+      }
+      lsm.setValueIsAdjusting(false);
+    } finally {
+      _refreshing = false;
+    }
+    updateViewTypeRows();
+    if (done) {
+      updateActions(_entry.getResult());
+      startSearchIndex();
+    }
+  }
+
+  /**
+   * Return the type of view currently selected by the user.
+   */
+  private SummaryTableModel.VIEW_TYPE getViewType() {
+    if (_rbMatchQueries.isSelected()) {
+      return SummaryTableModel.VIEW_TYPE.HITS_ONLY;
+    } else if (_rbNoMatchQueries.isSelected()) {
+      return SummaryTableModel.VIEW_TYPE.NO_HITS_ONLY;
+    }
+    return SummaryTableModel.VIEW_TYPE.ALL;
   }
 
   /**
@@ -156,7 +226,7 @@ public class BlastSummaryViewerPanel extends JPanel {
     pnl = new JPanel(new BorderLayout());
 
     // Result Table
-    resultTableModel = new SummaryTableModel();
+    resultTableModel = new FilteredSummaryTableModel();
     resultTable = new SummaryTable(resultTableModel);
     resultTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
     resultTable.getTableHeader().setReorderingAllowed(false);
@@ -226,6 +296,8 @@ public class BlastSummaryViewerPanel extends JPanel {
    */
   public void applyClassificationFilter(List<String> classifs) {
     _summaryTable.setClassificationsToView(classifs);
+    ((FilteredSummaryTableModel) _summaryTable.getModel()).setClassificationFilter(classifs);
+    updateViewTypeRows();
   }
   
   /**
@@ -243,10 +315,23 @@ public class BlastSummaryViewerPanel extends JPanel {
    * Update viewer actions according to data.
    */
   private void updateActions(SROutput bo) {
-    if (bo.checkFeatures().equals(FEATURES_CONTAINER.none) && 
-        bo.checkQueryFeatures().equals(FEATURES_CONTAINER.none)) {
-      _classifSelectAction.setEnabled(false);
+    Enumeration<SJFileSummary> summaries;
+    SJFileSummary summary;
+    boolean features = false;
+    
+    if (bo.countIteration() != 0) {
+      features = !(bo.checkFeatures().equals(FEATURES_CONTAINER.none) && 
+          bo.checkQueryFeatures().equals(FEATURES_CONTAINER.none));
+    } else {
+      // results are not held by the entry: use query summaries
+      summaries = _qBaseUI.getSummaries();
+      while (!features && summaries.hasMoreElements()) {
+        summary = summaries.nextElement();
+        features = !FEATURES_CONTAINER.none.equals(summary.getFeatContainer()) ||
+            summary.getQueryClassification() != null;
+      }
     }
+    _classifSelectAction.setEnabled(features);
   }
   
   /**
@@ -402,8 +487,8 @@ public class BlastSummaryViewerPanel extends JPanel {
    */
   private class ViewAllQueriesRadioBtnListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
-      if (_summaryTable.getRowCount() > 50000)
-        EZEnvironment.setWaitCursor();
+      // also display queries hidden by a classification filter
+      ((FilteredSummaryTableModel) _summaryTable.getModel()).setClassificationFilter(null);
       _summaryTable.setViewType(SummaryTableModel.VIEW_TYPE.ALL);
       updateViewTypeRows();
     }
@@ -414,8 +499,6 @@ public class BlastSummaryViewerPanel extends JPanel {
    */
   private class ViewQueriesWithHitsRadioBtnListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
-      if (_summaryTable.getRowCount() > 50000)
-        EZEnvironment.setWaitCursor();
       _summaryTable.setViewType(SummaryTableModel.VIEW_TYPE.HITS_ONLY);
       updateViewTypeRows();
     }
@@ -426,8 +509,6 @@ public class BlastSummaryViewerPanel extends JPanel {
    */
   private class ViewQueriesWithNoHitsRadioBtnListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
-      if (_summaryTable.getRowCount() > 50000)
-        EZEnvironment.setWaitCursor();
       _summaryTable.setViewType(SummaryTableModel.VIEW_TYPE.NO_HITS_ONLY);
       updateViewTypeRows();
     }
@@ -440,7 +521,7 @@ public class BlastSummaryViewerPanel extends JPanel {
   private class MyListSelectionListener implements ListSelectionListener {
     public void valueChanged(ListSelectionEvent event) {
       //something to do?
-      if (event.getValueIsAdjusting())
+      if (event.getValueIsAdjusting() || _refreshing)
         return;
       if (_summaryTable.getSelectedRowCount()!=1) {
         _hitListPane.resetDataModel();
@@ -456,8 +537,11 @@ public class BlastSummaryViewerPanel extends JPanel {
         _hitListPane.resetDataModel();
         return;
       }
-      row = _summaryTable.convertSelectedRowToSelectedSummary(row);
-      BlastIteration blastIter = new BlastIteration(_entry, row);
+      // use the result of the selected query: the entry may only contain
+      // request data
+      SROutput sro = (SROutput) _summaryTable.getValueAt(row, 
+          SummaryTableModel.RESULT_DATA_COL);
+      BlastIteration blastIter = new BlastIteration(new BlastEntry(_entry, sro), 0);
       _hitListPane.resetDataModel();
       _hitListPane.setDataModel(blastIter);
         _hitListPane.repaint();
@@ -480,11 +564,10 @@ public class BlastSummaryViewerPanel extends JPanel {
           return;
         }
         
-        //prepare a copy to avoid altering original data in the coming viewer
-        SROutput sro_copy = sro.clone(false);
-        //such a result only contains a single SRIteration on which we MUST
-        //reset ordering number to "1"
-        sro_copy.getIteration(0).setIterationIterNum(1);
+        //prepare a copy to avoid altering original data in the coming viewer:
+        //views are read-only. Such a result only contains a single SRIteration
+        //which MUST be numbered "1": copying a view does that.
+        SROutput sro_copy = QueryResultView.viewOf(sro).clone(false);
         //start viewer
         BlastViewerOpener.displayInternalFrame(
             BlastViewerOpener.prepareViewer(sro_copy),
@@ -504,72 +587,57 @@ public class BlastSummaryViewerPanel extends JPanel {
     }
 
     public void run() {
-      Enumeration<SJFileSummary> summaries;
       SummaryTableModel tModel;
-      SJFileSummary bfs;
       QueryBase query;
-      Pattern pattern;
-      Matcher matcher;
-      String value;
-      ListSelectionModel lsm;
-      ArrayList<Integer> indices;
-      int[] indicesArray;
-      int idx = 0, cols, i = 0, idx2, nFound = 0, firstIdx = -1;
+      int[] summaries, columns;
+      int i;
 
       query = (QueryBase) _summaryTable.getValueAt(0, SummaryTableModel.QUERY_DATA_COL);
       if (query == null)
         return;
 
-      summaries = query.getSummaries();
       tModel = (SummaryTableModel) _summaryTable.getModel();
+      columns = new int[tModel.getColumnCount()];
+      for (i = 0; i < columns.length; i++) {
+        columns[i] = tModel.getColumnId(i);
+      }
+      summaries = _searchIndex.search(searchText, columns, monitor);
+      // selection is updated at once from the EDT
+      SwingUtilities.invokeLater(() -> select(summaries));
+    }
+
+    /**
+     * Select the table rows displaying some summaries.
+     */
+    private void select(int[] summaries) {
+      ListSelectionModel lsm;
+      int[] indicesArray, rows;
+      int i, j, idx2, nFound = 0;
+
+      monitor.dispose();
+      indicesArray = new int[summaries.length];
+      for (int idx : summaries) {
+        idx2 = _summaryTable.convertSummaryIdxToTableRow(idx);
+        if (idx2 != -1) {
+          indicesArray[nFound++] = idx2;
+        }
+      }
+      indicesArray = Arrays.copyOf(indicesArray, nFound);
+      // add contiguous rows as single intervals
+      rows = indicesArray.clone();
+      Arrays.sort(rows);
       lsm = _summaryTable.getSelectionModel();
-      cols = tModel.getColumnCount();
-      monitor.setMaxSteps(tModel.getRowCount());
-      pattern = Pattern.compile(searchText.toLowerCase());
       lsm.setValueIsAdjusting(true);
       lsm.clearSelection();
-      indices = new ArrayList<Integer>();
-      while (summaries.hasMoreElements()) {
-        bfs = summaries.nextElement();
-
-        if (bfs == null)
-          break;
-        for (i = 0; i < cols; i++) {
-          value = tModel.getValueItem(idx, tModel.getColumnId(i), bfs, null, query).toString();
-          matcher = pattern.matcher(value.toLowerCase());
-          if (matcher.find()) {
-            idx2 = _summaryTable.convertSummaryIdxToTableRow(idx);
-            if (idx2 != -1) {
-              lsm.addSelectionInterval(idx2, idx2);
-              if (firstIdx == -1) {
-                firstIdx = idx2;
-              }
-              indices.add(idx2);
-              nFound++;
-              break;
-            }
-          }
-        }
-        monitor.addToProgress(1);
-        if (monitor.stopProcessing())
-          break;
-        idx++;
-
+      for (i = 0; i < nFound; i = j) {
+        for (j = i + 1; j < nFound && rows[j] == rows[j - 1] + 1; j++);
+        lsm.addSelectionInterval(rows[i], rows[j - 1]);
       }
-      monitor.dispose();
       lsm.setValueIsAdjusting(false);
       _resultStatusTxt.setText(nFound + " row" + (nFound != 1 ? "(s)" : "") + " selected");
-      if (firstIdx != -1) {
-        _summaryTable.scrollRectToVisible(_summaryTable.getCellRect(firstIdx, 0, false));
+      if (nFound != 0) {
+        _summaryTable.scrollRectToVisible(_summaryTable.getCellRect(indicesArray[0], 0, false));
         _summaryTable.repaint();
-        indicesArray = new int[nFound];
-        i = 0;
-        for (Integer indice : indices) {
-          indicesArray[i] = indice;
-          i++;
-        }
-        indices.clear();
-        indices = null;
         caller.setPrecomputedIndex(indicesArray);
       }
     }
@@ -631,8 +699,11 @@ public class BlastSummaryViewerPanel extends JPanel {
     public void setTable(SummaryTable table) {
       _table = table;
     }
-    public void updateUI() {
+    public void updateUI(int[] summaries) {
+      // query classifications have changed
+      ((FilteredSummaryTableModel) _table.getModel()).updateClassifications(summaries);
       _table.updateRowHeights();
+      startSearchIndex();
     }
   }
 }
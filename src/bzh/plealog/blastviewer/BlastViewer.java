@@ -67,6 +67,7 @@ import bzh.plealog.blastviewer.actions.api.BVAction;
 import bzh.plealog.blastviewer.actions.api.BVActionManager;
 import bzh.plealog.blastviewer.actions.hittable.FilterEntryAction;
 import bzh.plealog.blastviewer.actions.hittable.SaveEntryAction;
+import bzh.plealog.blastviewer.actions.main.ClearCacheAction;
 import bzh.plealog.blastviewer.actions.main.FetchFromNcbiAction;
 import bzh.plealog.blastviewer.actions.main.OpenFileAction;
 import bzh.plealog.blastviewer.actions.main.OpenSampleFileAction;
@@ -106,6 +107,10 @@ public class BlastViewer {
    * https://github.com/pgdurand/jGAF
    */
   public static void main(String[] args) {
+    // batch mode does not rely on the application framework at all
+    if (CmdLineManager.isBatchMode(args)) {
+      System.exit(CmdLineManager.runBatch(args));
+    }
     // This has to be done at the very beginning, i.e. first method call within
     // main().
     EZGenericApplication.initialize("BLASTViewer");
@@ -361,6 +366,7 @@ public class BlastViewer {
       JPanel statusBar = new JPanel(new BorderLayout());
       hlpPnl = new JPanel(new BorderLayout());
       hlpPnl.add(BlastViewerOpener.getHelperField(), BorderLayout.WEST);
+      hlpPnl.add(BlastViewerOpener.getCancelButton(), BorderLayout.EAST);
       statusBar.add(new MemoryMeter(), BorderLayout.WEST);
       statusBar.add(hlpPnl, BorderLayout.CENTER);
       dpanel.add(statusBar, BorderLayout.SOUTH);
@@ -471,6 +477,13 @@ public class BlastViewer {
     btn = tBar.add(act);
     btn.setToolTipText(BVMessages.getString("OpenBlastList.openrid.tip"));
     btn.setText(BVMessages.getString("OpenBlastList.openrid.name"));
+
+    tBar.addSeparator();
+    act = new ClearCacheAction(BVMessages.getString("OpenBlastList.clearcache.name"));
+    act.setEnabled(true);
+    btn = tBar.add(act);
+    btn.setToolTipText(BVMessages.getString("OpenBlastList.clearcache.tip"));
+    btn.setText(BVMessages.getString("OpenBlastList.clearcache.name"));
     return tBar;
   }
 
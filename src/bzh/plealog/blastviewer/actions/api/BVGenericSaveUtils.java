@@ -33,6 +33,7 @@ import bzh.plealog.bioinfo.data.searchresult.SRUtils;
 import bzh.plealog.bioinfo.io.searchresult.SerializerSystemFactory;
 import bzh.plealog.bioinfo.io.searchresult.csv.CSVExportSROutput;
 import bzh.plealog.bioinfo.io.searchresult.txt.TxtExportSROutput;
+import bzh.plealog.blastviewer.data.QueryResultView;
 import bzh.plealog.blastviewer.resources.BVMessages;
 
 /**
@@ -102,106 +103,7 @@ public class BVGenericSaveUtils {
     
     try {
       EZEnvironment.setWaitCursor();
-      //chooseFileForSaveAction() has forced file extension given one of the FileExtDescriptor
-      String fName = file.getName();
-      String fExt = fName.substring(fName.lastIndexOf('.')+1);
-      SROutput sro_to_save;
-      EZLogger.info(String.format("Preparing data to export (%d)", _iterationID));
-      if (_iterationID>=0)
-        sro_to_save = SRUtils.extractResult(_sro, _iterationID);
-      else
-        sro_to_save = _sro;
-      SRWriter writer;
-      //queries annotated with BCO is a particular feature, so handle that case
-      int i, size = sro_to_save.countIteration();
-      EZLogger.info(String.format("Checking query features (%d)", size));
-      boolean hasQueryAnnotation = false;
-      for (i = 0; i < size; i++) {// loop on iterations
-        if (sro_to_save.getIteration(i).getIterationQueryFeatureTable()!=null){
-          hasQueryAnnotation=true;
-          break;
-        }
-      }
-      EZLogger.info(String.format("Saving to file (%s)", fName));
-      switch(fExt){
-      case "csv":
-        //Use ArrayList specifically to avoid UnsuportedOperationException when
-        //trying to update List with additional List of Integers (see below)
-        ArrayList<Integer> columns = new ArrayList<>(Arrays.asList(new Integer[] {
-            //note: query ID and description are always the two first columns
-            TxtExportSROutput.ACCESSION, 
-            TxtExportSROutput.DEFINITION, 
-            TxtExportSROutput.ORGANISM, 
-            TxtExportSROutput.LENGTH, 
-            TxtExportSROutput.NBHSPS, 
-            TxtExportSROutput.SCORE, 
-            TxtExportSROutput.SCORE_BITS, 
-            TxtExportSROutput.EVALUE, 
-            TxtExportSROutput.ALI_LEN, 
-            TxtExportSROutput.IDENTITY, 
-            TxtExportSROutput.POSITIVE, 
-            TxtExportSROutput.MISMATCHES,
-            TxtExportSROutput.T_GAPS,//gaps count
-            TxtExportSROutput.GAPS, //% gaps
-            TxtExportSROutput.Q_FROM, 
-            TxtExportSROutput.Q_TO,
-            TxtExportSROutput.Q_GAPS, 
-            TxtExportSROutput.Q_FRAME, 
-            TxtExportSROutput.Q_COVERAGE, 
-            TxtExportSROutput.H_FROM, 
-            TxtExportSROutput.H_TO, 
-            TxtExportSROutput.H_GAP, 
-            TxtExportSROutput.H_FRAME,
-            TxtExportSROutput.H_COVERAGE
-        }));
-        if (sro_to_save.getClassification()!=null) {
-          if (hasQueryAnnotation) {
-            columns.addAll( 
-                0,
-                Arrays.asList(new Integer[] {
-                TxtExportSROutput.QUERY_BIO_CLASSIF_GO,
-                TxtExportSROutput.QUERY_BIO_CLASSIF_IPR, 
-                TxtExportSROutput.QUERY_BIO_CLASSIF_EC,
-                TxtExportSROutput.QUERY_BIO_CLASSIF_PFM
-            }));
-          }
-          columns.addAll(Arrays.asList(new Integer[] {
-              TxtExportSROutput.TAXONOMY,
-              TxtExportSROutput.BIO_CLASSIF_TAX, 
-              TxtExportSROutput.BIO_CLASSIF_GO,
-              TxtExportSROutput.BIO_CLASSIF_IPR, 
-              TxtExportSROutput.BIO_CLASSIF_EC,
-              TxtExportSROutput.BIO_CLASSIF_PFM
-          }));
-        }
-        try(FileWriter fw = new FileWriter(file)){
-          int[] coldIds = new int[columns.size()];
-          i=0;
-          for(Integer cid:columns) {
-            coldIds[i]=cid; i++;
-          }
-          CSVExportSROutput csvExporter = new CSVExportSROutput();
-          csvExporter.showBestHitOnly(_bestHitOnly);
-          csvExporter.showFirstHspOnly(_firstHspOnly);
-          csvExporter.ssetColumnIds(coldIds);
-          csvExporter.export(fw, sro_to_save);
-          fw.flush();
-        }
-        finally {}
-        break;
-      case "zml":
-        writer = SerializerSystemFactory.getWriterInstance(SerializerSystemFactory.NATIVE_WRITER);
-        writer.write(file, sro_to_save);
-        break;
-      case "xml":
-        writer = SerializerSystemFactory.getWriterInstance(SerializerSystemFactory.NCBI_WRITER);
-        writer.write(file, sro_to_save);
-        break;
-        default:
-          throw new RuntimeException(
-              BVMessages.getString("SaveEntryAction.err1")+": "+fExt);
-      }
-      
+      save(file);
     }
     catch(Exception ex){
       EZLogger.warn(ex.toString());
@@ -214,4 +116,115 @@ public class BVGenericSaveUtils {
       EZLogger.info("Save done");
     }
   }
+  /**
+   * Export data to a file. This method does not rely on any UI component, so
+   * it can be used in headless mode.
+   * 
+   * @param file the file to create. Its extension figures out the format
+   * of exported data: csv, zml or xml.
+   * 
+   * @throws Exception if data cannot be saved
+   */
+  public void save(File file) throws Exception {
+    //chooseFileForSaveAction() has forced file extension given one of the FileExtDescriptor
+    String fName = file.getName();
+    String fExt = fName.substring(fName.lastIndexOf('.')+1);
+    SROutput sro_to_save;
+    EZLogger.info(String.format("Preparing data to export (%d)", _iterationID));
+    if (_iterationID>=0)
+      sro_to_save = SRUtils.extractResult(_sro, _iterationID);
+    else
+      sro_to_save = QueryResultView.unwrap(_sro);
+    SRWriter writer;
+    //queries annotated with BCO is a particular feature, so handle that case
+    int i, size = sro_to_save.countIteration();
+    EZLogger.info(String.format("Checking query features (%d)", size));
+    boolean hasQueryAnnotation = false;
+    for (i = 0; i < size; i++) {// loop on iterations
+      if (sro_to_save.getIteration(i).getIterationQueryFeatureTable()!=null){
+        hasQueryAnnotation=true;
+        break;
+      }
+    }
+    EZLogger.info(String.format("Saving to file (%s)", fName));
+    switch(fExt){
+    case "csv":
+      //Use ArrayList specifically to avoid UnsuportedOperationException when
+      //trying to update List with additional List of Integers (see below)
+      ArrayList<Integer> columns = new ArrayList<>(Arrays.asList(new Integer[] {
+          //note: query ID and description are always the two first columns
+          TxtExportSROutput.ACCESSION, 
+          TxtExportSROutput.DEFINITION, 
+          TxtExportSROutput.ORGANISM, 
+          TxtExportSROutput.LENGTH, 
+          TxtExportSROutput.NBHSPS, 
+          TxtExportSROutput.SCORE, 
+          TxtExportSROutput.SCORE_BITS, 
+          TxtExportSROutput.EVALUE, 
+          TxtExportSROutput.ALI_LEN, 
+          TxtExportSROutput.IDENTITY, 
+          TxtExportSROutput.POSITIVE, 
+          TxtExportSROutput.MISMATCHES,
+          TxtExportSROutput.T_GAPS,//gaps count
+          TxtExportSROutput.GAPS, //% gaps
+          TxtExportSROutput.Q_FROM, 
+          TxtExportSROutput.Q_TO,
+          TxtExportSROutput.Q_GAPS, 
+          TxtExportSROutput.Q_FRAME, 
+          TxtExportSROutput.Q_COVERAGE, 
+          TxtExportSROutput.H_FROM, 
+          TxtExportSROutput.H_TO, 
+          TxtExportSROutput.H_GAP, 
+          TxtExportSROutput.H_FRAME,
+          TxtExportSROutput.H_COVERAGE
+      }));
+      if (sro_to_save.getClassification()!=null) {
+        if (hasQueryAnnotation) {
+          columns.addAll( 
+              0,
+              Arrays.asList(new Integer[] {
+              TxtExportSROutput.QUERY_BIO_CLASSIF_GO,
+              TxtExportSROutput.QUERY_BIO_CLASSIF_IPR, 
+              TxtExportSROutput.QUERY_BIO_CLASSIF_EC,
+              TxtExportSROutput.QUERY_BIO_CLASSIF_PFM
+          }));
+        }
+        columns.addAll(Arrays.asList(new Integer[] {
+            TxtExportSROutput.TAXONOMY,
+            TxtExportSROutput.BIO_CLASSIF_TAX, 
+            TxtExportSROutput.BIO_CLASSIF_GO,
+            TxtExportSROutput.BIO_CLASSIF_IPR, 
+            TxtExportSROutput.BIO_CLASSIF_EC,
+            TxtExportSROutput.BIO_CLASSIF_PFM
+        }));
+      }
+      try(FileWriter fw = new FileWriter(file)){
+        int[] coldIds = new int[columns.size()];
+        i=0;
+        for(Integer cid:columns) {
+          coldIds[i]=cid; i++;
+        }
+        CSVExportSROutput csvExporter = new CSVExportSROutput();
+        csvExporter.showBestHitOnly(_bestHitOnly);
+        csvExporter.showFirstHspOnly(_firstHspOnly);
+        csvExporter.ssetColumnIds(coldIds);
+        csvExporter.export(fw, sro_to_save);
+        fw.flush();
+      }
+      finally {}
+      break;
+    case "zml":
+      writer = SerializerSystemFactory.getWriterInstance(SerializerSystemFactory.NATIVE_WRITER);
+      writer.write(file, sro_to_save);
+      break;
+    case "xml":
+      writer = SerializerSystemFactory.getWriterInstance(SerializerSystemFactory.NCBI_WRITER);
+      writer.write(file, sro_to_save);
+      break;
+      default:
+        throw new RuntimeException(
+            BVMessages.getString("SaveEntryAction.err1")+": "+fExt);
+    }
+    
+  }
 }
@@ -0,0 +1,89 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.actions.main;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.AbstractAction;
+import javax.swing.Icon;
+
+import com.plealog.genericapp.api.EZEnvironment;
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.loader.ResultCache;
+import bzh.plealog.blastviewer.resources.BVMessages;
+import bzh.plealog.blastviewer.util.BlastViewerOpener;
+import bzh.plealog.blastviewer.util.FetchCache;
+
+/**
+ * This class implements the action to clear the cache of parsed BLAST results
+ * and the cache of fetched documents.
+ * 
+ * @author Patrick G. Durand
+ */
+public class ClearCacheAction extends AbstractAction {
+  private static final long serialVersionUID = 4204930958817620577L;
+
+  /**
+   * Action constructor.
+   * 
+   * @param name
+   *          the name of the action.
+   */
+  public ClearCacheAction(String name) {
+    super(name);
+  }
+
+  /**
+   * Action constructor.
+   * 
+   * @param name
+   *          the name of the action.
+   * @param icon
+   *          the icon of the action.
+   */
+  public ClearCacheAction(String name, Icon icon) {
+    super(name, icon);
+  }
+
+  private class Cleaner extends Thread {
+    public void run() {
+      ResultCache cache = BlastViewerOpener.getResultCache();
+      FetchCache fetchCache = BlastViewerOpener.getFetchCache();
+      if (cache == null) {
+        return;
+      }
+      try {
+        EZEnvironment.setWaitCursor();
+        cache.clear();
+        if (fetchCache != null) {
+          fetchCache.clear();
+        }
+      } catch (Throwable t) {
+        EZLogger.warn(t.toString());
+      } finally {
+        EZEnvironment.setDefaultCursor();
+      }
+      EZEnvironment.displayInfoMessage(EZEnvironment.getParentFrame(),
+          BVMessages.getString("ClearCacheAction.msg1"));
+    }
+  }
+
+  public void actionPerformed(ActionEvent event) {
+    new Cleaner().start();
+  }
+}
@@ -18,6 +18,7 @@ package bzh.plealog.blastviewer.actions.summary;
 
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
@@ -167,6 +168,7 @@ public class ImportIprScanDomainsAction extends AbstractAction {
       int ncount=0;
       SROutput sro;
       int nannot, nSeqAnnotated=0, rows=_query.sequences();
+      int[] annotated = new int[rows];
       ncount=0;
       String msg = BVMessages.getString("ImportIprScanFileAction.msg4");
       for(int i=0; i< rows; i++) {
@@ -180,7 +182,7 @@ public class ImportIprScanDomainsAction extends AbstractAction {
         SJFileSummary summary = _query.getSummary(i);
         if (summary != null) {
           summary.updateQueryClassificationData(sro);
-          nSeqAnnotated++;
+          annotated[nSeqAnnotated++] = i;
         }
       }
       EZLogger.info(String.format(BVMessages.getString("ImportIprScanFileAction.log2"), 
@@ -191,7 +193,7 @@ public class ImportIprScanDomainsAction extends AbstractAction {
         return;
       }
       
-      updateUI();
+      updateUI(Arrays.copyOf(annotated, nSeqAnnotated));
     }
     
     /**
@@ -287,7 +289,12 @@ public class ImportIprScanDomainsAction extends AbstractAction {
     new Loader().start();
   }
 
-  public void updateUI() {
+  /**
+   * Called when IPRscan predictions have been imported in current view.
+   * 
+   * @param summaries indices of the queries that have been annotated
+   */
+  public void updateUI(int[] summaries) {
     
   }
 }
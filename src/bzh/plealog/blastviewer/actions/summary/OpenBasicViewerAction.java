@@ -28,6 +28,7 @@ import com.plealog.genericapp.api.log.EZLogger;
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
 import bzh.plealog.bioinfo.ui.blast.resulttable.SummaryTable;
 import bzh.plealog.bioinfo.ui.blast.resulttable.SummaryTableModel;
+import bzh.plealog.blastviewer.data.QueryResultView;
 import bzh.plealog.blastviewer.resources.BVMessages;
 import bzh.plealog.blastviewer.util.BlastViewerOpener;
 
@@ -86,11 +87,10 @@ public class OpenBasicViewerAction extends AbstractAction {
       return;
     }
     
-    //prepare a copy to avoid altering original data in the coming viewer
-    SROutput sro_copy = sro.clone(false);
-    //such a result only contains a single SRIteration on which we MUST
-    //reset ordering number to "1"
-    sro_copy.getIteration(0).setIterationIterNum(1);
+    //prepare a copy to avoid altering original data in the coming viewer:
+    //views are read-only. Such a result only contains a single SRIteration
+    //which MUST be numbered "1": copying a view does that.
+    SROutput sro_copy = QueryResultView.viewOf(sro).clone(false);
     //start viewer
     BlastViewerOpener.displayInternalFrame(
         BlastViewerOpener.prepareViewer(sro_copy),
@@ -18,19 +18,26 @@ package bzh.plealog.blastviewer.client.ncbi;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
 
 import com.plealog.genericapp.api.EZEnvironment;
-import com.plealog.genericapp.api.file.EZFileUtils;
 import com.plealog.genericapp.api.log.EZLogger;
 
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
-import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
-import bzh.plealog.bioinfo.io.searchresult.SerializerSystemFactory;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
 import bzh.plealog.bioinfo.ui.blast.config.ConfigManager;
 import bzh.plealog.blastviewer.config.directory.DirManager;
+import bzh.plealog.blastviewer.loader.BlastStreamParser;
 import bzh.plealog.blastviewer.resources.BVMessages;
 import bzh.plealog.blastviewer.util.BlastViewerOpener;
+import bzh.plealog.blastviewer.util.FetchCache;
+import bzh.plealog.blastviewer.util.HTTPBasicEngine;
+import bzh.plealog.blastviewer.util.StreamingViewerLoader;
 
 /**
  * Utility class.
@@ -38,6 +45,8 @@ import bzh.plealog.blastviewer.util.BlastViewerOpener;
  * Handle NCBI data retrieval using a separate thread.
  */
 public class NcbiFetcher {
+  private static QBlastJobTracker _tracker;
+
   private static String chooseFile(String rid) {
     try {
       DirManager dmgr = (DirManager) ConfigManager.getConfig(DirManager.NAME);
@@ -47,60 +56,258 @@ public class NcbiFetcher {
     }
     return null;
   }
+  /**
+   * Return the tracker used to wait for jobs still running on the server.
+   * Their results are displayed as soon as they are available.
+   */
+  public static synchronized QBlastJobTracker getJobTracker() {
+    if (_tracker == null) {
+      _tracker = new QBlastJobTracker(new QBlastJobTracker.JobListener() {
+        @Override
+        public void jobStatusChanged(String rid, String status) {
+          EZLogger.info(MessageFormat.format(
+              BVMessages.getString("FetchFromNcbiAction.err3"), 
+              new Object[]{rid, status}));
+        }
+        @Override
+        public void jobReady(String rid, File result) {
+          try {
+            showResult(rid, result);
+          } finally {
+            BlastViewerOpener.cleanHelperMessage();
+          }
+        }
+        @Override
+        public void jobFailed(String rid, String msg) {
+          String str = MessageFormat.format(
+              BVMessages.getString("FetchFromNcbiAction.err3"), 
+              new Object[]{rid, msg});
+          EZLogger.warn(str);
+          EZEnvironment.displayWarnMessage(EZEnvironment.getParentFrame(), str);
+        }
+      });
+    }
+    return _tracker;
+  }
+  /**
+   * Fetch and display the result of a job. A result already fetched is
+   * retrieved from the local cache.
+   * 
+   * @param rid the job request identifier
+   */
   public static void fetchAndShow(String rid) {
+    if (!showCachedResult(rid)) {
+      download(rid);
+    }
+  }
+  /**
+   * Display the result of a job available in the local cache.
+   * 
+   * @return false if the result is not in the cache
+   */
+  private static boolean showCachedResult(String rid) {
+    FetchCache cache = BlastViewerOpener.getFetchCache();
+    String resFileStr;
+    File resFile;
+
+    if (cache == null || (resFileStr = chooseFile(rid)) == null) {
+      return false;
+    }
+    resFile = new File(resFileStr);
+    if (!cache.get(FetchCache.getRidKey(rid), resFile)) {
+      return false;
+    }
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("FetchFromNcbiAction.msg4"));
+    try {
+      displayResult(resFile);
+    } finally {
+      BlastViewerOpener.cleanHelperMessage();
+    }
+    return true;
+  }
+  /**
+   * Add the result of a job to the local cache.
+   */
+  private static void cacheResult(String rid, File resFile) {
+    FetchCache cache = BlastViewerOpener.getFetchCache();
+    if (cache != null) {
+      cache.put(FetchCache.getRidKey(rid), resFile, null);
+    }
+  }
+  private static void download(String rid) {
 
     QBlastRetriever qRet;
-    File tmpFile, resFile;
-    String resFileStr;
-    boolean bRet;
+    InputStream ins;
 
     // connect to the NCBI
     BlastViewerOpener.setHelperMessage(BVMessages
         .getString("FetchFromNcbiAction.msg1"));
     qRet = new QBlastRetriever();
     EZEnvironment.setWaitCursor();
-    bRet = qRet.getBlastResult(rid);
-    EZEnvironment.setDefaultCursor();
+    ins = qRet.openBlastResult(rid);
+    // job still running ?
+    if (ins == null && qRet.isWaiting()) {
+      EZEnvironment.setDefaultCursor();
+      getJobTracker().track(rid);
+      EZEnvironment.displayInfoMessage(EZEnvironment.getParentFrame(), 
+          String.format(BVMessages.getString("QBlastJobTracker.msg1"), rid));
+    }
     // error ?
-    if (bRet == false) {
+    else if (ins == null) {
+      EZEnvironment.setDefaultCursor();
       String msg = BVMessages.getString("FetchFromNcbiAction.err3"); 
       msg = MessageFormat.format(
           msg, 
           new Object[]{rid, qRet.getErrorMsg()});
       EZEnvironment.displayWarnMessage(EZEnvironment.getParentFrame(), msg);
     } else {
-      // ok, then ask the user for a file to save the Blast data
-      BlastViewerOpener.setHelperMessage(BVMessages
-          .getString("FetchFromNcbiAction.msg2"));
-      tmpFile = qRet.getResultFile();
-      resFileStr = chooseFile(rid);
-      if (resFileStr != null) {
-        resFile = new File(resFileStr);
-        try {
-          EZFileUtils.copyFile(tmpFile, resFile);
-          EZLogger.info(BVMessages.getString("FetchFromNcbiAction.msg3")
-              + resFileStr);
-          // setup an NCBI Blast Loader (XML)
-          BlastViewerOpener.setHelperMessage(BVMessages
-              .getString("FetchFromNcbiAction.msg4"));
-          SRLoader ncbiBlastLoader = SerializerSystemFactory
-              .getLoaderInstance(SerializerSystemFactory.NCBI_LOADER2);
-          // load data from file
-          SROutput so = ncbiBlastLoader.load(resFile);
-          // display the viewer
-          BlastViewerOpener.displayInternalFrame(BlastViewerOpener.prepareViewer(so), resFile.getName(),
-              null);
-        } catch (IOException e) {
-          EZLogger.warn(BVMessages.getString("FetchFromNcbiAction.err1")
-              + ": " + e);
-          EZEnvironment.displayWarnMessage(EZEnvironment.getParentFrame(),
-              BVMessages.getString("FetchFromNcbiAction.err1") + ".");
-        }
+      try {
+        showResult(rid, ins);
+      } finally {
+        IOUtils.closeQuietly(ins);
+        EZEnvironment.setDefaultCursor();
+      }
+    }
+    BlastViewerOpener.cleanHelperMessage();
+  }
+  /**
+   * Fetch and display the results of several jobs. Results are downloaded
+   * concurrently; each result is displayed as soon as it is available. Jobs
+   * still running on the server are handed to the job tracker.
+   * 
+   * @param rids the job request identifiers
+   */
+  public static void fetchAndShow(String[] rids) {
+    List<String> toFetch = new ArrayList<>();
+
+    for (String rid : rids) {
+      if (!showCachedResult(rid)) {
+        toFetch.add(rid);
       }
-      // discard the temporary file
-      tmpFile.delete();
     }
+    if (toFetch.size() <= 1) {
+      if (toFetch.size() == 1) {
+        download(toFetch.get(0));
+      }
+      return;
+    }
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("FetchFromNcbiAction.msg1"));
+    new QBlastFetchPool().fetch(toFetch.toArray(new String[0]), new QBlastFetchPool.FetchListener() {
+      @Override
+      public void resultFetched(String rid, File result) {
+        showResult(rid, result);
+      }
+
+      @Override
+      public void fetchFailed(String rid, String msg, boolean waiting) {
+        if (waiting) {
+          getJobTracker().track(rid);
+          EZLogger.info(String.format(BVMessages.getString("QBlastJobTracker.msg1"), rid));
+        } else {
+          msg = MessageFormat.format(
+              BVMessages.getString("FetchFromNcbiAction.err3"), 
+              new Object[]{rid, msg});
+          EZLogger.warn(msg);
+        }
+      }
+    });
     BlastViewerOpener.cleanHelperMessage();
   }
+  /**
+   * Save a job result in the local data directory while displaying it. The
+   * result is read only once from the server.
+   * 
+   * @param rid the job request identifier
+   * @param ins stream on the job result. It must support mark/reset.
+   */
+  private static void showResult(String rid, InputStream ins) {
+    File resFile;
+    String resFileStr;
+
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("FetchFromNcbiAction.msg2"));
+    resFileStr = chooseFile(rid);
+    if (resFileStr == null) {
+      return;
+    }
+    resFile = new File(resFileStr);
+    try {
+      BlastViewerOpener.setHelperMessage(BVMessages
+          .getString("FetchFromNcbiAction.msg4"));
+      // NCBI BLAST XML results are displayed while being received
+      if (BlastStreamParser.getParser(ins) != null) {
+        new StreamingViewerLoader(resFile.getName()).load(ins, resFile);
+        EZLogger.info(BVMessages.getString("FetchFromNcbiAction.msg3")
+            + resFileStr);
+        cacheResult(rid, resFile);
+      } else {
+        HTTPBasicEngine.save(ins, resFile);
+        EZLogger.info(BVMessages.getString("FetchFromNcbiAction.msg3")
+            + resFileStr);
+        cacheResult(rid, resFile);
+        displayResult(resFile);
+      }
+    } catch (IOException | SRLoaderException e) {
+      EZLogger.warn(BVMessages.getString("FetchFromNcbiAction.err1")
+          + ": " + e);
+      EZEnvironment.displayWarnMessage(EZEnvironment.getParentFrame(),
+          BVMessages.getString("FetchFromNcbiAction.err1") + ".");
+    }
+  }
+
+  /**
+   * Save a job result in the local data directory, then display it.
+   * 
+   * @param rid the job request identifier
+   * @param tmpFile temporary file containing the job result. It is moved
+   * to the local data directory or deleted by this method.
+   */
+  private static void showResult(String rid, File tmpFile) {
+    File resFile;
+    String resFileStr;
+
+    // ok, then ask the user for a file to save the Blast data
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("FetchFromNcbiAction.msg2"));
+    resFileStr = chooseFile(rid);
+    if (resFileStr != null) {
+      resFile = new File(resFileStr);
+      try {
+        // data is moved, not copied
+        HTTPBasicEngine.commit(tmpFile, resFile);
+        EZLogger.info(BVMessages.getString("FetchFromNcbiAction.msg3")
+            + resFileStr);
+        cacheResult(rid, resFile);
+        BlastViewerOpener.setHelperMessage(BVMessages
+            .getString("FetchFromNcbiAction.msg4"));
+        displayResult(resFile);
+      } catch (IOException e) {
+        EZLogger.warn(BVMessages.getString("FetchFromNcbiAction.err1")
+            + ": " + e);
+        EZEnvironment.displayWarnMessage(EZEnvironment.getParentFrame(),
+            BVMessages.getString("FetchFromNcbiAction.err1") + ".");
+      }
+    }
+    // discard the temporary file, if not moved
+    tmpFile.delete();
+  }
+
+  /**
+   * Display a result file.
+   */
+  private static void displayResult(File resFile) {
+    // large multi-query results are displayed while being loaded
+    if (StreamingViewerLoader.canRead(resFile)) {
+      new StreamingViewerLoader(resFile.getName()).load(resFile);
+    } else {
+      // load data from file
+      SROutput so = BlastViewerOpener.readBlastFile(resFile);
+      // display the viewer
+      BlastViewerOpener.displayInternalFrame(BlastViewerOpener.prepareViewer(so), resFile.getName(),
+          null);
+    }
+  }
 
 }
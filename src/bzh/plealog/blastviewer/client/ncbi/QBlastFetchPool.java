@@ -0,0 +1,258 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.client.ncbi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.resources.BVMessages;
+import bzh.plealog.blastviewer.util.HTTPClient;
+
+/**
+ * Download the results of several QBlast jobs at the same time. The number
+ * of concurrent downloads and the rate of requests sent to the server are
+ * both bounded.
+ * 
+ * Downloaded results are handed to a single processing thread, so that
+ * parsing a result overlaps with the downloading of the other ones.
+ * 
+ * @author Patrick G. Durand
+ */
+public class QBlastFetchPool {
+  private String             _server;
+  private int                _maxDownloads;
+  private RequestRateLimiter _limiter;
+
+  /** name of the JVM property setting the maximum number of concurrent downloads */
+  public static final String MAX_DOWNLOADS_PROP = "bv.ncbi.downloads";
+  /** name of the JVM property setting the maximum number of requests per second */
+  public static final String MAX_RATE_PROP = "bv.ncbi.rate";
+  /** default maximum number of concurrent downloads */
+  public static final int    DEFAULT_MAX_DOWNLOADS = 4;
+  /** default maximum number of requests per second */
+  public static final double DEFAULT_MAX_RATE = 3d;
+
+  /**
+   * Receive the results downloaded by the pool. Methods are always called from
+   * the same thread, one result at a time.
+   */
+  public interface FetchListener {
+    /**
+     * Called when the result of a job has been downloaded.
+     * 
+     * @param rid the job request identifier
+     * @param result a temporary file containing the result
+     */
+    void resultFetched(String rid, File result);
+
+    /**
+     * Called when the result of a job cannot be downloaded.
+     * 
+     * @param rid the job request identifier
+     * @param msg the reason
+     * @param waiting true if the job is still running on the server
+     */
+    void fetchFailed(String rid, String msg, boolean waiting);
+  }
+
+  /**
+   * Timing and status of a job result download.
+   */
+  public static class FetchReport {
+    private String  _rid;
+    private String  _status;
+    private boolean _ok;
+    private long    _bytes;
+    private long    _downloadTime;
+    private long    _processTime;
+
+    public String getRid() {
+      return _rid;
+    }
+
+    /**
+     * Return true if the result has been downloaded.
+     */
+    public boolean isOk() {
+      return _ok;
+    }
+
+    /**
+     * Return the status of the job, or an error message.
+     */
+    public String getStatus() {
+      return _status;
+    }
+
+    /**
+     * Return the size of the result, in bytes.
+     */
+    public long getBytes() {
+      return _bytes;
+    }
+
+    /**
+     * Return the time (ms) spent to download the result.
+     */
+    public long getDownloadTime() {
+      return _downloadTime;
+    }
+
+    /**
+     * Return the time (ms) spent by the listener to process the result.
+     */
+    public long getProcessTime() {
+      return _processTime;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(BVMessages.getString("QBlastFetchPool.msg1"), _rid,
+          _status, _bytes, _downloadTime, _processTime);
+    }
+  }
+
+  /**
+   * Constructor. Results are downloaded from the NCBI BLAST server. Limits
+   * are read from JVM properties MAX_DOWNLOADS_PROP and MAX_RATE_PROP.
+   */
+  public QBlastFetchPool() {
+    this(QBlastRetriever.NCBI_SERVER,
+        Integer.getInteger(MAX_DOWNLOADS_PROP, DEFAULT_MAX_DOWNLOADS),
+        getDoubleProperty(MAX_RATE_PROP, DEFAULT_MAX_RATE));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param server URL of a server implementing the NCBI QBlast API
+   * @param maxDownloads maximum number of concurrent downloads
+   * @param maxRate maximum number of requests per second
+   */
+  public QBlastFetchPool(String server, int maxDownloads, double maxRate) {
+    _server = server;
+    _maxDownloads = Math.max(1, maxDownloads);
+    _limiter = RequestRateLimiter.perSecond(maxRate);
+  }
+
+  private static double getDoubleProperty(String key, double defValue) {
+    try {
+      return Double.parseDouble(System.getProperty(key, String.valueOf(defValue)));
+    } catch (NumberFormatException e) {
+      return defValue;
+    }
+  }
+
+  /**
+   * Download the results of several jobs. This method returns when all
+   * results have been downloaded and processed by the listener.
+   * 
+   * @param rids the job request identifiers
+   * @param listener the object processing downloaded results
+   * 
+   * @return a report for each job, in the order of rids
+   */
+  public List<FetchReport> fetch(String[] rids, FetchListener listener) {
+    ExecutorService downloaders = Executors.newFixedThreadPool(Math.min(_maxDownloads, rids.length));
+    ExecutorService processor = Executors.newSingleThreadExecutor();
+    List<Future<FetchReport>> futures = new ArrayList<>();
+    List<FetchReport> reports = new ArrayList<>();
+    long tim = System.currentTimeMillis(), bytes = 0;
+    int ok = 0;
+
+    for (String rid : rids) {
+      futures.add(downloaders.submit(() -> download(rid.trim(), listener, processor)));
+    }
+    downloaders.shutdown();
+    try {
+      for (Future<FetchReport> future : futures) {
+        reports.add(future.get());
+      }
+      processor.shutdown();
+      // wait for the last result to be processed
+      while (!processor.isTerminated()) {
+        processor.awaitTermination(1, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      downloaders.shutdownNow();
+      processor.shutdownNow();
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // download() catches all exceptions
+      EZLogger.warn(e.toString());
+    }
+    for (FetchReport report : reports) {
+      EZLogger.info(report.toString());
+      if (report.isOk()) {
+        ok++;
+        bytes += report.getBytes();
+      }
+    }
+    tim = Math.max(1, System.currentTimeMillis() - tim);
+    EZLogger.info(String.format(BVMessages.getString("QBlastFetchPool.msg2"),
+        ok, rids.length, tim, bytes / 1024d * 1000d / tim));
+    HTTPClient.getDefault().dumpStats();
+    return reports;
+  }
+
+  /**
+   * Download the result of a job, then queue it for processing.
+   */
+  private FetchReport download(String rid, FetchListener listener, ExecutorService processor) {
+    FetchReport report = new FetchReport();
+    QBlastRetriever retriever = new QBlastRetriever(_server);
+    long tim;
+
+    report._rid = rid;
+    try {
+      _limiter.acquire();
+    } catch (InterruptedException e) {
+      report._status = e.toString();
+      return report;
+    }
+    tim = System.currentTimeMillis();
+    if (!retriever.getBlastResult(rid)) {
+      report._downloadTime = System.currentTimeMillis() - tim;
+      report._status = retriever.isWaiting() ? QBlastRetriever.STATUS_WAITING : retriever.getErrorMsg();
+      processor.submit(() -> listener.fetchFailed(rid, retriever.getErrorMsg(), retriever.isWaiting()));
+      return report;
+    }
+    File result = retriever.getResultFile();
+    report._downloadTime = System.currentTimeMillis() - tim;
+    report._bytes = result.length();
+    report._status = QBlastRetriever.STATUS_READY;
+    report._ok = true;
+    processor.submit(() -> {
+      long start = System.currentTimeMillis();
+      try {
+        listener.resultFetched(rid, result);
+      } catch (Throwable t) {
+        EZLogger.warn(rid + ": " + t);
+      }
+      report._processTime = System.currentTimeMillis() - start;
+    });
+    return report;
+  }
+}
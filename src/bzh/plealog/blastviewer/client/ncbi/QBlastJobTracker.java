@@ -0,0 +1,236 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.client.ncbi;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Track jobs running on a QBlast server. The status of each job is polled
+ * using an exponential backoff delay until the job is done; then its result
+ * is downloaded and reported to a listener.
+ * 
+ * Whatever the number of tracked jobs, requests sent to the server never
+ * exceed a maximum rate.
+ * 
+ * @author Patrick G. Durand
+ */
+public class QBlastJobTracker {
+  private ScheduledExecutorService _scheduler;
+  private Map<String, Job>         _jobs = new ConcurrentHashMap<>();
+  private JobListener              _listener;
+  private String                   _server;
+  private long                     _initialDelay;
+  private long                     _maxDelay;
+  private RequestRateLimiter       _limiter;
+
+  /** default delay (ms) before polling a job for the first time */
+  public static final long DEFAULT_INITIAL_DELAY = 5000;
+  /** default maximum delay (ms) between two polls of the same job */
+  public static final long DEFAULT_MAX_DELAY = 60000;
+  /** default minimum delay (ms) between two requests sent to the server */
+  public static final long DEFAULT_MIN_INTERVAL = 3000;
+  //number of threads used to poll jobs
+  private static final int POLLERS = 2;
+
+  /**
+   * Receive notifications about tracked jobs. Methods are called from the
+   * tracker threads.
+   */
+  public interface JobListener {
+    /**
+     * Called each time the status of a job has been polled.
+     */
+    void jobStatusChanged(String rid, String status);
+
+    /**
+     * Called when the result of a job has been downloaded.
+     * 
+     * @param rid the job request identifier
+     * @param result a temporary file containing the result
+     */
+    void jobReady(String rid, File result);
+
+    /**
+     * Called when a job cannot be tracked anymore.
+     */
+    void jobFailed(String rid, String msg);
+  }
+
+  /**
+   * A tracked job.
+   */
+  private static class Job {
+    private String _rid;
+    private long   _delay;
+    private String _status;
+
+    private Job(String rid, long delay) {
+      _rid = rid;
+      _delay = delay;
+    }
+  }
+
+  /**
+   * Constructor. Jobs are tracked on the NCBI BLAST server using default
+   * delays.
+   * 
+   * @param listener the object receiving job notifications
+   */
+  public QBlastJobTracker(JobListener listener) {
+    this(listener, QBlastRetriever.NCBI_SERVER, DEFAULT_INITIAL_DELAY,
+        DEFAULT_MAX_DELAY, DEFAULT_MIN_INTERVAL);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param listener the object receiving job notifications
+   * @param server URL of a server implementing the NCBI QBlast API
+   * @param initialDelay delay (ms) before polling a job for the first time.
+   * That delay is doubled after each poll.
+   * @param maxDelay maximum delay (ms) between two polls of the same job
+   * @param minInterval minimum delay (ms) between two requests sent to
+   * the server, whatever the job
+   */
+  public QBlastJobTracker(JobListener listener, String server, long initialDelay,
+      long maxDelay, long minInterval) {
+    _listener = listener;
+    _server = server;
+    _initialDelay = initialDelay;
+    _maxDelay = maxDelay;
+    _limiter = new RequestRateLimiter(minInterval);
+    _scheduler = Executors.newScheduledThreadPool(POLLERS, r -> {
+      Thread t = new Thread(r, "QBlastJobTracker");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Start tracking a job. Nothing is done if that job is already tracked.
+   * 
+   * @param rid the job request identifier
+   */
+  public void track(String rid) {
+    Job job = new Job(rid.trim(), _initialDelay);
+
+    if (_jobs.putIfAbsent(job._rid, job) != null) {
+      return;
+    }
+    EZLogger.info(String.format(BVMessages.getString("QBlastJobTracker.msg1"), job._rid));
+    _scheduler.schedule(() -> poll(job), job._delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Return the number of jobs currently tracked.
+   */
+  public int countJobs() {
+    return _jobs.size();
+  }
+
+  /**
+   * Stop tracking all jobs.
+   */
+  public void shutdown() {
+    _scheduler.shutdownNow();
+    _jobs.clear();
+  }
+
+  /**
+   * Poll the status of a job and handle it.
+   */
+  private void poll(Job job) {
+    QBlastRetriever retriever;
+    String status;
+    long wait;
+
+    if (!_jobs.containsKey(job._rid)) {
+      return;
+    }
+    // request rate cap reached: retry later
+    wait = _limiter.reserve();
+    if (wait > 0) {
+      _scheduler.schedule(() -> poll(job), wait, TimeUnit.MILLISECONDS);
+      return;
+    }
+    retriever = new QBlastRetriever(_server);
+    status = retriever.getJobStatus(job._rid);
+    if (status == null) {
+      done(job);
+      _listener.jobFailed(job._rid, retriever.getErrorMsg());
+      return;
+    }
+    if (!status.equals(job._status)) {
+      job._status = status;
+      _listener.jobStatusChanged(job._rid, status);
+    }
+    switch (status) {
+    case QBlastRetriever.STATUS_WAITING:
+      job._delay = Math.min(job._delay * 2, _maxDelay);
+      EZLogger.debug(String.format(BVMessages.getString("QBlastJobTracker.msg2"),
+          job._rid, job._delay));
+      _scheduler.schedule(() -> poll(job), job._delay, TimeUnit.MILLISECONDS);
+      break;
+    case QBlastRetriever.STATUS_READY:
+      fetch(job);
+      break;
+    default:
+      done(job);
+      _listener.jobFailed(job._rid, status);
+    }
+  }
+
+  /**
+   * Download the result of a job.
+   */
+  private void fetch(Job job) {
+    QBlastRetriever retriever;
+    long wait = _limiter.reserve();
+
+    if (wait > 0) {
+      _scheduler.schedule(() -> fetch(job), wait, TimeUnit.MILLISECONDS);
+      return;
+    }
+    retriever = new QBlastRetriever(_server);
+    if (retriever.getBlastResult(job._rid)) {
+      done(job);
+      _listener.jobReady(job._rid, retriever.getResultFile());
+    } else if (retriever.isWaiting()) {
+      // result not yet available: poll again
+      _scheduler.schedule(() -> poll(job), job._delay, TimeUnit.MILLISECONDS);
+    } else {
+      done(job);
+      _listener.jobFailed(job._rid, retriever.getErrorMsg());
+    }
+  }
+
+  /**
+   * Stop tracking a job.
+   */
+  private void done(Job job) {
+    _jobs.remove(job._rid);
+  }
+}
@@ -16,10 +16,15 @@
  */
 package bzh.plealog.blastviewer.client.ncbi;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
+
 import bzh.plealog.blastviewer.resources.BVMessages;
 import bzh.plealog.blastviewer.util.HTTPBasicEngine;
 import bzh.plealog.blastviewer.util.HTTPEngineException;
@@ -33,15 +38,47 @@ import bzh.plealog.blastviewer.util.HTTPEngineException;
 public class QBlastRetriever {
   private String                    _errorMsg;
   private File                      _resFile;
+  private boolean                   _waiting;
+  private MessageFormat             _resultUrl;
+  private MessageFormat             _statusUrl;
+
+  /** URL of the NCBI BLAST server */
+  public static final String        NCBI_SERVER = "https://blast.ncbi.nlm.nih.gov/Blast.cgi";
+  private static final String       RESULT_PARAMS = 
+      "?RESULTS_FILE=on&RID={0}&FORMAT_TYPE=XML2_S&FORMAT_OBJECT=Alignment&CMD=Get";
+  private static final String       STATUS_PARAMS = 
+      "?RID={0}&FORMAT_OBJECT=SearchInfo&CMD=Get";
 
   public static final MessageFormat QBLAST_URL = new MessageFormat(
-      "https://blast.ncbi.nlm.nih.gov/Blast.cgi?RESULTS_FILE=on&RID={0}&FORMAT_TYPE=XML2_S&FORMAT_OBJECT=Alignment&CMD=Get"
-      );
+      NCBI_SERVER + RESULT_PARAMS);
   // Note: old address was:
   // "https://www.ncbi.nlm.nih.gov/blast/Blast.cgi?RID={0}&FORMAT_TYPE=XML&CMD=Get&ALIGNMENT_TYPE=Pairwise&FORMAT_OBJECT=Alignment"
   // To get XML Legacy, use: FORMAT_TYPE=XML ; then update DetchFromNcbiAction to use NCBI_LOADER
   // To get XML 2, use: FORMAT_TYPE=XML2_S ; then update DetchFromNcbiAction to use NCBI_LOADER2
   private static final String       QUERY_NAME = "QBlastRetriever";
+  private static final int          BUFFER_SIZE = 64 * 1024;
+
+  /** job status reported by the server while the job is running */
+  public static final String        STATUS_WAITING = "WAITING";
+  /** job status reported by the server when results are available */
+  public static final String        STATUS_READY = "READY";
+
+  /**
+   * Constructor. Results are retrieved from the NCBI BLAST server.
+   */
+  public QBlastRetriever() {
+    this(NCBI_SERVER);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param server URL of a server implementing the NCBI QBlast API.
+   */
+  public QBlastRetriever(String server) {
+    _resultUrl = new MessageFormat(server + RESULT_PARAMS);
+    _statusUrl = new MessageFormat(server + STATUS_PARAMS);
+  }
 
   /**
    * Call this method after a call to getBlastResult to get back some error
@@ -63,40 +100,153 @@ public class QBlastRetriever {
     return _resFile;
   }
 
-  public boolean getBlastResult(String rid) {
-    QBlasterBase qb;
+  /**
+   * Call this method after a call to getBlastResult to figure out whether or
+   * not it failed because the job is still running on the server.
+   */
+  public boolean isWaiting() {
+    return _waiting;
+  }
+
+  /**
+   * Get the status of a job.
+   * 
+   * @param rid the job request identifier
+   * 
+   * @return the status reported by the server, e.g. WAITING, READY,
+   * FAILED or UNKNOWN. Returns null if the server cannot be contacted, then
+   * use getErrorMsg() to get the reason.
+   */
+  public String getJobStatus(String rid) {
     Map<String, String> qBlastInfo;
     String status;
-    String url;
+
+    _errorMsg = null;
+    try (InputStream ins = HTTPBasicEngine.openGet(_statusUrl.format(new Object[] { rid.trim() }), null)) {
+      qBlastInfo = new QBlasterBase().analyseOutput(QUERY_NAME, ins, false, false);
+    } catch (HTTPEngineException | IOException ex) {
+      _errorMsg = ex.getMessage();
+      return null;
+    }
+    status = qBlastInfo.get("Status");
+    if (status == null) {
+      _errorMsg = qBlastInfo.get("ERROR");
+      if (_errorMsg == null) {
+        _errorMsg = BVMessages.getString("QBlaster.analyseFileError");
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Get the result of a job and save it in a temporary file. Use
+   * getResultFile() to get that file.
+   * 
+   * @param rid the job request identifier
+   * 
+   * @return true if the result has been retrieved. Otherwise, use getErrorMsg()
+   * and isWaiting() to get the reason.
+   */
+  public boolean getBlastResult(String rid) {
     File tmpFile;
 
-    url = QBLAST_URL.format(new Object[] { rid.trim() });
     try {
-      tmpFile = HTTPBasicEngine.doGet(url);
-    } catch (HTTPEngineException ex) {
-      _errorMsg = ex.getMessage();
+      tmpFile = File.createTempFile(HTTPBasicEngine.TMP_FILE_PREFIX, HTTPBasicEngine.TMP_FILE_SUFIX);
+      tmpFile.deleteOnExit();
+    } catch (IOException e) {
+      _waiting = false;
+      _errorMsg = e.getMessage();
       return false;
     }
-    qb = new QBlasterBase();
-    qBlastInfo = qb.analyseOutput(QUERY_NAME, tmpFile, false, false);
-    if (qBlastInfo.size() == 0) {
-      // ok
-      _resFile = tmpFile;
-      return true;
-    } else {
-      // status different than WAITING: Blast error!
-      status = (String) qBlastInfo.get("Status");
-      if (status != null && !status.equals("WAITING")) {
-        // we return an ERROR param, while NCBI not
-        _errorMsg = (String) qBlastInfo.get("ERROR");
-        if (_errorMsg == null)
-          _errorMsg = status;
-      } else {
-        _errorMsg = BVMessages.getString("QBlastRetriever.err");
-      }
+    if (!getBlastResult(rid, tmpFile)) {
       tmpFile.delete();
       return false;
     }
+    return true;
+  }
+
+  /**
+   * Get the result of a job and save it in a file. The result is written
+   * only once, directly in the target file.
+   * 
+   * @param rid the job request identifier
+   * @param target the file receiving the result
+   * 
+   * @return true if the result has been retrieved. Otherwise, use getErrorMsg()
+   * and isWaiting() to get the reason.
+   */
+  public boolean getBlastResult(String rid, File target) {
+    InputStream ins = openBlastResult(rid);
+
+    if (ins == null) {
+      return false;
+    }
+    try {
+      HTTPBasicEngine.save(ins, target);
+    } catch (IOException e) {
+      _errorMsg = e.getMessage();
+      return false;
+    } finally {
+      IOUtils.closeQuietly(ins);
+    }
+    _resFile = target;
+    return true;
+  }
+
+  /**
+   * Open a stream on the result of a job. The status of the job is figured
+   * out from the first bytes sent by the server, so that a result can be
+   * consumed while it is being received.
+   * 
+   * @param rid the job request identifier
+   * 
+   * @return a stream on the result, or null if the job result is not
+   * available. In the latter case, use getErrorMsg() and isWaiting() to get
+   * the reason. Caller is responsible for closing the stream. Returned stream
+   * supports mark/reset.
+   */
+  public InputStream openBlastResult(String rid) {
+    Map<String, String> qBlastInfo;
+    QBlasterBase analyzer;
+    InputStream ins;
+    String status;
+
+    _waiting = false;
+    _errorMsg = null;
+    _resFile = null;
+    try {
+      ins = new BufferedInputStream(HTTPBasicEngine.openGet(
+          _resultUrl.format(new Object[] { rid.trim() }), null), BUFFER_SIZE);
+    } catch (HTTPEngineException ex) {
+      _errorMsg = ex.getMessage();
+      return null;
+    }
+    // only the beginning of the answer is analyzed, then the stream is reset
+    analyzer = new QBlasterBase();
+    qBlastInfo = analyzer.analyseOutput(QUERY_NAME, ins, false, false);
+    if (analyzer.isBlastResult()) {
+      // ok
+      return ins;
+    }
+    // not a BLAST result: server sent a (small) status page
+    IOUtils.closeQuietly(ins);
+    status = qBlastInfo.get("Status");
+    if (STATUS_WAITING.equals(status)) {
+      _waiting = true;
+      _errorMsg = BVMessages.getString("QBlastRetriever.err");
+      return null;
+    }
+    // any other answer is a Blast error, including pages without status
+    // such as the ones reporting an unknown RID. We return an ERROR param,
+    // while NCBI not
+    _errorMsg = qBlastInfo.get("ERROR");
+    if (_errorMsg == null)
+      _errorMsg = qBlastInfo.get("INFO");
+    if (_errorMsg == null)
+      _errorMsg = status;
+    if (_errorMsg == null)
+      _errorMsg = BVMessages.getString("QBlaster.analyseFileError");
+    return null;
   }
 
 }
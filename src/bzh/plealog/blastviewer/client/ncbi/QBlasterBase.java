@@ -17,19 +17,31 @@
 package bzh.plealog.blastviewer.client.ncbi;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Hashtable;
 import java.util.Map;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
+import bzh.plealog.blastviewer.loader.BlastXml2StreamParser;
+import bzh.plealog.blastviewer.loader.BlastXmlStreamParser;
 import bzh.plealog.blastviewer.resources.BVMessages;
 
 import com.plealog.genericapp.api.log.EZLogger;
 
 public class QBlasterBase {
   private String _errorMsg;
+  private boolean _blastResult;
+
+  // QBlast status data is always located at the beginning of the server
+  // answer: only that amount of data (chars or bytes) is analyzed
+  protected static final int MAX_HEAD_SIZE = 64 * 1024;
 
   /**
    * Analyze a file containing some data retrieved from the NCBI Blast server.
@@ -45,66 +57,172 @@ public class QBlasterBase {
   protected Map<String, String> analyseOutput(String qName, File file,
       boolean logInfo, boolean logError) {
     Hashtable<String, String> qBlastInfo;
-    BufferedReader br = null;
+
+    if (file.length() < 30) {
+      qBlastInfo = new Hashtable<>();
+      qBlastInfo.put("LENGTH", "NOT_VALID");
+      return qBlastInfo;
+    }
+    try (Reader reader = new FileReader(file)) {
+      return analyseOutput(qName, reader, logInfo, logError);
+    } catch (IOException ex) {
+      return analyseError(qName, ex, logError);
+    }
+  }
+
+  /**
+   * Analyze some data retrieved from the NCBI Blast server.
+   * 
+   * @param data
+   *          the data to analyze
+   * @return a key/value pairs table, i.e. query status. More on that is
+   *         available from the NCBI Blast server documentation.
+   */
+  protected Map<String, String> analyseOutput(String qName, byte[] data,
+      boolean logInfo, boolean logError) {
+    Hashtable<String, String> qBlastInfo;
+
+    if (data.length < 30) {
+      qBlastInfo = new Hashtable<>();
+      qBlastInfo.put("LENGTH", "NOT_VALID");
+      return qBlastInfo;
+    }
+    return analyseOutput(qName, new InputStreamReader(new ByteArrayInputStream(data)), logInfo, logError);
+  }
+
+  /**
+   * Analyze a stream on some data retrieved from the NCBI Blast server. Only
+   * the beginning of the data is read.
+   * 
+   * @param ins
+   *          the data to analyze. This method does not close the stream. If
+   *          the stream supports mark/reset, it is reset to its initial
+   *          position, so that data can be consumed by the caller.
+   * @return a key/value pairs table, i.e. query status. More on that is
+   *         available from the NCBI Blast server documentation.
+   */
+  protected Map<String, String> analyseOutput(String qName, InputStream ins,
+      boolean logInfo, boolean logError) {
+    BoundedInputStream head = new BoundedInputStream(ins, MAX_HEAD_SIZE);
+    boolean reset = ins.markSupported();
+
+    head.setPropagateClose(false);
+    if (reset) {
+      ins.mark(MAX_HEAD_SIZE);
+    }
+    try {
+      return analyseOutput(qName, new InputStreamReader(head), logInfo, logError);
+    } finally {
+      if (reset) {
+        try {
+          ins.reset();
+        } catch (IOException ex) {
+          analyseError(qName, ex, logError);
+        }
+      }
+    }
+  }
+
+  /**
+   * Analyze some data retrieved from the NCBI Blast server. Actually this
+   * method looks for the section QBlastInfo and retrieves the data available
+   * there. Analysis stops as soon as a BLAST XML root element is found, or
+   * when MAX_HEAD_SIZE characters have been read: in both cases, the rest of
+   * the data is not a status report.
+   * 
+   * @param reader
+   *          the data to analyze. This method does not close the reader.
+   * @return a key/value pairs table, i.e. query status. More on that is
+   *         available from the NCBI Blast server documentation.
+   */
+  protected Map<String, String> analyseOutput(String qName, Reader reader,
+      boolean logInfo, boolean logError) {
+    Hashtable<String, String> qBlastInfo;
+    BufferedReader br;
     String line, key, value;
     boolean readInfo = false;
-    int pos;
+    int pos, size = 0;
 
     qBlastInfo = new Hashtable<>();
+    _blastResult = false;
     try {
-      if (file.length() < 30) {
-        qBlastInfo.put("LENGTH", "NOT_VALID");
-      } else {
-        br = new BufferedReader(new FileReader(file));
-        while ((line = br.readLine()) != null) {
-          if (line.indexOf("QBlastInfoBegin") != -1) {
-            readInfo = true;
-          }
-          if (logInfo && readInfo) {
-            EZLogger.info(line);
-          }
-          if (line.indexOf("QBlastInfoEnd") != -1) {
-            break;
-          }
-          pos = line.indexOf("ERROR:");
-          if (pos != -1) {
-            value = line.substring(pos + 6).trim();
-            pos = value.indexOf('<');
-            if (pos != -1)
-              qBlastInfo.put("ERROR", value.substring(0, pos));
-            else
-              qBlastInfo.put("ERROR", value);
-          }
-          pos = line.indexOf("INFO:");
+      br = new BufferedReader(reader);
+      while ((line = br.readLine()) != null) {
+        size += line.length() + 1;
+        if (size > MAX_HEAD_SIZE) {
+          break;
+        }
+        if (isBlastResult(line)) {
+          _blastResult = true;
+          break;
+        }
+        if (line.indexOf("QBlastInfoBegin") != -1) {
+          readInfo = true;
+        }
+        if (logInfo && readInfo) {
+          EZLogger.info(line);
+        }
+        if (line.indexOf("QBlastInfoEnd") != -1) {
+          break;
+        }
+        pos = line.indexOf("ERROR:");
+        if (pos != -1) {
+          value = line.substring(pos + 6).trim();
+          pos = value.indexOf('<');
+          if (pos != -1)
+            qBlastInfo.put("ERROR", value.substring(0, pos));
+          else
+            qBlastInfo.put("ERROR", value);
+        }
+        pos = line.indexOf("INFO:");
+        if (pos != -1) {
+          value = line.substring(pos + 5).trim();
+          pos = value.indexOf('<');
+          if (pos != -1)
+            qBlastInfo.put("INFO", value.substring(0, pos));
+          else
+            qBlastInfo.put("INFO", value);
+        }
+        if (readInfo) {
+          pos = line.indexOf('=');
           if (pos != -1) {
-            value = line.substring(pos + 5).trim();
-            pos = value.indexOf('<');
-            if (pos != -1)
-              qBlastInfo.put("INFO", value.substring(0, pos));
-            else
-              qBlastInfo.put("INFO", value);
-          }
-          if (readInfo) {
-            pos = line.indexOf('=');
-            if (pos != -1) {
-              key = line.substring(0, pos).trim();
-              value = line.substring(pos + 1).trim();
-              qBlastInfo.put(key, value);
-            }
+            key = line.substring(0, pos).trim();
+            value = line.substring(pos + 1).trim();
+            qBlastInfo.put(key, value);
           }
         }
       }
     } catch (Exception ex) {
-      _errorMsg = BVMessages.getString("QBlaster.analyseFileError");
-      if (logError) {
-        EZLogger.warn(qName + ": " + _errorMsg + ": " + ex.toString());
-      }
-    } finally {
-      IOUtils.closeQuietly(br);
+      analyseError(qName, ex, logError);
     }
     return (qBlastInfo);
   }
 
+  /**
+   * Figures out whether or not a line contains the root element of a BLAST
+   * XML document.
+   */
+  private boolean isBlastResult(String line) {
+    return line.indexOf('<') != -1
+        && (BlastXmlStreamParser.canRead(line) || BlastXml2StreamParser.canRead(line));
+  }
+
+  private Map<String, String> analyseError(String qName, Exception ex, boolean logError) {
+    _errorMsg = BVMessages.getString("QBlaster.analyseFileError");
+    if (logError) {
+      EZLogger.warn(qName + ": " + _errorMsg + ": " + ex.toString());
+    }
+    return new Hashtable<>();
+  }
+
+  /**
+   * Figure out whether or not the data analyzed by the last call to
+   * analyseOutput() starts with a BLAST XML result.
+   */
+  public boolean isBlastResult() {
+    return _blastResult;
+  }
+
   public String getErrorMsg() {
     return _errorMsg;
   }
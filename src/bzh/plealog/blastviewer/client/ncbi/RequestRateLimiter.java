@@ -0,0 +1,75 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.client.ncbi;
+
+/**
+ * Limit the rate of requests sent to a server by enforcing a minimum
+ * delay between two consecutive requests. It is safe to share a limiter
+ * between threads.
+ * 
+ * @author Patrick G. Durand
+ */
+public class RequestRateLimiter {
+  private long _minInterval;
+  private long _nextRequest;
+
+  /**
+   * Constructor.
+   * 
+   * @param minInterval minimum delay (ms) between two requests
+   */
+  public RequestRateLimiter(long minInterval) {
+    _minInterval = minInterval;
+  }
+
+  /**
+   * Create a limiter given a maximum number of requests per second.
+   */
+  public static RequestRateLimiter perSecond(double requests) {
+    return new RequestRateLimiter(requests <= 0 ? 0 : (long) (1000d / requests));
+  }
+
+  /**
+   * Try to reserve a time slot to send a request. This method never blocks.
+   * 
+   * @return the delay (ms) to wait before trying again. Zero means that the
+   * request can be sent now: the slot is reserved.
+   */
+  public synchronized long reserve() {
+    long now = System.currentTimeMillis();
+
+    if (now < _nextRequest) {
+      return _nextRequest - now;
+    }
+    _nextRequest = now + _minInterval;
+    return 0;
+  }
+
+  /**
+   * Wait until a request can be sent.
+   * 
+   * @throws InterruptedException if the calling thread is interrupted
+   * while waiting
+   */
+  public void acquire() throws InterruptedException {
+    long wait;
+
+    while ((wait = reserve()) > 0) {
+      Thread.sleep(wait);
+    }
+  }
+}
@@ -22,6 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Properties;
 
 import javax.swing.JComponent;
@@ -31,21 +32,36 @@ import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 
 import com.plealog.genericapp.api.EZApplicationBranding;
 import com.plealog.genericapp.api.EZEnvironment;
 import com.plealog.genericapp.api.file.EZFileUtils;
 import com.plealog.genericapp.api.log.EZLogger;
 
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.bioinfo.api.filter.BFilter;
+import bzh.plealog.bioinfo.api.filter.config.FilterSystemConfigurator;
+import bzh.plealog.bioinfo.io.filter.FilterSerializerException;
 import bzh.plealog.bioinfo.ui.blast.config.ConfigManager;
 import bzh.plealog.blastviewer.BlastViewer;
 import bzh.plealog.blastviewer.client.ncbi.NcbiFetcher;
 import bzh.plealog.blastviewer.config.directory.DirManager;
+import bzh.plealog.blastviewer.loader.LoadMonitor;
+import bzh.plealog.blastviewer.loader.StringPool;
 import bzh.plealog.blastviewer.resources.BVMessages;
+import bzh.plealog.blastviewer.util.BatchRunner;
 import bzh.plealog.blastviewer.util.BlastViewerOpener;
+import bzh.plealog.blastviewer.util.FetchCache;
 import bzh.plealog.blastviewer.util.HTTPBasicEngine;
+import bzh.plealog.blastviewer.util.HTTPClient;
+import bzh.plealog.blastviewer.util.RangeDownloader;
 import bzh.plealog.blastviewer.util.HTTPEngineException;
+import bzh.plealog.blastviewer.util.StreamingViewerLoader;
 
 /**
  * Utility class to handle command-line arguments.
@@ -62,6 +78,18 @@ public class CmdLineManager {
   private static final String URL_ARG = "url";
   //file path of the Blast to load
   private static final String FILE_ARG = "in";
+  //batch mode: process files without UI
+  private static final String BATCH_ARG = "batch";
+  //batch mode: file containing a filter
+  private static final String FILTER_ARG = "filter";
+  //batch mode: format of exported files
+  private static final String FORMAT_ARG = "format";
+  //batch mode: directory where to create exported files
+  private static final String OUT_ARG = "out";
+  //batch mode: number of threads
+  private static final String THREADS_ARG = "threads";
+  //batch mode: supported export formats
+  private static final String[] FORMATS = {"csv", "zml", "xml"};
 
   //Other stuff
   private static final String RES_BASE_NAME = "result_";
@@ -118,6 +146,29 @@ public class CmdLineManager {
         .hasArg()
         .withArgName("FILE")
         .create(FILE_ARG));    
+    options.addOption(
+        OptionBuilder.withDescription(BVMessages.getString("CmdLineManager.arg.batch"))
+        .create(BATCH_ARG));    
+    options.addOption(
+        OptionBuilder.withDescription(BVMessages.getString("CmdLineManager.arg.filter"))
+        .hasArg()
+        .withArgName("FILE")
+        .create(FILTER_ARG));    
+    options.addOption(
+        OptionBuilder.withDescription(BVMessages.getString("CmdLineManager.arg.format"))
+        .hasArg()
+        .withArgName("FORMAT")
+        .create(FORMAT_ARG));    
+    options.addOption(
+        OptionBuilder.withDescription(BVMessages.getString("CmdLineManager.arg.out"))
+        .hasArg()
+        .withArgName("DIR")
+        .create(OUT_ARG));    
+    options.addOption(
+        OptionBuilder.withDescription(BVMessages.getString("CmdLineManager.arg.threads"))
+        .hasArg()
+        .withArgName("N")
+        .create(THREADS_ARG));    
     return options;
   }
   /**
@@ -165,27 +216,122 @@ public class CmdLineManager {
       System.exit(0);
     }
     if(cLine.hasOption(HELP1_ARG) || cLine.hasOption(HELP2_ARG)) {
-      HelpFormatter formatter = new HelpFormatter();
-      
-      String usage= BVMessages.getString("CmdLineManager.arg.usage");
-      usage=MessageFormat.format(
-          usage, 
-          new Object[]{EZApplicationBranding.getAppVersion()});
-      String header = BVMessages.getString("CmdLineManager.arg.header");
-      String footer = BVMessages.getString("CmdLineManager.arg.footer");
-      footer=MessageFormat.format(
-          footer, 
-          new Object[]{
-              EZApplicationBranding.getAppName(), 
-              EZApplicationBranding.getAppVersion(), 
-              getSoftCopyright(),
-              getSoftUrl(),
-              getSoftLicense()});
-      formatter.printHelp(usage, header, options, footer, true);
+      printUsage(options);
       System.exit(0);
     }
   }
   
+  /**
+   * Print the command-line usage message.
+   */
+  private static void printUsage(Options options) {
+    HelpFormatter formatter = new HelpFormatter();
+    
+    String usage= BVMessages.getString("CmdLineManager.arg.usage");
+    usage=MessageFormat.format(
+        usage, 
+        new Object[]{EZApplicationBranding.getAppVersion()});
+    String header = BVMessages.getString("CmdLineManager.arg.header");
+    String footer = BVMessages.getString("CmdLineManager.arg.footer");
+    footer=MessageFormat.format(
+        footer, 
+        new Object[]{
+            EZApplicationBranding.getAppName(), 
+            EZApplicationBranding.getAppVersion(), 
+            getSoftCopyright(),
+            getSoftUrl(),
+            getSoftLicense()});
+    formatter.printHelp(usage, header, options, footer, true);
+  }
+  
+  /**
+   * Figure out whether or not the application has to run in batch mode.
+   */
+  public static boolean isBatchMode(String[] args) {
+    if (args == null) {
+      return false;
+    }
+    for (String arg : args) {
+      if (arg.equals("-" + BATCH_ARG)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Run the application in batch mode, i.e. without any user interface.
+   * Swing and EZEnvironment are not used at all.
+   * 
+   * @return an exit code. Zero means that all files have been processed.
+   */
+  public static int runBatch(String[] args) {
+    CommandLine cLine;
+    String[] paths;
+    File[] files;
+    File outDir = null;
+    BFilter filter = null;
+    String format = FORMATS[0];
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    System.setProperty("java.awt.headless", "true");
+    try {
+      cLine = new GnuParser().parse(getCmdLineOptions(), args);
+    } catch (Exception e) {
+      System.err.println(BVMessages.getString("CmdLineManager.err1") + e);
+      return 1;
+    }
+    paths = cLine.getOptionValues(FILE_ARG);
+    if (paths == null) {
+      System.err.println(BVMessages.getString("CmdLineManager.err4"));
+      return 1;
+    }
+    if (cLine.hasOption(FORMAT_ARG)) {
+      format = cLine.getOptionValue(FORMAT_ARG).toLowerCase();
+      if (!Arrays.asList(FORMATS).contains(format)) {
+        System.err.println(BVMessages.getString("CmdLineManager.err6") + format);
+        return 1;
+      }
+    }
+    if (cLine.hasOption(OUT_ARG)) {
+      outDir = new File(cLine.getOptionValue(OUT_ARG));
+      outDir.mkdirs();
+    }
+    if (cLine.hasOption(THREADS_ARG)) {
+      try {
+        threads = Integer.parseInt(cLine.getOptionValue(THREADS_ARG).trim());
+      } catch (NumberFormatException e) {
+        threads = 0;
+      }
+      if (threads < 1) {
+        System.err.println(BVMessages.getString("CmdLineManager.err7") 
+            + cLine.getOptionValue(THREADS_ARG));
+        printUsage(getCmdLineOptions());
+        return 1;
+      }
+    }
+    // same setup as the UI, components excepted
+    BasicConfigurator.configure();
+    Logger.getLogger("org.exolab.castor").setLevel(Level.WARN);
+    CoreSystemConfigurator.initializeSystem();
+    if (cLine.hasOption(FILTER_ARG)) {
+      FilterSystemConfigurator.initializeSystem();
+      try {
+        filter = FilterSystemConfigurator.getSerializer().load(
+            FilterSystemConfigurator.getFilterableModel(), 
+            new File(cLine.getOptionValue(FILTER_ARG)));
+      } catch (FilterSerializerException e) {
+        System.err.println(BVMessages.getString("CmdLineManager.err5") + e);
+        return 1;
+      }
+    }
+    files = new File[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      files[i] = new File(paths[i]);
+    }
+    return new BatchRunner(files, filter, format, outDir, threads).run() == 0 ? 0 : 2;
+  }
+
   /**
    * Analyze some command-line arguments.
    */
@@ -301,9 +447,7 @@ public class CmdLineManager {
     public void run(){
       if (rids==null)
         return;
-      for(String rid : rids){
-        NcbiFetcher.fetchAndShow(rid);
-      }
+      NcbiFetcher.fetchAndShow(rids);
     }
   }
   
@@ -316,12 +460,59 @@ public class CmdLineManager {
       this.urls = urls;
     }
 
+    /**
+     * Return the file receiving the document located at a URL. The same URL
+     * always goes to the same file, so that an interrupted download can be
+     * resumed during a session. That file, as well as its partial download,
+     * are deleted on exit.
+     */
+    private static File getDownloadFile(String url){
+      String name = url;
+      int pos;
+      
+      if ((pos = name.indexOf('?')) != -1) {
+        name = name.substring(0, pos);
+      }
+      name = name.substring(name.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+      File f = new File(getLocalUserData() + 
+          String.format("url-%08x-%s", url.hashCode(), name.isEmpty() ? "data" : name));
+      f.deleteOnExit();
+      new File(f.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX).deleteOnExit();
+      RangeDownloader.getJournalFile(f).deleteOnExit();
+      return f;
+    }
+    /**
+     * Retrieve a document from the local cache, unless it changed on its
+     * server.
+     */
+    private static boolean getCachedDocument(FetchCache cache, String url, File tmpFile){
+      String key = FetchCache.getUrlKey(url);
+      String etag = cache.getETag(key);
+      
+      try {
+        if (etag != null && HTTPBasicEngine.isModified(url, etag)) {
+          cache.remove(key);
+        }
+      } catch (RuntimeException ex) {
+        // freshness unknown: download the document again
+        EZLogger.warn(ex.toString());
+        cache.remove(key);
+        return false;
+      }
+      return cache.get(key, tmpFile);
+    }
     private static void openURL(String url){
-      File tmpFile;
+      FetchCache cache = BlastViewerOpener.getFetchCache();
+      File tmpFile = getDownloadFile(url);
+      RangeDownloader downloader = null;
       
-      //Step 1: download data given provided URL
+      //Step 1: download data given provided URL. Large documents are
+      //downloaded by segments and the download can be resumed
       try {
-        tmpFile = HTTPBasicEngine.doGet(url);
+        if (cache == null || !getCachedDocument(cache, url, tmpFile)) {
+          downloader = new RangeDownloader();
+          downloader.download(url, tmpFile);
+        }
       } catch (HTTPEngineException ex) {
         String msg = BVMessages.getString("CmdLineManager.err2");
         msg = MessageFormat.format(msg, new Object[] {url, ex});
@@ -332,8 +523,18 @@ public class CmdLineManager {
         return;
       }
       
-      //Step 2: read file content and prepare a viewer
-      SROutput sro = BlastViewerOpener.readBlastFile(tmpFile);
+      //Step 2: read file content and prepare a viewer. The document is not
+      //needed anymore: a new document is moved into the cache, which keeps
+      //the only copy of it
+      SROutput sro;
+      try {
+        sro = BlastViewerOpener.readBlastFile(tmpFile);
+      } finally {
+        if (downloader != null && cache != null) {
+          cache.put(FetchCache.getUrlKey(url), tmpFile, downloader.getETag(), true);
+        }
+        tmpFile.delete();
+      }
 
       BlastViewerOpener.setHelperMessage(BVMessages
           .getString("FetchFromNcbiAction.msg4"));
@@ -349,6 +550,7 @@ public class CmdLineManager {
       for(String url : urls){
         openURL(url);
       }
+      HTTPClient.getDefault().dumpStats();
       BlastViewerOpener.cleanHelperMessage();
       EZEnvironment.setDefaultCursor();
     }
@@ -366,10 +568,36 @@ public class CmdLineManager {
      * Open a URL pointing to a data file.
      */
     private static void openFile(File f){
+      LoadMonitor monitor = new LoadMonitor(f);
+      
       BlastViewerOpener.setHelperMessage(BVMessages
           .getString("OpenFileAction.msg1"));
-
-      SROutput sro = BlastViewerOpener.readBlastFile(f);
+      BlastViewerOpener.startMonitoring(monitor);
+      try {
+        openFile(f, monitor);
+      } finally {
+        BlastViewerOpener.stopMonitoring(monitor);
+      }
+    }
+    private static void openFile(File f, LoadMonitor monitor){
+      if (StreamingViewerLoader.canRead(f)) {
+        StreamingViewerLoader loader = new StreamingViewerLoader(f.getName());
+        loader.setMonitor(monitor);
+        loader.load(f);
+        return;
+      }
+      StringPool pool = new StringPool();
+      SROutput sro;
+      try {
+        sro = BlastViewerOpener.readBlastFile(f, pool, monitor);
+      } catch (SRLoaderException e) {
+        if (monitor.isCanceled()) {
+          EZLogger.info(BVMessages.getString("LoadMonitor.msg3"));
+          return;
+        }
+        throw e;
+      }
+      pool.dumpStats();
 
       if(sro==null) {
         String msg = BVMessages.getString("OpenFileAction.err2");
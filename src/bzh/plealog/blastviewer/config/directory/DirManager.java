@@ -38,8 +38,11 @@ public class DirManager extends AbstractPropertiesConfig {
 
   private static final String BLAST_DOCS = "blast";
 
+  private static final String CACHE_DIR  = "cache";
+
   private String              _appPath;
   private String              _blastDataPath;
+  private String              _blastCachePath;
 
   /**
    * Default constructor.
@@ -115,6 +118,31 @@ public class DirManager extends AbstractPropertiesConfig {
 
     return _blastDataPath;
   }
+
+  /**
+   * Get the full path to the directory where the application caches parsed
+   * BLAST results.
+   * 
+   * It is worth noting that the method will try to create that path if it does
+   * not exist.
+   * 
+   * @return a path. Note that path is terminated with OS-dependent path
+   *         separator character.
+   * 
+   * @throws IOException
+   *           if the method failed to create the path.
+   */
+  public String getBlastCachePath() throws IOException {
+    if (_blastCachePath != null)
+      return _blastCachePath;
+
+    _blastCachePath = getBlastDataPath()
+        + EZFileUtils.terminatePath(CACHE_DIR);
+
+    createPath(_blastCachePath);
+
+    return _blastCachePath;
+  }
   
   
 }
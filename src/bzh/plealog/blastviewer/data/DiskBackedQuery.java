@@ -0,0 +1,292 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+
+/**
+ * A QueryBase storing its results in a temporary file. Only the summaries
+ * and the most recently used results are kept in memory, so that results
+ * made of a huge number of queries can be displayed.
+ *
+ * Results obtained from this query can be modified by callers: a result
+ * that has been modified is written back to the file when it is removed
+ * from memory. As long as a caller holds a result, getResult() returns that
+ * same object, so that edits are never made on diverging copies.
+ *
+ * @author Patrick G. Durand
+ */
+public class DiskBackedQuery extends SummaryQuery {
+  private Map<Integer, SROutput>   _recents;
+  //results removed from memory that may still be used by callers
+  private Map<Integer, WeakReference<SROutput>> _released;
+  private int         _cacheSize;
+  private int         _purgeSize;
+  private File        _file;
+  private FileChannel _channel;
+  private long        _fileSize;
+  private long[]      _offsets;
+  private int[]       _lengths;
+  private long[]      _crcs;
+
+  //approximate memory used by data objects, alignments excluded
+  private static final long ITERATION_SIZE = 1024;
+  private static final long HIT_SIZE = 512;
+  private static final long HSP_SIZE = 768;
+
+  //default number of results kept in memory
+  public static final int DEFAULT_CACHE_SIZE = 128;
+  //property used to set the estimated size (in MB) of a result above which
+  //a DiskBackedQuery is used instead of an in memory one
+  public static final String THRESHOLD_PROP = "bv.query.disk.threshold";
+
+  /**
+   * Constructor.
+   *
+   * @param cacheSize number of results kept in memory
+   *
+   * @throws IOException if the temporary file cannot be created
+   */
+  public DiskBackedQuery(int cacheSize) throws IOException {
+    _offsets = new long[1024];
+    _lengths = new int[1024];
+    _crcs = new long[1024];
+    _released = new HashMap<>();
+    _cacheSize = _purgeSize = cacheSize;
+    _recents = new LinkedHashMap<Integer, SROutput>(cacheSize, 0.75f, true) {
+      private static final long serialVersionUID = -8437452211016546117L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, SROutput> eldest) {
+        if (size() <= cacheSize) {
+          return false;
+        }
+        writeBack(eldest.getKey(), eldest.getValue());
+        _released.put(eldest.getKey(), new WeakReference<>(eldest.getValue()));
+        return true;
+      }
+    };
+    _file = File.createTempFile("bvquery", ".dat");
+    _file.deleteOnExit();
+    _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Figure out whether or not a result is large enough to be handled using
+   * a DiskBackedQuery. Threshold can be set using system property
+   * THRESHOLD_PROP, otherwise a quarter of the maximum heap size is used.
+   *
+   * @param sro a multi query result
+   */
+  public static boolean isRequired(SROutput sro) {
+    long threshold = Runtime.getRuntime().maxMemory() / 4;
+    String prop = System.getProperty(THRESHOLD_PROP);
+
+    if (prop != null) {
+      try {
+        threshold = Long.parseLong(prop.trim()) * 1024l * 1024l;
+      } catch (NumberFormatException e) {
+        // use default threshold
+      }
+    }
+    return sro.getBlastType() != SROutput.PSIBLAST
+        && estimateSize(sro) > threshold;
+  }
+
+  /**
+   * Return a rough estimate of the memory (in bytes) used by a result. It
+   * mostly relies on the size of HSP alignments.
+   *
+   * @param sro a result
+   */
+  public static long estimateSize(SROutput sro) {
+    SRIteration iteration;
+    long size = 0;
+
+    for (int i = 0; i < sro.countIteration(); i++) {
+      iteration = sro.getIteration(i);
+      size += ITERATION_SIZE;
+      for (SRHit hit : iteration.getHits()) {
+        size += HIT_SIZE;
+        for (SRHsp hsp : hit.getHsps()) {
+          // query, hit and midline strings
+          size += HSP_SIZE + 3l * hsp.getScores().getAlignLen();
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Add a new result to this query. The result is written to the temporary
+   * file: caller should not keep a reference to it.
+   *
+   * @param sro a single query result
+   */
+  public synchronized void addResult(SROutput sro) {
+    int idx = sequences();
+
+    addSummary(sro);
+    if (idx == _offsets.length) {
+      _offsets = Arrays.copyOf(_offsets, idx * 2);
+      _lengths = Arrays.copyOf(_lengths, idx * 2);
+      _crcs = Arrays.copyOf(_crcs, idx * 2);
+    }
+    write(idx, serialize(sro));
+  }
+
+  /**
+   * Release resources used by this query. It cannot be used anymore.
+   */
+  public synchronized void close() {
+    _recents.clear();
+    _released.clear();
+    try {
+      _channel.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+    _file.delete();
+  }
+
+  /**
+   * Serialize a result.
+   */
+  private byte[] serialize(SROutput sro) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(sro);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Compute the checksum of a serialized result.
+   */
+  private long checksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  /**
+   * Write a serialized result to the temporary file. It replaces the previous
+   * version of that result if there is enough room, otherwise it is appended
+   * to the file.
+   */
+  private void write(int idx, byte[] data) {
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    boolean inPlace = data.length <= _lengths[idx];
+    long start = inPlace ? _offsets[idx] : _fileSize;
+    long pos = start;
+
+    try {
+      while (buf.hasRemaining()) {
+        pos += _channel.write(buf, pos);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    _offsets[idx] = start;
+    _lengths[idx] = data.length;
+    _crcs[idx] = checksum(data);
+    if (!inPlace) {
+      _fileSize = pos;
+    }
+  }
+
+  /**
+   * Write a result to the temporary file when it has been modified since it
+   * has been read. Since a result read from the file may not be serialized
+   * exactly the same way (e.g. hash tables are rebuilt), an unmodified
+   * result may also be written once.
+   */
+  private void writeBack(int idx, SROutput sro) {
+    byte[] data = serialize(sro);
+
+    if (data.length != _lengths[idx] || checksum(data) != _crcs[idx]) {
+      write(idx, data);
+    }
+  }
+
+  /**
+   * Read a result from the temporary file.
+   */
+  private SROutput read(int idx) {
+    ByteBuffer buf = ByteBuffer.allocate(_lengths[idx]);
+    long pos = _offsets[idx];
+    SROutput sro;
+
+    try {
+      while (buf.hasRemaining()) {
+        pos += _channel.read(buf, pos);
+      }
+      try (ObjectInputStream ois = new ObjectInputStream(
+          new ByteArrayInputStream(buf.array()))) {
+        sro = (SROutput) ois.readObject();
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    // restore transient data
+    sro.initialize();
+    return sro;
+  }
+
+  @Override
+  public synchronized SROutput getResult(int idx) {
+    SROutput sro = _recents.get(idx);
+    WeakReference<SROutput> ref;
+
+    if (sro == null) {
+      ref = _released.remove(idx);
+      sro = ref != null ? ref.get() : null;
+      if (sro == null) {
+        sro = read(idx);
+      }
+      _recents.put(idx, sro);
+      if (_released.size() > _purgeSize) {
+        // forget results no longer used by callers
+        _released.values().removeIf(r -> r.get() == null);
+        _purgeSize = Math.max(_cacheSize, 2 * _released.size());
+      }
+    }
+    return sro;
+  }
+}
@@ -0,0 +1,57 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.data;
+
+import java.util.ArrayList;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+
+/**
+ * A QueryBase that can be filled in while it is displayed. Contrary to
+ * InMemoryQuery, totals are updated each time a new result is added so
+ * that viewers can be refreshed during data loading.
+ *
+ * This class is not thread-safe: results have to be added from the thread
+ * using this query, usually the Swing event dispatch thread.
+ *
+ * @author Patrick G. Durand
+ */
+public class IncrementalQuery extends SummaryQuery {
+  private ArrayList<SROutput> _results;
+
+  /**
+   * Constructor.
+   */
+  public IncrementalQuery() {
+    _results = new ArrayList<>();
+  }
+
+  /**
+   * Add a new result to this query.
+   *
+   * @param sro a single query result
+   */
+  public void addResult(SROutput sro) {
+    _results.add(sro);
+    addSummary(sro);
+  }
+
+  @Override
+  public SROutput getResult(int idx) {
+    return _results.get(idx);
+  }
+}
@@ -0,0 +1,188 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchjob.SJFileSummary;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput.FEATURES_CONTAINER;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.blastviewer.loader.BlastStreamListener;
+import bzh.plealog.blastviewer.loader.QueryIndex;
+
+/**
+ * A QueryBase reading its results on demand from a NCBI BLAST XML file,
+ * using a QueryIndex. Summaries are computed once from the first hit of each
+ * query, then a result is only parsed when it is requested. Only the most
+ * recently used results are kept in memory.
+ *
+ * Results obtained from this query can be annotated by callers (e.g. IPRscan
+ * domain predictions import): such results are never released since they
+ * cannot be read again from the data file.
+ *
+ * @author Patrick G. Durand
+ */
+public class IndexedQuery extends SummaryQuery {
+  private QueryIndex               _index;
+  private SROutput                 _header;
+  private Map<Integer, SROutput>   _recents;
+  private Map<Integer, SROutput>   _annotated;
+
+  //default number of results kept in memory
+  public static final int DEFAULT_CACHE_SIZE = 128;
+
+  /**
+   * Constructor. Summaries of all queries are computed here.
+   *
+   * @param index index of a NCBI BLAST XML file
+   * @param cacheSize number of results kept in memory
+   *
+   * @throws SRLoaderException if data file cannot be read
+   */
+  public IndexedQuery(QueryIndex index, int cacheSize) throws SRLoaderException {
+    _index = index;
+    _annotated = new HashMap<>();
+    _recents = new LinkedHashMap<Integer, SROutput>(cacheSize, 0.75f, true) {
+      private static final long serialVersionUID = 2622166464962417281L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, SROutput> eldest) {
+        if (size() <= cacheSize) {
+          return false;
+        }
+        if (!eldest.getValue().checkQueryFeatures().equals(FEATURES_CONTAINER.none)) {
+          _annotated.put(eldest.getKey(), eldest.getValue());
+        }
+        return true;
+      }
+    };
+    summarize();
+  }
+
+  /**
+   * Compute the summaries of all queries. Data file is read once, each query
+   * being truncated after its first hit: this is all that a summary needs,
+   * except the number of hits which is provided by the index.
+   */
+  private void summarize() throws SRLoaderException {
+    try (InputStream is = _index.openHeads()) {
+      _index.createParser().parse(is, new BlastStreamListener() {
+        @Override
+        public void headerLoaded(SROutput header) {
+          _header = header;
+        }
+
+        @Override
+        public void iterationLoaded(SRIteration iteration) {
+          SJFileSummary summary = new SJFileSummary();
+          int idx = sequences();
+
+          if (idx == _index.size()) {
+            throw new SRLoaderException("unexpected query: " + iteration.getIterationQueryID());
+          }
+          summary.initialize(new QueryResultView(wrap(iteration), 0));
+          summary.setNHits(_index.countHits(idx));
+          addSummary(summary, summary.getNHits());
+        }
+      });
+    } catch (IOException e) {
+      throw new SRLoaderException(e.toString());
+    }
+    if (sequences() != _index.size()) {
+      throw new SRLoaderException("index does not match data file: " + _index.getFile().getName());
+    }
+  }
+
+  /**
+   * Wrap an iteration into a result sharing the header of the data file.
+   */
+  private SROutput wrap(SRIteration iteration) {
+    SROutput sro = CoreSystemConfigurator.getSRFactory().createBOutput();
+
+    sro.setRequestInfo(_header.getRequestInfo());
+    sro.setBlastOutputParam(_header.getBlastOutputParam());
+    sro.setBlastType(_header.getBlastType());
+    sro.addIteration(iteration);
+    return sro;
+  }
+
+  /**
+   * Return the header of the data file, i.e. a result without any iteration.
+   */
+  public SROutput getHeader() {
+    return _header;
+  }
+
+  /**
+   * Release resources used by this query. It cannot be used anymore.
+   */
+  public synchronized void close() {
+    _recents.clear();
+    _annotated.clear();
+    _index.close();
+  }
+
+  /**
+   * Parse a single result from the data file.
+   */
+  private SROutput read(int idx) {
+    SROutput sro;
+
+    try (InputStream is = _index.openQuery(idx)) {
+      sro = _index.createParser().load(is);
+    } catch (IOException e) {
+      throw new SRLoaderException(e.toString());
+    }
+    if (sro.countIteration() != 1) {
+      throw new SRLoaderException("unable to read query: " + _index.getQueryId(idx));
+    }
+    return new QueryResultView(sro, 0);
+  }
+
+  /**
+   * Figures out whether or not a result has been annotated since it has been
+   * read from the data file. NCBI BLAST XML files do not contain annotations:
+   * other results do not contain any classification data.
+   */
+  public synchronized boolean isAnnotated(int idx) {
+    SROutput sro = _recents.get(idx);
+
+    return _annotated.containsKey(idx)
+        || (sro != null && !sro.checkQueryFeatures().equals(FEATURES_CONTAINER.none));
+  }
+
+  @Override
+  public synchronized SROutput getResult(int idx) {
+    SROutput sro = _annotated.remove(idx);
+
+    if (sro == null) {
+      sro = _recents.get(idx);
+    }
+    if (sro == null) {
+      sro = read(idx);
+    }
+    _recents.put(idx, sro);
+    return sro;
+  }
+}
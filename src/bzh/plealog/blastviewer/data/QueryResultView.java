@@ -0,0 +1,547 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.data;
+
+import java.io.ObjectStreamException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.feature.FeatureTable;
+import bzh.plealog.bioinfo.api.data.searchresult.SRClassification;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.SRParameters;
+import bzh.plealog.bioinfo.api.data.searchresult.SRRequestInfo;
+import bzh.plealog.bioinfo.api.data.searchresult.SRStatistics;
+import bzh.plealog.bioinfo.api.data.sequence.DSequenceAlignment;
+import bzh.plealog.bioinfo.api.data.sequence.DSequenceException;
+import bzh.plealog.bioinfo.io.searchresult.csv.ExtractAnnotation;
+
+/**
+ * A lightweight single query view of a multi-query result. It is the
+ * zero-copy counterpart of SRUtils.extractResult(): the view shares the
+ * parameters of its parent result and points at one of its iterations.
+ * Query information (ID, definition, length) is read from that iteration
+ * and the iteration is always numbered 1 within the view, without altering
+ * the parent result.
+ *
+ * Hits and query features remain shared with the parent result, so a view
+ * is read-only: it cannot receive new iterations and editing its hits alters
+ * the parent result. Callers handing a single query result to an editor have
+ * to use a copy obtained with clone(false). When the view is serialized, a
+ * regular result sharing the same hits is written instead.
+ *
+ * @author Patrick G. Durand
+ */
+public class QueryResultView implements SROutput {
+  private static final long serialVersionUID = 1917153302652961034L;
+
+  private SROutput         _parent;
+  private IterationView    _iteration;
+  private SRRequestInfo    _rInfo;
+  private SRParameters     _params;
+  private SRClassification _classification;
+  private int              _blastType;
+  private boolean          _classified;
+
+  /**
+   * Constructor.
+   *
+   * @param parent a multi-query result
+   * @param idx index of a query within parent
+   */
+  public QueryResultView(SROutput parent, int idx) {
+    this(parent, parent.getIteration(idx));
+  }
+
+  private QueryResultView(SROutput parent, SRIteration iteration) {
+    _parent = parent;
+    _iteration = new IterationView(iteration);
+    _params = parent.getBlastOutputParam();
+    _blastType = parent.getBlastType();
+  }
+
+  /**
+   * Returns a view of a single query result. Such a view can be displayed
+   * without copying data: its iteration is always numbered 1.
+   *
+   * @param sro a single query result
+   */
+  public static SROutput viewOf(SROutput sro) {
+    if (sro instanceof QueryResultView) {
+      return sro;
+    }
+    return new QueryResultView(sro, 0);
+  }
+
+  /**
+   * Returns the result this view relies on.
+   */
+  public SROutput getParent() {
+    return _parent;
+  }
+
+  /**
+   * Returns a regular result made of the data available through this view.
+   */
+  private SROutput materialize(SRIteration iteration) {
+    SROutput sro = CoreSystemConfigurator.getSRFactory().createBOutput();
+    sro.setBlastType(getBlastType());
+    sro.setBlastOutputParam(getBlastOutputParam());
+    sro.setRequestInfo(getRequestInfo().clone());
+    sro.addIteration(iteration);
+    sro.setClassification(getClassification());
+    return sro;
+  }
+
+  /**
+   * Returns a result that does not rely on views, as expected by some data
+   * writers (e.g. NCBI XML). Hits are shared, not copied.
+   *
+   * @param sro a result possibly containing views
+   */
+  public static SROutput unwrap(SROutput sro) {
+    SROutput result;
+    boolean hasViews = false;
+
+    if (sro instanceof QueryResultView) {
+      return ((QueryResultView) sro).materialize(((QueryResultView) sro)._iteration.share());
+    }
+    for (SRIteration iteration : sro.getIterations()) {
+      if (iteration instanceof IterationView) {
+        hasViews = true;
+        break;
+      }
+    }
+    if (!hasViews && !(sro.getRequestInfo() instanceof RequestInfoView)) {
+      return sro;
+    }
+    result = CoreSystemConfigurator.getSRFactory().createBOutput();
+    result.setBlastType(sro.getBlastType());
+    result.setBlastOutputParam(sro.getBlastOutputParam());
+    result.setRequestInfo(sro.getRequestInfo() instanceof RequestInfoView ? 
+        sro.getRequestInfo().clone() : sro.getRequestInfo());
+    for (SRIteration iteration : sro.getIterations()) {
+      result.addIteration(iteration instanceof IterationView ? 
+          ((IterationView) iteration).share() : iteration);
+    }
+    result.setClassification(sro.getClassification());
+    return result;
+  }
+
+  /**
+   * Serialize a regular result instead of this view. Hits are not copied
+   * since they are serialized anyway.
+   */
+  protected Object writeReplace() throws ObjectStreamException {
+    return unwrap(this);
+  }
+
+  @Override
+  public int getBlastType() {
+    return _blastType;
+  }
+
+  @Override
+  public String getBlastTypeStr() {
+    return SEARCH_PRGM[_blastType - 1];
+  }
+
+  @Override
+  public void setBlastType(int type) {
+    _blastType = type;
+  }
+
+  @Override
+  public int getQuerySeqType() {
+    switch (_blastType) {
+    case BLASTP:
+    case SCANPS:
+    case PSIBLAST:
+    case TBLASTN:
+      return AA_SEQ;
+    default:
+      return NUC_SEQ;
+    }
+  }
+
+  @Override
+  public int getHitSeqType() {
+    switch (_blastType) {
+    case BLASTP:
+    case SCANPS:
+    case PSIBLAST:
+    case BLASTX:
+      return AA_SEQ;
+    default:
+      return NUC_SEQ;
+    }
+  }
+
+  @Override
+  public synchronized SRRequestInfo getRequestInfo() {
+    if (_rInfo == null) {
+      _rInfo = new RequestInfoView(_parent.getRequestInfo(), _iteration);
+    }
+    return _rInfo;
+  }
+
+  @Override
+  public synchronized void setRequestInfo(SRRequestInfo bri) {
+    _rInfo = bri;
+  }
+
+  @Override
+  public SRParameters getBlastOutputParam() {
+    return _params;
+  }
+
+  @Override
+  public void setBlastOutputParam(SRParameters params) {
+    _params = params;
+  }
+
+  @Override
+  public void addIteration(SRIteration iteration) {
+    throw new UnsupportedOperationException("a query view is read-only: use clone(false)");
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return _iteration.countHit() == 0;
+  }
+
+  @Override
+  public Enumeration<SRIteration> enumerateIteration() {
+    return Collections.enumeration(getIterations());
+  }
+
+  @Override
+  public SRIteration getIteration(int idx) {
+    if (idx != 0) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: 1");
+    }
+    return _iteration;
+  }
+
+  @Override
+  public List<SRIteration> getIterations() {
+    return Collections.singletonList(_iteration);
+  }
+
+  @Override
+  public int countIteration() {
+    return 1;
+  }
+
+  @Override
+  public SROutput clone(boolean shallow) {
+    return materialize(_iteration.clone(shallow));
+  }
+
+  @Override
+  public void initialize() {
+    // parent result has already been initialized
+  }
+
+  @Override
+  public boolean containsValidData() {
+    // relies on a temporary result sharing the iteration
+    SROutput sro = CoreSystemConfigurator.getSRFactory().createBOutput();
+    sro.setBlastType(getBlastType());
+    sro.addIteration(_iteration);
+    return sro.containsValidData();
+  }
+
+  @Override
+  public FEATURES_CONTAINER checkFeatures() {
+    FeatureTable ft;
+    int n = 0, ok = 0, err = 0;
+
+    for (SRHit hit : _iteration.getHits()) {
+      for (SRHsp hsp : hit.getHsps()) {
+        n++;
+        ft = hsp.getFeatures();
+        if (ft != null) {
+          if (ft.getStatus() == FeatureTable.ERROR_STATUS) {
+            err++;
+          } else {
+            ok++;
+          }
+        }
+      }
+    }
+    if (n == 0) {
+      return FEATURES_CONTAINER.none;
+    } else if (n == ok) {
+      return FEATURES_CONTAINER.allHits;
+    } else if (ok != 0 || err != 0) {
+      return FEATURES_CONTAINER.someWithErrors;
+    }
+    return FEATURES_CONTAINER.none;
+  }
+
+  @Override
+  public FEATURES_CONTAINER checkQueryFeatures() {
+    return _iteration.getIterationQueryFeatureTable() != null ? 
+        FEATURES_CONTAINER.someQueries : FEATURES_CONTAINER.none;
+  }
+
+  @Override
+  public synchronized SRClassification getClassification() {
+    if (!_classified) {
+      _classified = true;
+      // same as SRUtils.extractResult(): calls setClassification() if needed
+      ExtractAnnotation.updateClassificationdata(_parent.getClassification(), this);
+    }
+    return _classification;
+  }
+
+  @Override
+  public synchronized void setClassification(SRClassification classif) {
+    _classified = true;
+    _classification = classif;
+  }
+
+  /**
+   * An iteration numbered 1 whatever its number within the parent result.
+   */
+  private static class IterationView implements SRIteration {
+    private static final long serialVersionUID = -4403386539869604425L;
+
+    private SRIteration _iteration;
+    private int         _iterNum = 1;
+
+    private IterationView(SRIteration iteration) {
+      _iteration = iteration;
+    }
+
+    protected Object writeReplace() throws ObjectStreamException {
+      return share();
+    }
+
+    /**
+     * Returns a regular iteration sharing the hits of this one.
+     */
+    private SRIteration share() {
+      SRIteration iteration = clone(true);
+      for (SRHit hit : _iteration.getHits()) {
+        iteration.addHit(hit);
+      }
+      return iteration;
+    }
+
+    @Override
+    public int getIterationIterNum() {
+      return _iterNum;
+    }
+
+    @Override
+    public void setIterationIterNum(int num) {
+      _iterNum = num;
+    }
+
+    @Override
+    public String getIterationMessage() {
+      return _iteration.getIterationMessage();
+    }
+
+    @Override
+    public void setIterationMessage(String msg) {
+      _iteration.setIterationMessage(msg);
+    }
+
+    @Override
+    public SRStatistics getIterationStat() {
+      return _iteration.getIterationStat();
+    }
+
+    @Override
+    public void setIterationStat(SRStatistics stat) {
+      _iteration.setIterationStat(stat);
+    }
+
+    @Override
+    public String getIterationQueryID() {
+      return _iteration.getIterationQueryID();
+    }
+
+    @Override
+    public void setIterationQueryID(String id) {
+      _iteration.setIterationQueryID(id);
+    }
+
+    @Override
+    public String getIterationQueryDesc() {
+      return _iteration.getIterationQueryDesc();
+    }
+
+    @Override
+    public void setIterationQueryDesc(String desc) {
+      _iteration.setIterationQueryDesc(desc);
+    }
+
+    @Override
+    public int getIterationQueryLength() {
+      return _iteration.getIterationQueryLength();
+    }
+
+    @Override
+    public void setIterationQueryLength(int len) {
+      _iteration.setIterationQueryLength(len);
+    }
+
+    @Override
+    public FeatureTable getIterationQueryFeatureTable() {
+      return _iteration.getIterationQueryFeatureTable();
+    }
+
+    @Override
+    public void setIterationQueryFeatureTable(FeatureTable ft) {
+      _iteration.setIterationQueryFeatureTable(ft);
+    }
+
+    @Override
+    public void addHit(SRHit hit) {
+      _iteration.addHit(hit);
+    }
+
+    @Override
+    public Enumeration<SRHit> enumerateHit() {
+      return _iteration.enumerateHit();
+    }
+
+    @Override
+    public SRHit getHit(int idx) {
+      return _iteration.getHit(idx);
+    }
+
+    @Override
+    public int countHit() {
+      return _iteration.countHit();
+    }
+
+    @Override
+    public List<SRHit> getHits() {
+      return _iteration.getHits();
+    }
+
+    @Override
+    public DSequenceAlignment getMultipleSequenceAlignment(int from, int to) 
+        throws DSequenceException {
+      return _iteration.getMultipleSequenceAlignment(from, to);
+    }
+
+    @Override
+    public SRIteration clone(boolean shallow) {
+      SRIteration iteration = _iteration.clone(shallow);
+      iteration.setIterationIterNum(_iterNum);
+      return iteration;
+    }
+  }
+
+  /**
+   * Request information of a single query: query data come from the
+   * iteration, program and databank data come from the parent result.
+   * Values set on this object are kept locally.
+   */
+  private static class RequestInfoView implements SRRequestInfo {
+    private static final long serialVersionUID = 5406651587406880938L;
+
+    private SRRequestInfo       _parent;
+    private SRIteration         _iteration;
+    private Map<String, Object> _values;
+
+    //same keys as the ones transferred by SRUtils.extractResult()
+    private static final String[] PARENT_KEYS = {DATABASE_DESCRIPTOR_KEY, 
+        PROGRAM_DESCRIPTOR_KEY, PRGM_VERSION_DESCRIPTOR_KEY, PRGM_REFERENCE_DESCRIPTOR_KEY};
+    private static final String[] QUERY_KEYS = {QUERY_ID_DESCRIPTOR_KEY, 
+        QUERY_DEF_DESCRIPTOR_KEY, QUERY_LENGTH_DESCRIPTOR_KEY};
+
+    private RequestInfoView(SRRequestInfo parent, SRIteration iteration) {
+      _parent = parent;
+      _iteration = iteration;
+    }
+
+    protected Object writeReplace() throws ObjectStreamException {
+      return clone();
+    }
+
+    @Override
+    public synchronized Object getValue(String key) {
+      if (_values != null && _values.containsKey(key)) {
+        return _values.get(key);
+      }
+      if (QUERY_ID_DESCRIPTOR_KEY.equals(key)) {
+        return _iteration.getIterationQueryID();
+      } else if (QUERY_DEF_DESCRIPTOR_KEY.equals(key)) {
+        return _iteration.getIterationQueryDesc();
+      } else if (QUERY_LENGTH_DESCRIPTOR_KEY.equals(key)) {
+        return Integer.valueOf(_iteration.getIterationQueryLength());
+      }
+      for (String pKey : PARENT_KEYS) {
+        if (pKey.equals(key)) {
+          return _parent.getValue(key);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public synchronized void setValue(String key, Object value) {
+      if (_values == null) {
+        _values = new HashMap<>();
+      }
+      _values.put(key, value);
+    }
+
+    @Override
+    public synchronized SRRequestInfo clone() {
+      SRRequestInfo bri = CoreSystemConfigurator.getSRFactory().createBRequestInfo();
+      Object value;
+
+      for (String key : QUERY_KEYS) {
+        transferData(bri, key);
+      }
+      for (String key : PARENT_KEYS) {
+        transferData(bri, key);
+      }
+      if (_values != null) {
+        for (Map.Entry<String, Object> entry : _values.entrySet()) {
+          value = entry.getValue();
+          if (value != null) {
+            bri.setValue(entry.getKey(), value);
+          }
+        }
+      }
+      return bri;
+    }
+
+    private void transferData(SRRequestInfo bri, String key) {
+      Object value = getValue(key);
+      if (value != null) {
+        bri.setValue(key, value);
+      }
+    }
+  }
+}
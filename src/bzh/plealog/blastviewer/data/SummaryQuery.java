@@ -0,0 +1,194 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+
+import bzh.plealog.bioinfo.api.data.searchjob.QueryBase;
+import bzh.plealog.bioinfo.api.data.searchjob.SJFileSummary;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.sequence.DSequence;
+
+/**
+ * Base class of the QueryBase implementations of BlastViewer. Summaries of
+ * all queries are kept in memory, each one being added along with its result,
+ * while sub-classes decide how results are stored. All queries are OK ones.
+ *
+ * @author Patrick G. Durand
+ */
+public abstract class SummaryQuery extends QueryBase {
+  private ArrayList<SJFileSummary> _summaries;
+  private String _queryPath     = UNK;
+  private String _jobName       = UNK;
+  private String _bankName      = UNK;
+  private String _engineSysName = UNK;
+  private String _rid           = UNK;
+  private int    _status        = UNKNOWN;
+  private int    _nbHitAccessions;
+  private int    _nbSeqWithHit;
+
+  private static final String UNK = "";
+
+  /**
+   * Constructor.
+   */
+  protected SummaryQuery() {
+    _summaries = new ArrayList<>();
+  }
+
+  /**
+   * Add the summary of a new query and update totals.
+   *
+   * @param sro a single query result
+   */
+  protected void addSummary(SROutput sro) {
+    SJFileSummary summary = new SJFileSummary();
+    int nbHits = 0;
+
+    summary.initialize(sro);
+    for (int i = 0; i < sro.countIteration(); i++) {
+      nbHits += sro.getIteration(i).countHit();
+    }
+    addSummary(summary, nbHits);
+  }
+
+  /**
+   * Add the summary of a new query and update totals.
+   *
+   * @param summary summary of the query
+   * @param nbHits number of hits of the query, all iterations included
+   */
+  protected void addSummary(SJFileSummary summary, int nbHits) {
+    _summaries.add(summary);
+    _nbHitAccessions += nbHits;
+    if (summary.getNHits() != 0) {
+      _nbSeqWithHit++;
+    }
+  }
+
+  @Override
+  public String getQueryPath() {
+    return _queryPath;
+  }
+
+  public void setQueryPath(String path) {
+    _queryPath = path;
+  }
+
+  @Override
+  public String getJobName() {
+    return _jobName;
+  }
+
+  public void setJobName(String name) {
+    _jobName = name;
+  }
+
+  @Override
+  public String getDatabankName() {
+    return _bankName;
+  }
+
+  public void setDatabankName(String name) {
+    _bankName = name;
+  }
+
+  @Override
+  public String getEngineSysName() {
+    return _engineSysName;
+  }
+
+  public void setEngineSysName(String name) {
+    _engineSysName = name;
+  }
+
+  @Override
+  public boolean allSequencesIndexed() {
+    return true;
+  }
+
+  @Override
+  public int sequences() {
+    return _summaries.size();
+  }
+
+  @Override
+  public String getRID() {
+    return _rid;
+  }
+
+  public void setRID(String rid) {
+    _rid = rid;
+  }
+
+  @Override
+  public int getStatus() {
+    return _status;
+  }
+
+  public void setStatus(int status) {
+    _status = status;
+  }
+
+  @Override
+  public Enumeration<SJFileSummary> getSummaries() {
+    return Collections.enumeration(_summaries);
+  }
+
+  @Override
+  public int countStatuses(byte status) {
+    // all queries are OK ones
+    return status == OK ? _summaries.size() : 0;
+  }
+
+  @Override
+  public int getTotalHitAccessions() {
+    return _nbHitAccessions;
+  }
+
+  @Override
+  public int getTotalMatchingQueries() {
+    return _nbSeqWithHit;
+  }
+
+  @Override
+  public int getTotalNotMatchingQueries() {
+    return sequences() - _nbSeqWithHit;
+  }
+
+  @Override
+  public DSequence getSequence(int idx) {
+    return null;
+  }
+
+  @Override
+  public SJFileSummary getSummary(int idx) {
+    return _summaries.get(idx);
+  }
+
+  @Override
+  public String getStatus(int idx) {
+    return STATUS_OK;
+  }
+
+  @Override
+  public boolean hasHits(int idx) {
+    return _summaries.get(idx).getNHits() != 0;
+  }
+}
@@ -0,0 +1,194 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+
+/**
+ * A loader of zipped NCBI BLAST results made of several files, e.g. results
+ * created using -outfmt 13 (JSON) or -outfmt 14 (XML2), one file per query.
+ * Each file of the archive is parsed by its own thread using a streaming
+ * parser, then results are merged in query order. Index files and unknown
+ * files are ignored.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastArchiveLoader implements SRLoader {
+
+  public static final String SYSTEM_NAME = "BlastArchive";
+
+  //maximum number of files parsed at the same time
+  private static final int MAX_LOADERS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Constructor.
+   */
+  public BlastArchiveLoader() {
+    super();
+  }
+
+  @Override
+  public String getSystemName() {
+    return SYSTEM_NAME;
+  }
+
+  @Override
+  public String getName() {
+    return "Zipped NCBI XML2 and JSON formatted data";
+  }
+
+  @Override
+  public String getVersion() {
+    return "1.0";
+  }
+
+  @Override
+  public boolean canRead(File f) {
+    BlastFileFormat format = LoaderRegistry.getFormat(f);
+    return format != null && format.getLoader() instanceof BlastArchiveLoader;
+  }
+
+  @Override
+  public SROutput load(File f) throws SRLoaderException {
+    List<Future<SROutput>> results = new ArrayList<>();
+    List<ZipEntry> entries;
+    ExecutorService pool;
+    SROutput sro, sroMaster = null;
+    int iterNum = 0;
+
+    try (ZipFile zip = new ZipFile(f)) {
+      entries = getEntries(zip);
+      if (entries.isEmpty()) {
+        throw new SRLoaderException("empty archive: " + f.getName());
+      }
+      pool = Executors.newFixedThreadPool(Math.min(MAX_LOADERS, entries.size()));
+      try {
+        for (ZipEntry entry : entries) {
+          results.add(pool.submit(() -> loadEntry(zip, entry)));
+        }
+        // merge results in query order
+        for (Future<SROutput> result : results) {
+          sro = result.get();
+          if (sro == null) {
+            continue;
+          }
+          if (sroMaster == null) {
+            sroMaster = sro;
+            iterNum = sro.countIteration();
+            continue;
+          }
+          Enumeration<SRIteration> sriEnum = sro.enumerateIteration();
+          while (sriEnum.hasMoreElements()) {
+            SRIteration iteration = sriEnum.nextElement();
+            iteration.setIterationIterNum(++iterNum);
+            sroMaster.addIteration(iteration);
+          }
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    } catch (IOException e) {
+      throw new SRLoaderException(e.toString());
+    } catch (ExecutionException e) {
+      throw new SRLoaderException(e.getCause().toString());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SRLoaderException(e.toString());
+    }
+    return sroMaster;
+  }
+
+  /**
+   * Load an entry of an archive.
+   *
+   * @return a result, or null if the entry is not a BLAST result
+   */
+  private SROutput loadEntry(ZipFile zip, ZipEntry entry) throws IOException {
+    try (InputStream is = new BufferedInputStream(zip.getInputStream(entry))) {
+      BlastStreamParser parser = BlastStreamParser.getParser(is);
+      if (parser == null) {
+        EZLogger.debug(entry.getName() + ": not a BLAST result");
+        return null;
+      }
+      SROutput sro = parser.load(is);
+      // index files do not contain any result
+      return sro.countIteration() != 0 ? sro : null;
+    }
+  }
+
+  /**
+   * Return the entries of an archive in query order. BLAST names the files
+   * of a result using the query number (e.g. name_12.json), so entries are
+   * sorted using the numbers of their names.
+   */
+  private List<ZipEntry> getEntries(ZipFile zip) {
+    List<ZipEntry> entries = new ArrayList<>();
+    Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+
+    while (zipEntries.hasMoreElements()) {
+      ZipEntry entry = zipEntries.nextElement();
+      if (!entry.isDirectory()) {
+        entries.add(entry);
+      }
+    }
+    Collections.sort(entries, Comparator.comparingLong(BlastArchiveLoader::getNumber));
+    return entries;
+  }
+
+  /**
+   * Return the last number of an entry name, or -1 if there is none.
+   */
+  private static long getNumber(ZipEntry entry) {
+    String name = entry.getName();
+    int end = name.length(), start;
+
+    while (end > 0 && !Character.isDigit(name.charAt(end - 1))) {
+      end--;
+    }
+    start = end;
+    while (start > 0 && Character.isDigit(name.charAt(start - 1)) && end - start < 18) {
+      start--;
+    }
+    return start == end ? -1 : Long.parseLong(name.substring(start, end));
+  }
+
+  @Override
+  public SROutput[] multipleLoad(File f) throws SRLoaderException {
+    return null;
+  }
+}
@@ -0,0 +1,47 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+
+/**
+ * A data file format that can be registered within the LoaderRegistry.
+ *
+ * @author Patrick G. Durand
+ */
+public interface BlastFileFormat {
+  /**
+   * Return the name of this format.
+   */
+  public String getName();
+
+  /**
+   * Figures out whether or not a file is of this format.
+   *
+   * @param header the beginning of the file. When the file is zipped, this is
+   * the beginning of its first entry.
+   * @param zipped true if the file is a zip file
+   *
+   * @return true if the file is of this format
+   */
+  public boolean accept(String header, boolean zipped);
+
+  /**
+   * Return a loader capable of reading this format.
+   */
+  public SRLoader getLoader();
+}
@@ -0,0 +1,81 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser of NCBI BLAST JSON data files, i.e. files created using
+ * -outfmt 13 (one file per query) or -outfmt 15 (single file). Such data
+ * have the same structure as BLAST XML2 data: JSON data are presented as
+ * BLAST XML2 StAX events, then handled by the XML2 parser.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastJsonStreamParser extends BlastXml2StreamParser {
+
+  private static final String ROOT_TAG = "\"BlastOutput2\"";
+  private static final String INDEX_TAG = "\"BlastJSON\"";
+
+  //JSON members having a specific name in BLAST XML2 data
+  private static final Map<String, String> XML2_NAMES = new HashMap<>();
+
+  static {
+    XML2_NAMES.put("params", "Parameters");
+    XML2_NAMES.put("search", "Search");
+    XML2_NAMES.put("hits", "Hit");
+    XML2_NAMES.put("description", "HitDescr");
+    XML2_NAMES.put("hsps", "Hsp");
+    XML2_NAMES.put("stat", "Statistics");
+  }
+
+  /**
+   * Constructor.
+   */
+  public BlastJsonStreamParser() {
+    super();
+    // sequences cannot be located as is in JSON data (escaped strings)
+    setLazySequences(false);
+  }
+
+  /**
+   * Figures out whether or not the beginning of some data is NCBI BLAST JSON
+   * data.
+   */
+  public static boolean canRead(String head) {
+    return head.trim().startsWith("{") && head.indexOf(ROOT_TAG) >= 0;
+  }
+
+  /**
+   * Figures out whether or not the beginning of some data is the index file
+   * of a multiple-file NCBI BLAST JSON result (-outfmt 13).
+   */
+  public static boolean isIndex(String head) {
+    return head.trim().startsWith("{") && head.indexOf(INDEX_TAG) >= 0;
+  }
+
+  @Override
+  protected XMLStreamReader createReader(InputStream is) {
+    return new JsonStreamReader(new InputStreamReader(is, StandardCharsets.UTF_8), XML2_NAMES);
+  }
+}
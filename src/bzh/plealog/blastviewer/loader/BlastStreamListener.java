@@ -0,0 +1,44 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+
+/**
+ * Listener used by streaming loaders to report BLAST data as soon as it is
+ * read from a data file.
+ * 
+ * @author Patrick G. Durand
+ */
+public interface BlastStreamListener {
+  /**
+   * Called once the header of a BLAST result has been read, i.e. before
+   * the first iteration is reported.
+   * 
+   * @param header a result containing the request info and the parameters.
+   * It does not contain any iteration.
+   */
+  public void headerLoaded(SROutput header);
+
+  /**
+   * Called each time a new iteration has been fully read.
+   * 
+   * @param iteration a fully initialized iteration
+   */
+  public void iterationLoaded(SRIteration iteration);
+}
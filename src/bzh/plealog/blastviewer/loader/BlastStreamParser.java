@@ -0,0 +1,478 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHspScore;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHspSequence;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.SRParameters;
+import bzh.plealog.bioinfo.api.data.searchresult.SRRequestInfo;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.bioinfo.api.data.searchresult.utils.SRFactory;
+import bzh.plealog.bioinfo.util.DAlphabetUtils;
+
+/**
+ * Base class of the streaming parsers of NCBI BLAST XML data files. Contrary
+ * to the Castor/JAXB based loaders, such parsers do not need to read the
+ * entire file before returning data: each iteration (i.e. query) is reported
+ * to a BlastStreamListener as soon as it has been read. In addition, data
+ * objects are directly created from the StAX events, without any intermediate
+ * XML binding objects.
+ *
+ * Data objects are created exactly the same way as the NCBI loaders do.
+ *
+ * @author Patrick G. Durand
+ */
+public abstract class BlastStreamParser {
+  protected SRFactory _factory;
+  protected SROutput  _header;
+  protected boolean   _proteic;
+  protected boolean   _blastn;
+
+  private boolean              _lazySequences = LAZY_SEQUENCES;
+  private MappedSequenceSource _source;
+  private LoadMonitor          _monitor;
+  private byte[]               _qSeqTag, _hSeqTag, _midlineTag;
+
+  /**
+   * Name of the JVM property used to disable lazy loading of HSP sequences.
+   * Default is to use lazy loading for files larger than LAZY_MIN_SIZE.
+   */
+  public static final String LAZY_SEQUENCES_PROP = "bv.loader.lazy";
+  /** minimum size of files for which HSP sequences are loaded lazily */
+  public static final long   LAZY_MIN_SIZE = 4l * 1024l * 1024l;
+
+  private static final boolean LAZY_SEQUENCES = !"false".equals(System.getProperty(LAZY_SEQUENCES_PROP));
+  //number of bytes to scan to locate the root element of a data stream
+  private static final int     HEAD_SIZE = 4096;
+
+  /**
+   * Constructor.
+   *
+   * @param hspPrefix prefix of the names of HSP elements
+   */
+  protected BlastStreamParser(String hspPrefix) {
+    _factory = CoreSystemConfigurator.getSRFactory();
+    _qSeqTag = ("<" + hspPrefix + "qseq>").getBytes(StandardCharsets.US_ASCII);
+    _hSeqTag = ("<" + hspPrefix + "hseq>").getBytes(StandardCharsets.US_ASCII);
+    _midlineTag = ("<" + hspPrefix + "midline>").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Set whether or not HSP sequences are loaded lazily. When true, HSP
+   * sequences of data files larger than LAZY_MIN_SIZE are not kept in memory:
+   * they are read from the memory-mapped data file when needed.
+   */
+  public void setLazySequences(boolean lazy) {
+    _lazySequences = lazy;
+  }
+
+  /**
+   * Set a monitor used to report progress of data file loading. Parsing
+   * is aborted as soon as that monitor is canceled.
+   */
+  public void setMonitor(LoadMonitor monitor) {
+    _monitor = monitor;
+  }
+
+  /**
+   * Return a parser capable of reading a data stream. The beginning of the
+   * stream is read, then the stream is reset.
+   *
+   * @param is a data stream. It must support mark/reset.
+   *
+   * @return a parser or null if data stream is not a NCBI BLAST XML or JSON one
+   *
+   * @throws IOException if data stream cannot be read
+   */
+  public static BlastStreamParser getParser(InputStream is) throws IOException {
+    byte[] buf = new byte[HEAD_SIZE];
+    String head;
+    int n = 0, r;
+
+    is.mark(HEAD_SIZE);
+    try {
+      while (n < HEAD_SIZE && (r = is.read(buf, n, HEAD_SIZE - n)) != -1) {
+        n += r;
+      }
+    } finally {
+      is.reset();
+    }
+    head = new String(buf, 0, n, StandardCharsets.US_ASCII);
+    if (BlastJsonStreamParser.canRead(head)) {
+      return new BlastJsonStreamParser();
+    } else if (BlastXmlStreamParser.canRead(head)) {
+      return new BlastXmlStreamParser();
+    } else if (BlastXml2StreamParser.canRead(head)) {
+      return new BlastXml2StreamParser();
+    }
+    return null;
+  }
+
+  /**
+   * Parse StAX events and report data to a listener.
+   */
+  protected abstract void parse(XMLStreamReader reader, BlastStreamListener listener)
+      throws XMLStreamException;
+
+  /**
+   * Parse a data file and report its content to a listener.
+   *
+   * @param f a NCBI BLAST XML file
+   * @param listener the object receiving data
+   *
+   * @throws SRLoaderException if data file cannot be read
+   */
+  public void parse(File f, BlastStreamListener listener) throws SRLoaderException {
+    if (_lazySequences && f.length() >= LAZY_MIN_SIZE) {
+      try {
+        _source = new MappedSequenceSource(f);
+      } catch (IOException e) {
+        EZLogger.debug(e.toString());
+      }
+    }
+    try (InputStream is = new BufferedInputStream(_monitor != null ?
+        _monitor.wrap(new FileInputStream(f)) : new FileInputStream(f))) {
+      parse(is, listener);
+    } catch (IOException e) {
+      throw new SRLoaderException(e.toString());
+    } finally {
+      // lazy sequences keep a reference to the source
+      _source = null;
+    }
+  }
+
+  /**
+   * Parse a data stream and report its content to a listener.
+   *
+   * @param is a stream on NCBI BLAST XML data. This method does not
+   * close the stream.
+   * @param listener the object receiving data
+   *
+   * @throws SRLoaderException if data stream cannot be read
+   */
+  public void parse(InputStream is, BlastStreamListener listener) throws SRLoaderException {
+    XMLStreamReader reader = null;
+
+    _header = null;
+    try {
+      // XML parser closes its input stream when reaching end of data
+      reader = createReader(new CloseShieldInputStream(is));
+      parse(reader, listener);
+    } catch (XMLStreamException e) {
+      throw new SRLoaderException(e.toString());
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // not bad
+        }
+      }
+    }
+  }
+
+  /**
+   * Load an entire data file.
+   *
+   * @param f a NCBI BLAST XML file
+   *
+   * @return a fully initialized BLAST result
+   *
+   * @throws SRLoaderException if data file cannot be read
+   */
+  public SROutput load(File f) throws SRLoaderException {
+    CollectorListener collector = new CollectorListener();
+    parse(f, collector);
+    return collector.getResult();
+  }
+
+  /**
+   * Load an entire data stream.
+   *
+   * @param is a stream on NCBI BLAST XML data. This method does not
+   * close the stream.
+   *
+   * @return a fully initialized BLAST result
+   *
+   * @throws SRLoaderException if data stream cannot be read
+   */
+  public SROutput load(InputStream is) throws SRLoaderException {
+    CollectorListener collector = new CollectorListener();
+    parse(is, collector);
+    return collector.getResult();
+  }
+
+  /**
+   * Create a StAX reader that does not try to resolve NCBI DTD.
+   */
+  protected XMLStreamReader createReader(InputStream is) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    return factory.createXMLStreamReader(is);
+  }
+
+  /**
+   * Report the header of a result to a listener. This method has to be called
+   * only once before reporting the first iteration.
+   */
+  protected void fireHeader(SRRequestInfo rInfo, SRParameters params, BlastStreamListener listener) {
+    String prgm;
+
+    _header = _factory.createBOutput();
+    _header.setRequestInfo(rInfo);
+    _header.setBlastOutputParam(params);
+    prgm = (String) rInfo.getValue(SRRequestInfo.PROGRAM_DESCRIPTOR_KEY);
+    prgm = prgm != null ? prgm.toLowerCase() : "";
+    _proteic = prgm.equals("blastp") || prgm.equals("tblastx") || prgm.equals("blastx") || prgm.equals("tblastn");
+    _blastn = prgm.equals("blastn");
+    listener.headerLoaded(_header);
+  }
+
+  /**
+   * Compute coverage and sequence sizes on a single iteration.
+   */
+  protected SRIteration initialize(SRIteration iteration) {
+    SROutput sro = _factory.createBOutput();
+    sro.setRequestInfo(_header.getRequestInfo());
+    sro.setBlastOutputParam(_header.getBlastOutputParam());
+    sro.setBlastType(_header.getBlastType());
+    sro.addIteration(iteration);
+    if (_proteic) {
+      for (SRHit hit : iteration.getHits()) {
+        for (SRHsp hsp : hit.getHsps()) {
+          hsp.setProteic(true);
+        }
+      }
+    }
+    sro.initialize();
+    return iteration;
+  }
+
+  /**
+   * Convert an XML integer value. Castor reads such values as long
+   * and the NCBI_LOADER casts them to int: do the same.
+   */
+  protected static int toInt(String value) {
+    return (int) Long.parseLong(value.trim());
+  }
+
+  /**
+   * Values of a Hsp element. A Hsp can only be created when all its values
+   * are known since coordinates and sequences depend on each other. Values
+   * are named using BLAST XML2 element names.
+   */
+  protected class HspData {
+    private double bitScore, score, evalue;
+    private int    num, identity, positive, gaps, alignLen, density;
+    private int    qFrom, qTo, qFrame, hFrom, hTo, hFrame;
+    private String qSeq, hSeq, midline;
+    private long   qSeqPos = -1, hSeqPos = -1, midlinePos = -1;
+
+    /**
+     * Locate a sequence within the source file.
+     */
+    private long locate(byte[] tag, String value) {
+      if (_source == null || value.equals("-")) {
+        return -1;
+      }
+      return _source.locate(tag, value);
+    }
+
+    protected void setValue(String name, String value) {
+      switch (name) {
+      case "num":
+        num = toInt(value);
+        break;
+      case "bit-score":
+        bitScore = Double.parseDouble(value.trim());
+        break;
+      case "score":
+        score = Double.parseDouble(value.trim());
+        break;
+      case "evalue":
+        evalue = Double.parseDouble(value.trim());
+        break;
+      case "query-from":
+        qFrom = toInt(value);
+        break;
+      case "query-to":
+        qTo = toInt(value);
+        break;
+      case "hit-from":
+        hFrom = toInt(value);
+        break;
+      case "hit-to":
+        hTo = toInt(value);
+        break;
+      case "query-frame":
+        qFrame = toInt(value);
+        break;
+      case "hit-frame":
+        hFrame = toInt(value);
+        break;
+      case "identity":
+        identity = toInt(value);
+        break;
+      case "positive":
+        positive = toInt(value);
+        break;
+      case "gaps":
+        gaps = toInt(value);
+        break;
+      case "align-len":
+        alignLen = toInt(value);
+        break;
+      case "density":
+        density = toInt(value);
+        break;
+      case "qseq":
+        qSeq = value;
+        qSeqPos = locate(_qSeqTag, value);
+        break;
+      case "hseq":
+        hSeq = value;
+        hSeqPos = locate(_hSeqTag, value);
+        break;
+      case "midline":
+        midline = value;
+        midlinePos = locate(_midlineTag, value);
+        break;
+      default:
+        break;
+      }
+    }
+
+    private void setCoordinates(SRHspSequence seq, int frame, int from, int to) {
+      seq.setFrame(frame);
+      if (frame < 0) {
+        seq.setFrom(Math.max(from, to));
+        seq.setTo(Math.min(from, to));
+      } else {
+        seq.setFrom(Math.min(from, to));
+        seq.setTo(Math.max(from, to));
+      }
+    }
+
+    private String prepareSequence(String seq, boolean revComp) {
+      if (seq == null || seq.equals("-")) {
+        return null;
+      }
+      seq = seq.toUpperCase();
+      return revComp ? DAlphabetUtils.reverseComplement(seq) : seq;
+    }
+
+    /**
+     * Create a sequence. When the sequence has been located within the source
+     * file, a lazy sequence is returned.
+     */
+    private SRHspSequence createSequence(String seq, long pos, byte transform) {
+      if (pos < 0) {
+        return _factory.createBHspSequence();
+      }
+      return new LazyHspSequence(_source, pos, seq.length(), transform);
+    }
+
+    protected SRHsp toHsp() {
+      // same rule as NCBI loaders: blastn reverse strand reported on query
+      boolean revComp = _blastn && qFrom > qTo && qFrame > 0;
+      byte transform = revComp ? LazyHspSequence.REVERSE_COMPLEMENT : LazyHspSequence.NONE;
+      SRHsp hsp = _factory.createBHsp();
+      SRHspScore scores = _factory.createBHspScore();
+      SRHspSequence query = createSequence(qSeq, qSeqPos, transform);
+      SRHspSequence hit = createSequence(hSeq, hSeqPos, transform);
+      SRHspSequence mid = createSequence(midline, midlinePos,
+          revComp ? LazyHspSequence.REVERSE : LazyHspSequence.NONE);
+
+      scores.setBitScore(bitScore);
+      scores.setScore(score);
+      scores.setEvalue(evalue);
+      scores.setIdentity(identity);
+      scores.setPositive(positive);
+      scores.setGaps(gaps);
+      scores.setAlignLen(alignLen);
+      scores.setDensity(density);
+
+      query.setType(SRHspSequence.TYPE_ALIGNED_SEQ);
+      setCoordinates(query, qFrame, qFrom, qTo);
+      if (qSeqPos < 0) {
+        query.setSequence(prepareSequence(qSeq, revComp));
+      }
+
+      hit.setType(SRHspSequence.TYPE_ALIGNED_SEQ);
+      setCoordinates(hit, hFrame, hFrom, hTo);
+      if (hSeqPos < 0) {
+        hit.setSequence(prepareSequence(hSeq, revComp));
+      }
+
+      mid.setType(SRHspSequence.TYPE_MIDLINE);
+      if (midline != null && midlinePos < 0) {
+        midline = midline.toUpperCase();
+        mid.setSequence(revComp ? DAlphabetUtils.reverse(midline) : midline);
+      }
+
+      hsp.setScores(scores);
+      hsp.setQuery(query);
+      hsp.setHit(hit);
+      hsp.setMidline(mid);
+      hsp.setHspNum(num);
+      return hsp;
+    }
+  }
+
+  /**
+   * Listener used to load an entire data file.
+   */
+  private class CollectorListener implements BlastStreamListener {
+    private SROutput _sro;
+
+    @Override
+    public void headerLoaded(SROutput header) {
+      _sro = header;
+    }
+
+    @Override
+    public void iterationLoaded(SRIteration iteration) {
+      _sro.addIteration(iteration);
+    }
+
+    public SROutput getResult() {
+      return _sro;
+    }
+  }
+}
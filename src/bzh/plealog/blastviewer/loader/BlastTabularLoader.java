@@ -0,0 +1,89 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.File;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+
+/**
+ * A loader of NCBI BLAST tabular data files, i.e. files created using
+ * -outfmt 6 or -outfmt 7.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastTabularLoader implements SRLoader {
+  private String _columns;
+
+  public static final String SYSTEM_NAME = "BlastTabular";
+
+  /**
+   * Constructor. Columns of -outfmt 6 files are given by the JVM property
+   * BlastTabularParser.COLUMNS_PROP.
+   */
+  public BlastTabularLoader() {
+    super();
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param columns the columns of -outfmt 6 files, e.g. "6 qseqid sseqid
+   * evalue bitscore". Files created using -outfmt 7 provide their own columns.
+   */
+  public BlastTabularLoader(String columns) {
+    this();
+    _columns = columns;
+  }
+
+  @Override
+  public String getSystemName() {
+    return SYSTEM_NAME;
+  }
+
+  @Override
+  public String getName() {
+    return "NCBI BLAST tabular formatted data";
+  }
+
+  @Override
+  public String getVersion() {
+    return "1.0";
+  }
+
+  @Override
+  public boolean canRead(File f) {
+    return BlastTabularParser.canRead(f);
+  }
+
+  @Override
+  public SROutput load(File f) throws SRLoaderException {
+    BlastTabularParser parser = new BlastTabularParser();
+
+    if (_columns != null) {
+      parser.setColumns(_columns);
+    }
+    return parser.load(f);
+  }
+
+  @Override
+  public SROutput[] multipleLoad(File f) throws SRLoaderException {
+    return null;
+  }
+}
@@ -0,0 +1,938 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHspScore;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHspSequence;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.SRRequestInfo;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.bioinfo.api.data.searchresult.utils.SRFactory;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Parser of NCBI BLAST tabular data files, i.e. files created using
+ * -outfmt 6 or -outfmt 7. Lines are grouped by query ID to create iterations,
+ * then by subject ID to create hits.
+ *
+ * The file is memory-mapped and split into parts made of entire lines. Parts
+ * are parsed in parallel using a byte-level tokenizer, then merged in file
+ * order: a query (or a hit) overlapping two parts is merged back.
+ *
+ * Columns are those of the "# Fields:" line of -outfmt 7 files. Otherwise,
+ * a column specification is used; it is given the same way as the -outfmt
+ * argument of BLAST, e.g. "6 qseqid sseqid evalue bitscore" or "std".
+ * Unknown columns are ignored. Since tabular data do not contain alignments,
+ * HSP sequences are only available when qseq and sseq columns are provided.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastTabularParser {
+  private SRFactory _factory;
+  private Column[]  _columns;
+  private int[]     _index;
+  private String    _program;
+  private String    _version;
+  private String    _database;
+  private int       _threads = MAX_THREADS;
+  private long      _lines;
+  private boolean   _proteic, _qNucleic, _sNucleic;
+
+  /**
+   * Name of the JVM property used to set the default column specification.
+   * Default is "std".
+   */
+  public static final String COLUMNS_PROP = "bv.tabular.columns";
+  /**
+   * Name of the JVM property used to set the BLAST program of -outfmt 6 files,
+   * since such files do not contain that information. Default is blastp.
+   */
+  public static final String PROGRAM_PROP = "bv.tabular.program";
+
+  /** the standard columns of BLAST tabular format */
+  public static final String STD_COLUMNS =
+      "qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore";
+
+  private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+  //parts are at most 1 Gb long and at least 4 Mb long
+  private static final long MAX_PART_SIZE = 1l << 30;
+  private static final long MIN_PART_SIZE = 4l * 1024l * 1024l;
+  //number of bytes to scan to read the comment header of a file
+  private static final int HEAD_SIZE = 8192;
+  private static final String COMMENT_FIELDS = "# Fields:";
+  private static final String COMMENT_QUERY = "# Query:";
+  private static final String COMMENT_DATABASE = "# Database:";
+
+  /**
+   * Columns of BLAST tabular format handled by this parser.
+   */
+  public enum Column {
+    QSEQID("qseqid", "query id"), QACC("qacc", "query acc."), QACCVER("qaccver", "query acc.ver"),
+    QLEN("qlen", "query length"), SSEQID("sseqid", "subject id"), SACC("sacc", "subject acc."),
+    SACCVER("saccver", "subject acc.ver"), SLEN("slen", "subject length"), STITLE("stitle", "subject title"),
+    PIDENT("pident", "% identity"), NIDENT("nident", "identical"), LENGTH("length", "alignment length"),
+    MISMATCH("mismatch", "mismatches"), POSITIVE("positive", "positives"), PPOS("ppos", "% positives"),
+    GAPOPEN("gapopen", "gap opens"), GAPS("gaps", "gaps"), QSTART("qstart", "q. start"), QEND("qend", "q. end"),
+    SSTART("sstart", "s. start"), SEND("send", "s. end"), QFRAME("qframe", "query frame"),
+    SFRAME("sframe", "sbjct frame"), EVALUE("evalue", "evalue"), BITSCORE("bitscore", "bit score"),
+    SCORE("score", "score"), QSEQ("qseq", "query seq"), SSEQ("sseq", "subject seq"), IGNORED("", "");
+
+    private String _name;
+    private String _title;
+
+    private Column(String name, String title) {
+      _name = name;
+      _title = title;
+    }
+
+    /**
+     * Return a column given its name, i.e. either a -outfmt column name or a
+     * title of the "# Fields:" line of -outfmt 7 files. Return IGNORED if the
+     * column is not handled.
+     */
+    public static Column getColumn(String name) {
+      for (Column c : values()) {
+        if (c != IGNORED && (c._name.equals(name) || c._title.equals(name))) {
+          return c;
+        }
+      }
+      return IGNORED;
+    }
+  }
+
+  /**
+   * Constructor.
+   */
+  public BlastTabularParser() {
+    _factory = CoreSystemConfigurator.getSRFactory();
+    setColumns(System.getProperty(COLUMNS_PROP, STD_COLUMNS));
+    setProgram(System.getProperty(PROGRAM_PROP, "blastp"));
+  }
+
+  /**
+   * Set the columns of -outfmt 6 files.
+   *
+   * @param spec a column specification given the same way as the -outfmt
+   * argument of BLAST, e.g. "6 qseqid sseqid evalue bitscore" or "std".
+   *
+   * @throws SRLoaderException if the specification does not contain query and
+   * subject IDs
+   */
+  public void setColumns(String spec) throws SRLoaderException {
+    StringTokenizer tokenizer = new StringTokenizer(spec);
+    List<Column> columns = new ArrayList<>();
+    String token;
+
+    while (tokenizer.hasMoreTokens()) {
+      token = tokenizer.nextToken();
+      if (token.equals("std")) {
+        setColumns(STD_COLUMNS);
+        columns.addAll(Arrays.asList(_columns));
+      } else if (columns.size() != 0 || !(token.equals("6") || token.equals("7"))) {
+        columns.add(Column.getColumn(token));
+      }
+    }
+    setColumns(columns.toArray(new Column[0]));
+  }
+
+  private void setColumns(Column[] columns) throws SRLoaderException {
+    int[] index = new int[Column.values().length];
+
+    Arrays.fill(index, -1);
+    for (int i = 0; i < columns.length; i++) {
+      if (index[columns[i].ordinal()] == -1) {
+        index[columns[i].ordinal()] = i;
+      }
+    }
+    // IDs can be provided using several columns: use the first available
+    useColumn(index, Column.QSEQID, Column.QACCVER, Column.QACC);
+    useColumn(index, Column.SSEQID, Column.SACCVER, Column.SACC);
+    if (index[Column.QSEQID.ordinal()] == -1 || index[Column.SSEQID.ordinal()] == -1) {
+      throw new SRLoaderException("invalid column specification: query and subject IDs are required");
+    }
+    _columns = columns;
+    _index = index;
+  }
+
+  private void useColumn(int[] index, Column target, Column... others) {
+    for (Column c : others) {
+      if (index[target.ordinal()] == -1) {
+        index[target.ordinal()] = index[c.ordinal()];
+      }
+    }
+  }
+
+  /**
+   * Set the BLAST program of -outfmt 6 files, e.g. blastn.
+   */
+  public void setProgram(String program) {
+    _program = program.toLowerCase(Locale.ROOT);
+    _proteic = _program.equals("blastp") || _program.equals("tblastx") || _program.equals("blastx")
+        || _program.equals("tblastn");
+    _qNucleic = _program.equals("blastn") || _program.equals("blastx") || _program.equals("tblastx");
+    _sNucleic = _program.equals("blastn") || _program.equals("tblastn") || _program.equals("tblastx");
+  }
+
+  /**
+   * Set the number of threads used to parse a file. Default is the number of
+   * available processors.
+   */
+  public void setThreads(int threads) {
+    _threads = Math.max(1, threads);
+  }
+
+  /**
+   * Return the number of lines parsed during the last call to load().
+   */
+  public long getLines() {
+    return _lines;
+  }
+
+  /**
+   * Figures out whether or not a file is a NCBI BLAST tabular file.
+   */
+  public static boolean canRead(File f) {
+    try {
+      return canRead(new String(readHead(f), StandardCharsets.ISO_8859_1));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Figures out whether or not the beginning of some data is NCBI BLAST
+   * tabular data. Data created using -outfmt 7 start with a comment line
+   * giving the BLAST program; otherwise, the first line must match the
+   * default column specification.
+   */
+  public static boolean canRead(String head) {
+    BlastTabularParser parser;
+    int end, from, field;
+
+    if (head.startsWith("# ") && head.indexOf("BLAST") > 0 && head.indexOf("BLAST") < head.indexOf('\n')) {
+      return true;
+    }
+    end = head.indexOf('\n');
+    if (end == -1 || head.startsWith("#")) {
+      return false;
+    }
+    try {
+      parser = new BlastTabularParser();
+    } catch (SRLoaderException e) {
+      return false;
+    }
+    // expected number of fields, and numeric e-value and bit score
+    from = 0;
+    for (field = 0; from <= end; field++) {
+      int to = head.indexOf('\t', from);
+      if (to == -1 || to > end) {
+        to = end;
+      }
+      Column c = field < parser._columns.length ? parser._columns[field] : Column.IGNORED;
+      if ((c == Column.EVALUE || c == Column.BITSCORE) && !isNumber(head.substring(from, to).trim())) {
+        return false;
+      }
+      from = to + 1;
+    }
+    return field == parser._columns.length && field > 1;
+  }
+
+  private static boolean isNumber(String value) {
+    try {
+      Double.parseDouble(value);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Read the first bytes of a file.
+   */
+  private static byte[] readHead(File f) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(HEAD_SIZE);
+    byte[] data;
+
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      while (fc.read(buf) > 0 && buf.hasRemaining()) {
+        // read more
+      }
+    }
+    buf.flip();
+    data = new byte[buf.remaining()];
+    buf.get(data);
+    return data;
+  }
+
+  /**
+   * Read the comment header of -outfmt 7 files: BLAST program, database and
+   * columns.
+   */
+  private void readHeader(File f) throws IOException {
+    String head = new String(readHead(f), StandardCharsets.ISO_8859_1);
+    int from = 0, to;
+    String line;
+
+    _version = null;
+    _database = "unknown";
+    while (from < head.length() && head.charAt(from) == '#') {
+      to = head.indexOf('\n', from);
+      if (to == -1) {
+        break;
+      }
+      line = head.substring(from, to).trim();
+      if (from == 0) {
+        _version = line.substring(1).trim();
+        setProgram(new StringTokenizer(_version).nextToken());
+      } else if (line.startsWith(COMMENT_DATABASE)) {
+        _database = line.substring(COMMENT_DATABASE.length()).trim();
+      } else if (line.startsWith(COMMENT_FIELDS)) {
+        StringTokenizer tokenizer = new StringTokenizer(line.substring(COMMENT_FIELDS.length()), ",");
+        List<Column> columns = new ArrayList<>();
+        while (tokenizer.hasMoreTokens()) {
+          columns.add(Column.getColumn(tokenizer.nextToken().trim()));
+        }
+        setColumns(columns.toArray(new Column[0]));
+        break;
+      }
+      from = to + 1;
+    }
+  }
+
+  /**
+   * Load an entire data file.
+   *
+   * @param f a NCBI BLAST tabular file
+   *
+   * @return a fully initialized BLAST result
+   *
+   * @throws SRLoaderException if data file cannot be read
+   */
+  public SROutput load(File f) throws SRLoaderException {
+    List<PartList> parts = new ArrayList<>();
+    List<Future<PartList>> results = new ArrayList<>();
+    List<SRIteration> iterations = new ArrayList<>();
+    ExecutorService pool = null;
+    long[] bounds;
+
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      readHeader(f);
+      bounds = split(fc);
+      pool = Executors.newFixedThreadPool(Math.min(_threads, bounds.length - 1));
+      for (int i = 0; i < bounds.length - 1; i++) {
+        MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+        results.add(pool.submit(new PartParser(buf)));
+      }
+      _lines = 0;
+      for (Future<PartList> result : results) {
+        parts.add(result.get());
+        _lines += parts.get(parts.size() - 1).lines;
+      }
+      merge(parts, iterations);
+      initialize(pool, iterations);
+    } catch (IOException e) {
+      throw new SRLoaderException(e.toString());
+    } catch (ExecutionException e) {
+      throw new SRLoaderException(e.getCause().toString());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SRLoaderException(e.toString());
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+    return createResult(iterations);
+  }
+
+  /**
+   * Split a file into parts made of entire lines.
+   *
+   * @return the bounds of the parts, i.e. n+1 positions for n parts
+   */
+  private long[] split(FileChannel fc) throws IOException {
+    long size = fc.size();
+    int n = (int) Math.max((size + MAX_PART_SIZE - 1) / MAX_PART_SIZE,
+        Math.min(_threads, size / MIN_PART_SIZE));
+    ByteBuffer buf = ByteBuffer.allocate(HEAD_SIZE);
+    long[] bounds = new long[Math.max(1, n) + 1];
+    long pos;
+    int read;
+
+    bounds[bounds.length - 1] = size;
+    for (int i = 1; i < bounds.length - 1; i++) {
+      // a part starts after the end of line following its nominal position
+      pos = Math.max(bounds[i - 1], size / (bounds.length - 1) * i);
+      bounds[i] = size;
+      while (pos < size && bounds[i] == size) {
+        buf.clear();
+        read = fc.read(buf, pos);
+        for (int j = 0; j < read; j++) {
+          if (buf.get(j) == '\n') {
+            bounds[i] = pos + j + 1;
+            break;
+          }
+        }
+        pos += Math.max(read, 1);
+      }
+    }
+    return bounds;
+  }
+
+  /**
+   * Merge parts in file order. A query overlapping two parts is merged back.
+   */
+  private void merge(List<PartList> parts, List<SRIteration> iterations) {
+    SRIteration last, first;
+    SRHit lastHit, firstHit;
+
+    for (PartList part : parts) {
+      if (part.isEmpty()) {
+        continue;
+      }
+      first = part.get(0);
+      last = iterations.isEmpty() ? null : iterations.get(iterations.size() - 1);
+      if (last != null && part.continued
+          && first.getIterationQueryID().equals(last.getIterationQueryID())) {
+        List<SRHit> hits = first.getHits();
+        lastHit = last.countHit() == 0 ? null : last.getHit(last.countHit() - 1);
+        firstHit = hits.get(0);
+        if (lastHit != null && firstHit.getHitId().equals(lastHit.getHitId())) {
+          for (SRHsp hsp : firstHit.getHsps()) {
+            lastHit.addHsp(hsp);
+          }
+          hits = hits.subList(1, hits.size());
+        }
+        for (SRHit hit : hits) {
+          last.addHit(hit);
+        }
+        iterations.addAll(part.subList(1, part.size()));
+      } else {
+        iterations.addAll(part);
+      }
+    }
+  }
+
+  /**
+   * Number and initialize all iterations. Iterations are processed in
+   * parallel by slices.
+   */
+  private void initialize(ExecutorService pool, List<SRIteration> iterations)
+      throws InterruptedException, ExecutionException {
+    List<Future<?>> results = new ArrayList<>();
+    int n = Math.min(_threads, Math.max(1, iterations.size()));
+    int slice = (iterations.size() + n - 1) / n;
+
+    for (int i = 0; i < iterations.size(); i += slice) {
+      final int from = i, to = Math.min(iterations.size(), i + slice);
+      results.add(pool.submit(() -> {
+        for (int j = from; j < to; j++) {
+          initialize(iterations.get(j), j + 1);
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+  }
+
+  /**
+   * Number an iteration, its hits and its HSPs, set missing sequence lengths,
+   * then compute coverage values.
+   */
+  private void initialize(SRIteration iteration, int num) {
+    SROutput sro = _factory.createBOutput();
+    int qLen = 0, hLen, i = 1, j;
+
+    iteration.setIterationIterNum(num);
+    for (SRHit hit : iteration.getHits()) {
+      hit.setHitNum(i++);
+      hLen = 0;
+      j = 1;
+      for (SRHsp hsp : hit.getHsps()) {
+        hsp.setHspNum(j++);
+        if (_proteic) {
+          hsp.setProteic(true);
+        }
+        qLen = Math.max(qLen, Math.max(hsp.getQuery().getFrom(), hsp.getQuery().getTo()));
+        hLen = Math.max(hLen, Math.max(hsp.getHit().getFrom(), hsp.getHit().getTo()));
+      }
+      if (hit.getHitLen() == 0) {
+        hit.setHitLen(hLen);
+      }
+    }
+    if (iteration.getIterationQueryLength() == 0) {
+      iteration.setIterationQueryLength(qLen);
+    }
+    iteration.setIterationStat(_factory.createBStatistics());
+    sro.setRequestInfo(createRequestInfo(iteration));
+    sro.setBlastOutputParam(_factory.createBParameters());
+    sro.addIteration(iteration);
+    sro.initialize();
+  }
+
+  private SRRequestInfo createRequestInfo(SRIteration iteration) {
+    SRRequestInfo rInfo = _factory.createBRequestInfo();
+
+    rInfo.setValue(SRRequestInfo.PROGRAM_DESCRIPTOR_KEY, _program);
+    rInfo.setValue(SRRequestInfo.PRGM_VERSION_DESCRIPTOR_KEY, _version != null ? _version : _program.toUpperCase(Locale.ROOT));
+    rInfo.setValue(SRRequestInfo.DATABASE_DESCRIPTOR_KEY, _database);
+    if (iteration != null) {
+      rInfo.setValue(SRRequestInfo.QUERY_ID_DESCRIPTOR_KEY, iteration.getIterationQueryID());
+      rInfo.setValue(SRRequestInfo.QUERY_DEF_DESCRIPTOR_KEY, iteration.getIterationQueryDesc());
+      rInfo.setValue(SRRequestInfo.QUERY_LENGTH_DESCRIPTOR_KEY, Integer.valueOf(iteration.getIterationQueryLength()));
+    }
+    return rInfo;
+  }
+
+  private SROutput createResult(List<SRIteration> iterations) {
+    SROutput sro = _factory.createBOutput();
+
+    sro.setRequestInfo(createRequestInfo(iterations.isEmpty() ? null : iterations.get(0)));
+    sro.setBlastOutputParam(_factory.createBParameters());
+    for (SRIteration iteration : iterations) {
+      sro.addIteration(iteration);
+    }
+    return sro;
+  }
+
+  /**
+   * Iterations read from a part of a file.
+   */
+  @SuppressWarnings("serial")
+  private static class PartList extends ArrayList<SRIteration> {
+    //true if the first query of the part may have started in previous part
+    private boolean continued;
+    private long    lines;
+  }
+
+  /**
+   * Parser of a part of a file. Each line is tokenized at the byte level:
+   * only the fields of the configured columns are converted, and strings are
+   * only created for new query and subject IDs.
+   */
+  private class PartParser implements Callable<PartList> {
+    private MappedByteBuffer _buf;
+    private int[]            _from = new int[_columns.length];
+    private int[]            _to = new int[_columns.length];
+    private byte[]           _bytes = new byte[256];
+    private PartList         _result = new PartList();
+    private SRIteration      _iteration;
+    private SRHit            _hit;
+    private byte[]           _queryId = new byte[0];
+    private byte[]           _hitId = new byte[0];
+    private String           _queryDesc;
+    private long             _malformed;
+
+    private PartParser(MappedByteBuffer buf) {
+      _buf = buf;
+    }
+
+    @Override
+    public PartList call() {
+      int pos = 0, limit = _buf.limit(), end;
+
+      while (pos < limit) {
+        end = pos;
+        while (end < limit && _buf.get(end) != '\n') {
+          end++;
+        }
+        if (end > pos && _buf.get(end - 1) == '\r') {
+          parseLine(pos, end - 1);
+        } else {
+          parseLine(pos, end);
+        }
+        pos = end + 1;
+      }
+      if (_malformed != 0) {
+        EZLogger.warn(String.format(BVMessages.getString("BlastTabularParser.msg1"), _malformed));
+      }
+      return _result;
+    }
+
+    private void parseLine(int pos, int end) {
+      if (pos == end) {
+        return;
+      }
+      if (_buf.get(pos) == '#') {
+        parseComment(pos, end);
+        return;
+      }
+      if (tokenize(pos, end) != _columns.length) {
+        _malformed++;
+        return;
+      }
+      _result.lines++;
+      Column col = Column.QSEQID;
+      if (_iteration == null || !sameValue(col, _queryId)) {
+        if (_iteration == null) {
+          // no "# Query:" line: query may have started in previous part
+          _result.continued = true;
+        }
+        // a query started by a "# Query:" line gets its ID from its first hit
+        if (_iteration == null || _iteration.countHit() != 0 || _queryDesc == null) {
+          newIteration(null);
+        }
+        _queryId = copy(col);
+        _iteration.setIterationQueryID(toString(col));
+        if (_queryDesc == null) {
+          _iteration.setIterationQueryDesc(_iteration.getIterationQueryID());
+        }
+        _queryDesc = null;
+        _hit = null;
+      }
+      col = Column.SSEQID;
+      if (_hit == null || !sameValue(col, _hitId)) {
+        _hitId = copy(col);
+        _hit = _factory.createBHit();
+        _hit.setHitId(toString(col));
+        _hit.setHitAccession(has(Column.SACC) ? toString(Column.SACC) : _hit.getHitId());
+        _hit.setHitDef(has(Column.STITLE) ? toString(Column.STITLE) : _hit.getHitId());
+        _hit.setHitLen(getInt(Column.SLEN, 0));
+        _iteration.addHit(_hit);
+      }
+      if (_iteration.getIterationQueryLength() == 0) {
+        _iteration.setIterationQueryLength(getInt(Column.QLEN, 0));
+      }
+      _hit.addHsp(createHsp());
+    }
+
+    /**
+     * Handle comment lines of -outfmt 7 files. The "# Query:" line starts a
+     * new query, which may not have any hit.
+     */
+    private void parseComment(int pos, int end) {
+      String line;
+
+      if (end - pos < COMMENT_QUERY.length() || _buf.get(pos + 2) != 'Q') {
+        return;
+      }
+      line = toString(pos, end);
+      if (!line.startsWith(COMMENT_QUERY)) {
+        return;
+      }
+      newIteration(line.substring(COMMENT_QUERY.length()).trim());
+    }
+
+    private void newIteration(String desc) {
+      _iteration = _factory.createBIteration();
+      _hit = null;
+      _queryId = new byte[0];
+      _queryDesc = desc;
+      if (desc != null) {
+        _iteration.setIterationQueryDesc(desc);
+        _iteration.setIterationQueryID(desc.isEmpty() ? desc : new StringTokenizer(desc).nextToken());
+      }
+      _result.add(_iteration);
+    }
+
+    private SRHsp createHsp() {
+      SRHsp hsp = _factory.createBHsp();
+      SRHspScore scores = _factory.createBHspScore();
+      SRHspSequence query = _factory.createBHspSequence();
+      SRHspSequence hit = _factory.createBHspSequence();
+      SRHspSequence mid = _factory.createBHspSequence();
+      int alignLen = getInt(Column.LENGTH, 0);
+      int identity = has(Column.NIDENT) ? getInt(Column.NIDENT, 0)
+          : (int) Math.round(getDouble(Column.PIDENT) * alignLen / 100d);
+      String qSeq = has(Column.QSEQ) ? toString(Column.QSEQ).toUpperCase(Locale.ROOT) : null;
+      String hSeq = has(Column.SSEQ) ? toString(Column.SSEQ).toUpperCase(Locale.ROOT) : null;
+
+      scores.setBitScore(getDouble(Column.BITSCORE));
+      scores.setScore(getDouble(Column.SCORE));
+      scores.setEvalue(getDouble(Column.EVALUE));
+      scores.setIdentity(identity);
+      scores.setPositive(has(Column.POSITIVE) ? getInt(Column.POSITIVE, 0)
+          : has(Column.PPOS) ? (int) Math.round(getDouble(Column.PPOS) * alignLen / 100d) : identity);
+      scores.setGaps(has(Column.GAPS) ? getInt(Column.GAPS, 0) : countGaps(qSeq) + countGaps(hSeq));
+      scores.setMismatches(getInt(Column.MISMATCH, 0));
+      scores.setAlignLen(alignLen);
+
+      query.setType(SRHspSequence.TYPE_ALIGNED_SEQ);
+      setCoordinates(query, Column.QFRAME, _qNucleic, Column.QSTART, Column.QEND);
+      query.setSequence(qSeq);
+      hit.setType(SRHspSequence.TYPE_ALIGNED_SEQ);
+      setCoordinates(hit, Column.SFRAME, _sNucleic, Column.SSTART, Column.SEND);
+      hit.setSequence(hSeq);
+      mid.setType(SRHspSequence.TYPE_MIDLINE);
+      mid.setSequence(createMidline(qSeq, hSeq));
+
+      hsp.setScores(scores);
+      hsp.setQuery(query);
+      hsp.setHit(hit);
+      hsp.setMidline(mid);
+      return hsp;
+    }
+
+    /**
+     * Same rules as NCBI loaders. When frames are not available, the frame of
+     * a nucleic sequence is given by the order of its coordinates.
+     */
+    private void setCoordinates(SRHspSequence seq, Column frameCol, boolean nucleic, Column fromCol, Column toCol) {
+      int from = getInt(fromCol, 0), to = getInt(toCol, 0);
+      int frame = getInt(frameCol, nucleic ? (from > to ? -1 : 1) : 0);
+
+      seq.setFrame(frame);
+      if (frame < 0) {
+        seq.setFrom(Math.max(from, to));
+        seq.setTo(Math.min(from, to));
+      } else {
+        seq.setFrom(Math.min(from, to));
+        seq.setTo(Math.max(from, to));
+      }
+    }
+
+    private int countGaps(String seq) {
+      int gaps = 0;
+
+      if (seq != null) {
+        for (int i = 0; i < seq.length(); i++) {
+          if (seq.charAt(i) == '-') {
+            gaps++;
+          }
+        }
+      }
+      return gaps;
+    }
+
+    /**
+     * Create a BLAST-like midline: identities are reported using the residue
+     * for proteins and using '|' for nucleotides.
+     */
+    private String createMidline(String qSeq, String hSeq) {
+      char[] midline;
+      char c;
+
+      if (qSeq == null || hSeq == null || qSeq.length() != hSeq.length()) {
+        return null;
+      }
+      midline = new char[qSeq.length()];
+      for (int i = 0; i < midline.length; i++) {
+        c = qSeq.charAt(i);
+        midline[i] = c != hSeq.charAt(i) || c == '-' ? ' ' : (_proteic ? c : '|');
+      }
+      return new String(midline);
+    }
+
+    /**
+     * Locate the fields of a line.
+     *
+     * @return the number of fields
+     */
+    private int tokenize(int pos, int end) {
+      int field = 0;
+
+      _from[0] = pos;
+      for (; pos < end; pos++) {
+        if (_buf.get(pos) == '\t') {
+          if (field < _to.length) {
+            _to[field] = pos;
+          }
+          field++;
+          if (field < _from.length) {
+            _from[field] = pos + 1;
+          }
+        }
+      }
+      if (field < _to.length) {
+        _to[field] = end;
+      }
+      return field + 1;
+    }
+
+    private boolean has(Column col) {
+      return _index[col.ordinal()] != -1;
+    }
+
+    private boolean sameValue(Column col, byte[] value) {
+      int i = _index[col.ordinal()], from = _from[i], len = _to[i] - from;
+
+      if (len != value.length) {
+        return false;
+      }
+      for (int j = len - 1; j >= 0; j--) {
+        if (_buf.get(from + j) != value[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private byte[] copy(Column col) {
+      int i = _index[col.ordinal()];
+      byte[] value = new byte[_to[i] - _from[i]];
+
+      _buf.position(_from[i]);
+      _buf.get(value);
+      return value;
+    }
+
+    private String toString(Column col) {
+      int i = _index[col.ordinal()];
+      return toString(_from[i], _to[i]);
+    }
+
+    private String toString(int from, int to) {
+      int len = to - from;
+
+      if (_bytes.length < len) {
+        _bytes = new byte[Math.max(len, 2 * _bytes.length)];
+      }
+      _buf.position(from);
+      _buf.get(_bytes, 0, len);
+      return new String(_bytes, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Convert a field to an integer. Returns a default value if the column
+     * is not available or if the field is not a number.
+     */
+    private int getInt(Column col, int def) {
+      int i = _index[col.ordinal()], pos, to, value = 0;
+      boolean neg;
+      byte b;
+
+      if (i == -1) {
+        return def;
+      }
+      pos = _from[i];
+      to = _to[i];
+      neg = pos < to && _buf.get(pos) == '-';
+      if (neg || (pos < to && _buf.get(pos) == '+')) {
+        pos++;
+      }
+      if (pos == to) {
+        return def;
+      }
+      for (; pos < to; pos++) {
+        b = _buf.get(pos);
+        if (b < '0' || b > '9') {
+          return def;
+        }
+        value = value * 10 + (b - '0');
+      }
+      return neg ? -value : value;
+    }
+
+    /**
+     * Convert a field to a double. Values with at most 15 significant digits
+     * are converted here, with an error of at most one ulp when the exponent
+     * is larger than 22 (e.g. tiny e-values); other values are converted
+     * using Double.parseDouble(). Returns 0 if the column is not available or
+     * if the field is not a number.
+     */
+    private double getDouble(Column col) {
+      int i = _index[col.ordinal()], pos, to, digits = 0, exp = 0, e = 0;
+      boolean neg, negExp;
+      long mantissa = 0;
+      double value;
+      byte b;
+
+      if (i == -1) {
+        return 0d;
+      }
+      pos = _from[i];
+      to = _to[i];
+      neg = pos < to && _buf.get(pos) == '-';
+      if (neg) {
+        pos++;
+      }
+      for (; pos < to && (b = _buf.get(pos)) >= '0' && b <= '9'; pos++) {
+        if (mantissa != 0 || b != '0') {
+          mantissa = mantissa * 10 + (b - '0');
+          digits++;
+        }
+      }
+      if (pos < to && _buf.get(pos) == '.') {
+        for (pos++; pos < to && (b = _buf.get(pos)) >= '0' && b <= '9'; pos++) {
+          if (mantissa != 0 || b != '0') {
+            mantissa = mantissa * 10 + (b - '0');
+            digits++;
+          }
+          exp--;
+        }
+      }
+      if (pos < to && (_buf.get(pos) == 'e' || _buf.get(pos) == 'E')) {
+        pos++;
+        negExp = pos < to && _buf.get(pos) == '-';
+        if (negExp || (pos < to && _buf.get(pos) == '+')) {
+          pos++;
+        }
+        for (; pos < to && (b = _buf.get(pos)) >= '0' && b <= '9' && e < 10000; pos++) {
+          e = e * 10 + (b - '0');
+        }
+        exp += negExp ? -e : e;
+      }
+      if (pos != to || digits > 15 || exp < -MAX_EXP || exp > MAX_EXP) {
+        return parseDouble(_from[i], to);
+      }
+      if (exp >= 0) {
+        value = mantissa * POW10[exp];
+      } else if (exp >= -EXACT_EXP) {
+        value = mantissa / POW10[-exp];
+      } else {
+        value = mantissa * NEG_POW10[-exp];
+      }
+      return neg ? -value : value;
+    }
+
+    private double parseDouble(int from, int to) {
+      try {
+        return Double.parseDouble(toString(from, to));
+      } catch (NumberFormatException ex) {
+        return 0d;
+      }
+    }
+  }
+
+  //powers of ten: exactly represented as doubles up to 1e22
+  private static final int      EXACT_EXP = 22;
+  private static final int      MAX_EXP = 300;
+  private static final double[] POW10 = new double[MAX_EXP + 1];
+  private static final double[] NEG_POW10 = new double[MAX_EXP + 1];
+
+  static {
+    for (int i = 0; i <= MAX_EXP; i++) {
+      POW10[i] = Double.parseDouble("1e" + i);
+      NEG_POW10[i] = Double.parseDouble("1e-" + i);
+    }
+  }
+}
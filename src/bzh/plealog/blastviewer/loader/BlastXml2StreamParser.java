@@ -0,0 +1,353 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.feature.Feature;
+import bzh.plealog.bioinfo.api.data.feature.FeatureTable;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SRParameters;
+import bzh.plealog.bioinfo.api.data.searchresult.SRRequestInfo;
+import bzh.plealog.bioinfo.api.data.searchresult.SRStatistics;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.bioinfo.api.data.sequence.BankSequenceInfo;
+
+/**
+ * Streaming parser of NCBI BLAST XML2 data files. This parser replaces the
+ * JAXB-based NCBI_LOADER2: each Search element (i.e. query) is reported to a
+ * BlastStreamListener as soon as it has been read.
+ *
+ * Data objects are created exactly the same way as the NCBI_LOADER2 does.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastXml2StreamParser extends BlastStreamParser {
+  private int              _iterNum;
+  private BankSequenceInfo _seqInfo;
+
+  private static final String ROOT_TAG = "<BlastXML2";
+
+  private static final String AA_TYPE = "aa";
+  private static final String NUCL_TYPE = "nucleotide";
+  private static final String SOURCE_FEAT_TYPE = "source";
+  private static final String DBXREF_QUAL_TYPE = "dbxref";
+  private static final String TAXON_CODING_TYPE = "taxon; ";
+  private static final String BL2SEQ_ERROR = "Does not handle Blast2Seq results";
+
+  /**
+   * Constructor.
+   */
+  public BlastXml2StreamParser() {
+    super("");
+  }
+
+  /**
+   * Figures out whether or not the beginning of some data is NCBI BLAST XML2 data.
+   */
+  public static boolean canRead(String head) {
+    return head.indexOf(ROOT_TAG) >= 0;
+  }
+
+  @Override
+  protected void parse(XMLStreamReader reader, BlastStreamListener listener) throws XMLStreamException {
+    SRRequestInfo rInfo = _factory.createBRequestInfo();
+    SRParameters params = _factory.createBParameters();
+    SRIteration iteration = null;
+    SRStatistics stats = null;
+    SRHit hit = null;
+    HspData hsp = null;
+    String name;
+    boolean inParams = false, inHitDescr = false;
+    int hitDescrs = 0;
+
+    _iterNum = 0;
+    rInfo.setValue(SRRequestInfo.DATABASE_DESCRIPTOR_KEY, "unknown");
+    while (reader.hasNext()) {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+        if (reader.getEventType() == XMLStreamConstants.END_ELEMENT) {
+          name = reader.getLocalName();
+          if ("Hsp".equals(name)) {
+            SRHsp bHsp = hsp.toHsp();
+            handleTaxonomy(bHsp);
+            hit.addHsp(bHsp);
+            hsp = null;
+          } else if ("HitDescr".equals(name)) {
+            inHitDescr = false;
+          } else if ("Hit".equals(name)) {
+            if (hit.countHsp() != 0) {
+              iteration.addHit(hit);
+            }
+            hit = null;
+          } else if ("Statistics".equals(name)) {
+            iteration.setIterationStat(stats);
+            stats = null;
+          } else if ("Search".equals(name)) {
+            if (iteration.getIterationStat() == null) {
+              iteration.setIterationStat(_factory.createBStatistics());
+            }
+            listener.iterationLoaded(initialize(iteration));
+            iteration = null;
+          } else if ("Parameters".equals(name)) {
+            inParams = false;
+          }
+        }
+        continue;
+      }
+      name = reader.getLocalName();
+      // most frequent elements first
+      if (hsp != null) {
+        hsp.setValue(name, reader.getElementText());
+      } else if ("Hsp".equals(name)) {
+        hsp = new HspData();
+      } else if (hit != null) {
+        if ("HitDescr".equals(name)) {
+          // as NCBI_LOADER2, only use the first description of a hit
+          inHitDescr = (hitDescrs++ == 0);
+        } else if (inHitDescr) {
+          handleHitDescrElement(hit, name, reader.getElementText());
+        } else {
+          handleHitElement(hit, name, reader);
+        }
+      } else if ("Hit".equals(name)) {
+        hit = _factory.createBHit();
+        hitDescrs = 0;
+        _seqInfo = null;
+      } else if (stats != null) {
+        handleStatElement(stats, name, reader.getElementText());
+      } else if ("Statistics".equals(name)) {
+        stats = _factory.createBStatistics();
+      } else if (iteration != null) {
+        handleSearchElement(iteration, _iterNum == 1 ? rInfo : null, name, reader);
+      } else if ("Search".equals(name)) {
+        if (_header == null) {
+          fireHeader(rInfo, params, listener);
+        }
+        iteration = _factory.createBIteration();
+        iteration.setIterationIterNum(++_iterNum);
+      } else if ("bl2seq".equals(name)) {
+        throw new SRLoaderException(BL2SEQ_ERROR);
+      } else if (_header == null) {
+        // header data: only read from the first report
+        if (inParams) {
+          handleParamElement(params, name, reader.getElementText());
+        } else if ("Parameters".equals(name)) {
+          inParams = true;
+        } else {
+          handleReportElement(rInfo, name, reader);
+        }
+      }
+    }
+    if (_header == null) {
+      fireHeader(rInfo, params, listener);
+    }
+  }
+
+  private void handleReportElement(SRRequestInfo rInfo, String name, XMLStreamReader reader) throws XMLStreamException {
+    switch (name) {
+    case "program":
+      rInfo.setValue(SRRequestInfo.PROGRAM_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "version":
+      rInfo.setValue(SRRequestInfo.PRGM_VERSION_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "db":
+      rInfo.setValue(SRRequestInfo.DATABASE_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleParamElement(SRParameters params, String name, String value) {
+    switch (name) {
+    case "matrix":
+      params.setValue(SRParameters.MATRIX_DESCRIPTOR_KEY, value);
+      break;
+    case "expect":
+      params.setValue(SRParameters.EXPECT_DESCRIPTOR_KEY, Double.valueOf(value.trim()));
+      break;
+    case "include":
+      params.setValue("include", Double.valueOf(value.trim()));
+      break;
+    case "sc-match":
+      params.setValue("scMatch", Integer.valueOf(toInt(value)));
+      break;
+    case "sc-mismatch":
+      params.setValue("scMismatch", Integer.valueOf(toInt(value)));
+      break;
+    case "gap-open":
+      params.setValue(SRParameters.GAPOPEN_DESCRIPTOR_KEY, Integer.valueOf(toInt(value)));
+      break;
+    case "gap-extend":
+      params.setValue(SRParameters.GAPEXTEND_DESCRIPTOR_KEY, Integer.valueOf(toInt(value)));
+      break;
+    case "filter":
+      params.setValue("filter", value);
+      break;
+    case "entrez-query":
+      params.setValue("query", value);
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleStatElement(SRStatistics stats, String name, String value) {
+    switch (name) {
+    case "db-num":
+      stats.setValue("dbNum", Long.valueOf(value.trim()));
+      break;
+    case "db-len":
+      stats.setValue("dbLen", Long.valueOf(value.trim()));
+      break;
+    case "hsp-len":
+      stats.setValue("hspLen", Integer.valueOf(toInt(value)));
+      break;
+    case "eff-space":
+      // some BLAST versions report this value as a real number
+      stats.setValue("effSpace", Long.valueOf(Double.valueOf(value.trim()).longValue()));
+      break;
+    case "kappa":
+      stats.setValue("kappa", Double.valueOf(value.trim()));
+      break;
+    case "lambda":
+      stats.setValue("lambda", Double.valueOf(value.trim()));
+      break;
+    case "entropy":
+      stats.setValue("entroy", Double.valueOf(value.trim()));
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Handle Search data. When rInfo is not null, query data are also reported
+   * within the header of the result.
+   */
+  private void handleSearchElement(SRIteration iteration, SRRequestInfo rInfo, String name, XMLStreamReader reader) throws XMLStreamException {
+    String value;
+
+    switch (name) {
+    case "query-id":
+      value = reader.getElementText();
+      iteration.setIterationQueryID(value);
+      if (rInfo != null) {
+        rInfo.setValue(SRRequestInfo.QUERY_ID_DESCRIPTOR_KEY, value);
+      }
+      break;
+    case "query-title":
+      value = reader.getElementText();
+      iteration.setIterationQueryDesc(value);
+      if (rInfo != null) {
+        rInfo.setValue(SRRequestInfo.QUERY_DEF_DESCRIPTOR_KEY, value);
+      }
+      break;
+    case "query-len":
+      iteration.setIterationQueryLength(toInt(reader.getElementText()));
+      if (rInfo != null) {
+        rInfo.setValue(SRRequestInfo.QUERY_LENGTH_DESCRIPTOR_KEY, Integer.valueOf(iteration.getIterationQueryLength()));
+      }
+      break;
+    case "message":
+      iteration.setIterationMessage(reader.getElementText());
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleHitElement(SRHit hit, String name, XMLStreamReader reader) throws XMLStreamException {
+    switch (name) {
+    case "num":
+      hit.setHitNum(toInt(reader.getElementText()));
+      break;
+    case "len":
+      hit.setHitLen(toInt(reader.getElementText()));
+      if (_seqInfo != null) {
+        _seqInfo.setSequenceSize(hit.getHitLen());
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleHitDescrElement(SRHit hit, String name, String value) {
+    switch (name) {
+    case "id":
+      hit.setHitId(value);
+      break;
+    case "accession":
+      hit.setHitAccession(value);
+      break;
+    case "title":
+      hit.setHitDef(value);
+      break;
+    case "taxid":
+      getSequenceInfo(hit).setTaxonomy(String.valueOf(toInt(value)));
+      break;
+    case "sciname":
+      getSequenceInfo(hit).setOrganism(value);
+      hit.setSequenceInfo(_seqInfo);
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Return the sequence information of the current hit. As NCBI_LOADER2 does,
+   * such information is only attached to a hit when a scientific name is
+   * available.
+   */
+  private BankSequenceInfo getSequenceInfo(SRHit hit) {
+    if (_seqInfo == null) {
+      _seqInfo = CoreSystemConfigurator.getBankSequenceInfoFactory().getInstance();
+      _seqInfo.setId(hit.getHitId());
+      _seqInfo.setDescription(hit.getHitDef());
+      _seqInfo.setMoltype(_proteic ? AA_TYPE : NUCL_TYPE);
+      _seqInfo.setSequenceSize(hit.getHitLen());
+      _seqInfo.setTaxonomy("0");
+    }
+    return _seqInfo;
+  }
+
+  /**
+   * Add the taxonomy of the current hit as a feature of a HSP.
+   */
+  private void handleTaxonomy(SRHsp hsp) {
+    FeatureTable ft;
+    Feature feat;
+
+    if (_seqInfo == null || _seqInfo.getOrganism() == null) {
+      return;
+    }
+    ft = CoreSystemConfigurator.getFeatureTableFactory().getFTInstance();
+    feat = ft.addFeature(SOURCE_FEAT_TYPE, hsp.getHit().getFrom(), hsp.getHit().getTo(),
+        hsp.getHit().getFrame() < 0 ? Feature.MINUS_STRAND : Feature.PLUS_STRAND);
+    feat.addQualifier(DBXREF_QUAL_TYPE, TAXON_CODING_TYPE + _seqInfo.getTaxonomy());
+    hsp.setFeatures(ft);
+  }
+}
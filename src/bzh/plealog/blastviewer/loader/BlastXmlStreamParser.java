@@ -0,0 +1,264 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SRParameters;
+import bzh.plealog.bioinfo.api.data.searchresult.SRRequestInfo;
+import bzh.plealog.bioinfo.api.data.searchresult.SRStatistics;
+
+/**
+ * Streaming parser of NCBI legacy BLAST XML data files. Contrary to the
+ * Castor-based loader, this parser does not need to read the entire file
+ * before returning data: each iteration (i.e. query) is reported to a
+ * BlastStreamListener as soon as it has been read.
+ *
+ * Data objects are created exactly the same way as the NCBI_LOADER does.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastXmlStreamParser extends BlastStreamParser {
+
+  private static final String ROOT_TAG = "<BlastOutput>";
+  private static final String HSP_PREFIX = "Hsp_";
+
+  /**
+   * Constructor.
+   */
+  public BlastXmlStreamParser() {
+    super(HSP_PREFIX);
+  }
+
+  /**
+   * Figures out whether or not the beginning of some data is NCBI legacy BLAST XML data.
+   */
+  public static boolean canRead(String head) {
+    return head.indexOf(ROOT_TAG) >= 0;
+  }
+
+  @Override
+  protected void parse(XMLStreamReader reader, BlastStreamListener listener) throws XMLStreamException {
+    SRRequestInfo rInfo = _factory.createBRequestInfo();
+    SRParameters params = _factory.createBParameters();
+    SRIteration iteration = null;
+    SRStatistics stats = null;
+    SRHit hit = null;
+    HspData hsp = null;
+    String name;
+
+    rInfo.setValue(SRRequestInfo.DATABASE_DESCRIPTOR_KEY, "unknown");
+    while (reader.hasNext()) {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+        if (reader.getEventType() == XMLStreamConstants.END_ELEMENT) {
+          name = reader.getLocalName();
+          if ("Hsp".equals(name)) {
+            hit.addHsp(hsp.toHsp());
+            hsp = null;
+          } else if ("Hit".equals(name)) {
+            if (hit.countHsp() != 0) {
+              iteration.addHit(hit);
+            }
+            hit = null;
+          } else if ("Iteration".equals(name)) {
+            if (stats == null) {
+              stats = _factory.createBStatistics();
+            }
+            iteration.setIterationStat(stats);
+            listener.iterationLoaded(initialize(iteration));
+            iteration = null;
+            stats = null;
+          }
+        }
+        continue;
+      }
+      name = reader.getLocalName();
+      // most frequent elements first
+      if (hsp != null) {
+        if (name.startsWith(HSP_PREFIX)) {
+          hsp.setValue(name.substring(HSP_PREFIX.length()), reader.getElementText());
+        }
+      } else if ("Hsp".equals(name)) {
+        hsp = new HspData();
+      } else if (hit != null) {
+        handleHitElement(hit, name, reader);
+      } else if ("Hit".equals(name)) {
+        hit = _factory.createBHit();
+      } else if ("Iteration".equals(name)) {
+        if (_header == null) {
+          fireHeader(rInfo, params, listener);
+        }
+        iteration = _factory.createBIteration();
+      } else if (iteration != null) {
+        if (name.startsWith("Statistics_")) {
+          if (stats == null) {
+            stats = _factory.createBStatistics();
+          }
+          handleStatElement(stats, name, reader.getElementText());
+        } else {
+          handleIterationElement(iteration, name, reader);
+        }
+      } else if (name.startsWith("Parameters_")) {
+        handleParamElement(params, name, reader.getElementText());
+      } else if (name.startsWith("BlastOutput_")) {
+        handleHeaderElement(rInfo, name, reader);
+      }
+    }
+    if (_header == null) {
+      fireHeader(rInfo, params, listener);
+    }
+  }
+
+  private void handleHeaderElement(SRRequestInfo rInfo, String name, XMLStreamReader reader) throws XMLStreamException {
+    switch (name) {
+    case "BlastOutput_program":
+      rInfo.setValue(SRRequestInfo.PROGRAM_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "BlastOutput_version":
+      rInfo.setValue(SRRequestInfo.PRGM_VERSION_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "BlastOutput_db":
+      rInfo.setValue(SRRequestInfo.DATABASE_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "BlastOutput_query-ID":
+      rInfo.setValue(SRRequestInfo.QUERY_ID_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "BlastOutput_query-def":
+      rInfo.setValue(SRRequestInfo.QUERY_DEF_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    case "BlastOutput_query-len":
+      rInfo.setValue(SRRequestInfo.QUERY_LENGTH_DESCRIPTOR_KEY, Integer.valueOf(toInt(reader.getElementText())));
+      break;
+    case "BlastOutput_query-seq":
+      rInfo.setValue(SRRequestInfo.QUERY_SEQ_DESCRIPTOR_KEY, reader.getElementText());
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleParamElement(SRParameters params, String name, String value) {
+    switch (name) {
+    case "Parameters_matrix":
+      params.setValue(SRParameters.MATRIX_DESCRIPTOR_KEY, value);
+      break;
+    case "Parameters_expect":
+      params.setValue(SRParameters.EXPECT_DESCRIPTOR_KEY, Double.valueOf(value.trim()));
+      break;
+    case "Parameters_include":
+      params.setValue("include", Double.valueOf(value.trim()));
+      break;
+    case "Parameters_sc-match":
+      params.setValue("scMatch", Integer.valueOf(toInt(value)));
+      break;
+    case "Parameters_sc-mismatch":
+      params.setValue("scMismatch", Integer.valueOf(toInt(value)));
+      break;
+    case "Parameters_gap-open":
+      params.setValue(SRParameters.GAPOPEN_DESCRIPTOR_KEY, Integer.valueOf(toInt(value)));
+      break;
+    case "Parameters_gap-extend":
+      params.setValue(SRParameters.GAPEXTEND_DESCRIPTOR_KEY, Integer.valueOf(toInt(value)));
+      break;
+    case "Parameters_filter":
+      params.setValue("filter", value);
+      break;
+    case "Parameters_entrez-query":
+      params.setValue("query", value);
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleStatElement(SRStatistics stats, String name, String value) {
+    switch (name) {
+    case "Statistics_db-num":
+      stats.setValue("dbNum", Integer.valueOf(toInt(value)));
+      break;
+    case "Statistics_db-len":
+      stats.setValue("dbLen", Integer.valueOf(toInt(value)));
+      break;
+    case "Statistics_hsp-len":
+      stats.setValue("hspLen", Integer.valueOf(toInt(value)));
+      break;
+    case "Statistics_eff-space":
+      stats.setValue("effSpace", Double.valueOf(value.trim()));
+      break;
+    case "Statistics_kappa":
+      stats.setValue("kappa", Double.valueOf(value.trim()));
+      break;
+    case "Statistics_lambda":
+      stats.setValue("lambda", Double.valueOf(value.trim()));
+      break;
+    case "Statistics_entropy":
+      stats.setValue("entroy", Double.valueOf(value.trim()));
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleIterationElement(SRIteration iteration, String name, XMLStreamReader reader) throws XMLStreamException {
+    switch (name) {
+    case "Iteration_iter-num":
+      iteration.setIterationIterNum(toInt(reader.getElementText()));
+      break;
+    case "Iteration_query-ID":
+      iteration.setIterationQueryID(reader.getElementText());
+      break;
+    case "Iteration_query-def":
+      iteration.setIterationQueryDesc(reader.getElementText());
+      break;
+    case "Iteration_query-len":
+      iteration.setIterationQueryLength(toInt(reader.getElementText()));
+      break;
+    case "Iteration_message":
+      iteration.setIterationMessage(reader.getElementText());
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void handleHitElement(SRHit hit, String name, XMLStreamReader reader) throws XMLStreamException {
+    switch (name) {
+    case "Hit_num":
+      hit.setHitNum(toInt(reader.getElementText()));
+      break;
+    case "Hit_id":
+      hit.setHitId(reader.getElementText());
+      break;
+    case "Hit_def":
+      hit.setHitDef(reader.getElementText());
+      break;
+    case "Hit_accession":
+      hit.setHitAccession(reader.getElementText());
+      break;
+    case "Hit_len":
+      hit.setHitLen(toInt(reader.getElementText()));
+      break;
+    default:
+      break;
+    }
+  }
+}
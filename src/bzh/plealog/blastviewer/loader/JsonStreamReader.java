@@ -0,0 +1,304 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * Presents JSON data as a stream of StAX events, so that JSON data can be
+ * handled by the StAX-based parsers of this package.
+ *
+ * Each member of a JSON object is reported as an element named after the
+ * member; scalar values are reported as text-only elements. Arrays do not
+ * have elements on their own: each of their items is reported as an element
+ * named after the array. Member names can be renamed using a map; other
+ * names have their '_' replaced by '-'.
+ *
+ * Only the methods used by BlastStreamParser are available: hasNext(),
+ * next(), getEventType(), getLocalName(), getElementText() and close().
+ *
+ * @author Patrick G. Durand
+ */
+public class JsonStreamReader extends StreamReaderDelegate {
+  private Reader              _reader;
+  private Map<String, String> _names;
+  private Deque<Frame>        _frames = new ArrayDeque<>();
+  private char[]              _buf = new char[BUFFER_SIZE];
+  private int                 _pos, _len;
+  private StringBuilder       _text = new StringBuilder();
+  private int                 _event = XMLStreamConstants.START_DOCUMENT;
+  private String              _name;
+  private String              _value;
+  private boolean             _leafEnd;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Constructor.
+   *
+   * @param reader the JSON data. This class does not close the reader.
+   * @param names a map used to rename JSON members. Can be null.
+   */
+  public JsonStreamReader(Reader reader, Map<String, String> names) {
+    super();
+    _reader = reader;
+    _names = names;
+  }
+
+  @Override
+  public boolean hasNext() throws XMLStreamException {
+    return _event != XMLStreamConstants.END_DOCUMENT;
+  }
+
+  @Override
+  public int getEventType() {
+    return _event;
+  }
+
+  @Override
+  public String getLocalName() {
+    return _name;
+  }
+
+  @Override
+  public String getElementText() throws XMLStreamException {
+    if (_event != XMLStreamConstants.START_ELEMENT || _value == null) {
+      throw new XMLStreamException("not a text-only element: " + _name);
+    }
+    // as StAX does, current event becomes the end of the element
+    _event = XMLStreamConstants.END_ELEMENT;
+    _leafEnd = false;
+    return _value;
+  }
+
+  @Override
+  public void close() {
+    // reader is owned by the caller
+  }
+
+  @Override
+  public int next() throws XMLStreamException {
+    try {
+      return _event = readEvent();
+    } catch (IOException e) {
+      throw new XMLStreamException(e.toString());
+    }
+  }
+
+  private int readEvent() throws IOException, XMLStreamException {
+    Frame frame;
+    String name;
+    int c;
+
+    if (_leafEnd) {
+      _leafEnd = false;
+      return XMLStreamConstants.END_ELEMENT;
+    }
+    _value = null;
+    while (true) {
+      c = skipSeparators();
+      frame = _frames.peek();
+      if (c == -1) {
+        if (!_frames.isEmpty()) {
+          throw new XMLStreamException("unexpected end of JSON data");
+        }
+        return XMLStreamConstants.END_DOCUMENT;
+      }
+      if (c == '}' || c == ']') {
+        _frames.pop();
+        if (frame.name != null) {
+          _name = frame.name;
+          return XMLStreamConstants.END_ELEMENT;
+        }
+        continue;
+      }
+      if (frame == null) {
+        name = null;
+      } else if (frame.array) {
+        name = frame.itemName;
+      } else {
+        // object member
+        if (c != '"') {
+          throw new XMLStreamException("JSON member name expected");
+        }
+        name = rename(readString());
+        if (skipSeparators() != ':') {
+          throw new XMLStreamException("JSON ':' expected after " + name);
+        }
+        c = skipSeparators();
+      }
+      if (c == '{') {
+        _frames.push(new Frame(false, name, null));
+        if (name == null) {
+          continue;
+        }
+        _name = name;
+        return XMLStreamConstants.START_ELEMENT;
+      } else if (c == '[') {
+        _frames.push(new Frame(true, null, name));
+        continue;
+      }
+      _value = c == '"' ? readString() : readLiteral((char) c);
+      if (name == null) {
+        continue;
+      }
+      _name = name;
+      _leafEnd = true;
+      return XMLStreamConstants.START_ELEMENT;
+    }
+  }
+
+  private String rename(String name) {
+    String newName = _names != null ? _names.get(name) : null;
+    return newName != null ? newName : name.replace('_', '-');
+  }
+
+  private int read() throws IOException {
+    if (_pos == _len) {
+      _len = _reader.read(_buf, 0, _buf.length);
+      _pos = 0;
+      if (_len <= 0) {
+        _len = 0;
+        return -1;
+      }
+    }
+    return _buf[_pos++];
+  }
+
+  /**
+   * Skip blank characters, commas and colons. Returns the next character,
+   * except for a colon which is returned as is.
+   */
+  private int skipSeparators() throws IOException {
+    int c;
+
+    do {
+      c = read();
+    } while (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ',');
+    return c;
+  }
+
+  private String readString() throws IOException, XMLStreamException {
+    int c, start = _pos;
+
+    // fast path: no escaped characters and string within buffer
+    while (_pos < _len) {
+      c = _buf[_pos++];
+      if (c == '"') {
+        return new String(_buf, start, _pos - start - 1);
+      } else if (c == '\\') {
+        break;
+      }
+    }
+    _text.setLength(0);
+    _text.append(_buf, start, _pos - start);
+    if (_text.length() != 0 && _text.charAt(_text.length() - 1) == '\\') {
+      _text.setLength(_text.length() - 1);
+      readEscape();
+    }
+    while ((c = read()) != '"') {
+      if (c == -1) {
+        throw new XMLStreamException("unexpected end of JSON string");
+      } else if (c == '\\') {
+        readEscape();
+      } else {
+        _text.append((char) c);
+      }
+    }
+    return _text.toString();
+  }
+
+  private void readEscape() throws IOException, XMLStreamException {
+    int c = read();
+
+    switch (c) {
+    case 'n':
+      _text.append('\n');
+      break;
+    case 't':
+      _text.append('\t');
+      break;
+    case 'r':
+      _text.append('\r');
+      break;
+    case 'b':
+      _text.append('\b');
+      break;
+    case 'f':
+      _text.append('\f');
+      break;
+    case 'u':
+      int code = 0;
+      for (int i = 0; i < 4; i++) {
+        code = code * 16 + Character.digit(read(), 16);
+      }
+      _text.append((char) code);
+      break;
+    case -1:
+      throw new XMLStreamException("unexpected end of JSON string");
+    default:
+      // '"', '\\' and '/'
+      _text.append((char) c);
+      break;
+    }
+  }
+
+  /**
+   * Read a number, true, false or null. Null values are reported as empty
+   * strings.
+   */
+  private String readLiteral(char first) throws IOException {
+    int c;
+
+    _text.setLength(0);
+    _text.append(first);
+    while ((c = read()) != -1) {
+      if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+        // closing characters are handled by the caller
+        _pos--;
+        break;
+      }
+      _text.append((char) c);
+    }
+    return "null".contentEquals(_text) ? "" : _text.toString();
+  }
+
+  /**
+   * An object or an array being read.
+   */
+  private static class Frame {
+    private boolean array;
+    // name of the element of an object
+    private String  name;
+    // name of the elements of the items of an array
+    private String  itemName;
+
+    private Frame(boolean array, String name, String itemName) {
+      this.array = array;
+      this.name = name;
+      this.itemName = itemName;
+    }
+  }
+}
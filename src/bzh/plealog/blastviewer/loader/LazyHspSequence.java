@@ -0,0 +1,164 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.StringReader;
+import java.lang.ref.SoftReference;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHspSequence;
+import bzh.plealog.bioinfo.api.data.sequence.DSequence;
+import bzh.plealog.bioinfo.data.searchresult.ISRHspSequence;
+import bzh.plealog.bioinfo.data.searchresult.SRUtils;
+import bzh.plealog.bioinfo.util.DAlphabetUtils;
+
+/**
+ * A HSP sequence that only keeps the location of its data within a
+ * memory-mapped file. The sequence string is built each time it is needed,
+ * so that only displayed HSPs hold sequence data on the heap.
+ *
+ * When serialized, such an object is replaced by a standard one holding
+ * its sequence string.
+ *
+ * @author Patrick G. Durand
+ */
+public class LazyHspSequence extends ISRHspSequence {
+  private static final long serialVersionUID = -4213178526307457453L;
+
+  private transient MappedSequenceSource       _source;
+  private transient long                       _offset;
+  private transient int                        _length;
+  private transient byte                       _transform;
+  private transient SoftReference<DSequence>   _dSequence;
+
+  /** sequence is read as is */
+  public static final byte NONE = 0;
+  /** sequence has to be reverse complemented */
+  public static final byte REVERSE_COMPLEMENT = 1;
+  /** sequence has to be reversed */
+  public static final byte REVERSE = 2;
+
+  /**
+   * Constructor.
+   *
+   * @param source the file containing the sequence
+   * @param offset position of the sequence within the file
+   * @param length size of the sequence
+   * @param transform one of NONE, REVERSE_COMPLEMENT or REVERSE
+   */
+  public LazyHspSequence(MappedSequenceSource source, long offset, int length, byte transform) {
+    super();
+    _source = source;
+    _offset = offset;
+    _length = length;
+    _transform = transform;
+  }
+
+  @Override
+  public String getSequence() {
+    String seq;
+
+    if (_source == null) {
+      return super.getSequence();
+    }
+    seq = _source.read(_offset, _length).toUpperCase();
+    switch (_transform) {
+    case REVERSE_COMPLEMENT:
+      return DAlphabetUtils.reverseComplement(seq);
+    case REVERSE:
+      return DAlphabetUtils.reverse(seq);
+    default:
+      return seq;
+    }
+  }
+
+  @Override
+  public void setSequence(String seq) {
+    _source = null;
+    _dSequence = null;
+    super.setSequence(seq);
+  }
+
+  @Override
+  public DSequence getSequence(SRHsp hsp) {
+    DSequence dSeq;
+    String seq;
+
+    if (_source == null) {
+      return super.getSequence(hsp);
+    }
+    dSeq = _dSequence != null ? _dSequence.get() : null;
+    if (dSeq != null) {
+      return dSeq;
+    }
+    // same as ISRHspSequence, without keeping a strong reference
+    seq = getSequence();
+    if (getType() == SRHspSequence.TYPE_MIDLINE) {
+      dSeq = CoreSystemConfigurator.getSequenceFactory().getSequence(
+          new StringReader(seq), DAlphabetUtils.getComparer_Alphabet());
+    } else {
+      dSeq = CoreSystemConfigurator.getSequenceFactory().getSequence(
+          new StringReader(seq), hsp.isProteic() ? DAlphabetUtils.getIUPAC_Protein_Alphabet()
+              : DAlphabetUtils.getIUPAC_DNA_Alphabet());
+      dSeq.createRulerModel(getFrom(), 
+          SRUtils.getIncrement(getFrom(), getTo(), hsp.getScores().getAlignLen() - getGaps()));
+    }
+    _dSequence = new SoftReference<>(dSeq);
+    return dSeq;
+  }
+
+  @Override
+  public int getGaps() {
+    DSequence dSeq;
+
+    if (_source == null) {
+      return super.getGaps();
+    }
+    dSeq = _dSequence != null ? _dSequence.get() : null;
+    return dSeq != null ? dSeq.getGapContent() : 0;
+  }
+
+  @Override
+  public SRHspSequence clone(boolean shallow) {
+    LazyHspSequence seq;
+
+    if (_source == null) {
+      return super.clone(shallow);
+    }
+    // keep the clone lazy: do not read sequence data
+    seq = new LazyHspSequence(_source, _offset, _length, _transform);
+    seq.setType(getType());
+    seq.setFrom(getFrom());
+    seq.setTo(getTo());
+    seq.setFrame(getFrame());
+    seq.setSeqFullSize(getSeqFullSize());
+    if (!shallow) {
+      seq.setFeatures(getFeatures());
+    }
+    return seq;
+  }
+
+  /**
+   * Serialize this object as a standard HSP sequence.
+   */
+  private Object writeReplace() {
+    ISRHspSequence seq = new ISRHspSequence();
+    seq.copy(this, false);
+    return seq;
+  }
+}
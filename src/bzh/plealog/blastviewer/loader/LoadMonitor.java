@@ -0,0 +1,226 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Monitor the loading of one or more data files. It counts the bytes read
+ * from data files to compute progress, throughput and remaining time, and it
+ * enables to cancel data loading.
+ *
+ * A single monitor can be shared by several threads loading files at the
+ * same time.
+ *
+ * @author Patrick G. Durand
+ */
+public class LoadMonitor {
+  private AtomicLong    _total = new AtomicLong();
+  private AtomicLong    _read = new AtomicLong();
+  private AtomicInteger _files = new AtomicInteger();
+  private AtomicInteger _loadedFiles = new AtomicInteger();
+  private long          _start;
+  private volatile boolean _canceled;
+
+  private static final double MB = 1024d * 1024d;
+
+  /**
+   * Constructor.
+   *
+   * @param files the files to load
+   */
+  public LoadMonitor(File... files) {
+    for (File f : files) {
+      addFile(f);
+    }
+    _start = System.currentTimeMillis();
+  }
+
+  /**
+   * Add a file to the set of files monitored by this object.
+   */
+  public void addFile(File f) {
+    _total.addAndGet(f.length());
+    _files.incrementAndGet();
+  }
+
+  /**
+   * Wrap a data stream so that bytes read from it are counted by this
+   * monitor. Reading the returned stream fails with an InterruptedIOException
+   * as soon as loading is canceled.
+   */
+  public InputStream wrap(InputStream is) {
+    return new MonitoredInputStream(is);
+  }
+
+  /**
+   * Notify this monitor that a file has been loaded.
+   *
+   * @param f the file
+   * @param counted true if bytes of that file have been read through a stream
+   * returned by wrap(), false otherwise.
+   */
+  public void fileLoaded(File f, boolean counted) {
+    if (!counted) {
+      _read.addAndGet(f.length());
+    }
+    _loadedFiles.incrementAndGet();
+  }
+
+  /**
+   * Cancel data loading.
+   */
+  public void cancel() {
+    _canceled = true;
+  }
+
+  /**
+   * Figure out whether data loading has been canceled.
+   */
+  public boolean isCanceled() {
+    return _canceled;
+  }
+
+  /**
+   * Throw an SRLoaderException if data loading has been canceled.
+   */
+  public void checkCanceled() throws SRLoaderException {
+    if (_canceled) {
+      throw new SRLoaderException(BVMessages.getString("LoadMonitor.msg3"));
+    }
+  }
+
+  /**
+   * Return the number of bytes read so far.
+   */
+  public long getReadBytes() {
+    return _read.get();
+  }
+
+  /**
+   * Return the percentage of data read so far.
+   */
+  public int getPercent() {
+    long total = _total.get();
+    return total == 0 ? 0 : (int) Math.min(100, _read.get() * 100 / total);
+  }
+
+  /**
+   * Return the throughput, in MB per second.
+   */
+  public double getRate() {
+    return _read.get() / MB * 1000d / Math.max(1, System.currentTimeMillis() - _start);
+  }
+
+  /**
+   * Return the number of files loaded per second.
+   */
+  public double getFileRate() {
+    return _loadedFiles.get() * 1000d / Math.max(1, System.currentTimeMillis() - _start);
+  }
+
+  /**
+   * Return the estimated remaining time, in seconds. Returns -1 if it cannot
+   * be estimated yet.
+   */
+  public long getETA() {
+    long read = _read.get();
+    long elapsed = System.currentTimeMillis() - _start;
+
+    if (read == 0) {
+      return -1;
+    }
+    return Math.max(0, (_total.get() - read) * elapsed / read / 1000);
+  }
+
+  /**
+   * Return a message reporting the progress of data loading.
+   */
+  public String getMessage() {
+    long eta = getETA();
+    return String.format(BVMessages.getString("LoadMonitor.msg1"),
+        _loadedFiles.get(), _files.get(), getPercent(), getFileRate(), 
+        getRate(), eta < 0 ? "?" : String.valueOf(eta));
+  }
+
+  /**
+   * Log the throughput of a loader.
+   *
+   * @param loader name of the loader used to read data
+   * @param f the file that has been read
+   * @param start time when loading started
+   */
+  public static void logThroughput(String loader, File f, long start) {
+    long tim = Math.max(1, System.currentTimeMillis() - start);
+    EZLogger.info(String.format(BVMessages.getString("LoadMonitor.msg2"),
+        loader, f.getName(), f.length() / MB, tim, f.length() / MB * 1000d / tim));
+  }
+
+  /**
+   * A stream counting bytes read from it.
+   */
+  private class MonitoredInputStream extends FilterInputStream {
+    private MonitoredInputStream(InputStream in) {
+      super(in);
+    }
+
+    private void check() throws InterruptedIOException {
+      if (_canceled) {
+        throw new InterruptedIOException(BVMessages.getString("LoadMonitor.msg3"));
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      check();
+      int b = super.read();
+      if (b != -1) {
+        _read.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      check();
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        _read.addAndGet(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      check();
+      long s = super.skip(n);
+      _read.addAndGet(s);
+      return s;
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipInputStream;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+import bzh.plealog.bioinfo.io.searchresult.SerializerSystemFactory;
+
+/**
+ * Registry of data file formats. The format of a file is figured out by
+ * reading its header only once: that header is then presented to each
+ * registered format, in registration order, until one accepts it. Decisions
+ * are cached per file (path, size and last modification time).
+ *
+ * New formats are added using register().
+ *
+ * @author Patrick G. Durand
+ */
+public class LoaderRegistry {
+  private static List<BlastFileFormat> _formats = new ArrayList<>();
+  private static boolean               _useStaxLoader;
+
+  //number of bytes read to figure out the format of a file
+  private static final int HEADER_SIZE = 8192;
+  //maximum number of decisions kept in the cache
+  private static final int CACHE_SIZE = 512;
+
+  private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+  /**
+   * Name of the JVM property used to disable the StAX-based loader of NCBI
+   * BLAST XML files. Default is to use that loader.
+   */
+  public static final String STAX_LOADER_PROP = "bv.loader.stax";
+
+  private static final String LEGACY_TAG = "<BlastOutput>";
+  private static final String XML2_TAG = "<BlastXML2";
+  private static final String NATIVE_TAG = "<BOutput>";
+
+  @SuppressWarnings("serial")
+  private static Map<String, CacheEntry> _cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  static {
+    _useStaxLoader = !"false".equals(System.getProperty(STAX_LOADER_PROP));
+    register(new StaxFormat(false));
+    register(new StaxFormat(true));
+    register(new JsonFormat());
+    register(new ArchiveFormat());
+    register(new SerializerFormat("NCBI BLAST XML2", XML2_TAG, SerializerSystemFactory.NCBI_LOADER2));
+    register(new SerializerFormat("NCBI BLAST XML", LEGACY_TAG, SerializerSystemFactory.NCBI_LOADER));
+    register(new SerializerFormat("ZML", NATIVE_TAG, SerializerSystemFactory.NATIVE_LOADER));
+    register(new TabularFormat());
+  }
+
+  /**
+   * Register a new format. Formats are tested in registration order.
+   */
+  public static synchronized void register(BlastFileFormat format) {
+    _formats.add(format);
+    _cache.clear();
+  }
+
+  /**
+   * Set whether or not NCBI BLAST XML files are loaded using the StAX-based
+   * loader. When false, Castor/JAXB-based loaders are used.
+   */
+  public static synchronized void setUseStaxLoader(boolean use) {
+    _useStaxLoader = use;
+    _cache.clear();
+  }
+
+  /**
+   * Return a loader capable of reading a file.
+   *
+   * @param f a data file
+   *
+   * @return a loader or null if the file format is unknown
+   */
+  public static SRLoader getLoader(File f) {
+    BlastFileFormat format = getFormat(f);
+    return format != null ? format.getLoader() : null;
+  }
+
+  /**
+   * Return a stream parser capable of reading a file. The format decision
+   * made by getFormat() is used: the file is not read again.
+   *
+   * @param f a data file
+   *
+   * @return a new parser or null if the file is not loaded using a stream
+   * parser
+   */
+  public static BlastStreamParser getStreamParser(File f) {
+    BlastFileFormat format = getFormat(f);
+    return format instanceof StreamFormat ? ((StreamFormat) format).createParser() : null;
+  }
+
+  /**
+   * Return the format of a file.
+   *
+   * @param f a data file
+   *
+   * @return a format or null if the file format is unknown
+   */
+  public static BlastFileFormat getFormat(File f) {
+    String key = f.getAbsolutePath();
+    long size = f.length(), modified = f.lastModified();
+    BlastFileFormat format = null;
+    CacheEntry entry;
+    String header;
+    boolean zipped;
+
+    synchronized (LoaderRegistry.class) {
+      entry = _cache.get(key);
+      if (entry != null && entry.size == size && entry.modified == modified) {
+        return entry.format;
+      }
+    }
+    try {
+      byte[] data = readHeader(f);
+      zipped = isZipped(data);
+      if (zipped) {
+        data = readZippedHeader(f);
+      }
+      header = new String(data, StandardCharsets.ISO_8859_1);
+    } catch (IOException e) {
+      EZLogger.debug(e.toString());
+      return null;
+    }
+    synchronized (LoaderRegistry.class) {
+      for (BlastFileFormat fmt : _formats) {
+        if (fmt.accept(header, zipped)) {
+          format = fmt;
+          break;
+        }
+      }
+      _cache.put(key, new CacheEntry(size, modified, format));
+    }
+    return format;
+  }
+
+  /**
+   * Read the first bytes of a file.
+   */
+  private static byte[] readHeader(File f) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+    byte[] data;
+    int read;
+
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      do {
+        read = fc.read(buf);
+      } while (read > 0 && buf.hasRemaining());
+    }
+    buf.flip();
+    data = new byte[buf.remaining()];
+    buf.get(data);
+    return data;
+  }
+
+  /**
+   * Read the first bytes of the first entry of a zip file.
+   */
+  private static byte[] readZippedHeader(File f) throws IOException {
+    byte[] data = new byte[HEADER_SIZE];
+    byte[] result;
+    int n = 0, read;
+
+    try (ZipInputStream is = new ZipInputStream(new FileInputStream(f))) {
+      if (is.getNextEntry() != null) {
+        while (n < data.length && (read = is.read(data, n, data.length - n)) > 0) {
+          n += read;
+        }
+      }
+    }
+    result = new byte[n];
+    System.arraycopy(data, 0, result, 0, n);
+    return result;
+  }
+
+  private static boolean isZipped(byte[] data) {
+    if (data.length < ZIP_MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < ZIP_MAGIC.length; i++) {
+      if (data[i] != ZIP_MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class CacheEntry {
+    private long            size;
+    private long            modified;
+    private BlastFileFormat format;
+
+    private CacheEntry(long size, long modified, BlastFileFormat format) {
+      this.size = size;
+      this.modified = modified;
+      this.format = format;
+    }
+  }
+
+  /**
+   * Formats read using a BlastStreamParser.
+   */
+  private interface StreamFormat extends BlastFileFormat {
+    /**
+     * Return a new parser capable of reading this format.
+     */
+    public BlastStreamParser createParser();
+  }
+
+  /**
+   * NCBI BLAST XML formats loaded with the StAX-based loader. Such a loader
+   * does not handle zipped files.
+   */
+  private static class StaxFormat implements StreamFormat {
+    private boolean _xml2;
+
+    private StaxFormat(boolean xml2) {
+      _xml2 = xml2;
+    }
+
+    @Override
+    public String getName() {
+      return _xml2 ? "NCBI BLAST XML2 (StAX)" : "NCBI BLAST XML (StAX)";
+    }
+
+    @Override
+    public boolean accept(String header, boolean zipped) {
+      return _useStaxLoader && !zipped && header.indexOf(_xml2 ? XML2_TAG : LEGACY_TAG) >= 0;
+    }
+
+    @Override
+    public SRLoader getLoader() {
+      return new StaxBlastLoader(_xml2);
+    }
+
+    @Override
+    public BlastStreamParser createParser() {
+      return _xml2 ? new BlastXml2StreamParser() : new BlastXmlStreamParser();
+    }
+  }
+
+  /**
+   * NCBI BLAST JSON formats, loaded with the StAX-based loader.
+   */
+  private static class JsonFormat implements StreamFormat {
+    @Override
+    public String getName() {
+      return "NCBI BLAST JSON (StAX)";
+    }
+
+    @Override
+    public boolean accept(String header, boolean zipped) {
+      return !zipped && BlastJsonStreamParser.canRead(header);
+    }
+
+    @Override
+    public SRLoader getLoader() {
+      return new StaxBlastLoader();
+    }
+
+    @Override
+    public BlastStreamParser createParser() {
+      return new BlastJsonStreamParser();
+    }
+  }
+
+  /**
+   * Zipped NCBI BLAST XML2 and JSON results, possibly made of one file per
+   * query. The header is the one of the first entry of the archive, which
+   * can be an index file.
+   */
+  private static class ArchiveFormat implements BlastFileFormat {
+    @Override
+    public String getName() {
+      return "Zipped NCBI BLAST XML2/JSON";
+    }
+
+    @Override
+    public boolean accept(String header, boolean zipped) {
+      return zipped && (BlastJsonStreamParser.canRead(header) || BlastJsonStreamParser.isIndex(header)
+          || (_useStaxLoader && header.indexOf(XML2_TAG) >= 0));
+    }
+
+    @Override
+    public SRLoader getLoader() {
+      return new BlastArchiveLoader();
+    }
+  }
+
+  /**
+   * Formats loaded with the loaders of the bioinformatics core library.
+   */
+  private static class SerializerFormat implements BlastFileFormat {
+    private String _name;
+    private String _tag;
+    private int    _loaderType;
+
+    private SerializerFormat(String name, String tag, int loaderType) {
+      _name = name;
+      _tag = tag;
+      _loaderType = loaderType;
+    }
+
+    @Override
+    public String getName() {
+      return _name;
+    }
+
+    @Override
+    public boolean accept(String header, boolean zipped) {
+      return header.indexOf(_tag) >= 0;
+    }
+
+    @Override
+    public SRLoader getLoader() {
+      return SerializerSystemFactory.getLoaderInstance(_loaderType);
+    }
+  }
+
+  /**
+   * NCBI BLAST tabular formats (-outfmt 6 and 7). Such a loader does not
+   * handle zipped files.
+   */
+  private static class TabularFormat implements BlastFileFormat {
+    @Override
+    public String getName() {
+      return "NCBI BLAST tabular";
+    }
+
+    @Override
+    public boolean accept(String header, boolean zipped) {
+      return !zipped && BlastTabularParser.canRead(header);
+    }
+
+    @Override
+    public SRLoader getLoader() {
+      return new BlastTabularLoader();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory-mapped data file from which HSP sequences are read on demand.
+ *
+ * While a file is being parsed, locate() is used to find where each sequence
+ * is stored within the file. Since sequences are located in document order,
+ * the file is scanned only once.
+ *
+ * @author Patrick G. Durand
+ */
+public class MappedSequenceSource {
+  private MappedByteBuffer[] _chunks;
+  private long               _size;
+  private long               _cursor;
+
+  //files are mapped by chunks of 1 Gb
+  private static final int  CHUNK_BITS = 30;
+  private static final long CHUNK_MASK = (1l << CHUNK_BITS) - 1;
+
+  /**
+   * Constructor.
+   *
+   * @param f the file to map in memory
+   *
+   * @throws IOException if file cannot be mapped
+   */
+  public MappedSequenceSource(File f) throws IOException {
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      _size = fc.size();
+      _chunks = new MappedByteBuffer[(int) ((_size + CHUNK_MASK) >>> CHUNK_BITS)];
+      for (int i = 0; i < _chunks.length; i++) {
+        long pos = (long) i << CHUNK_BITS;
+        _chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK_MASK + 1, _size - pos));
+      }
+    }
+  }
+
+  private byte get(long pos) {
+    return _chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+  }
+
+  /**
+   * Locate a value stored within an element. Search starts after the last
+   * located value.
+   *
+   * @param tag the opening tag of the element, e.g. &lt;Hsp_qseq&gt;
+   * @param value the value of the element as read by the XML parser
+   *
+   * @return the position of the value within the file, or -1 if the value
+   * cannot be located as is (e.g. it contains XML entities). In the latter
+   * case, next searches start after the element that has been found.
+   */
+  public long locate(byte[] tag, String value) {
+    // the value must be followed by a closing tag
+    long pos = _cursor, last = _size - tag.length - value.length() - 1;
+    int i, len = value.length();
+
+    while (pos <= last) {
+      if (get(pos) == tag[0]) {
+        i = 1;
+        while (i < tag.length && get(pos + i) == tag[i]) {
+          i++;
+        }
+        if (i == tag.length) {
+          pos += tag.length;
+          i = 0;
+          while (i < len && get(pos + i) == value.charAt(i)) {
+            i++;
+          }
+          if (i != len || get(pos + len) != '<') {
+            // skip the content of that element
+            pos += i;
+            while (pos < _size && get(pos) != '<') {
+              pos++;
+            }
+            _cursor = pos;
+            return -1;
+          }
+          _cursor = pos + len;
+          return pos;
+        }
+      }
+      pos++;
+    }
+    return -1;
+  }
+
+  /**
+   * Read a string.
+   *
+   * @param pos position of the string within the file
+   * @param len length of the string
+   */
+  public String read(long pos, int len) {
+    byte[] data = new byte[len];
+    for (int i = 0; i < len; i++) {
+      data[i] = get(pos + i);
+    }
+    return new String(data, StandardCharsets.ISO_8859_1);
+  }
+}
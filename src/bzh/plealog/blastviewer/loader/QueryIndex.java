@@ -0,0 +1,671 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * A random access index of the queries contained in a NCBI BLAST XML file.
+ * It records the location of each Iteration (legacy XML) or Report (XML2)
+ * element, along with its query ID and its number of hits. A single query can
+ * then be read from the file without parsing the other ones.
+ *
+ * An index is built by scanning the bytes of the file once. It is saved in a
+ * sidecar file, located next to the data file, so that it is only computed
+ * once. The sidecar file records the size and the last modification time of
+ * the data file: it is rebuilt as soon as the data file changes.
+ *
+ * @author Patrick G. Durand
+ */
+public class QueryIndex {
+  private File     _file;
+  private boolean  _xml2;
+  private long     _start;
+  private long     _end;
+  private int      _size;
+  private long[]   _offsets = new long[1024];
+  private int[]    _lengths = new int[1024];
+  private int[]    _heads   = new int[1024];
+  private int[]    _hits    = new int[1024];
+  private String[] _ids     = new String[1024];
+  private byte[]   _prolog;
+  private byte[]   _epilog;
+  private FileChannel _channel;
+
+  /**
+   * Extension of sidecar index files.
+   */
+  public static final String INDEX_EXT = ".bvidx";
+  /**
+   * Name of the JVM property used to set the size (in MB) of a data file
+   * above which it is displayed using its index. Default is 512 MB.
+   */
+  public static final String THRESHOLD_PROP = "bv.query.index.threshold";
+
+  private static final long   DEFAULT_THRESHOLD = 512l;
+  private static final int    MAGIC = 0x42564931; // BVI1
+  private static final int    BUFFER_SIZE = 1024 * 1024;
+  //longest tag looked for while scanning data
+  private static final int    MAX_TAG = 32;
+  //query IDs longer than this are truncated
+  private static final int    MAX_ID = 1024;
+
+  private static final byte[] ITERATION_START = ascii("<Iteration>");
+  private static final byte[] ITERATION_END = ascii("</Iteration>");
+  private static final byte[] ITERATION_ID = ascii("<Iteration_query-ID>");
+  private static final byte[] REPORT_START = ascii("<Report>");
+  private static final byte[] REPORT_END = ascii("</Report>");
+  private static final byte[] REPORT_ID = ascii("<query-id>");
+  private static final byte[] HIT_START = ascii("<Hit>");
+  private static final byte[] HIT_END = ascii("</Hit>");
+  //tags closing a query truncated after its first hit
+  private static final byte[] ITERATION_TAIL = ascii("</Iteration_hits></Iteration>");
+  private static final byte[] REPORT_TAIL = ascii("</hits></Search></search></Results></results></Report>");
+
+  private QueryIndex(File f, boolean xml2) {
+    _file = f;
+    _xml2 = xml2;
+  }
+
+  private static byte[] ascii(String str) {
+    return str.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Figures out whether or not a file has to be displayed using its index.
+   * It is the case of NCBI BLAST XML files larger than THRESHOLD_PROP and of
+   * files for which a valid index already exists.
+   *
+   * @param f a data file
+   */
+  public static boolean isRequired(File f) {
+    long threshold = DEFAULT_THRESHOLD;
+    String prop = System.getProperty(THRESHOLD_PROP);
+
+    if (getTags(f) == null) {
+      return false;
+    }
+    if (prop != null) {
+      try {
+        threshold = Long.parseLong(prop.trim());
+      } catch (NumberFormatException e) {
+        // use default threshold
+      }
+    }
+    return f.length() >= threshold * 1024l * 1024l || hasIndex(f);
+  }
+
+  /**
+   * Figures out whether or not a file has an up-to-date sidecar index.
+   */
+  public static boolean hasIndex(File f) {
+    File idx = getIndexFile(f);
+
+    if (!idx.exists()) {
+      return false;
+    }
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(idx))) {
+      return checkHeader(dis, f);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Return the sidecar index file of a data file.
+   */
+  public static File getIndexFile(File f) {
+    return new File(f.getAbsolutePath() + INDEX_EXT);
+  }
+
+  /**
+   * Return the index of a NCBI BLAST XML file. The sidecar index is used if
+   * it is still valid, otherwise the data file is scanned and a new sidecar
+   * index is saved.
+   *
+   * @param f a NCBI BLAST XML file (legacy or XML2)
+   * @param monitor a monitor used to report progress and to cancel indexing.
+   * Can be null.
+   *
+   * @return an index
+   *
+   * @throws IOException if data file cannot be read or is not a NCBI BLAST
+   * XML file
+   */
+  public static QueryIndex getIndex(File f, LoadMonitor monitor) throws IOException {
+    QueryIndex index = read(f);
+    long tim;
+
+    if (index == null) {
+      tim = System.currentTimeMillis();
+      index = build(f, monitor);
+      EZLogger.info(String.format(BVMessages.getString("QueryIndex.msg1"),
+          f.getName(), index.size(), System.currentTimeMillis() - tim));
+      index.save();
+    }
+    index.open();
+    return index;
+  }
+
+  /**
+   * Check the header of a sidecar index file against its data file.
+   */
+  private static boolean checkHeader(DataInputStream dis, File f) throws IOException {
+    return dis.readInt() == MAGIC
+        && dis.readLong() == f.length()
+        && dis.readLong() == f.lastModified();
+  }
+
+  /**
+   * Read the sidecar index of a data file. Returns null if there is no such
+   * index or if it is no longer valid.
+   */
+  private static QueryIndex read(File f) {
+    File idxFile = getIndexFile(f);
+    QueryIndex index;
+    int size;
+
+    if (!idxFile.exists()) {
+      return null;
+    }
+    try (DataInputStream dis = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(idxFile), 65536))) {
+      if (!checkHeader(dis, f)) {
+        return null;
+      }
+      index = new QueryIndex(f, dis.readBoolean());
+      index._start = dis.readLong();
+      index._end = dis.readLong();
+      size = dis.readInt();
+      index.ensureCapacity(size);
+      for (int i = 0; i < size; i++) {
+        index._offsets[i] = dis.readLong();
+        index._lengths[i] = dis.readInt();
+        index._heads[i] = dis.readInt();
+        index._hits[i] = dis.readInt();
+        index._ids[i] = dis.readUTF();
+      }
+      index._size = size;
+    } catch (IOException e) {
+      EZLogger.debug(e.toString());
+      return null;
+    }
+    return index;
+  }
+
+  /**
+   * Save this index in its sidecar file. Failures are not fatal: the
+   * index will be built again next time.
+   */
+  private void save() {
+    File idxFile = getIndexFile(_file);
+    File tmpFile = new File(idxFile.getAbsolutePath() + ".tmp");
+
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile), 65536))) {
+      dos.writeInt(MAGIC);
+      dos.writeLong(_file.length());
+      dos.writeLong(_file.lastModified());
+      dos.writeBoolean(_xml2);
+      dos.writeLong(_start);
+      dos.writeLong(_end);
+      dos.writeInt(_size);
+      for (int i = 0; i < _size; i++) {
+        dos.writeLong(_offsets[i]);
+        dos.writeInt(_lengths[i]);
+        dos.writeInt(_heads[i]);
+        dos.writeInt(_hits[i]);
+        dos.writeUTF(_ids[i]);
+      }
+    } catch (IOException e) {
+      // e.g. read-only directory
+      EZLogger.debug(e.toString());
+      tmpFile.delete();
+      return;
+    }
+    idxFile.delete();
+    if (!tmpFile.renameTo(idxFile)) {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Figures out which tags locate queries in a data file, using the format
+   * decision of the LoaderRegistry.
+   *
+   * @return true for NCBI BLAST XML2 tags, false for NCBI legacy BLAST XML
+   * tags, null if the file cannot be indexed.
+   */
+  private static Boolean getTags(File f) {
+    BlastStreamParser parser = LoaderRegistry.getStreamParser(f);
+
+    // JSON data is not indexed: check it first since its parser is a XML2 one
+    if (parser == null || parser instanceof BlastJsonStreamParser) {
+      return null;
+    }
+    return parser instanceof BlastXml2StreamParser;
+  }
+
+  /**
+   * Scan a data file to locate its queries.
+   */
+  private static QueryIndex build(File f, LoadMonitor monitor) throws IOException {
+    QueryIndex index;
+    byte[] buf = new byte[BUFFER_SIZE];
+    byte[] startTag, endTag, idTag;
+    long base = 0, start = -1, firstHit = -1;
+    int len = 0, pos = 0, limit, end, read, hits = 0;
+    boolean eof = false;
+    String id = null;
+
+    Boolean xml2 = getTags(f);
+
+    if (xml2 == null) {
+      throw new IOException("not a NCBI BLAST XML file: " + f.getName());
+    } else if (xml2) {
+      index = new QueryIndex(f, true);
+      startTag = REPORT_START;
+      endTag = REPORT_END;
+      idTag = REPORT_ID;
+    } else {
+      index = new QueryIndex(f, false);
+      startTag = ITERATION_START;
+      endTag = ITERATION_END;
+      idTag = ITERATION_ID;
+    }
+    index._start = index._end = -1;
+    try (InputStream is = monitor != null ? monitor.wrap(new FileInputStream(f))
+        : new FileInputStream(f)) {
+      while (!eof) {
+        // keep unprocessed bytes, then fill the buffer
+        System.arraycopy(buf, pos, buf, 0, len - pos);
+        base += pos;
+        len -= pos;
+        pos = 0;
+        while (len < buf.length && (read = is.read(buf, len, buf.length - len)) != -1) {
+          len += read;
+        }
+        eof = len < buf.length;
+        limit = eof ? len : len - MAX_TAG;
+        while (pos < limit) {
+          if (buf[pos] != '<') {
+            pos++;
+          } else if (start == -1) {
+            if (matches(buf, pos, len, startTag)) {
+              start = base + pos;
+              firstHit = -1;
+              hits = 0;
+              id = null;
+            }
+            pos++;
+          } else if (matches(buf, pos, len, HIT_START)) {
+            hits++;
+            pos += HIT_START.length;
+          } else if (firstHit == -1 && matches(buf, pos, len, HIT_END)) {
+            firstHit = base + pos + HIT_END.length;
+            pos += HIT_END.length;
+          } else if (matches(buf, pos, len, endTag)) {
+            pos += endTag.length;
+            index.add(start, base + pos, firstHit, hits, id);
+            start = -1;
+          } else if (id == null && matches(buf, pos, len, idTag)) {
+            end = indexOf(buf, pos + idTag.length, len, (byte) '<');
+            if (end == -1 && !eof && pos > 0) {
+              // read more data
+              break;
+            }
+            if (end == -1) {
+              end = len;
+            }
+            id = decode(buf, pos + idTag.length, Math.min(end, pos + idTag.length + MAX_ID));
+            pos = end;
+          } else {
+            pos++;
+          }
+        }
+      }
+    }
+    if (index._size == 0) {
+      throw new IOException("no query found in: " + f.getName());
+    }
+    return index;
+  }
+
+  private static boolean matches(byte[] buf, int pos, int len, byte[] tag) {
+    if (pos + tag.length > len) {
+      return false;
+    }
+    for (int i = 1; i < tag.length; i++) {
+      if (buf[pos + i] != tag[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] buf, int from, int to, byte b) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Decode XML text made of UTF-8 bytes. Only predefined entities and
+   * character references are handled.
+   */
+  private static String decode(byte[] buf, int from, int to) {
+    String str = new String(buf, from, to - from, StandardCharsets.UTF_8).trim();
+    StringBuilder sb;
+    int amp, semi, i = 0;
+
+    if (str.indexOf('&') == -1) {
+      return str;
+    }
+    sb = new StringBuilder();
+    while ((amp = str.indexOf('&', i)) != -1 && (semi = str.indexOf(';', amp)) != -1) {
+      sb.append(str, i, amp);
+      String ent = str.substring(amp + 1, semi);
+      switch (ent) {
+      case "amp":
+        sb.append('&');
+        break;
+      case "lt":
+        sb.append('<');
+        break;
+      case "gt":
+        sb.append('>');
+        break;
+      case "quot":
+        sb.append('"');
+        break;
+      case "apos":
+        sb.append('\'');
+        break;
+      default:
+        try {
+          sb.appendCodePoint(ent.startsWith("#x") ? Integer.parseInt(ent.substring(2), 16)
+              : Integer.parseInt(ent.substring(1)));
+        } catch (RuntimeException e) {
+          sb.append(str, amp, semi + 1);
+        }
+        break;
+      }
+      i = semi + 1;
+    }
+    sb.append(str, i, str.length());
+    return sb.toString();
+  }
+
+  private void ensureCapacity(int size) {
+    int capacity = _offsets.length;
+
+    if (size <= capacity) {
+      return;
+    }
+    while (capacity < size) {
+      capacity *= 2;
+    }
+    _offsets = Arrays.copyOf(_offsets, capacity);
+    _lengths = Arrays.copyOf(_lengths, capacity);
+    _heads = Arrays.copyOf(_heads, capacity);
+    _hits = Arrays.copyOf(_hits, capacity);
+    _ids = Arrays.copyOf(_ids, capacity);
+  }
+
+  /**
+   * Add a query to this index.
+   */
+  private void add(long start, long end, long firstHit, int hits, String id) throws IOException {
+    if (end - start > Integer.MAX_VALUE) {
+      throw new IOException("query too large: " + id);
+    }
+    ensureCapacity(_size + 1);
+    _offsets[_size] = start;
+    _lengths[_size] = (int) (end - start);
+    _heads[_size] = firstHit == -1 ? _lengths[_size] : (int) (firstHit - start);
+    _hits[_size] = hits;
+    _ids[_size] = id != null ? id : "";
+    _size++;
+    if (_start == -1) {
+      _start = start;
+    }
+    _end = end;
+  }
+
+  /**
+   * Open the data file and read data located before the first query and
+   * after the last one.
+   */
+  private void open() throws IOException {
+    _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+    _prolog = readBytes(0, (int) _start);
+    _epilog = readBytes(_end, (int) (_channel.size() - _end));
+  }
+
+  private byte[] readBytes(long pos, int len) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(len);
+
+    while (buf.hasRemaining()) {
+      if (_channel.read(buf, pos + buf.position()) == -1) {
+        throw new IOException("unexpected end of file: " + _file.getName());
+      }
+    }
+    return buf.array();
+  }
+
+  /**
+   * Release resources used by this index. Queries cannot be read anymore.
+   */
+  public synchronized void close() {
+    try {
+      if (_channel != null) {
+        _channel.close();
+      }
+    } catch (IOException e) {
+      // nothing to do
+    }
+  }
+
+  /**
+   * Return the indexed data file.
+   */
+  public File getFile() {
+    return _file;
+  }
+
+  /**
+   * Figures out whether indexed data file is a NCBI BLAST XML2 one.
+   */
+  public boolean isXml2() {
+    return _xml2;
+  }
+
+  /**
+   * Return the number of queries.
+   */
+  public int size() {
+    return _size;
+  }
+
+  /**
+   * Return the ID of a query.
+   */
+  public String getQueryId(int idx) {
+    return _ids[idx];
+  }
+
+  /**
+   * Return the number of hits of a query.
+   */
+  public int countHits(int idx) {
+    return _hits[idx];
+  }
+
+  /**
+   * Return the position of a query given its ID.
+   *
+   * @return a query index or -1 if not found
+   */
+  public int indexOf(String id) {
+    for (int i = 0; i < _size; i++) {
+      if (_ids[i].equals(id)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return a parser capable of reading the data streams returned by this index.
+   */
+  public BlastStreamParser createParser() {
+    BlastStreamParser parser = _xml2 ? new BlastXml2StreamParser() : new BlastXmlStreamParser();
+    // there is no file to map
+    parser.setLazySequences(false);
+    return parser;
+  }
+
+  /**
+   * Return a well-formed document containing a single query.
+   *
+   * @param idx position of the query
+   */
+  public InputStream openQuery(int idx) {
+    return new SequenceInputStream(new Segments(idx, idx + 1, false));
+  }
+
+  /**
+   * Return a well-formed document containing all queries, each of them being
+   * truncated after its first hit. Such a document is much smaller than the
+   * data file and contains all data needed to summarize queries.
+   */
+  public InputStream openHeads() {
+    return new BufferedInputStream(new SequenceInputStream(new Segments(0, _size, true)));
+  }
+
+  /**
+   * Enumerates the data streams making a document: data located before the
+   * first query, queries, then data located after the last query.
+   */
+  private class Segments implements Enumeration<InputStream> {
+    private int     _cur;
+    private int     _to;
+    private boolean _truncate;
+    private boolean _tail;
+    private boolean _prologDone;
+    private boolean _epilogDone;
+
+    private Segments(int from, int to, boolean truncate) {
+      _cur = from;
+      _to = to;
+      _truncate = truncate;
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return !_epilogDone;
+    }
+
+    @Override
+    public InputStream nextElement() {
+      InputStream is;
+
+      if (!_prologDone) {
+        _prologDone = true;
+        return new ByteArrayInputStream(_prolog);
+      }
+      if (_tail) {
+        // close the elements of a truncated query
+        _tail = false;
+        return new ByteArrayInputStream(_xml2 ? REPORT_TAIL : ITERATION_TAIL);
+      }
+      if (_cur < _to) {
+        if (_truncate && _heads[_cur] != _lengths[_cur]) {
+          is = new RangeInputStream(_offsets[_cur], _heads[_cur]);
+          _tail = true;
+        } else {
+          is = new RangeInputStream(_offsets[_cur], _lengths[_cur]);
+        }
+        _cur++;
+        return is;
+      }
+      if (!_epilogDone) {
+        _epilogDone = true;
+        return new ByteArrayInputStream(_epilog);
+      }
+      throw new NoSuchElementException();
+    }
+  }
+
+  /**
+   * A stream reading a range of bytes of the data file.
+   */
+  private class RangeInputStream extends InputStream {
+    private long _pos;
+    private long _end;
+
+    private RangeInputStream(long pos, int len) {
+      _pos = pos;
+      _end = pos + len;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n;
+
+      if (_pos >= _end) {
+        return -1;
+      }
+      n = _channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, _end - _pos)), _pos);
+      if (n == -1) {
+        throw new IOException("unexpected end of file: " + _file.getName());
+      }
+      _pos += n;
+      return n;
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * A disk cache of parsed BLAST results. Each cached result is stored in a
+ * binary file named after the path of its source file. A small header of that
+ * binary file contains the size, the last modification time and a CRC32 hash
+ * of the first and last bytes of its source file: a cached result is only
+ * used when all these values still match the source file. Hashing only the
+ * ends of the source file keeps lookups fast whatever its size.
+ *
+ * The cache has a maximum size: least recently used results are removed
+ * first when that size is exceeded.
+ *
+ * @author Patrick G. Durand
+ */
+public class ResultCache {
+  private File _dir;
+  private long _maxSize;
+
+  //default maximum size of the cache: 1 Gb
+  public static final long DEFAULT_MAX_SIZE = 1024l * 1024l * 1024l;
+  //source files smaller than this size are not worth caching
+  public static final long MIN_FILE_SIZE = 1024l * 1024l;
+
+  private static final String CACHE_EXT = ".bvc";
+  private static final int    MAGIC = 0x42564332; // BVC2
+  //number of bytes hashed at both ends of a source file
+  private static final int    HASH_SIZE = 64 * 1024;
+  //size of the buffer used to read cached results
+  private static final int    BUFFER_SIZE = 65536;
+
+  /**
+   * Constructor.
+   *
+   * @param dir the directory where to store cached results
+   * @param maxSize maximum size of the cache, in bytes
+   */
+  public ResultCache(File dir, long maxSize) {
+    _dir = dir;
+    _maxSize = maxSize;
+  }
+
+  /**
+   * Set the maximum size of the cache, in bytes.
+   */
+  public void setMaxSize(long maxSize) {
+    _maxSize = maxSize;
+    evict();
+  }
+
+  /**
+   * Return the maximum size of the cache, in bytes.
+   */
+  public long getMaxSize() {
+    return _maxSize;
+  }
+
+  /**
+   * Figures out whether or not a file is in the cache. This is a quick test
+   * that only checks the size and the last modification time of the file.
+   *
+   * @param f a source data file
+   */
+  public boolean contains(File f) {
+    File cacheFile = getCacheFile(f);
+
+    if (!cacheFile.exists()) {
+      return false;
+    }
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(cacheFile))) {
+      return dis.readInt() == MAGIC
+          && dis.readUTF().equals(f.getAbsolutePath())
+          && dis.readLong() == f.length()
+          && dis.readLong() == f.lastModified();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Return a cached result.
+   *
+   * @param f a source data file
+   *
+   * @return a result or null if the file is not in the cache or if the
+   * cached result is no longer valid.
+   */
+  public SROutput get(File f) {
+    File cacheFile = getCacheFile(f);
+    SROutput sro = null;
+    long tim;
+
+    if (!cacheFile.exists()) {
+      return null;
+    }
+    tim = System.currentTimeMillis();
+    // cached results may be larger than 2 Gb: they are read as a stream
+    try (DataInputStream dis = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(cacheFile), BUFFER_SIZE))) {
+      // an outdated cache file is deleted once closed
+      if (dis.readInt() == MAGIC
+          && dis.readUTF().equals(f.getAbsolutePath())
+          && dis.readLong() == f.length()
+          && dis.readLong() == f.lastModified()
+          && dis.readLong() == computeHash(f)) {
+        sro = (SROutput) new ObjectInputStream(dis).readObject();
+      }
+    } catch (Exception e) {
+      EZLogger.warn(e.toString());
+      sro = null;
+    }
+    if (sro == null) {
+      cacheFile.delete();
+      return null;
+    }
+    // some computed values are not serialized
+    sro.initialize();
+    cacheFile.setLastModified(System.currentTimeMillis());
+    EZLogger.info(String.format(BVMessages.getString("ResultCache.msg1"),
+        f.getName(), System.currentTimeMillis() - tim));
+    return sro;
+  }
+
+  /**
+   * Add a result to the cache.
+   *
+   * @param f the source data file of the result
+   * @param sro the result
+   */
+  public void put(File f, SROutput sro) {
+    File cacheFile = getCacheFile(f);
+    File tmpFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+
+    if (f.length() < MIN_FILE_SIZE) {
+      return;
+    }
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE))) {
+      dos.writeInt(MAGIC);
+      dos.writeUTF(f.getAbsolutePath());
+      dos.writeLong(f.length());
+      dos.writeLong(f.lastModified());
+      dos.writeLong(computeHash(f));
+      ObjectOutputStream oos = new ObjectOutputStream(dos);
+      oos.writeObject(sro);
+      oos.flush();
+    } catch (Exception e) {
+      EZLogger.warn(e.toString());
+      tmpFile.delete();
+      return;
+    }
+    cacheFile.delete();
+    if (!tmpFile.renameTo(cacheFile)) {
+      tmpFile.delete();
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Remove all results from the cache.
+   *
+   * @return the number of bytes released
+   */
+  public long clear() {
+    long size = 0;
+
+    for (File file : listCacheFiles()) {
+      size += file.length();
+      file.delete();
+    }
+    EZLogger.info(String.format(BVMessages.getString("ResultCache.msg2"), size / (1024 * 1024)));
+    return size;
+  }
+
+  /**
+   * Remove least recently used results until the cache size is below its
+   * maximum size.
+   */
+  private synchronized void evict() {
+    File[] files = listCacheFiles();
+    long size = 0;
+
+    for (File file : files) {
+      size += file.length();
+    }
+    if (size <= _maxSize) {
+      return;
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (size <= _maxSize) {
+        break;
+      }
+      size -= file.length();
+      file.delete();
+    }
+  }
+
+  private File[] listCacheFiles() {
+    File[] files = _dir.listFiles((dir, name) -> name.endsWith(CACHE_EXT));
+    return files != null ? files : new File[0];
+  }
+
+  /**
+   * Return the cache file of a source file.
+   */
+  private File getCacheFile(File f) {
+    StringBuilder buf = new StringBuilder();
+    byte[] digest;
+
+    try {
+      digest = MessageDigest.getInstance("SHA-1").digest(
+          f.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // should not happen: SHA-1 is always available
+      throw new RuntimeException(e);
+    }
+    for (byte b : digest) {
+      buf.append(String.format("%02x", b));
+    }
+    buf.append(CACHE_EXT);
+    return new File(_dir, buf.toString());
+  }
+
+  /**
+   * Compute the CRC32 of the first and last bytes of a file.
+   */
+  private static long computeHash(File f) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buf = ByteBuffer.allocate(HASH_SIZE);
+    long size;
+
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      size = fc.size();
+      readFully(fc, buf, 0);
+      crc.update(buf.array(), 0, buf.position());
+      if (size > HASH_SIZE) {
+        buf.clear();
+        readFully(fc, buf, Math.max(HASH_SIZE, size - HASH_SIZE));
+        crc.update(buf.array(), 0, buf.position());
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Fill a buffer with the bytes of a file starting at a position.
+   */
+  private static void readFully(FileChannel fc, ByteBuffer buf, long pos) throws IOException {
+    int n;
+
+    while (buf.hasRemaining() && (n = fc.read(buf, pos)) > 0) {
+      pos += n;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.io.File;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+
+/**
+ * A loader of NCBI BLAST legacy XML, XML2 and JSON data files relying on StAX
+ * streaming parsers. It does not need any XML binding framework (Castor,
+ * JAXB) and it avoids creating intermediate binding objects.
+ *
+ * @author Patrick G. Durand
+ */
+public class StaxBlastLoader implements SRLoader {
+  private Boolean _xml2;
+
+  public static final String SYSTEM_NAME = "StaxBlast";
+
+  /**
+   * Constructor. Format of data files is figured out when loading them.
+   */
+  public StaxBlastLoader() {
+    super();
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param xml2 true to load NCBI BLAST XML2 files, false to load NCBI BLAST
+   * legacy XML files. Use this constructor when the format of data files is
+   * already known.
+   */
+  public StaxBlastLoader(boolean xml2) {
+    this();
+    _xml2 = Boolean.valueOf(xml2);
+  }
+
+  @Override
+  public String getSystemName() {
+    return SYSTEM_NAME;
+  }
+
+  @Override
+  public String getName() {
+    return "NCBI XML, XML2 and JSON formatted data (streaming)";
+  }
+
+  @Override
+  public String getVersion() {
+    return "1.0";
+  }
+
+  @Override
+  public boolean canRead(File f) {
+    return LoaderRegistry.getStreamParser(f) != null;
+  }
+
+  @Override
+  public SROutput load(File f) throws SRLoaderException {
+    return load(f, null);
+  }
+
+  /**
+   * Load a data file and report loading progress to a monitor.
+   *
+   * @param f the file to load
+   * @param monitor a load monitor. Can be null.
+   *
+   * @return a fully initialized BLAST result
+   *
+   * @throws SRLoaderException if data file cannot be read or if loading
+   * has been canceled
+   */
+  public SROutput load(File f, LoadMonitor monitor) throws SRLoaderException {
+    BlastStreamParser parser;
+
+    if (_xml2 != null) {
+      parser = _xml2 ? new BlastXml2StreamParser() : new BlastXmlStreamParser();
+    } else {
+      parser = LoaderRegistry.getStreamParser(f);
+    }
+    if (parser == null) {
+      throw new SRLoaderException("not a NCBI BLAST XML file: " + f.getName());
+    }
+    parser.setMonitor(monitor);
+    return parser.load(f);
+  }
+
+  @Override
+  public SROutput[] multipleLoad(File f) throws SRLoaderException {
+    return null;
+  }
+}
@@ -0,0 +1,251 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.loader;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.feature.Feature;
+import bzh.plealog.bioinfo.api.data.feature.FeatureTable;
+import bzh.plealog.bioinfo.api.data.feature.Qualifier;
+import bzh.plealog.bioinfo.api.data.searchresult.SRCTerm;
+import bzh.plealog.bioinfo.api.data.searchresult.SRClassification;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHsp;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.sequence.BankSequenceInfo;
+import bzh.plealog.bioinfo.data.feature.IQualifier;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * A pool of canonical strings used to deduplicate the many identical strings
+ * contained in multi-query BLAST results: the same subject sequence is usually
+ * reported by several queries, so its definition line, accession, organism
+ * and classification terms are repeated as many times.
+ *
+ * The pool is bounded: once full, new strings are kept as is. It is safe to
+ * share a pool between threads loading several files at the same time.
+ *
+ * @author Patrick G. Durand
+ */
+public class StringPool {
+  private ConcurrentHashMap<String, String> _pool;
+  private int _maxSize;
+  private AtomicLong _savedBytes = new AtomicLong();
+  private AtomicLong _duplicates = new AtomicLong();
+
+  //default maximum number of strings kept in a pool
+  public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+  /**
+   * Constructor. Creates a pool using the default maximum size.
+   */
+  public StringPool() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize maximum number of strings kept in this pool
+   */
+  public StringPool(int maxSize) {
+    _maxSize = maxSize;
+    _pool = new ConcurrentHashMap<>(Math.min(maxSize, 4096));
+  }
+
+  /**
+   * Return the canonical representation of a string.
+   *
+   * @param s a string. Can be null.
+   *
+   * @return the string contained in this pool and equal to s, or s itself
+   */
+  public String intern(String s) {
+    String str;
+
+    if (s == null || s.isEmpty()) {
+      return s;
+    }
+    str = _pool.get(s);
+    if (str == null) {
+      if (_pool.size() >= _maxSize) {
+        return s;
+      }
+      str = _pool.putIfAbsent(s, s);
+      if (str == null) {
+        return s;
+      }
+    }
+    if (str != s) {
+      _duplicates.incrementAndGet();
+      _savedBytes.addAndGet(sizeOf(str));
+    }
+    return str;
+  }
+
+  /**
+   * Deduplicate the strings of all iterations of a result.
+   */
+  public void deduplicate(SROutput sro) {
+    Enumeration<SRIteration> iterEnum;
+
+    if (sro == null) {
+      return;
+    }
+    iterEnum = sro.enumerateIteration();
+    while (iterEnum.hasMoreElements()) {
+      deduplicate(iterEnum.nextElement());
+    }
+    deduplicateClassification(sro);
+  }
+
+  /**
+   * Deduplicate the strings of an iteration: subject definitions, accessions,
+   * sequence information and HSP features.
+   */
+  public void deduplicate(SRIteration iteration) {
+    BankSequenceInfo bsi;
+
+    deduplicate(iteration.getIterationQueryFeatureTable());
+    for (SRHit hit : iteration.getHits()) {
+      hit.setHitId(intern(hit.getHitId()));
+      hit.setHitDef(intern(hit.getHitDef()));
+      hit.setHitAccession(intern(hit.getHitAccession()));
+      bsi = hit.getSequenceInfo();
+      if (bsi != null) {
+        bsi.setId(intern(bsi.getId()));
+        bsi.setDescription(intern(bsi.getDescription()));
+        bsi.setMoltype(intern(bsi.getMoltype()));
+        bsi.setTopology(intern(bsi.getTopology()));
+        bsi.setDivision(intern(bsi.getDivision()));
+        bsi.setOrganism(intern(bsi.getOrganism()));
+        bsi.setTaxonomy(intern(bsi.getTaxonomy()));
+      }
+      for (SRHsp hsp : hit.getHsps()) {
+        deduplicate(hsp.getFeatures());
+      }
+    }
+  }
+
+  /**
+   * Deduplicate the term IDs and the term values of the classification of a
+   * result. Since term IDs are the keys of the classification, the latter is
+   * rebuilt.
+   */
+  public void deduplicateClassification(SROutput sro) {
+    SRClassification classif, newClassif;
+    Enumeration<String> ids;
+    List<String> keys;
+    SRCTerm term;
+
+    classif = sro.getClassification();
+    if (classif == null || classif.size() == 0) {
+      return;
+    }
+    keys = new ArrayList<>(classif.size());
+    ids = classif.getTermIDs();
+    while (ids.hasMoreElements()) {
+      keys.add(ids.nextElement());
+    }
+    newClassif = CoreSystemConfigurator.getSRFactory().creationBClassification();
+    for (String id : keys) {
+      term = classif.getTerm(id);
+      if (term != null) {
+        term.setPath(intern(term.getPath()));
+        term.setDescription(intern(term.getDescription()));
+        term.setType(intern(term.getType()));
+      }
+      newClassif.addTerm(intern(id), term);
+    }
+    sro.setClassification(newClassif);
+  }
+
+  /**
+   * Deduplicate feature keys and qualifiers.
+   */
+  private void deduplicate(FeatureTable ft) {
+    Enumeration<Feature> features;
+    Feature feat;
+    Qualifier qual;
+    IQualifier iqual;
+    int i, size;
+
+    if (ft == null) {
+      return;
+    }
+    features = ft.enumFeatures();
+    while (features.hasMoreElements()) {
+      feat = features.nextElement();
+      feat.setKey(intern(feat.getKey()));
+      size = feat.qualifiers();
+      for (i = 0; i < size; i++) {
+        qual = feat.getQualifier(i);
+        if (qual instanceof IQualifier) {
+          iqual = (IQualifier) qual;
+          iqual.setName(intern(iqual.getName()));
+          iqual.setValue(intern(iqual.getValue()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Return an estimate of the memory used by a String: object header and
+   * fields, then its backing byte array, each aligned on 8 bytes.
+   */
+  private static long sizeOf(String s) {
+    return 24 + ((16 + s.length() + 7) & ~7);
+  }
+
+  /**
+   * Return the number of strings contained in this pool.
+   */
+  public int size() {
+    return _pool.size();
+  }
+
+  /**
+   * Return the number of duplicated strings that have been replaced by
+   * their canonical representation.
+   */
+  public long getDuplicates() {
+    return _duplicates.get();
+  }
+
+  /**
+   * Return an estimate of the memory saved by this pool, in bytes.
+   */
+  public long getSavedBytes() {
+    return _savedBytes.get();
+  }
+
+  /**
+   * Log the memory saved by this pool.
+   */
+  public void dumpStats() {
+    EZLogger.info(String.format(BVMessages.getString("StringPool.msg1"),
+        getDuplicates(), size(), getSavedBytes() / (1024d * 1024d)));
+  }
+}
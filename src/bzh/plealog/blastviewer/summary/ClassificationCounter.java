@@ -0,0 +1,194 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.summary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import bzh.plealog.bioinfo.api.data.searchjob.QueryBase;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.io.searchresult.csv.ExtractAnnotation;
+import bzh.plealog.blastviewer.data.IndexedQuery;
+
+/**
+ * Count hits or queries by classification over all results of a query.
+ * Results are scanned in parallel: each task sums counts in an array indexed
+ * by classification, then arrays are merged once. Counts are cached per query
+ * and only the results added since the previous call are scanned; call
+ * invalidate() when annotations have changed.
+ *
+ * @author Patrick G. Durand
+ */
+public class ClassificationCounter {
+  private boolean _hits;
+  private Map<QueryBase, Counts> _cache = new WeakHashMap<>();
+  //index of each classification in the count arrays
+  private Map<String, Integer> _slots = new ConcurrentHashMap<>();
+  private List<String> _classifs = new ArrayList<>();
+
+  //maximum number of results scanned by a task
+  private static final int TASK_SIZE = 256;
+
+  /**
+   * Constructor.
+   *
+   * @param hits true to count hits by classification, false to count queries
+   */
+  public ClassificationCounter(boolean hits) {
+    _hits = hits;
+  }
+
+  /**
+   * Return the counts by classification of a query.
+   *
+   * @param query the query
+   *
+   * @return a map of classification view types (e.g. "GO:F") and counts
+   */
+  public synchronized Map<String, Integer> getCounts(QueryBase query) {
+    Map<String, Integer> data = new HashMap<>();
+    Counts counts = _cache.get(query);
+    int size = query.sequences();
+
+    if (counts == null || counts.size > size) {
+      counts = new Counts();
+      _cache.put(query, counts);
+    }
+    if (counts.size < size) {
+      counts.add(ForkJoinPool.commonPool().invoke(new CountTask(query, counts.size, size)));
+      counts.size = size;
+    }
+    for (int i = 0; i < counts.values.length; i++) {
+      if (counts.values[i] != 0) {
+        data.put(_classifs.get(i), counts.values[i]);
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Discard the counts of a query.
+   *
+   * @param query the query
+   */
+  public synchronized void invalidate(QueryBase query) {
+    _cache.remove(query);
+  }
+
+  /**
+   * Return the index of a classification in the count arrays.
+   */
+  private int getSlot(String classif) {
+    Integer slot = _slots.get(classif);
+
+    if (slot == null) {
+      synchronized (_slots) {
+        slot = _slots.get(classif);
+        if (slot == null) {
+          slot = _classifs.size();
+          _classifs.add(classif);
+          _slots.put(classif, slot);
+        }
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * Add counts to an array, growing it as needed.
+   */
+  private static int[] add(int[] values, int[] counts) {
+    if (values.length < counts.length) {
+      values = Arrays.copyOf(values, counts.length);
+    }
+    for (int i = 0; i < counts.length; i++) {
+      values[i] += counts[i];
+    }
+    return values;
+  }
+
+  /**
+   * Counts of the results of a query.
+   */
+  private static class Counts {
+    private int[] values = new int[0];
+    //number of results already counted
+    private int   size;
+
+    private void add(int[] counts) {
+      values = ClassificationCounter.add(values, counts);
+    }
+  }
+
+  /**
+   * Count a range of results.
+   */
+  private class CountTask extends RecursiveTask<int[]> {
+    private static final long serialVersionUID = 2806398016645604128L;
+
+    private QueryBase _query;
+    private int       _from;
+    private int       _to;
+
+    private CountTask(QueryBase query, int from, int to) {
+      _query = query;
+      _from = from;
+      _to = to;
+    }
+
+    @Override
+    protected int[] compute() {
+      Map<String, Integer> data;
+      SROutput sro;
+      int[] counts;
+      int slot;
+
+      if (_to - _from > TASK_SIZE) {
+        int mid = (_from + _to) >>> 1;
+        CountTask task = new CountTask(_query, _from, mid);
+        task.fork();
+        counts = new CountTask(_query, mid, _to).compute();
+        return add(counts, task.join());
+      }
+      counts = new int[_slots.size()];
+      for (int i = _from; i < _to; i++) {
+        //do not parse results of an indexed file that cannot contain classification data
+        if (_query instanceof IndexedQuery && !((IndexedQuery) _query).isAnnotated(i)) {
+          continue;
+        }
+        sro = _query.getResult(i);
+        data = _hits ? ExtractAnnotation.countHitsByClassification(sro)
+            : ExtractAnnotation.countQueriesByClassification(sro);
+        for (Map.Entry<String, Integer> entry : data.entrySet()) {
+          slot = getSlot(entry.getKey());
+          if (slot >= counts.length) {
+            counts = Arrays.copyOf(counts, slot + 1);
+          }
+          counts[slot] += entry.getValue();
+        }
+      }
+      return counts;
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.summary;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bzh.plealog.bioinfo.api.data.searchjob.SJFileSummary;
+import bzh.plealog.bioinfo.api.data.searchjob.SJTermSummary;
+import bzh.plealog.bioinfo.ui.blast.core.QueryBaseUI;
+import bzh.plealog.bioinfo.ui.blast.resulttable.SummaryTableModel;
+import bzh.plealog.bioinfo.ui.util.ProgressTinyDialog;
+import bzh.plealog.bioinfo.ui.util.JKTableModelSorter;
+
+/**
+ * A SummaryTableModel relying on precomputed bitsets to filter rows. Queries
+ * with hits and queries annotated with each classification type are
+ * computed once when the query is set, then switching the view type or the
+ * classification filter only combines bitsets and refills reusable row index
+ * mappings.
+ *
+ * The parent model always displays all queries: this model maps its own rows
+ * onto the rows of the parent, so that sorting is still handled by the latter.
+ *
+ * @author Patrick G. Durand
+ */
+public class FilteredSummaryTableModel extends SummaryTableModel {
+  private static final long serialVersionUID = 4469306818813813706L;
+
+  private QueryBaseUI         _query;
+  private int                 _computed;
+  private BitSet              _hits = new BitSet();
+  private Map<String, BitSet> _classifs = new HashMap<>();
+  private VIEW_TYPE           _viewType = VIEW_TYPE.ALL;
+  private List<String>        _classifFilter;
+  private boolean             _sorted;
+  //summary index of each parent row, only used when data are sorted
+  private int[]               _order = new int[0];
+  //parent row of each row of this model
+  private int[]               _rowToBase = new int[0];
+  //row of each summary, -1 if hidden
+  private int[]               _summaryToRow = new int[0];
+  private boolean             _mapped;
+  //number of rows of the parent model
+  private int                 _size;
+  private volatile int        _rows = -1;
+
+  /**
+   * Constructor.
+   */
+  public FilteredSummaryTableModel() {
+    super();
+  }
+
+  @Override
+  public void setQuery(QueryBaseUI query) {
+    synchronized (this) {
+      if (query != _query) {
+        _query = query;
+        _computed = 0;
+        _hits.clear();
+        _classifs.clear();
+      }
+      // results may have been added since last call
+      if (query != null) {
+        for (int i = _computed; i < query.sequences(); i++) {
+          if (query.hasHits(i)) {
+            _hits.set(i);
+          }
+          updateClassifications(i);
+        }
+        _computed = query.sequences();
+      }
+      _sorted = false;
+      _rows = -1;
+    }
+    super.setQuery(query);
+  }
+
+  @Override
+  public void clear() {
+    synchronized (this) {
+      _query = null;
+      _computed = 0;
+      _hits.clear();
+      _classifs.clear();
+      _sorted = false;
+      _rows = -1;
+    }
+    super.clear();
+  }
+
+  /**
+   * Update the classification bitsets of some summaries. To be called after
+   * their classification data has been modified, e.g. when importing IPRscan
+   * predictions.
+   *
+   * @param summaries indices of the modified summaries
+   */
+  public void updateClassifications(int[] summaries) {
+    synchronized (this) {
+      for (int idx : summaries) {
+        if (idx < _computed) {
+          for (BitSet bits : _classifs.values()) {
+            bits.clear(idx);
+          }
+          updateClassifications(idx);
+        }
+      }
+      _rows = -1;
+    }
+    if (_classifFilter != null) {
+      fireTableDataChanged();
+    }
+  }
+
+  /**
+   * Set the classification types of a summary.
+   */
+  private void updateClassifications(int idx) {
+    SJFileSummary summary = _query.getSummary(idx);
+
+    if (summary == null) {
+      return;
+    }
+    updateClassifications(idx, summary.getHitClassificationForView());
+    updateClassifications(idx, summary.getQueryClassificationForView());
+  }
+
+  private void updateClassifications(int idx, List<SJTermSummary> terms) {
+    if (terms == null) {
+      return;
+    }
+    for (SJTermSummary term : terms) {
+      _classifs.computeIfAbsent(term.getViewType(), k -> new BitSet()).set(idx);
+    }
+  }
+
+  @Override
+  public void setViewType(VIEW_TYPE viewType) {
+    _viewType = viewType;
+    _rows = -1;
+    fireTableDataChanged();
+  }
+
+  /**
+   * Only display queries annotated with some classification types.
+   *
+   * @param classifs list of classification view types, e.g. "GO:F". Types
+   * that are not displayed in summaries are ignored. Pass null to display all
+   * queries.
+   */
+  public void setClassificationFilter(List<String> classifs) {
+    _classifFilter = classifs;
+    _rows = -1;
+    fireTableDataChanged();
+  }
+
+  /**
+   * Return the classification types used to filter queries. Returns null if
+   * queries are not filtered.
+   */
+  public List<String> getClassificationFilter() {
+    return _classifFilter;
+  }
+
+  @Override
+  protected void sortData(ProgressTinyDialog monitor, boolean ascending,
+      JKTableModelSorter<?> sorter) {
+    synchronized (this) {
+      _sorted = true;
+      _rows = -1;
+    }
+    super.sortData(monitor, ascending, sorter);
+  }
+
+  /**
+   * Return the rows to display, as a set of summary indices. Returns null if
+   * all rows are displayed.
+   */
+  private BitSet getVisibleSummaries(int size) {
+    BitSet visible = null, bits;
+
+    if (VIEW_TYPE.HITS_ONLY.equals(_viewType)) {
+      visible = (BitSet) _hits.clone();
+    } else if (VIEW_TYPE.NO_HITS_ONLY.equals(_viewType)) {
+      visible = new BitSet(size);
+      visible.set(0, size);
+      visible.andNot(_hits);
+    }
+    if (_classifFilter != null) {
+      bits = null;
+      for (String classif : _classifFilter) {
+        if (_classifs.containsKey(classif)) {
+          if (bits == null) {
+            bits = new BitSet(size);
+          }
+          bits.or(_classifs.get(classif));
+        }
+      }
+      if (bits != null) {
+        if (visible == null) {
+          visible = bits;
+        } else {
+          visible.and(bits);
+        }
+      }
+    }
+    return visible;
+  }
+
+  /**
+   * Prepare the mappings between rows of this model, rows of the parent model
+   * and summaries.
+   */
+  private synchronized void prepareRows() {
+    BitSet visible;
+    int i, idx, size, rows = 0;
+
+    if (_rows != -1) {
+      return;
+    }
+    size = super.getRowCount();
+    _size = size;
+    visible = getVisibleSummaries(size);
+    _mapped = (visible != null || _sorted);
+    if (!_mapped) {
+      _rows = size;
+      return;
+    }
+    if (_summaryToRow.length < size) {
+      _summaryToRow = new int[size];
+      _rowToBase = new int[size];
+      _order = new int[size];
+    }
+    for (i = 0; i < size; i++) {
+      _summaryToRow[i] = -1;
+    }
+    if (!_sorted) {
+      // parent rows are summaries
+      for (idx = visible.nextSetBit(0); idx >= 0 && idx < size; idx = visible.nextSetBit(idx + 1)) {
+        _rowToBase[rows] = idx;
+        _summaryToRow[idx] = rows++;
+      }
+    } else {
+      for (i = 0; i < size; i++) {
+        _order[i] = super.convertTableRowToSummaryIdx(i);
+      }
+      for (i = 0; i < size; i++) {
+        idx = _order[i];
+        if (visible == null || visible.get(idx)) {
+          _rowToBase[rows] = i;
+          _summaryToRow[idx] = rows++;
+        }
+      }
+    }
+    _rows = rows;
+  }
+
+  @Override
+  public int getRowCount() {
+    prepareRows();
+    return _rows;
+  }
+
+  @Override
+  public Object getValueAt(int row, int col) {
+    prepareRows();
+    return super.getValueAt(_mapped ? _rowToBase[row] : row, col);
+  }
+
+  @Override
+  public int convertTableRowToSummaryIdx(int row) {
+    prepareRows();
+    if (!_mapped) {
+      return row;
+    }
+    return _sorted ? _order[_rowToBase[row]] : _rowToBase[row];
+  }
+
+  @Override
+  public int convertSummaryIdxToTableRow(int idx) {
+    prepareRows();
+    if (idx < 0 || idx >= _size) {
+      return -1;
+    }
+    return _mapped ? _summaryToRow[idx] : idx;
+  }
+}
@@ -27,14 +27,10 @@ import java.awt.event.ActionEvent;
 import java.awt.font.TextAttribute;
 import java.text.NumberFormat;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
@@ -77,7 +73,6 @@ import bzh.plealog.bioinfo.api.data.searchjob.QueryBase;
 import bzh.plealog.bioinfo.api.data.searchjob.SJFileSummary;
 import bzh.plealog.bioinfo.api.data.searchjob.SJTermSummary;
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
-import bzh.plealog.bioinfo.io.searchresult.csv.ExtractAnnotation;
 import bzh.plealog.bioinfo.ui.blast.resulttable.SummaryTableModel;
 import bzh.plealog.bioinfo.ui.util.Selection;
 import bzh.plealog.blastviewer.BlastSummaryViewerController;
@@ -423,6 +418,15 @@ public class QueryOverviewPanel extends JPanel {
       }
     }
 	}
+	/**
+	 * Update the result panel when classification data of the current query
+	 * have changed, e.g. after an IPRscan import.
+	 */
+	public void updateAnnotations() {
+	  this.hClassificationDisplayer.invalidate();
+	  this.qClassificationDisplayer.invalidate();
+	  updateContent();
+	}
 	/**
 	 * Update the result panel looking at the current query's state 
 	 */
@@ -537,10 +541,10 @@ public class QueryOverviewPanel extends JPanel {
    * */
   private abstract class ClassificationsDisplayer {
     private ChartPanel classificationChart;
+    private ClassificationCounter counter;
     
-    public abstract Map<String, Integer> getData(SROutput sro);
-    
-    public ClassificationsDisplayer() {
+    public ClassificationsDisplayer(ClassificationCounter counter) {
+      this.counter = counter;
       classificationChart = new ChartPanel(
           ChartFactory.createBarChart(
               null, "", "", 
@@ -574,25 +578,10 @@ public class QueryOverviewPanel extends JPanel {
       return classificationChart;
     }
     private Map<String, Integer> collectCountsByClassifications(){
-      Map<String, Integer> data, sroData; 
-
-      data = new Hashtable<>();
-      for(int i=0;i<QueryOverviewPanel.this.currentQuery.sequences();i++) {
-        sroData = getData(QueryOverviewPanel.this.currentQuery.getResult(i));
-        //from: https://stackoverflow.com/questions/23038673/merging-two-mapstring-integer-with-java-8-stream-api
-        data = Stream.of(data, sroData)
-            .map(Map::entrySet)
-            .flatMap(Collection::stream)
-            .collect(
-                Collectors.toMap(
-                    Map.Entry::getKey,
-                    Map.Entry::getValue,
-                    Integer::sum
-                    )
-                );
-      }
-      return data;
-
+      return counter.getCounts(QueryOverviewPanel.this.currentQuery);
+    }
+    public void invalidate() {
+      counter.invalidate(QueryOverviewPanel.this.currentQuery);
     }
     public void updateContent() {
       DefaultCategoryDataset sequencesDataSet = new DefaultCategoryDataset();
@@ -656,13 +645,13 @@ public class QueryOverviewPanel extends JPanel {
     }
   }
   private class HitClassificationsDisplayer extends ClassificationsDisplayer {
-    public Map<String, Integer> getData(SROutput sro){
-      return ExtractAnnotation.countHitsByClassification(sro);
+    public HitClassificationsDisplayer() {
+      super(new ClassificationCounter(true));
     }
   }
   private class QueryClassificationsDisplayer extends ClassificationsDisplayer {
-    public Map<String, Integer> getData(SROutput sro){
-      return ExtractAnnotation.countQueriesByClassification(sro);
+    public QueryClassificationsDisplayer() {
+      super(new ClassificationCounter(false));
     }
   }
   
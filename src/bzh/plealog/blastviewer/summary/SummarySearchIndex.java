@@ -0,0 +1,691 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.summary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.data.searchjob.QueryBase;
+import bzh.plealog.bioinfo.ui.blast.resulttable.SummaryTableModel;
+import bzh.plealog.bioinfo.ui.util.TableHeaderColumnItem;
+import bzh.plealog.bioinfo.util.ExportMonitor;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Inverted index of the columns of a summary table: query IDs and definitions,
+ * best hit definitions, organisms, classification terms and all other values.
+ * Each column has its own trigram postings, i.e. for each three-character
+ * sequence, the list of summary rows containing it. Values are indexed as
+ * they are displayed by SummaryTableModel, in lower case.
+ *
+ * Plain text and prefix searches (e.g. "kinase", "^ensp0") are answered from
+ * the postings; a regular expression search only checks the rows containing
+ * the literal sequences it requires. Texts shorter than three
+ * characters and rows added after the index was built are checked one by one.
+ *
+ * @author Patrick G. Durand
+ */
+public class SummarySearchIndex {
+  private SummaryTableModel _model;
+  private QueryBase         _query;
+  private int[]             _columns;
+  private IntMap[]          _postings;
+  private List<String>      _classifs;
+  private volatile int      _rows = -1;
+  private volatile boolean  _canceled;
+
+  //character used to index the beginning of a value
+  private static final char START = '\u0001';
+  //maximum number of rows checked by a search task
+  private static final int TASK_SIZE = 1024;
+  //number of rows checked between two progress reports
+  private static final int PROGRESS_STEPS = 128;
+
+  /**
+   * Constructor.
+   *
+   * @param model the model providing values as they are displayed
+   * @param query the query displayed by model
+   */
+  public SummarySearchIndex(SummaryTableModel model, QueryBase query) {
+    _model = model;
+    _query = query;
+  }
+
+  /**
+   * Build the index in a background thread.
+   */
+  public void start() {
+    Thread t = new Thread(() -> build(), "SummarySearchIndex");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  /**
+   * Stop building the index. It cannot be used anymore.
+   */
+  public void cancel() {
+    _canceled = true;
+  }
+
+  /**
+   * Figures out whether the index has been built.
+   */
+  public boolean isReady() {
+    return _rows != -1;
+  }
+
+  /**
+   * Build the index.
+   */
+  public void build() {
+    long tim = System.currentTimeMillis();
+    TableHeaderColumnItem[] headers = _model.getReferenceColumnHeaders();
+    IntMap[] postings = new IntMap[headers.length];
+    int[] columns = new int[headers.length];
+    List<String> classifs;
+    Object value;
+    int i, j, rows;
+
+    rows = _query.sequences();
+    for (j = 0; j < headers.length; j++) {
+      columns[j] = headers[j].getIID();
+    }
+    classifs = _model.getClassificationsToView();
+    if (classifs != null) {
+      classifs = new ArrayList<>(classifs);
+    }
+    for (j = 0; j < postings.length; j++) {
+      postings[j] = new IntMap();
+    }
+    for (i = 0; i < rows; i++) {
+      if (_canceled) {
+        return;
+      }
+      for (j = 0; j < postings.length; j++) {
+        value = getValue(i, columns[j]);
+        if (value != null) {
+          index(postings[j], i, value.toString().toLowerCase());
+        }
+      }
+    }
+    for (j = 0; j < postings.length; j++) {
+      postings[j].trim();
+    }
+    _columns = columns;
+    _postings = postings;
+    _classifs = classifs;
+    _rows = rows;
+    EZLogger.info(String.format(BVMessages.getString("SummarySearchIndex.msg1"), 
+        rows, System.currentTimeMillis() - tim));
+  }
+
+  /**
+   * Search for rows matching a text. Rows are checked in parallel.
+   *
+   * @param text a plain text, a prefix (i.e. a text starting with ^) or a
+   * regular expression. Search is not case sensitive.
+   * @param columns identifiers of the columns to search
+   * @param monitor a monitor to report progress and to cancel search. Can be
+   * null. When search is cancelled, rows found so far are returned.
+   *
+   * @return indices of matching summaries, in ascending order
+   */
+  public int[] search(String text, int[] columns, ExportMonitor monitor) {
+    Search search = new Search(new Criterion(text.toLowerCase()), columns, monitor);
+    int[] rowsToCheck;
+    BitSet bits;
+    boolean scanAll = false;
+    int j, rows;
+
+    rows = _query.sequences();
+    search.indexed = isReady() ? Math.min(_rows, rows) : 0;
+    for (j = 0; j < columns.length; j++) {
+      search.candidates[j] = getCandidates(columns[j], search.crit);
+      scanAll |= (search.candidates[j] == null);
+    }
+    if (scanAll) {
+      rowsToCheck = IntStream.range(0, rows).toArray();
+    } else {
+      // only check rows having candidate values and non indexed rows
+      bits = new BitSet(rows);
+      for (j = 0; j < columns.length; j++) {
+        bits.or(search.candidates[j]);
+      }
+      bits.set(search.indexed, rows);
+      rowsToCheck = bits.stream().toArray();
+    }
+    if (monitor != null) {
+      monitor.setMaxSteps(rows);
+      monitor.addToProgress(rows - rowsToCheck.length);
+    }
+    return ForkJoinPool.commonPool().invoke(
+        new SearchTask(search, rowsToCheck, 0, rowsToCheck.length));
+  }
+
+  /**
+   * Data shared by the tasks of a search.
+   */
+  private class Search {
+    private Criterion     crit;
+    private int[]         columns;
+    private BitSet[]      candidates;
+    private ExportMonitor monitor;
+    private int           indexed;
+    private volatile boolean stopped;
+
+    private Search(Criterion crit, int[] columns, ExportMonitor monitor) {
+      this.crit = crit;
+      this.columns = columns;
+      this.monitor = monitor;
+      this.candidates = new BitSet[columns.length];
+    }
+
+    /**
+     * Check whether a row matches the search criterion.
+     */
+    private boolean check(int row) {
+      Object value;
+
+      for (int j = 0; j < columns.length; j++) {
+        if (row < indexed && candidates[j] != null && !candidates[j].get(row)) {
+          continue;
+        }
+        value = getValue(row, columns[j]);
+        if (value != null && crit.matches(value.toString().toLowerCase())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Report progress and check for cancellation.
+     */
+    private void progress(int steps) {
+      if (monitor == null) {
+        return;
+      }
+      synchronized (monitor) {
+        monitor.addToProgress(steps);
+        if (monitor.stopProcessing()) {
+          stopped = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Check a range of rows.
+   */
+  private class SearchTask extends RecursiveTask<int[]> {
+    private static final long serialVersionUID = -5306223651096925186L;
+
+    private Search _search;
+    private int[]  _rows;
+    private int    _from;
+    private int    _to;
+
+    private SearchTask(Search search, int[] rows, int from, int to) {
+      _search = search;
+      _rows = rows;
+      _from = from;
+      _to = to;
+    }
+
+    @Override
+    protected int[] compute() {
+      int[] found, left, right;
+      int i, n = 0, steps = 0;
+
+      if (_to - _from > TASK_SIZE) {
+        int mid = (_from + _to) >>> 1;
+        SearchTask task = new SearchTask(_search, _rows, _from, mid);
+        task.fork();
+        right = new SearchTask(_search, _rows, mid, _to).compute();
+        left = task.join();
+        found = Arrays.copyOf(left, left.length + right.length);
+        System.arraycopy(right, 0, found, left.length, right.length);
+        return found;
+      }
+      found = new int[_to - _from];
+      for (i = _from; i < _to && !_search.stopped; i++) {
+        if (_search.check(_rows[i])) {
+          found[n++] = _rows[i];
+        }
+        if (++steps == PROGRESS_STEPS) {
+          _search.progress(steps);
+          steps = 0;
+        }
+      }
+      _search.progress(steps);
+      return Arrays.copyOf(found, n);
+    }
+  }
+
+  /**
+   * Return the value of a cell.
+   */
+  private Object getValue(int row, int colId) {
+    return _model.getValueItem(row, colId, _query.getSummary(row), null, _query);
+  }
+
+  /**
+   * Return the indexed rows that may match a criterion for a column.
+   * 
+   * @return null if the index cannot be used to answer
+   */
+  private BitSet getCandidates(int colId, Criterion crit) {
+    BitSet candidates;
+    int[] rows;
+    int idx = -1;
+
+    if (!isReady() || crit.literals.isEmpty()) {
+      return null;
+    }
+    for (int j = 0; j < _columns.length; j++) {
+      if (_columns[j] == colId) {
+        idx = j;
+        break;
+      }
+    }
+    if (idx == -1) {
+      return null;
+    }
+    if ((colId == SummaryTableModel.RES_HITCLASSIFICATION 
+        || colId == SummaryTableModel.RES_QUERYCLASSIFICATION)
+        && !Objects.equals(_classifs, _model.getClassificationsToView())) {
+      // displayed classifications have changed since the index was built
+      return null;
+    }
+    rows = intersect(_postings[idx], crit.literals, crit.prefix);
+    if (rows == null) {
+      return null;
+    }
+    candidates = new BitSet(_rows);
+    for (int row : rows) {
+      candidates.set(row);
+    }
+    return candidates;
+  }
+
+  /**
+   * Return the rows containing all trigrams of some texts.
+   * 
+   * @param prefix true if the first text starts the values
+   * 
+   * @return null if texts are too short to use trigrams
+   */
+  private int[] intersect(IntMap map, List<String> texts, boolean prefix) {
+    ArrayList<Postings> lists = new ArrayList<>();
+    String text = texts.get(0);
+    Postings p;
+    int[] rows;
+    int i;
+
+    if (prefix && text.length() >= 2) {
+      p = map.get(key(START, text.charAt(0), text.charAt(1)));
+      if (p == null) {
+        return new int[0];
+      }
+      lists.add(p);
+    }
+    for (String t : texts) {
+      for (i = 0; i + 3 <= t.length(); i++) {
+        p = map.get(key(t.charAt(i), t.charAt(i + 1), t.charAt(i + 2)));
+        if (p == null) {
+          return new int[0];
+        }
+        lists.add(p);
+      }
+    }
+    if (lists.isEmpty()) {
+      return null;
+    }
+    // start with the shortest list
+    lists.sort((a, b) -> Integer.compare(a.count, b.count));
+    rows = lists.get(0).toArray();
+    for (i = 1; i < lists.size() && rows.length != 0; i++) {
+      rows = lists.get(i).retain(rows);
+    }
+    return rows;
+  }
+
+  /**
+   * Add the trigrams of a value to the postings of a column.
+   */
+  private static void index(IntMap map, int row, String value) {
+    int i, len = value.length();
+
+    if (len >= 2) {
+      map.add(key(START, value.charAt(0), value.charAt(1)), row);
+    }
+    for (i = 0; i + 3 <= len; i++) {
+      map.add(key(value.charAt(i), value.charAt(i + 1), value.charAt(i + 2)), row);
+    }
+  }
+
+  /**
+   * Return the key of a trigram. It is unique for ISO-8859-1 characters; other
+   * characters may share keys, which only adds candidate rows.
+   */
+  private static int key(char c1, char c2, char c3) {
+    return (c1 << 16) ^ (c2 << 8) ^ c3;
+  }
+
+  /**
+   * A search criterion: a regular expression and the literal texts that a
+   * matching value must contain, if any.
+   */
+  private static class Criterion {
+    private Pattern _pattern;
+    // literal texts that a value must contain
+    private List<String> literals = new ArrayList<>();
+    // true if the first literal has to start the value
+    private boolean prefix;
+    // true if the criterion is its first literal itself
+    private boolean plain;
+
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    private Criterion(String text) {
+      _pattern = Pattern.compile(text);
+      if (isPlain(text)) {
+        literals.add(text);
+        plain = true;
+      } else if (text.startsWith("^") && isPlain(text.substring(1))) {
+        literals.add(text.substring(1));
+        prefix = plain = true;
+      } else {
+        requiredLiterals(text, literals);
+      }
+    }
+
+    private boolean matches(String value) {
+      if (plain) {
+        return prefix ? value.startsWith(literals.get(0)) : value.contains(literals.get(0));
+      }
+      return _pattern.matcher(value).find();
+    }
+
+    private static boolean isPlain(String text) {
+      for (int i = 0; i < text.length(); i++) {
+        if (META.indexOf(text.charAt(i)) != -1) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Collect the sequences of characters that any match of a regular
+     * expression contains. Only top level sequences are considered, and
+     * expressions containing alternatives or quotes are ignored.
+     */
+    private static void requiredLiterals(String regex, List<String> literals) {
+      StringBuilder run = new StringBuilder();
+      boolean literal = false;
+      int i = 0, depth = 0, len = regex.length();
+      char c;
+
+      if (regex.indexOf('|') != -1 || regex.contains("\\Q")) {
+        return;
+      }
+      while (i < len) {
+        c = regex.charAt(i);
+        if (c == '\\') {
+          if (i + 1 < len && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+            // escaped character
+            if (depth == 0) {
+              run.append(regex.charAt(i + 1));
+              literal = true;
+            }
+          } else {
+            flush(run, literals);
+            literal = false;
+          }
+          i += 2;
+          continue;
+        }
+        if (c == '[') {
+          // skip character class
+          flush(run, literals);
+          literal = false;
+          i++;
+          if (i < len && regex.charAt(i) == '^') {
+            i++;
+          }
+          if (i < len && regex.charAt(i) == ']') {
+            i++;
+          }
+          while (i < len && regex.charAt(i) != ']') {
+            if (regex.charAt(i) == '\\' || regex.charAt(i) == '[') {
+              // nested classes or escapes: give up
+              literals.clear();
+              return;
+            }
+            i++;
+          }
+          i++;
+          continue;
+        }
+        switch (c) {
+        case '(':
+          depth++;
+          flush(run, literals);
+          literal = false;
+          break;
+        case ')':
+          depth--;
+          literal = false;
+          break;
+        case '?':
+        case '*':
+        case '{':
+          // previous character may be absent
+          if (literal && run.length() != 0) {
+            run.setLength(run.length() - 1);
+          }
+          flush(run, literals);
+          literal = false;
+          if (c == '{') {
+            i = regex.indexOf('}', i);
+            if (i == -1) {
+              literals.clear();
+              return;
+            }
+          }
+          break;
+        case '+':
+        case '.':
+        case '^':
+        case '$':
+          flush(run, literals);
+          literal = false;
+          break;
+        default:
+          if (depth == 0) {
+            run.append(c);
+            literal = true;
+          }
+        }
+        i++;
+      }
+      flush(run, literals);
+    }
+
+    /**
+     * Add a sequence of characters to a list and reset it.
+     */
+    private static void flush(StringBuilder run, List<String> literals) {
+      if (run.length() != 0) {
+        literals.add(run.toString());
+      }
+      run.setLength(0);
+    }
+  }
+
+  /**
+   * An ordered list of rows. Rows are stored as variable length gaps.
+   */
+  private static class Postings {
+    private byte[] data = new byte[4];
+    private int    size;
+    private int    last = -1;
+    private int    count;
+
+    private void add(int row) {
+      int gap;
+
+      if (row == last) {
+        return;
+      }
+      gap = row - last - 1;
+      last = row;
+      count++;
+      if (size + 5 > data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+      while ((gap & ~0x7F) != 0) {
+        data[size++] = (byte) ((gap & 0x7F) | 0x80);
+        gap >>>= 7;
+      }
+      data[size++] = (byte) gap;
+    }
+
+    private void trim() {
+      data = Arrays.copyOf(data, size);
+    }
+
+    private int[] toArray() {
+      int[] rows = new int[count];
+      int pos = 0, row = -1, n = 0, gap, shift;
+      byte b;
+
+      while (pos < size) {
+        gap = shift = 0;
+        do {
+          b = data[pos++];
+          gap |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        row += gap + 1;
+        rows[n++] = row;
+      }
+      return rows;
+    }
+
+    /**
+     * Return the rows of a list that are also part of this list.
+     */
+    private int[] retain(int[] rows) {
+      int[] result = new int[rows.length];
+      int pos = 0, row = -1, n = 0, i = 0, gap, shift;
+      byte b;
+
+      while (pos < size && i < rows.length) {
+        gap = shift = 0;
+        do {
+          b = data[pos++];
+          gap |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        row += gap + 1;
+        while (i < rows.length && rows[i] < row) {
+          i++;
+        }
+        if (i < rows.length && rows[i] == row) {
+          result[n++] = row;
+          i++;
+        }
+      }
+      return Arrays.copyOf(result, n);
+    }
+  }
+
+  /**
+   * An open addressing hash map of Postings with int keys.
+   */
+  private static class IntMap {
+    private int[]      keys = new int[1024];
+    private Postings[] values = new Postings[1024];
+    private int        size;
+
+    private int slot(int key) {
+      int mask = keys.length - 1;
+      int h = key * 0x9E3779B9;
+      int i = (h ^ (h >>> 16)) & mask;
+
+      while (values[i] != null && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    private Postings get(int key) {
+      return values[slot(key)];
+    }
+
+    private void add(int key, int row) {
+      int i = slot(key);
+
+      if (values[i] == null) {
+        if (size * 2 >= keys.length) {
+          grow();
+          i = slot(key);
+        }
+        keys[i] = key;
+        values[i] = new Postings();
+        size++;
+      }
+      values[i].add(row);
+    }
+
+    private void grow() {
+      int[] oldKeys = keys;
+      Postings[] oldValues = values;
+
+      keys = new int[oldKeys.length * 2];
+      values = new Postings[oldKeys.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != null) {
+          int j = slot(oldKeys[i]);
+          keys[j] = oldKeys[i];
+          values[j] = oldValues[i];
+        }
+      }
+    }
+
+    private void trim() {
+      for (Postings p : values) {
+        if (p != null) {
+          p.trim();
+        }
+      }
+    }
+  }
+}
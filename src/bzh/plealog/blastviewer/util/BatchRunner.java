@@ -0,0 +1,178 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+import bzh.plealog.bioinfo.api.filter.BFilter;
+import bzh.plealog.blastviewer.actions.api.BVGenericSaveUtils;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+import bzh.plealog.blastviewer.loader.StringPool;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Utility class to process BLAST data files without any user interface:
+ * files are loaded, optionally filtered, then exported. Files are processed
+ * in parallel, so that loading a file overlaps with filtering and exporting
+ * other ones.
+ * 
+ * This class does not rely on EZEnvironment nor on Swing, so it can be used
+ * on computers without any display.
+ * 
+ * @author Patrick G. Durand
+ */
+public class BatchRunner {
+  private File[]  _files;
+  private BFilter _filter;
+  private String  _format;
+  private File    _outDir;
+  private int     _threads;
+
+  private static final double MB = 1024d * 1024d;
+  // added to exported file names that would otherwise replace source files
+  private static final String OUT_SUFFIX = ".bv";
+
+  /**
+   * Constructor.
+   * 
+   * @param files the files to process
+   * @param filter a filter to apply on each file. Can be null.
+   * @param format format of exported files: one of csv, zml or xml.
+   * @param outDir directory where to create exported files. If null, exported
+   * files are created next to their source files.
+   * @param threads number of files processed at the same time
+   */
+  public BatchRunner(File[] files, BFilter filter, String format, File outDir, int threads) {
+    _files = files;
+    _filter = filter;
+    _format = format;
+    _outDir = outDir;
+    _threads = Math.max(1, threads);
+  }
+
+  /**
+   * Process all files.
+   * 
+   * @return the number of files that could not be processed
+   */
+  public int run() {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(_threads, _files.length));
+    List<Future<Boolean>> results = new ArrayList<>();
+    long tim = System.currentTimeMillis(), bytes = 0;
+    int failed = 0;
+
+    for (File f : _files) {
+      results.add(pool.submit(() -> process(f)));
+    }
+    pool.shutdown();
+    for (int i = 0; i < _files.length; i++) {
+      try {
+        if (!results.get(i).get()) {
+          failed++;
+        }
+      } catch (ExecutionException e) {
+        EZLogger.warn(BVMessages.getString("OpenFileAction.err")
+            + _files[i].getAbsolutePath() + ": " + e.getCause());
+        failed++;
+      } catch (InterruptedException e) {
+        pool.shutdownNow();
+        Thread.currentThread().interrupt();
+        return _files.length - i + failed;
+      }
+      bytes += _files[i].length();
+    }
+    tim = Math.max(1, System.currentTimeMillis() - tim);
+    EZLogger.info(String.format(BVMessages.getString("BatchRunner.msg2"),
+        _files.length, tim, failed, bytes / MB * 1000d / tim));
+    return failed;
+  }
+
+  /**
+   * Return the file to create when exporting a data file. A source file is
+   * never overwritten: when the exported file would replace it, a ".bv"
+   * suffix is added to the exported file name.
+   */
+  private File getOutputFile(File f) throws IOException {
+    String name = f.getName();
+    int pos = name.lastIndexOf('.');
+    File dir = _outDir != null ? _outDir : f.getAbsoluteFile().getParentFile();
+    File out;
+
+    if (pos > 0) {
+      name = name.substring(0, pos);
+    }
+    out = new File(dir, name + "." + _format);
+    if (out.getCanonicalFile().equals(f.getCanonicalFile())) {
+      out = new File(dir, name + OUT_SUFFIX + "." + _format);
+    }
+    return out;
+  }
+
+  /**
+   * Load, filter and export a single file.
+   * 
+   * @return true if the file has been processed, false otherwise.
+   */
+  private boolean process(File f) throws Exception {
+    long t0 = System.currentTimeMillis(), t1, t2, t3;
+    SRLoader loader = LoaderRegistry.getLoader(f);
+    SROutput sro;
+    BFilter filter;
+    File out;
+    int queries;
+
+    if (loader == null) {
+      EZLogger.warn(BVMessages.getString("OpenFileAction.err") + f.getAbsolutePath());
+      return false;
+    }
+    sro = loader.load(f);
+    if (sro == null) {
+      EZLogger.warn(BVMessages.getString("OpenFileAction.err") + f.getAbsolutePath());
+      return false;
+    }
+    new StringPool().deduplicate(sro);
+    queries = sro.countIteration();
+    t1 = System.currentTimeMillis();
+    if (_filter != null) {
+      // filters keep some state while running: use one per thread
+      filter = (BFilter) _filter.clone();
+      sro = filter.execute(sro);
+    }
+    t2 = System.currentTimeMillis();
+    if (sro == null || sro.isEmpty()) {
+      EZLogger.info(String.format(BVMessages.getString("BatchRunner.msg3"), f.getName()));
+      return true;
+    }
+    out = getOutputFile(f);
+    new BVGenericSaveUtils(sro).save(out);
+    t3 = System.currentTimeMillis();
+    EZLogger.info(String.format(BVMessages.getString("BatchRunner.msg1"), f.getName(),
+        queries, t1 - t0, t2 - t1, t3 - t2, out.getAbsolutePath()));
+    return true;
+  }
+}
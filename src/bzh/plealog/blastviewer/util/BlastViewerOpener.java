@@ -19,21 +19,36 @@ package bzh.plealog.blastviewer.util;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
+import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.InternalFrameAdapter;
+import javax.swing.event.InternalFrameEvent;
 
 import com.plealog.genericapp.api.EZEnvironment;
+import com.plealog.genericapp.api.log.EZLogger;
 import com.plealog.genericapp.ui.desktop.GDesktopPane;
 import com.plealog.genericapp.ui.desktop.GInternalFrame;
 
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
 import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
-import bzh.plealog.bioinfo.io.searchresult.SerializerSystemFactory;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.bioinfo.ui.blast.config.ConfigManager;
 import bzh.plealog.blastviewer.BlastQueryViewer;
 import bzh.plealog.blastviewer.BlastViewerPanel;
+import bzh.plealog.blastviewer.config.directory.DirManager;
+import bzh.plealog.blastviewer.loader.LoadMonitor;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+import bzh.plealog.blastviewer.loader.ResultCache;
+import bzh.plealog.blastviewer.loader.StaxBlastLoader;
+import bzh.plealog.blastviewer.loader.StringPool;
+import bzh.plealog.blastviewer.resources.BVMessages;
 
 /**
  * Utility class to enable interaction with the GDesktopPane.
@@ -43,11 +58,20 @@ import bzh.plealog.blastviewer.BlastViewerPanel;
 public class BlastViewerOpener {
   private static GDesktopPane _desktop;
   private static JLabel       _helperField;
+  private static ResultCache  _resultCache;
+  private static FetchCache   _fetchCache;
+  private static JButton      _cancelBtn;
+  private static LoadMonitor  _monitor;
+  private static Timer        _progressTimer;
 
   public static ImageIcon     WORKING_ICON       = EZEnvironment
                                                      .getImageIcon("circle_all.gif");
   private static Color        RUNNING_TASK_COLOR = Color.GREEN.darker();
   private static Color        NOT_RUNNING_TASK_COLOR;
+  //delay (ms) between two updates of the loading progress
+  private static final int    PROGRESS_DELAY = 500;
+  //name of the cache in throughput logs
+  private static final String CACHE_NAME = "ResultCache";
 
   /**
    * Register the desktop to this component.
@@ -93,38 +117,200 @@ public class BlastViewerOpener {
   }
 
   /**
-   * Load a BLAST XML data file.
+   * Set whether or not NCBI BLAST XML files are loaded using the StAX-based
+   * loader. When false, Castor/JAXB-based loaders are used.
+   */
+  public static void setUseStaxLoader(boolean use) {
+    LoaderRegistry.setUseStaxLoader(use);
+  }
+
+  /**
+   * Load a BLAST data file.
    * 
-   * @param f a file. Must be a Blast legacy XML file or a ZML one.
+   * @param f a file. Must be a Blast XML, tabular or ZML file.
    * 
    * @return a SROutput object
    */
   public static SROutput readBlastFile(File f) {
+    StringPool pool = new StringPool();
+    SROutput sro = readBlastFile(f, pool);
     
-    SROutput sro = null;
+    pool.dumpStats();
+    return sro;
+  }
+
+  /**
+   * Load a BLAST data file.
+   * 
+   * @param f a file. Must be a Blast XML, tabular or ZML file.
+   * @param pool a pool used to deduplicate strings of loaded result. Can be
+   * shared by several loaders to deduplicate strings among several files.
+   * 
+   * @return a SROutput object
+   */
+  public static SROutput readBlastFile(File f, StringPool pool) {
+    return readBlastFile(f, pool, null);
+  }
+
+  /**
+   * Load a BLAST data file.
+   * 
+   * @param f a file. Must be a Blast XML, tabular or ZML file.
+   * @param pool a pool used to deduplicate strings of loaded result. Can be
+   * shared by several loaders to deduplicate strings among several files.
+   * @param monitor a monitor used to report loading progress. Can be null.
+   * 
+   * @return a SROutput object
+   * 
+   * @throws SRLoaderException if loading has been canceled using the monitor
+   */
+  public static SROutput readBlastFile(File f, StringPool pool, LoadMonitor monitor) {
+    ResultCache cache = getResultCache();
+    long tim = System.currentTimeMillis();
+    boolean counted = false;
+    SROutput sro;
     
-    SRLoader ncbiBlastLoader = SerializerSystemFactory
-      .getLoaderInstance(SerializerSystemFactory.NCBI_LOADER2);
-    if (ncbiBlastLoader.canRead(f)){
-      sro = ncbiBlastLoader.load(f);
+    if (monitor != null) {
+      monitor.checkCanceled();
+    }
+    if (cache != null && (sro = cache.get(f)) != null) {
+      pool.deduplicate(sro);
+      if (monitor != null) {
+        monitor.fileLoaded(f, false);
+      }
+      LoadMonitor.logThroughput(CACHE_NAME, f, tim);
       return sro;
     }
+    // format is figured out once, then the appropriate loader is used
+    SRLoader loader = LoaderRegistry.getLoader(f);
     
-    ncbiBlastLoader = SerializerSystemFactory
-        .getLoaderInstance(SerializerSystemFactory.NCBI_LOADER);
-    if (ncbiBlastLoader.canRead(f)){
-      sro = ncbiBlastLoader.load(f);
-      return sro;
+    if (loader == null) {
+      return null;
     }
-      
-    SRLoader nativeBlastLoader = SerializerSystemFactory
-        .getLoaderInstance(SerializerSystemFactory.NATIVE_LOADER);
-    if (nativeBlastLoader.canRead(f)){
-      sro = nativeBlastLoader.load(f);
-      return sro;
+    if (monitor != null && loader instanceof StaxBlastLoader) {
+      sro = ((StaxBlastLoader) loader).load(f, monitor);
+      counted = true;
+    } else {
+      sro = loader.load(f);
     }
-    
-    return null;
+    if (monitor != null) {
+      // loaders not relying on streams cannot be interrupted
+      monitor.checkCanceled();
+      monitor.fileLoaded(f, counted);
+    }
+    LoadMonitor.logThroughput(loader.getSystemName(), f, tim);
+    if (sro != null) {
+      pool.deduplicate(sro);
+    }
+    if (cache != null && sro != null) {
+      cache.put(f, sro);
+    }
+    return sro;
+  }
+
+  /**
+   * Return the button used to cancel data loading.
+   */
+  public static JComponent getCancelButton() {
+    if (_cancelBtn == null) {
+      _cancelBtn = new JButton(BVMessages.getString("LoadMonitor.cancel.name"));
+      _cancelBtn.setToolTipText(BVMessages.getString("LoadMonitor.cancel.tip"));
+      _cancelBtn.setFocusable(false);
+      _cancelBtn.setEnabled(false);
+      _cancelBtn.addActionListener(e -> {
+        if (_monitor != null) {
+          _monitor.cancel();
+        }
+      });
+    }
+    return _cancelBtn;
+  }
+
+  /**
+   * Start displaying the progress of data loading in the helper field. The
+   * cancel button is enabled until stopMonitoring() is called.
+   * 
+   * @param monitor the load monitor
+   */
+  public static void startMonitoring(LoadMonitor monitor) {
+    SwingUtilities.invokeLater(() -> {
+      _monitor = monitor;
+      if (_cancelBtn != null) {
+        _cancelBtn.setEnabled(true);
+      }
+      if (_progressTimer == null) {
+        _progressTimer = new Timer(PROGRESS_DELAY, e -> {
+          if (_monitor != null && _helperField != null) {
+            setHelperMessage(_monitor.getMessage());
+          }
+        });
+      }
+      _progressTimer.start();
+    });
+  }
+
+  /**
+   * Stop displaying the progress of data loading.
+   * 
+   * @param monitor the load monitor passed in to startMonitoring()
+   */
+  public static void stopMonitoring(LoadMonitor monitor) {
+    SwingUtilities.invokeLater(() -> {
+      if (_monitor != monitor) {
+        return;
+      }
+      _monitor = null;
+      if (_cancelBtn != null) {
+        _cancelBtn.setEnabled(false);
+      }
+      _progressTimer.stop();
+    });
+  }
+
+  /**
+   * Return the cache of parsed BLAST results.
+   * 
+   * @return the cache or null if the application storage directory is not
+   * available.
+   */
+  public static synchronized ResultCache getResultCache() {
+    if (_resultCache == null) {
+      DirManager dmgr = (DirManager) ConfigManager.getConfig(DirManager.NAME);
+      if (dmgr == null) {
+        return null;
+      }
+      try {
+        _resultCache = new ResultCache(new File(dmgr.getBlastCachePath()),
+            ResultCache.DEFAULT_MAX_SIZE);
+      } catch (IOException e) {
+        EZLogger.warn(e.toString());
+        return null;
+      }
+    }
+    return _resultCache;
+  }
+
+  /**
+   * Return the cache of documents fetched from remote servers.
+   * 
+   * @return the cache or null if the application storage directory is not
+   * available.
+   */
+  public static synchronized FetchCache getFetchCache() {
+    if (_fetchCache == null) {
+      DirManager dmgr = (DirManager) ConfigManager.getConfig(DirManager.NAME);
+      if (dmgr == null) {
+        return null;
+      }
+      try {
+        _fetchCache = new FetchCache(new File(dmgr.getBlastCachePath()),
+            FetchCache.getConfiguredMaxSize());
+      } catch (IOException e) {
+        EZLogger.warn(e.toString());
+        return null;
+      }
+    }
+    return _fetchCache;
   }
 
   /**
@@ -174,7 +360,7 @@ public class BlastViewerOpener {
         * delta);
     // for future use...
     // iFrame.setDefaultCloseOperation(JInternalFrame.DO_NOTHING_ON_CLOSE);
-    // iFrame.addInternalFrameListener(new IFrameListener(navigator));
+    iFrame.addInternalFrameListener(new IFrameListener(viewer));
     iFrame.setVisible(true);
   }
 
@@ -185,4 +371,22 @@ public class BlastViewerOpener {
     displayInternalFrame(viewer, "Blast Results", null);
   }
 
+  /**
+   * Release resources used by a viewer when its internal frame is closed.
+   */
+  private static class IFrameListener extends InternalFrameAdapter {
+    private JComponent _viewer;
+
+    public IFrameListener(JComponent viewer) {
+      _viewer = viewer;
+    }
+
+    @Override
+    public void internalFrameClosed(InternalFrameEvent e) {
+      if (_viewer instanceof BlastQueryViewer) {
+        ((BlastQueryViewer) _viewer).dispose();
+      }
+    }
+  }
+
 }
@@ -0,0 +1,356 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * A disk cache of documents fetched from remote servers, e.g. NCBI job
+ * results and documents opened from URLs. Each document is stored in a file
+ * named after the SHA-1 hash of its key (a RID or a URL). A small
+ * properties file stored next to it contains the key and, when available,
+ * the ETag of the document.
+ *
+ * The cache has a maximum size: least recently used documents are removed
+ * first when that size is exceeded. The cache is the only owner of its
+ * files: documents are copied or moved in, and copied out, so that removing
+ * a document always releases its disk space.
+ *
+ * @author Patrick G. Durand
+ */
+public class FetchCache {
+  private File          _dir;
+  private long          _maxSize;
+  private AtomicInteger _hits = new AtomicInteger();
+  private AtomicInteger _misses = new AtomicInteger();
+
+  /** name of the JVM property setting the maximum size of the cache, in Mb */
+  public static final String MAX_SIZE_PROP = "bv.fetch.cache.size";
+  //default maximum size of the cache: 512 Mb
+  public static final long DEFAULT_MAX_SIZE = 512l * 1024l * 1024l;
+
+  private static final String DATA_EXT = ".bvf";
+  private static final String META_EXT = ".bvm";
+  private static final double MB = 1024d * 1024d;
+
+  /**
+   * Constructor.
+   *
+   * @param dir the directory where to store cached documents
+   * @param maxSize maximum size of the cache, in bytes
+   */
+  public FetchCache(File dir, long maxSize) {
+    _dir = dir;
+    _maxSize = maxSize;
+  }
+
+  /**
+   * Return the maximum size of the cache set using JVM property
+   * MAX_SIZE_PROP, or DEFAULT_MAX_SIZE.
+   */
+  public static long getConfiguredMaxSize() {
+    Long size = Long.getLong(MAX_SIZE_PROP);
+    return size != null ? size * 1024l * 1024l : DEFAULT_MAX_SIZE;
+  }
+
+  /**
+   * Set the maximum size of the cache, in bytes.
+   */
+  public void setMaxSize(long maxSize) {
+    _maxSize = maxSize;
+    evict();
+  }
+
+  /**
+   * Return the maximum size of the cache, in bytes.
+   */
+  public long getMaxSize() {
+    return _maxSize;
+  }
+
+  /**
+   * Return the key of a NCBI job result.
+   */
+  public static String getRidKey(String rid) {
+    return "rid:" + rid.trim();
+  }
+
+  /**
+   * Return the key of a document located at a URL.
+   */
+  public static String getUrlKey(String url) {
+    return "url:" + url;
+  }
+
+  /**
+   * Return the ETag of a cached document.
+   *
+   * @return an ETag or null if the document is not in the cache or if its
+   * ETag is unknown.
+   */
+  public String getETag(String key) {
+    Properties meta = readMeta(key);
+    return meta != null ? meta.getProperty("etag") : null;
+  }
+
+  /**
+   * Retrieve a document from the cache.
+   *
+   * @param key key of the document
+   * @param target file receiving the document. It is replaced if it exists.
+   *
+   * @return true if the document has been retrieved, false if it is not
+   * in the cache.
+   */
+  public boolean get(String key, File target) {
+    File dataFile = getFile(key, DATA_EXT);
+    Properties meta = readMeta(key);
+
+    if (meta == null || !dataFile.exists() || dataFile.length() != Long.parseLong(meta.getProperty("size", "-1"))) {
+      _misses.incrementAndGet();
+      log("FetchCache.msg2", key);
+      return false;
+    }
+    try {
+      copy(dataFile, target);
+    } catch (IOException e) {
+      EZLogger.warn(e.toString());
+      _misses.incrementAndGet();
+      return false;
+    }
+    dataFile.setLastModified(System.currentTimeMillis());
+    _hits.incrementAndGet();
+    log("FetchCache.msg1", key);
+    return true;
+  }
+
+  /**
+   * Add a copy of a document to the cache.
+   *
+   * @param key key of the document
+   * @param f the document. It is not modified.
+   * @param etag ETag of the document. Can be null.
+   */
+  public void put(String key, File f, String etag) {
+    put(key, f, etag, false);
+  }
+
+  /**
+   * Add a document to the cache.
+   *
+   * @param key key of the document
+   * @param f the document
+   * @param etag ETag of the document. Can be null.
+   * @param move if true, the document is moved into the cache: f does not
+   * exist anymore when this method returns. Otherwise, f is copied.
+   */
+  public void put(String key, File f, String etag, boolean move) {
+    File dataFile = getFile(key, DATA_EXT);
+    File metaFile = getFile(key, META_EXT);
+    Properties meta = new Properties();
+
+    meta.setProperty("key", key);
+    meta.setProperty("size", String.valueOf(f.length()));
+    if (etag != null) {
+      meta.setProperty("etag", etag);
+    }
+    try {
+      if (move) {
+        move(f, dataFile);
+      } else {
+        copy(f, dataFile);
+      }
+      try (OutputStream os = new FileOutputStream(metaFile)) {
+        meta.store(os, null);
+      }
+    } catch (IOException e) {
+      EZLogger.warn(e.toString());
+      remove(key);
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Remove a document from the cache.
+   */
+  public void remove(String key) {
+    getFile(key, DATA_EXT).delete();
+    getFile(key, META_EXT).delete();
+  }
+
+  /**
+   * Remove all documents from the cache.
+   *
+   * @return the number of bytes released
+   */
+  public long clear() {
+    long size = 0;
+
+    for (File file : listFiles(DATA_EXT)) {
+      size += file.length();
+      file.delete();
+    }
+    for (File file : listFiles(META_EXT)) {
+      file.delete();
+    }
+    return size;
+  }
+
+  /**
+   * Return the number of documents retrieved from the cache so far.
+   */
+  public int getHits() {
+    return _hits.get();
+  }
+
+  /**
+   * Return the number of documents not found in the cache so far.
+   */
+  public int getMisses() {
+    return _misses.get();
+  }
+
+  private void log(String msgKey, String key) {
+    EZLogger.info(String.format(BVMessages.getString(msgKey), key, _hits.get(), _misses.get()));
+  }
+
+  /**
+   * Remove least recently used documents until the cache size is below its
+   * maximum size.
+   */
+  private synchronized void evict() {
+    File[] files = listFiles(DATA_EXT);
+    long size = 0, released = 0;
+    int count = 0;
+    String name;
+
+    for (File file : files) {
+      size += file.length();
+    }
+    if (size <= _maxSize) {
+      return;
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (size <= _maxSize) {
+        break;
+      }
+      size -= file.length();
+      released += file.length();
+      count++;
+      name = file.getName();
+      file.delete();
+      new File(_dir, name.substring(0, name.length() - DATA_EXT.length()) + META_EXT).delete();
+    }
+    EZLogger.info(String.format(BVMessages.getString("FetchCache.msg3"), count, released / MB));
+  }
+
+  private File[] listFiles(String ext) {
+    File[] files = _dir.listFiles((dir, name) -> name.endsWith(ext));
+    return files != null ? files : new File[0];
+  }
+
+  private Properties readMeta(String key) {
+    File metaFile = getFile(key, META_EXT);
+    Properties meta = new Properties();
+
+    if (!metaFile.exists()) {
+      return null;
+    }
+    try (InputStream is = new FileInputStream(metaFile)) {
+      meta.load(is);
+    } catch (IOException e) {
+      return null;
+    }
+    // two keys with the same hash: very unlikely, but possible
+    return key.equals(meta.getProperty("key")) ? meta : null;
+  }
+
+  /**
+   * Copy a file. Files are never hard-linked: the cache and its callers
+   * must not share disk space.
+   */
+  private static void copy(File src, File dest) throws IOException {
+    File tmp = new File(dest.getAbsolutePath() + HTTPBasicEngine.TMP_FILE_SUFIX);
+
+    if (isSameFile(src, dest)) {
+      return;
+    }
+    tmp.delete();
+    Files.copy(src.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    HTTPBasicEngine.commit(tmp, dest);
+  }
+
+  /**
+   * Move a file. Data is copied when the file cannot be renamed, e.g. when
+   * it is located on another file system.
+   */
+  private static void move(File src, File dest) throws IOException {
+    if (isSameFile(src, dest)) {
+      return;
+    }
+    try {
+      Files.move(src.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      copy(src, dest);
+      src.delete();
+    }
+  }
+
+  private static boolean isSameFile(File f1, File f2) throws IOException {
+    return f1.exists() && f2.exists() && Files.isSameFile(f1.toPath(), f2.toPath());
+  }
+
+  /**
+   * Return a file of a cached document.
+   */
+  private File getFile(String key, String ext) {
+    StringBuilder buf = new StringBuilder();
+    byte[] digest;
+
+    try {
+      digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // should not happen: SHA-1 is always available
+      throw new RuntimeException(e);
+    }
+    for (byte b : digest) {
+      buf.append(String.format("%02x", b));
+    }
+    buf.append(ext);
+    return new File(_dir, buf.toString());
+  }
+}
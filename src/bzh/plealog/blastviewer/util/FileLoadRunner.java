@@ -17,7 +17,14 @@
 package bzh.plealog.blastviewer.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JComponent;
 
@@ -26,6 +33,12 @@ import com.plealog.genericapp.api.log.EZLogger;
 
 import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
 import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.blastviewer.BlastQueryViewer;
+import bzh.plealog.blastviewer.data.IndexedQuery;
+import bzh.plealog.blastviewer.loader.LoadMonitor;
+import bzh.plealog.blastviewer.loader.QueryIndex;
+import bzh.plealog.blastviewer.loader.StringPool;
 import bzh.plealog.blastviewer.resources.BVMessages;
 
 /**
@@ -36,38 +49,158 @@ import bzh.plealog.blastviewer.resources.BVMessages;
 public class FileLoadRunner extends Thread {
   private File[] fs;
   
+  //maximum number of files loaded at the same time
+  private static final int MAX_LOADERS = Runtime.getRuntime().availableProcessors();
+  private static final double MB = 1024d * 1024d;
+  
   public FileLoadRunner(File[] fs) {
     this.fs = fs;
   }
+  /**
+   * Load a single file and display its content while it is being loaded.
+   */
+  private void doStreamingAction(File f, LoadMonitor monitor) {
+    EZEnvironment.setWaitCursor();
+
+    EZLogger.info(BVMessages
+        .getString("OpenFileAction.msg1"));
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("OpenFileAction.msg1"));
+    StreamingViewerLoader loader = new StreamingViewerLoader(f.getName());
+    loader.setMonitor(monitor);
+    loader.load(f);
+    EZLogger.info(String.format(
+        BVMessages.getString("OpenFileAction.msg4"), 1));
+  }
+  /**
+   * Display a single file using its query index: queries are listed as soon
+   * as the index is available, then each query is read on demand.
+   * 
+   * @return false if the file cannot be displayed that way
+   */
+  private boolean doIndexedAction(File f, LoadMonitor monitor) {
+    IndexedQuery query;
+    long tim = System.currentTimeMillis();
+    
+    EZEnvironment.setWaitCursor();
+
+    EZLogger.info(BVMessages
+        .getString("OpenFileAction.msg1"));
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("OpenFileAction.msg1"));
+    try {
+      query = new IndexedQuery(QueryIndex.getIndex(f, monitor), 
+          IndexedQuery.DEFAULT_CACHE_SIZE);
+    } catch (IOException | SRLoaderException e) {
+      if (monitor.isCanceled()) {
+        EZLogger.info(BVMessages.getString("LoadMonitor.msg3"));
+        return true;
+      }
+      EZLogger.warn(e.toString());
+      return false;
+    }
+    if (query.sequences() < 2 || query.getHeader().getBlastType() == SROutput.PSIBLAST) {
+      // nothing to gain from an index
+      query.close();
+      return false;
+    }
+    monitor.fileLoaded(f, true);
+    EZLogger.info(String.format(BVMessages.getString("FileLoadRunner.msg1"),
+        query.sequences(), System.currentTimeMillis() - tim));
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("FetchFromNcbiAction.msg4"));
+    BlastQueryViewer viewer = new BlastQueryViewer();
+    viewer.setContent(query);
+    BlastViewerOpener.displayInternalFrame(viewer, f.getName(), null);
+    EZLogger.info(BVMessages.getString("OpenFileAction.msg5"));
+    return true;
+  }
   private void doAction() {
+    LoadMonitor monitor = new LoadMonitor(fs);
+    
+    BlastViewerOpener.startMonitoring(monitor);
+    try {
+      if (fs.length == 1 && QueryIndex.isRequired(fs[0]) 
+          && doIndexedAction(fs[0], monitor)) {
+        return;
+      }
+      if (fs.length == 1 && StreamingViewerLoader.canRead(fs[0])) {
+        doStreamingAction(fs[0], monitor);
+      }
+      else {
+        doLoadAction(monitor);
+      }
+    } finally {
+      BlastViewerOpener.stopMonitoring(monitor);
+    }
+  }
+  private void doLoadAction(LoadMonitor monitor) {
     EZEnvironment.setWaitCursor();
 
     EZLogger.info(BVMessages
         .getString("OpenFileAction.msg1"));
+    BlastViewerOpener.setHelperMessage(BVMessages
+        .getString("OpenFileAction.msg1"));
     SROutput sro, sroMaster=null;
     int notLoadedFiles=0, ncount=0;
+    long tim = System.currentTimeMillis(), bytes = 0;
+    // files are parsed in parallel, but merged in their original order
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_LOADERS, fs.length));
+    List<Future<SROutput>> results = new ArrayList<>();
+    // strings are deduplicated among all files
+    StringPool strPool = new StringPool();
     for (File f:fs) {
-      ncount++;
-      BlastViewerOpener.setHelperMessage(BVMessages
-          .getString("OpenFileAction.msg1")+ncount+"/"+fs.length);
-      sro = BlastViewerOpener.readBlastFile(f);
-      if (sro==null) {
-        notLoadedFiles++;
-        EZLogger.warn(
-            BVMessages.getString("OpenFileAction.err") +
-            f.getAbsolutePath());
-        continue;
-      }
-      if (sroMaster == null) {
-        sroMaster = sro;
-      }
-      else {
-        Enumeration<SRIteration> sriEnum = sro.enumerateIteration();
-        while(sriEnum.hasMoreElements()) {
-          sroMaster.addIteration(sriEnum.nextElement());
+      results.add(pool.submit(() -> BlastViewerOpener.readBlastFile(f, strPool, monitor)));
+    }
+    pool.shutdown();
+    try {
+      for (File f:fs) {
+        try {
+          sro = results.get(ncount).get();
+        } catch (ExecutionException e) {
+          if (monitor.isCanceled()) {
+            break;
+          }
+          EZLogger.warn(e.getCause().toString());
+          sro = null;
+        }
+        ncount++;
+        bytes += f.length();
+        if (sro==null) {
+          notLoadedFiles++;
+          EZLogger.warn(
+              BVMessages.getString("OpenFileAction.err") +
+              f.getAbsolutePath());
+          continue;
+        }
+        if (sroMaster == null) {
+          sroMaster = sro;
+        }
+        else {
+          Enumeration<SRIteration> sriEnum = sro.enumerateIteration();
+          while(sriEnum.hasMoreElements()) {
+            sroMaster.addIteration(sriEnum.nextElement());
+          }
         }
       }
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+      return;
     }
+    if (monitor.isCanceled()) {
+      // release partially loaded data
+      pool.shutdownNow();
+      results.clear();
+      sroMaster = null;
+      EZLogger.info(BVMessages.getString("LoadMonitor.msg3"));
+      System.gc();
+      return;
+    }
+    EZLogger.info(String.format(BVMessages.getString("OpenFileAction.msg7"),
+        fs.length, bytes / MB, System.currentTimeMillis() - tim,
+        rate(fs.length, tim), rate(bytes / MB, tim)));
+    strPool.dumpStats();
     
     EZLogger.info(String.format(
         BVMessages.getString("OpenFileAction.msg4"), fs.length));
@@ -92,6 +225,12 @@ public class FileLoadRunner extends Thread {
     
     System.gc();
   }
+  /**
+   * Return a number of items per second since a starting time.
+   */
+  private double rate(double items, long start) {
+    return items * 1000d / Math.max(1, System.currentTimeMillis() - start);
+  }
   public void run() {
     try {
       doAction();
@@ -17,14 +17,18 @@
 package bzh.plealog.blastviewer.util;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.util.Iterator;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 import java.util.Map;
 
 import com.plealog.genericapp.api.log.EZLogger;
@@ -37,10 +41,14 @@ import com.plealog.genericapp.api.log.EZLogger;
 public class HTTPBasicEngine {
   public static String TMP_FILE_PREFIX = "http";
   public static String TMP_FILE_SUFIX = ".tmp";
+  public static String PART_FILE_SUFIX = ".part";
 
   public static int CONNECT_TIMEOUT = 5000; // 5 seconds
   public static int SOCKET_TIMEOUT = 60000; // 1 minute
   
+  // maximum number of bytes transferred at once from network to file
+  private static final long TRANSFER_SIZE = 1024l * 1024l;
+  
   private static void closeConnection(InputStream ins) {
     if (ins != null) {
       try {
@@ -67,18 +75,7 @@ public class HTTPBasicEngine {
    * @throws HTTPEngineException
    *           if something wrong occurs.
    */
-  // Tutorial:
-  // http://stackoverflow.com/questions/2793150/using-java-net-urlconnection-to-fire-and-handle-http-requests
   public static File doGet(String url, Map<String, String> header_attrs) {
-    InputStream ins = null;
-    byte[] buffer = new byte[4096];
-    int n = -1;
-
-    // this is a very, very basic implementation to handle HTTP Get transactions
-    // using URL APIs (e.g. NCBI eUtils, Ensembl, etc.). May need optimization
-    // for more powerful needs...
-    // Possible upgrade: use Jersey to deal with web services?
-
     // 1. prepare a temporary file to receive answer
     File answerFile = null;
 
@@ -93,72 +90,152 @@ public class HTTPBasicEngine {
     }
 
     // 2. run the HTTP GET method
-    try (OutputStream output = new FileOutputStream(answerFile)) {
-      // open connection to the remote server
-      URL myurl = new URL(url);
-      HttpURLConnection con = (HttpURLConnection) myurl.openConnection();
-      if (header_attrs!=null){
-        Iterator<String> attrIter = header_attrs.keySet().iterator();
-        String key;
-        while(attrIter.hasNext()){
-          key = attrIter.next();
-          //con.setRequestProperty("Accept", "text/xml");
-          con.setRequestProperty(key, header_attrs.get(key));
-        }
-      }
-      con.setConnectTimeout(CONNECT_TIMEOUT);
-      con.setReadTimeout(SOCKET_TIMEOUT);
-      
-      // ensembl and ebi provides additional header fields.
-      // see
-      // http://www.ebi.ac.uk/Tools/webservices/services/eb-eye_rest#additional_information_in_http_response_header
-      // https://github.com/Ensembl/ensembl-rest/wiki/HTTP-Response-Codes
-      // some of these header values can be used to adapt connection to remote
-      // server. For now, we just monitor them... TODO: use them!
-      EZLogger.debug(con.getHeaderFields().toString());
-
-      // response code is checked before opening input stream
-      if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        throw new HTTPEngineException("Failed to connect to server", url, con.getResponseCode());
-      }
-
-      // 200 OK: read server answer
-      ins = con.getInputStream();
-      while ((n = ins.read(buffer)) != -1) {
-        output.write(buffer, 0, n);
-      }
-      output.flush();
-    } catch (HTTPEngineException hee) {
-      throw hee;
-    } catch (SocketTimeoutException ste) {
-      throw new HTTPEngineException("Server does not answer (time out)", url, HTTPEngineException.HTTPEX_TIMEOUT);
-    } catch (Exception e) {
-      // we Log the HTTP or IO error since message is usually out of concern
-      // for the end user. However, a log trace is always useful.
-      EZLogger.warn(e.toString());
-      // then raises a "generic" exception
-      throw new HTTPEngineException("Unable to write in response file", url, HTTPEngineException.HTTPEX_WRITE_FILE_ERROR);
-    }
-    finally {
+    InputStream ins = openGet(url, header_attrs);
+    try {
+      save(ins, answerFile);
+    } catch (IOException e) {
+      throw writeError(url, e);
+    } finally {
       // 3. close HTTP connection
       closeConnection(ins);
     }
     // 4. return answer
     return answerFile;
   }
+
+  /**
+   * Do a HTTP GET using the provided url. Server answer is written directly
+   * in the target file. That file is only created when the answer has been
+   * entirely received.
+   * 
+   * @param url
+   *          the URL. HTTP and HTTPS are supported.
+   * @param header_attrs
+   *          attributes to set in header connection
+   * @param target
+   *          the file receiving the answer
+   * 
+   * @throws HTTPEngineException
+   *           if something wrong occurs.
+   */
+  public static void doGet(String url, Map<String, String> header_attrs, File target) {
+    InputStream ins = openGet(url, header_attrs);
+    try {
+      save(ins, target);
+    } catch (IOException e) {
+      throw writeError(url, e);
+    } finally {
+      closeConnection(ins);
+    }
+  }
+
+  /**
+   * Do a HTTP GET using the provided url and return the server answer as a
+   * stream. Caller is responsible for closing that stream, which releases the
+   * connection.
+   * 
+   * @param url
+   *          the URL. HTTP and HTTPS are supported.
+   * @param header_attrs
+   *          attributes to set in header connection
+   * 
+   * @return the body of the server answer
+   * 
+   * @throws HTTPEngineException
+   *           if something wrong occurs.
+   */
+  public static InputStream openGet(String url, Map<String, String> header_attrs) {
+    HTTPClient.Response response = HTTPClient.getDefault().get(url, header_attrs);
+    try {
+      return response.getInputStream();
+    } catch (IOException e) {
+      response.close();
+      EZLogger.warn(e.toString());
+      throw new HTTPEngineException("Failed to read server answer", url, HTTPEngineException.HTTPEX_IO_ERROR);
+    }
+  }
+
+  /**
+   * Write the content of a stream in a file. Data is first written in a
+   * temporary file located next to the target, then that file is renamed. So,
+   * the target file either does not exist or it is complete.
+   * 
+   * @param ins the data to save. This method does not close that stream.
+   * @param target the file receiving the data
+   * 
+   * @return number of bytes written
+   */
+  public static long save(InputStream ins, File target) throws IOException {
+    File part = new File(target.getAbsolutePath() + PART_FILE_SUFIX);
+    long n, written = 0;
+
+    try (FileChannel output = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ReadableByteChannel input = Channels.newChannel(ins);
+      // data goes from the socket to the file without intermediate copy when
+      // the platform supports it
+      while ((n = output.transferFrom(input, written, TRANSFER_SIZE)) > 0) {
+        written += n;
+      }
+    } catch (IOException e) {
+      part.delete();
+      throw e;
+    }
+    commit(part, target);
+    return written;
+  }
+
+  /**
+   * Rename a completely written file to its final name.
+   */
+  public static void commit(File part, File target) throws IOException {
+    try {
+      Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static HTTPEngineException writeError(String url, Exception e) {
+    if (e instanceof SocketTimeoutException) {
+      return new HTTPEngineException("Server does not answer (time out)", url, HTTPEngineException.HTTPEX_TIMEOUT);
+    }
+    EZLogger.warn(e.toString());
+    return new HTTPEngineException("Unable to write in response file", url, HTTPEngineException.HTTPEX_WRITE_FILE_ERROR);
+  }
   
+  /**
+   * Figures out whether or not a document changed on its server.
+   * 
+   * @param url the URL of the document
+   * @param etag the ETag of a known version of the document
+   * 
+   * @return true if the server reports another version of the document.
+   * False if the version is the same, or if the server cannot be contacted.
+   */
+  public static boolean isModified(String url, String etag) {
+    Map<String, String> headers = new HashMap<>();
+    String current;
+    int code;
+
+    headers.put("If-None-Match", etag);
+    try (HTTPClient.Response response = HTTPClient.getDefault().head(url, headers, true)) {
+      code = response.getCode();
+      current = response.getHeader("ETag");
+    } catch (HTTPEngineException e) {
+      // server not available: known version is the best we have
+      return false;
+    }
+    return code != HttpURLConnection.HTTP_NOT_MODIFIED && !etag.equals(current);
+  }
+
   /**
    * Figures out whether or not a particular web server is available.
    */
   public static boolean isServerAvailable(String url) {
     try {
-      URL myurl = new URL(url);
-      HttpURLConnection httpConn = (HttpURLConnection)myurl.openConnection();
-      httpConn.setInstanceFollowRedirects(false);
-      httpConn.setRequestMethod("HEAD");
-      httpConn.setConnectTimeout(CONNECT_TIMEOUT);
-      httpConn.connect();
-      EZLogger.debug(httpConn.getHeaderFields().toString());
+      HTTPClient.getDefault().head(url).close();
     } catch (Exception e) {
       EZLogger.warn(e.toString());
       return false;
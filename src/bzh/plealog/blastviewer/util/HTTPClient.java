@@ -0,0 +1,409 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * A HTTP client reusing connections and requesting compressed answers.
+ * 
+ * Connections are pooled by the JRE (keep-alive cache): a connection goes
+ * back to that pool when the answer has been entirely read and closed. So,
+ * this client always consumes the end of answers, including error ones,
+ * instead of disconnecting. Answers are returned as streams, and some
+ * statistics (latency, number of bytes) are computed for each request.
+ * 
+ * It is safe to share a client between threads.
+ * 
+ * @author Patrick G. Durand
+ */
+public class HTTPClient {
+  private boolean    _keepAlive = true;
+  private boolean    _compression = true;
+  private AtomicLong _requests = new AtomicLong();
+  private AtomicLong _totalLatency = new AtomicLong();
+  private AtomicLong _bytes = new AtomicLong();
+  private AtomicLong _wireBytes = new AtomicLong();
+
+  /** name of the JVM property setting the number of idle connections kept per server */
+  public static final String MAX_CONNECTIONS_PROP = "http.maxConnections";
+  /** default number of idle connections kept per server */
+  public static final int    DEFAULT_MAX_CONNECTIONS = 16;
+
+  //maximum number of bytes consumed when closing an answer not entirely read.
+  //Beyond that limit, the connection is dropped.
+  private static final long  DRAIN_LIMIT = 256l * 1024l;
+
+  private static final HTTPClient DEFAULT = new HTTPClient();
+
+  static {
+    // JRE default (5) is too small for concurrent downloads from a server
+    if (System.getProperty(MAX_CONNECTIONS_PROP) == null) {
+      System.setProperty(MAX_CONNECTIONS_PROP, String.valueOf(DEFAULT_MAX_CONNECTIONS));
+    }
+  }
+
+  /**
+   * Return the client shared by the application.
+   */
+  public static HTTPClient getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Set whether or not connections are reused. Default is true.
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    _keepAlive = keepAlive;
+  }
+
+  /**
+   * Set whether or not compressed answers are requested. Default is true.
+   */
+  public void setCompression(boolean compression) {
+    _compression = compression;
+  }
+
+  /**
+   * Do a HTTP GET.
+   * 
+   * @param url the URL. HTTP and HTTPS are supported.
+   * @param header_attrs attributes to set in header connection. Can be null.
+   * 
+   * @return the server answer. Caller is responsible for closing it.
+   * 
+   * @throws HTTPEngineException if server cannot be contacted or does not
+   * answer with code 200, or 206 when a range is requested.
+   */
+  public Response get(String url, Map<String, String> header_attrs) {
+    return execute("GET", url, header_attrs, true, true);
+  }
+
+  /**
+   * Do a HTTP HEAD. Redirections are not followed.
+   * 
+   * @param url the URL. HTTP and HTTPS are supported.
+   * 
+   * @return the server answer, whatever its code. Caller is responsible for
+   * closing it.
+   * 
+   * @throws HTTPEngineException if server cannot be contacted.
+   */
+  public Response head(String url) {
+    return head(url, null, false);
+  }
+
+  /**
+   * Do a HTTP HEAD.
+   * 
+   * @param url the URL. HTTP and HTTPS are supported.
+   * @param header_attrs attributes to set in header connection. Can be null.
+   * @param followRedirects whether or not redirections are followed
+   * 
+   * @return the server answer, whatever its code. Caller is responsible for
+   * closing it.
+   * 
+   * @throws HTTPEngineException if server cannot be contacted.
+   */
+  public Response head(String url, Map<String, String> header_attrs, boolean followRedirects) {
+    return execute("HEAD", url, header_attrs, followRedirects, false);
+  }
+
+  private Response execute(String method, String url, Map<String, String> header_attrs,
+      boolean followRedirects, boolean checkCode) {
+    HttpURLConnection con;
+    Response response;
+    long tim = System.currentTimeMillis();
+
+    EZLogger.debug(url);
+    try {
+      con = (HttpURLConnection) new URL(url).openConnection();
+      con.setRequestMethod(method);
+      con.setInstanceFollowRedirects(followRedirects);
+      con.setConnectTimeout(HTTPBasicEngine.CONNECT_TIMEOUT);
+      con.setReadTimeout(HTTPBasicEngine.SOCKET_TIMEOUT);
+      if (_compression) {
+        con.setRequestProperty("Accept-Encoding", "gzip, deflate");
+      }
+      if (!_keepAlive) {
+        con.setRequestProperty("Connection", "close");
+      }
+      if (header_attrs != null) {
+        for (Map.Entry<String, String> attr : header_attrs.entrySet()) {
+          con.setRequestProperty(attr.getKey(), attr.getValue());
+        }
+      }
+      response = new Response(con, url, tim);
+      EZLogger.debug(con.getHeaderFields().toString());
+    } catch (SocketTimeoutException ste) {
+      throw new HTTPEngineException("Server does not answer (time out)", url, HTTPEngineException.HTTPEX_TIMEOUT);
+    } catch (IOException e) {
+      // we Log the HTTP or IO error since message is usually out of concern
+      // for the end user. However, a log trace is always useful.
+      EZLogger.warn(e.toString());
+      throw new HTTPEngineException("Failed to connect to server", url, HTTPEngineException.HTTPEX_IO_ERROR);
+    }
+    if (checkCode && response.getCode() != HttpURLConnection.HTTP_OK
+        && response.getCode() != HttpURLConnection.HTTP_PARTIAL) {
+      // error answer is consumed so that the connection can be reused
+      response.close();
+      throw new HTTPEngineException("Failed to connect to server", url, response.getCode());
+    }
+    return response;
+  }
+
+  /**
+   * Return the number of requests done so far.
+   */
+  public long getRequests() {
+    return _requests.get();
+  }
+
+  /**
+   * Return the number of bytes received so far, after decompression.
+   */
+  public long getBytes() {
+    return _bytes.get();
+  }
+
+  /**
+   * Return the number of bytes transferred so far, i.e. before decompression.
+   */
+  public long getWireBytes() {
+    return _wireBytes.get();
+  }
+
+  /**
+   * Return the average delay (ms) between sending a request and receiving the
+   * header of its answer.
+   */
+  public double getAverageLatency() {
+    long n = _requests.get();
+    return n == 0 ? 0d : (double) _totalLatency.get() / (double) n;
+  }
+
+  /**
+   * Log the statistics of this client.
+   */
+  public void dumpStats() {
+    EZLogger.info(String.format(BVMessages.getString("HTTPClient.msg1"), getRequests(),
+        getAverageLatency(), getBytes() / (1024d * 1024d), getWireBytes() / (1024d * 1024d)));
+  }
+
+  /**
+   * Counts bytes read from a stream.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private long _count;
+
+    private CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        _count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        _count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long s = super.skip(n);
+      _count += s;
+      return s;
+    }
+  }
+
+  /**
+   * The answer of a server.
+   */
+  public class Response implements Closeable {
+    private HttpURLConnection   _con;
+    private String              _url;
+    private int                 _code;
+    private long                _start;
+    private long                _latency;
+    private CountingInputStream _wire;
+    private CountingInputStream _data;
+    private boolean             _closed;
+
+    private Response(HttpURLConnection con, String url, long start) throws IOException {
+      _con = con;
+      _url = url;
+      _start = start;
+      // sends the request and waits for the answer header
+      _code = con.getResponseCode();
+      _latency = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Return the HTTP code of this answer.
+     */
+    public int getCode() {
+      return _code;
+    }
+
+    /**
+     * Return the value of a header field of this answer, or null if not
+     * available.
+     */
+    public String getHeader(String name) {
+      return _con.getHeaderField(name);
+    }
+
+    /**
+     * Return the size of this answer as announced by the server, i.e. before
+     * decompression. Return -1 if not known.
+     */
+    public long getContentLength() {
+      return _con.getContentLengthLong();
+    }
+
+    /**
+     * Return the delay (ms) between sending the request and receiving the
+     * header of this answer.
+     */
+    public long getLatency() {
+      return _latency;
+    }
+
+    /**
+     * Return the body of this answer, decompressed if needed. Closing that
+     * stream closes this answer.
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+      InputStream is;
+      String encoding;
+
+      if (_data != null) {
+        return _data;
+      }
+      if (!hasBody()) {
+        // nothing to decode, whatever the announced encoding
+        is = null;
+      } else {
+        is = _code >= HttpURLConnection.HTTP_BAD_REQUEST ? _con.getErrorStream() : _con.getInputStream();
+      }
+      _wire = new CountingInputStream(is != null ? is : new ByteArrayInputStream(new byte[0]));
+      encoding = is != null ? _con.getContentEncoding() : null;
+      if ("gzip".equalsIgnoreCase(encoding)) {
+        is = new GZIPInputStream(_wire, 64 * 1024);
+      } else if ("deflate".equalsIgnoreCase(encoding)) {
+        is = new InflaterInputStream(_wire, new Inflater(), 64 * 1024);
+      } else {
+        is = _wire;
+      }
+      _data = new CountingInputStream(is) {
+        @Override
+        public void close() throws IOException {
+          Response.this.close();
+        }
+      };
+      return _data;
+    }
+
+    /**
+     * Figure out whether or not this answer has a body. Answers to HEAD
+     * requests, 204 and 304 answers and empty answers have none.
+     */
+    private boolean hasBody() {
+      return !"HEAD".equals(_con.getRequestMethod())
+          && _code != HttpURLConnection.HTTP_NO_CONTENT
+          && _code != HttpURLConnection.HTTP_NOT_MODIFIED
+          && _con.getContentLengthLong() != 0;
+    }
+
+    /**
+     * Return the body of this answer as a channel. Closing that channel closes
+     * this answer.
+     */
+    public ReadableByteChannel getChannel() throws IOException {
+      return Channels.newChannel(getInputStream());
+    }
+
+    /**
+     * Close this answer. The end of the answer is consumed, if small enough,
+     * so that the connection can be reused.
+     */
+    @Override
+    public synchronized void close() {
+      byte[] buf;
+      long drained = 0;
+      int n = -1;
+
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      try {
+        getInputStream();
+        if (_keepAlive) {
+          buf = new byte[8192];
+          while (drained < DRAIN_LIMIT && (n = _wire.read(buf)) != -1) {
+            drained += n;
+          }
+          if (n != -1) {
+            // too much data not read: drop the connection
+            _con.disconnect();
+          }
+        }
+        _wire.close();
+      } catch (IOException e) {
+        _con.disconnect();
+      }
+      // streams are not available when the body could not be opened
+      long data = _data != null ? _data._count : 0;
+      long wire = _wire != null ? _wire._count : 0;
+      _requests.incrementAndGet();
+      _totalLatency.addAndGet(_latency);
+      _bytes.addAndGet(data);
+      _wireBytes.addAndGet(wire);
+      EZLogger.debug(String.format(BVMessages.getString("HTTPClient.msg2"), _url, _code, _latency,
+          data, wire, System.currentTimeMillis() - _start));
+    }
+  }
+}
@@ -35,6 +35,10 @@ public class HTTPEngineException extends RuntimeException {
    */
   public static final int HTTPEX_TIMEOUT = 1003;
 
+  /** 1004: unable to connect to server or to read its answer.
+   */
+  public static final int HTTPEX_IO_ERROR = 1004;
+
   @SuppressWarnings("unused")
   private HTTPEngineException() {  }
 
@@ -0,0 +1,541 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Download large documents using HTTP Range requests.
+ * 
+ * Data is written in a partial file described by a journal. When a
+ * connection drops, only the missing bytes are requested again. When a
+ * download is interrupted, e.g. the application is stopped, it resumes from
+ * the journal the next time the same URL is downloaded in the same target
+ * file. When the document is large enough, it is fetched using several
+ * connections in parallel, each of them downloading a segment of the
+ * document.
+ * 
+ * Servers that do not support Range requests are handled with a plain
+ * download.
+ * 
+ * @author Patrick G. Durand
+ */
+public class RangeDownloader {
+  private HTTPClient    _client;
+  private int           _segments = DEFAULT_SEGMENTS;
+  private long          _minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+  private int           _maxRetries = DEFAULT_MAX_RETRIES;
+  private long          _retryDelay = DEFAULT_RETRY_DELAY;
+  private AtomicInteger _retries = new AtomicInteger();
+  private String        _etag;
+
+  /** suffix of journal files */
+  public static final String JOURNAL_SUFIX = ".journal";
+  /** default maximum number of segments downloaded in parallel */
+  public static final int    DEFAULT_SEGMENTS = 4;
+  /** default minimum size of a segment */
+  public static final long   DEFAULT_MIN_SEGMENT_SIZE = 8l * 1024l * 1024l;
+  /** default number of attempts to download a segment after an error */
+  public static final int    DEFAULT_MAX_RETRIES = 5;
+  /** default delay (ms) before the first retry. It doubles after each retry. */
+  public static final long   DEFAULT_RETRY_DELAY = 1000;
+
+  //number of bytes downloaded between two journal updates
+  private static final long  JOURNAL_UPDATE = 4l * 1024l * 1024l;
+  private static final int   BUFFER_SIZE = 64 * 1024;
+  private static final double MB = 1024d * 1024d;
+
+  /**
+   * Constructor. Use the default HTTP client.
+   */
+  public RangeDownloader() {
+    this(HTTPClient.getDefault());
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param client the HTTP client to use
+   */
+  public RangeDownloader(HTTPClient client) {
+    _client = client;
+  }
+
+  /**
+   * Set the maximum number of segments downloaded in parallel.
+   */
+  public void setSegments(int segments) {
+    _segments = Math.max(1, segments);
+  }
+
+  /**
+   * Set the minimum size of a segment. Documents smaller than twice that
+   * size are downloaded using a single connection.
+   */
+  public void setMinSegmentSize(long minSegmentSize) {
+    _minSegmentSize = Math.max(1, minSegmentSize);
+  }
+
+  /**
+   * Set the number of attempts to download a segment after an error.
+   */
+  public void setMaxRetries(int maxRetries) {
+    _maxRetries = Math.max(0, maxRetries);
+  }
+
+  /**
+   * Set the delay (ms) before the first retry. It doubles after each retry.
+   */
+  public void setRetryDelay(long retryDelay) {
+    _retryDelay = retryDelay;
+  }
+
+  /**
+   * Return the number of retries done during the last download.
+   */
+  public int getRetries() {
+    return _retries.get();
+  }
+
+  /**
+   * Return the ETag of the document fetched during the last download, or
+   * null if the server did not provide it.
+   */
+  public String getETag() {
+    return _etag;
+  }
+
+  /**
+   * Return the journal of a partial download.
+   */
+  public static File getJournalFile(File target) {
+    return new File(target.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX + JOURNAL_SUFIX);
+  }
+
+  /**
+   * Download a document. If a partial download of the same document exists,
+   * it is resumed.
+   * 
+   * @param url the URL. HTTP and HTTPS are supported.
+   * @param target the file receiving the document. It is created only when
+   * the download is complete.
+   * 
+   * @throws HTTPEngineException if the document cannot be downloaded. In that
+   * case, the partial download is kept, so that it can be resumed later.
+   */
+  public void download(String url, File target) {
+    long tim = System.currentTimeMillis();
+    Journal journal;
+    int segments;
+
+    _retries.set(0);
+    _etag = null;
+    journal = prepare(url, target);
+    if (journal == null) {
+      // server does not handle Range requests
+      downloadAll(url, target);
+      segments = 1;
+    } else {
+      if (!downloadSegments(journal, target)) {
+        // document changed on the server since the download has been started
+        EZLogger.info(String.format(BVMessages.getString("RangeDownloader.msg3"), url));
+        discard(target);
+        journal = prepare(url, target);
+        if (journal == null || !downloadSegments(journal, target)) {
+          throw new HTTPEngineException("Document keeps changing on server", url,
+              HTTPEngineException.HTTPEX_IO_ERROR);
+        }
+      }
+      segments = journal.count();
+      complete(journal, target);
+      _etag = journal._etag;
+    }
+    tim = Math.max(1, System.currentTimeMillis() - tim);
+    EZLogger.info(String.format(BVMessages.getString("RangeDownloader.msg2"), url,
+        target.length() / MB, tim, segments, _retries.get(), target.length() / MB * 1000d / tim));
+  }
+
+  /**
+   * Discard a partial download.
+   */
+  public static void discard(File target) {
+    new File(target.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX).delete();
+    getJournalFile(target).delete();
+  }
+
+  /**
+   * Get the size and version of a document, then prepare or reload the
+   * journal of its download.
+   * 
+   * @return a journal or null if server does not support Range requests
+   */
+  private Journal prepare(String url, File target) {
+    File part = new File(target.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX);
+    File journalFile = getJournalFile(target);
+    Map<String, String> headers = new HashMap<>();
+    Journal journal;
+    String etag;
+    long length;
+
+    // sizes and ranges refer to uncompressed data
+    headers.put("Accept-Encoding", "identity");
+    try (HTTPClient.Response response = _client.head(url, headers, true)) {
+      if (response.getCode() != HttpURLConnection.HTTP_OK
+          || !"bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"))
+          || response.getContentLength() <= 0) {
+        return null;
+      }
+      length = response.getContentLength();
+      etag = response.getHeader("ETag");
+    }
+    journal = Journal.load(journalFile);
+    if (journal != null && journal.matches(url, length, etag) && part.length() == length) {
+      EZLogger.info(String.format(BVMessages.getString("RangeDownloader.msg1"), url,
+          journal.downloaded() / MB, length / MB));
+      return journal;
+    } else if (journal != null) {
+      EZLogger.info(String.format(BVMessages.getString("RangeDownloader.msg3"), url));
+    }
+    journal = new Journal(journalFile, url, length, etag,
+        (int) Math.max(1, Math.min(_segments, length / _minSegmentSize)));
+    try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+      raf.setLength(length);
+      journal.save();
+    } catch (IOException e) {
+      EZLogger.warn(e.toString());
+      throw new HTTPEngineException("Unable to write in response file", url,
+          HTTPEngineException.HTTPEX_WRITE_FILE_ERROR);
+    }
+    return journal;
+  }
+
+  /**
+   * Download the missing parts of all segments of a document.
+   * 
+   * @return false if the document changed on the server
+   */
+  private boolean downloadSegments(Journal journal, File target) {
+    File part = new File(target.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX);
+    ExecutorService pool = null;
+    List<Future<Boolean>> results = new ArrayList<>();
+    HTTPEngineException error = null;
+    boolean unchanged = true;
+
+    try (FileChannel fc = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+      if (journal.count() == 1) {
+        return downloadSegment(journal, 0, fc);
+      }
+      pool = Executors.newFixedThreadPool(journal.count());
+      for (int i = 0; i < journal.count(); i++) {
+        final int idx = i;
+        results.add(pool.submit(() -> downloadSegment(journal, idx, fc)));
+      }
+      // other segments go on when one fails: all of them are in the journal
+      for (Future<Boolean> result : results) {
+        try {
+          unchanged &= result.get();
+        } catch (ExecutionException e) {
+          if (error == null) {
+            error = e.getCause() instanceof HTTPEngineException ? (HTTPEngineException) e.getCause()
+                : new HTTPEngineException(e.getCause().toString(), journal._url, HTTPEngineException.HTTPEX_IO_ERROR);
+          }
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+      return unchanged;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HTTPEngineException("Download interrupted", journal._url, HTTPEngineException.HTTPEX_IO_ERROR);
+    } catch (IOException e) {
+      EZLogger.warn(e.toString());
+      throw new HTTPEngineException("Unable to write in response file", journal._url,
+          HTTPEngineException.HTTPEX_WRITE_FILE_ERROR);
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+      journal.saveQuietly();
+    }
+  }
+
+  /**
+   * Download the missing part of a segment. Connection errors are handled by
+   * requesting again the missing bytes.
+   * 
+   * @return false if the document changed on the server
+   */
+  private boolean downloadSegment(Journal journal, int idx, FileChannel fc) throws IOException {
+    Map<String, String> headers = new HashMap<>();
+    ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    ReadableByteChannel ch;
+    String etag;
+    long pos, end = journal.end(idx), unsaved;
+    int attempt = 0, n;
+
+    headers.put("Accept-Encoding", "identity");
+    if (journal._etag != null && !journal._etag.startsWith("W/")) {
+      // server sends the whole document if it has changed
+      headers.put("If-Range", journal._etag);
+    }
+    while ((pos = journal.position(idx)) <= end) {
+      headers.put("Range", "bytes=" + pos + "-" + end);
+      unsaved = 0;
+      try (HTTPClient.Response response = _client.get(journal._url, headers)) {
+        etag = response.getHeader("ETag");
+        if (response.getCode() != HttpURLConnection.HTTP_PARTIAL
+            || (journal._etag != null && etag != null && !journal._etag.equals(etag))) {
+          return false;
+        }
+        ch = response.getChannel();
+        while (pos <= end) {
+          buf.clear();
+          if ((n = ch.read(buf)) == -1) {
+            throw new IOException("connection closed by server");
+          }
+          buf.flip();
+          // never write beyond the end of the segment
+          buf.limit((int) Math.min(buf.limit(), end - pos + 1));
+          while (buf.hasRemaining()) {
+            pos += fc.write(buf, pos);
+          }
+          journal.setPosition(idx, pos);
+          unsaved += n;
+          if (unsaved >= JOURNAL_UPDATE) {
+            // data has to be on disk before the journal says so
+            fc.force(false);
+            journal.save();
+            unsaved = 0;
+          }
+        }
+      } catch (IOException | HTTPEngineException e) {
+        if (++attempt > _maxRetries) {
+          throw new HTTPEngineException(e.getMessage(), journal._url, HTTPEngineException.HTTPEX_IO_ERROR);
+        }
+        _retries.incrementAndGet();
+        EZLogger.warn(String.format(BVMessages.getString("RangeDownloader.msg4"), journal._url,
+            idx, pos, e.getMessage()));
+        sleep(_retryDelay << (attempt - 1));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check a download, then give its final name to the downloaded file.
+   */
+  private void complete(Journal journal, File target) {
+    File part = new File(target.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX);
+
+    if (journal.downloaded() != journal._length || part.length() != journal._length) {
+      throw new HTTPEngineException("Incomplete download", journal._url, HTTPEngineException.HTTPEX_IO_ERROR);
+    }
+    try {
+      HTTPBasicEngine.commit(part, target);
+    } catch (IOException e) {
+      EZLogger.warn(e.toString());
+      throw new HTTPEngineException("Unable to write in response file", journal._url,
+          HTTPEngineException.HTTPEX_WRITE_FILE_ERROR);
+    }
+    journal._file.delete();
+  }
+
+  /**
+   * Download a document using a single connection, without resuming.
+   */
+  private void downloadAll(String url, File target) {
+    int attempt = 0;
+    long size;
+
+    while (true) {
+      try (HTTPClient.Response response = _client.get(url, null)) {
+        size = HTTPBasicEngine.save(response.getInputStream(), target);
+        _etag = response.getHeader("ETag");
+        // announced size refers to compressed data, if any
+        if (response.getHeader("Content-Encoding") == null && response.getContentLength() >= 0
+            && response.getContentLength() != size) {
+          target.delete();
+          throw new IOException("Incomplete download");
+        }
+        return;
+      } catch (IOException | HTTPEngineException e) {
+        if (++attempt > _maxRetries) {
+          throw new HTTPEngineException(e.getMessage(), url, HTTPEngineException.HTTPEX_IO_ERROR);
+        }
+        _retries.incrementAndGet();
+        EZLogger.warn(String.format(BVMessages.getString("RangeDownloader.msg4"), url, 0, 0, e.getMessage()));
+        sleep(_retryDelay << (attempt - 1));
+      }
+    }
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HTTPEngineException("Download interrupted", "", HTTPEngineException.HTTPEX_IO_ERROR);
+    }
+  }
+
+  /**
+   * Describe a partial download: the document, its segments and the number
+   * of bytes already downloaded for each segment.
+   */
+  private static class Journal {
+    private File   _file;
+    private String _url;
+    private long   _length;
+    private String _etag;
+    private long[] _starts, _ends, _positions;
+
+    private Journal(File file, String url, long length, String etag, int segments) {
+      long size = length / segments;
+
+      _file = file;
+      _url = url;
+      _length = length;
+      _etag = etag;
+      _starts = new long[segments];
+      _ends = new long[segments];
+      _positions = new long[segments];
+      for (int i = 0; i < segments; i++) {
+        _starts[i] = _positions[i] = i * size;
+        _ends[i] = (i == segments - 1 ? length : (i + 1) * size) - 1;
+      }
+    }
+
+    /**
+     * Load a journal.
+     * 
+     * @return a journal or null if not available or not readable
+     */
+    private static Journal load(File file) {
+      Properties props = new Properties();
+      Journal journal;
+      int segments;
+
+      if (!file.exists()) {
+        return null;
+      }
+      try (InputStream is = new FileInputStream(file)) {
+        props.load(is);
+        segments = Integer.parseInt(props.getProperty("segments"));
+        journal = new Journal(file, props.getProperty("url"), Long.parseLong(props.getProperty("length")),
+            props.getProperty("etag"), segments);
+        for (int i = 0; i < segments; i++) {
+          journal._starts[i] = Long.parseLong(props.getProperty("start." + i));
+          journal._ends[i] = Long.parseLong(props.getProperty("end." + i));
+          journal._positions[i] = Long.parseLong(props.getProperty("position." + i));
+        }
+        return journal;
+      } catch (IOException | RuntimeException e) {
+        EZLogger.debug(file + ": " + e);
+        return null;
+      }
+    }
+
+    /**
+     * Save this journal. The journal file is replaced atomically.
+     */
+    private synchronized void save() throws IOException {
+      File tmp = new File(_file.getAbsolutePath() + HTTPBasicEngine.TMP_FILE_SUFIX);
+      Properties props = new Properties();
+
+      props.setProperty("url", _url);
+      props.setProperty("length", String.valueOf(_length));
+      if (_etag != null) {
+        props.setProperty("etag", _etag);
+      }
+      props.setProperty("segments", String.valueOf(_starts.length));
+      for (int i = 0; i < _starts.length; i++) {
+        props.setProperty("start." + i, String.valueOf(_starts[i]));
+        props.setProperty("end." + i, String.valueOf(_ends[i]));
+        props.setProperty("position." + i, String.valueOf(_positions[i]));
+      }
+      try (OutputStream os = new FileOutputStream(tmp)) {
+        props.store(os, "BlastViewer partial download");
+      }
+      HTTPBasicEngine.commit(tmp, _file);
+    }
+
+    private void saveQuietly() {
+      try {
+        save();
+      } catch (IOException e) {
+        EZLogger.warn(e.toString());
+      }
+    }
+
+    private boolean matches(String url, long length, String etag) {
+      return _url.equals(url) && _length == length && (_etag == null ? etag == null : _etag.equals(etag));
+    }
+
+    private int count() {
+      return _starts.length;
+    }
+
+    private long end(int idx) {
+      return _ends[idx];
+    }
+
+    private synchronized long position(int idx) {
+      return _positions[idx];
+    }
+
+    private synchronized void setPosition(int idx, long pos) {
+      _positions[idx] = pos;
+    }
+
+    /**
+     * Return the number of bytes downloaded so far.
+     */
+    private synchronized long downloaded() {
+      long n = 0;
+      for (int i = 0; i < _starts.length; i++) {
+        n += _positions[i] - _starts[i];
+      }
+      return n;
+    }
+  }
+}
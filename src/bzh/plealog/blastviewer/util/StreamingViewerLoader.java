@@ -0,0 +1,345 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package bzh.plealog.blastviewer.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+
+import com.plealog.genericapp.api.EZEnvironment;
+import com.plealog.genericapp.api.log.EZLogger;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.blastviewer.BlastQueryViewer;
+import bzh.plealog.blastviewer.loader.BlastStreamListener;
+import bzh.plealog.blastviewer.loader.BlastStreamParser;
+import bzh.plealog.blastviewer.loader.LoadMonitor;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+import bzh.plealog.blastviewer.loader.ResultCache;
+import bzh.plealog.blastviewer.loader.StaxBlastLoader;
+import bzh.plealog.blastviewer.loader.StringPool;
+import bzh.plealog.blastviewer.resources.BVMessages;
+
+/**
+ * Utility class to display a multi-query BLAST result while it is being
+ * loaded. The viewer is opened as soon as two queries have been read, then
+ * new queries are pushed to the viewer by batches.
+ *
+ * This class has to be used from a background thread, never from the
+ * Swing event dispatch thread.
+ *
+ * @author Patrick G. Durand
+ */
+public class StreamingViewerLoader implements BlastStreamListener {
+  private String            _title;
+  private SROutput          _header;
+  private BlastQueryViewer  _viewer;
+  private List<SRIteration> _pending = new ArrayList<>();
+  private List<SRIteration> _firsts = new ArrayList<>();
+  private List<SRIteration> _all = new ArrayList<>();
+  private boolean           _cacheable = BlastViewerOpener.getResultCache() != null;
+  private SROutput          _cached;
+  private StringPool        _strPool = new StringPool();
+  private LoadMonitor       _monitor;
+  private long              _lastTableUpdate;
+  private long              _lastChartUpdate;
+  private int               _counter;
+
+  //delay (ms) between two updates of the summary table
+  private static final long TABLE_UPDATE_DELAY = 500;
+  //delay (ms) between two updates of the overview charts
+  private static final long CHART_UPDATE_DELAY = 3000;
+
+  /**
+   * Constructor.
+   *
+   * @param title title of the viewer
+   */
+  public StreamingViewerLoader(String title) {
+    _title = title;
+  }
+
+  /**
+   * Set a monitor used to report loading progress and to cancel loading.
+   */
+  public void setMonitor(LoadMonitor monitor) {
+    _monitor = monitor;
+  }
+
+  /**
+   * Figures out whether or not a file can be loaded in a streaming way. Files
+   * available in the result cache are not streamed since they are loaded
+   * faster from that cache.
+   */
+  public static boolean canRead(File f) {
+    ResultCache cache = BlastViewerOpener.getResultCache();
+    if (cache != null && cache.contains(f)) {
+      return false;
+    }
+    return LoaderRegistry.getLoader(f) instanceof StaxBlastLoader;
+  }
+
+  /**
+   * Load a data file and display its content while loading.
+   *
+   * @param f the file to load
+   *
+   * @return the number of loaded queries
+   *
+   * @throws SRLoaderException if file cannot be read
+   */
+  public int load(File f) throws SRLoaderException {
+    long tim = System.currentTimeMillis();
+    BlastStreamParser parser = LoaderRegistry.getStreamParser(f);
+
+    if (parser == null) {
+      throw new SRLoaderException("not a NCBI BLAST XML file: " + f.getName());
+    }
+    _cacheable &= f.length() >= ResultCache.MIN_FILE_SIZE;
+    parser.setMonitor(_monitor);
+    try {
+      parser.parse(f, this);
+    } catch (SRLoaderException e) {
+      if (_monitor == null || !_monitor.isCanceled()) {
+        abort();
+        throw e;
+      }
+      cancel();
+      return _counter;
+    }
+    if (_monitor != null) {
+      _monitor.fileLoaded(f, true);
+    }
+    complete(f, tim);
+    return _counter;
+  }
+
+  /**
+   * Load a data stream and display its content while loading. Data is saved
+   * in a file while it is read, so that it is read only once.
+   *
+   * @param is a stream on NCBI BLAST XML data. It must support mark/reset.
+   * This method does not close the stream.
+   * @param f the file receiving data. That file is only created when all data
+   * have been read.
+   *
+   * @return the number of loaded queries
+   *
+   * @throws SRLoaderException if data stream cannot be read or saved
+   */
+  public int load(InputStream is, File f) throws SRLoaderException {
+    long tim = System.currentTimeMillis();
+    File part = new File(f.getAbsolutePath() + HTTPBasicEngine.PART_FILE_SUFIX);
+    BlastStreamParser parser;
+
+    try (OutputStream os = new BufferedOutputStream(new FileOutputStream(part))) {
+      parser = BlastStreamParser.getParser(is);
+      if (parser == null) {
+        throw new SRLoaderException("not a NCBI BLAST XML file: " + f.getName());
+      }
+      parser.parse(new TeeInputStream(is, os), this);
+      // save data located after the end of the XML document, if any
+      IOUtils.copy(is, os);
+    } catch (IOException e) {
+      part.delete();
+      abort();
+      throw new SRLoaderException(e.toString());
+    } catch (SRLoaderException e) {
+      part.delete();
+      abort();
+      throw e;
+    }
+    try {
+      HTTPBasicEngine.commit(part, f);
+    } catch (IOException e) {
+      part.delete();
+      throw new SRLoaderException(e.toString());
+    }
+    complete(f, tim);
+    return _counter;
+  }
+
+  /**
+   * Display the remaining data once loading is over.
+   */
+  private void complete(File f, long tim) {
+    if (_viewer == null) {
+      // PSI-BLAST or single query result: nothing to stream
+      for (SRIteration iteration : _firsts) {
+        _header.addIteration(iteration);
+      }
+      BlastViewerOpener.setHelperMessage(BVMessages.getString("FetchFromNcbiAction.msg4"));
+      JComponent viewer = BlastViewerOpener.prepareViewer(_header);
+      BlastViewerOpener.displayInternalFrame(viewer, _title, null);
+    } else {
+      final List<SRIteration> batch = flush();
+      SwingUtilities.invokeLater(() -> {
+        _viewer.appendContent(batch, false);
+        _viewer.completeContent();
+      });
+    }
+    EZLogger.info(String.format(BVMessages.getString("StreamingViewerLoader.msg2"),
+        _counter, System.currentTimeMillis() - tim));
+    LoadMonitor.logThroughput(StaxBlastLoader.SYSTEM_NAME, f, tim);
+    _strPool.dumpStats();
+    cacheResult(f);
+  }
+
+  /**
+   * Handle cancellation of data loading. Queries not yet displayed are
+   * released. Queries already displayed are kept in the viewer, which
+   * is then completed.
+   */
+  private void cancel() {
+    _firsts.clear();
+    _all.clear();
+    _pending.clear();
+    _header = null;
+    if (_viewer != null) {
+      SwingUtilities.invokeLater(() -> _viewer.completeContent());
+    }
+    EZLogger.info(BVMessages.getString("LoadMonitor.msg3"));
+  }
+
+  /**
+   * Handle a data loading failure. Queries already read are kept in the
+   * viewer, if any, which is then completed.
+   */
+  private void abort() {
+    final List<SRIteration> batch = flush();
+
+    _firsts.clear();
+    _all.clear();
+    if (_viewer != null) {
+      SwingUtilities.invokeLater(() -> {
+        _viewer.appendContent(batch, false);
+        _viewer.completeContent();
+      });
+    }
+  }
+
+  @Override
+  public void headerLoaded(SROutput header) {
+    _header = header;
+    if (_cacheable) {
+      _cached = CoreSystemConfigurator.getSRFactory().createBOutput();
+      _cached.setRequestInfo(header.getRequestInfo().clone());
+      _cached.setBlastOutputParam(header.getBlastOutputParam().clone());
+    }
+  }
+
+  @Override
+  public void iterationLoaded(SRIteration iteration) {
+    long now;
+
+    _counter++;
+    _strPool.deduplicate(iteration);
+    if (_cacheable) {
+      // once handed to the viewer, an iteration can be modified on the
+      // Swing event dispatch thread: the result cache gets its own copy
+      _all.add(iteration.clone(false));
+    }
+    if (_viewer == null) {
+      _firsts.add(iteration);
+      if (_firsts.size() == 2 && _header.getBlastType() != SROutput.PSIBLAST) {
+        openViewer();
+      }
+      return;
+    }
+    _pending.add(iteration);
+    now = System.currentTimeMillis();
+    if (now - _lastTableUpdate > TABLE_UPDATE_DELAY) {
+      final boolean updateCharts = (now - _lastChartUpdate > CHART_UPDATE_DELAY);
+      final List<SRIteration> batch = flush();
+      _lastTableUpdate = now;
+      if (updateCharts) {
+        _lastChartUpdate = now;
+      }
+      SwingUtilities.invokeLater(() -> _viewer.appendContent(batch, updateCharts));
+    }
+  }
+
+  /**
+   * Add the loaded result to the result cache. Since the header and the
+   * iterations are now owned by the viewer, the cached result is made of
+   * copies taken before they were displayed.
+   */
+  private void cacheResult(File f) {
+    ResultCache cache = BlastViewerOpener.getResultCache();
+    SROutput sro;
+
+    if (!_cacheable || _cached == null || cache == null 
+        || f.length() < ResultCache.MIN_FILE_SIZE) {
+      _all.clear();
+      return;
+    }
+    sro = _cached;
+    for (SRIteration iteration : _all) {
+      sro.addIteration(iteration);
+    }
+    _all.clear();
+    _cached = null;
+    cache.put(f, sro);
+  }
+
+  /**
+   * Returns currently pending iterations and prepare a new pending list.
+   */
+  private List<SRIteration> flush() {
+    List<SRIteration> batch = _pending;
+    _pending = new ArrayList<>();
+    return batch;
+  }
+
+  /**
+   * Open the viewer with the first iterations.
+   */
+  private void openViewer() {
+    for (SRIteration iteration : _firsts) {
+      _header.addIteration(iteration);
+    }
+    _firsts.clear();
+    try {
+      // wait for the viewer to be ready before pushing new data to it
+      SwingUtilities.invokeAndWait(() -> {
+        _viewer = new BlastQueryViewer();
+        _viewer.startContent(_header);
+        BlastViewerOpener.displayInternalFrame(_viewer, _title, null);
+        // user can work with the viewer while loading is going on
+        EZEnvironment.setDefaultCursor();
+      });
+    } catch (InvocationTargetException | InterruptedException e) {
+      throw new SRLoaderException(e.toString());
+    }
+    _lastTableUpdate = _lastChartUpdate = System.currentTimeMillis();
+  }
+}
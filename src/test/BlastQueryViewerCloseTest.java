@@ -0,0 +1,124 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.beans.PropertyVetoException;
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.swing.JInternalFrame;
+import javax.swing.SwingUtilities;
+
+import com.plealog.genericapp.ui.desktop.GDesktopPane;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoaderException;
+import bzh.plealog.blastviewer.BlastQueryViewer;
+import bzh.plealog.blastviewer.data.DiskBackedQuery;
+import bzh.plealog.blastviewer.data.IndexedQuery;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+import bzh.plealog.blastviewer.loader.QueryIndex;
+import bzh.plealog.blastviewer.util.BlastViewerOpener;
+
+/**
+ * Open then close viewers displaying a result stored on disk and an indexed
+ * data file: the temporary file has to be deleted and the data file has to
+ * be released when the viewer is closed.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastQueryViewerCloseTest {
+  private static final FileFilter QUERY_FILES = 
+      f -> f.getName().startsWith("bvquery") && f.getName().endsWith(".dat");
+
+  private static Set<File> listQueryFiles() {
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(QUERY_FILES);
+    return new HashSet<>(Arrays.asList(files));
+  }
+
+  private static void check(String name, boolean ok) {
+    if (!ok) {
+      throw new RuntimeException(name + ": failed");
+    }
+    System.out.println(name + ": OK");
+  }
+
+  private static void display(String title, Consumer<BlastQueryViewer> content)
+      throws Exception {
+    SwingUtilities.invokeAndWait(() -> {
+      BlastQueryViewer viewer = new BlastQueryViewer();
+      content.accept(viewer);
+      BlastViewerOpener.displayInternalFrame(viewer, title, null);
+    });
+  }
+
+  private static void closeAll(GDesktopPane desktop) throws Exception {
+    SwingUtilities.invokeAndWait(() -> {
+      for (JInternalFrame frame : desktop.getAllFrames()) {
+        try {
+          frame.setClosed(true);
+        } catch (PropertyVetoException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    File f = new File(args.length > 0 ? args[0] : "data/blastp-71queries-swissprot-bco.zml");
+    GDesktopPane desktop = new GDesktopPane();
+    Set<File> before, after;
+    SROutput result;
+    IndexedQuery query;
+
+    // 1. any result is stored on disk
+    System.setProperty(DiskBackedQuery.THRESHOLD_PROP, "0");
+    CoreSystemConfigurator.initializeSystem();
+    BlastViewerOpener.setDesktop(desktop);
+    result = LoaderRegistry.getLoader(f).load(f);
+    before = listQueryFiles();
+    display(f.getName(), viewer -> viewer.setContent(result));
+    after = listQueryFiles();
+    after.removeAll(before);
+    check("temporary file created", after.size() == 1);
+    closeAll(desktop);
+    check("temporary file deleted", !after.iterator().next().exists());
+
+    // 2. work on a copy of a data file since its index is saved next to it
+    f = File.createTempFile("bvclose", ".xml");
+    f.deleteOnExit();
+    QueryIndex.getIndexFile(f).deleteOnExit();
+    Files.copy(Paths.get("data/blastp.xml"), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    query = new IndexedQuery(QueryIndex.getIndex(f, null), IndexedQuery.DEFAULT_CACHE_SIZE);
+    display(f.getName(), viewer -> viewer.setContent(query));
+    closeAll(desktop);
+    try {
+      query.getResult(0);
+      check("data file released", false);
+    } catch (SRLoaderException e) {
+      check("data file released", true);
+    }
+  }
+}
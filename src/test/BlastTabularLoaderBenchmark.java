@@ -0,0 +1,130 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SRHit;
+import bzh.plealog.bioinfo.api.data.searchresult.SRIteration;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.blastviewer.loader.BlastTabularParser;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+
+/**
+ * Measure the number of lines per second read by the BLAST tabular loader,
+ * using a single thread and using several threads (at least 4, so that
+ * parts are merged even on small computers).
+ *
+ * Usage: BlastTabularLoaderBenchmark [file ...]. Without argument, the
+ * benchmark uses a generated -outfmt 6 file of 1.5 million lines.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastTabularLoaderBenchmark {
+  private static final int ROUNDS = 3;
+  private static final int QUERIES = 40000;
+  private static final int HITS = 25;
+
+  public static void main(String[] args) throws IOException {
+    File[] files;
+
+    CoreSystemConfigurator.initializeSystem();
+    if (args.length == 0) {
+      files = new File[] { makeTabularFile(QUERIES, HITS) };
+    } else {
+      files = new File[args.length];
+      for (int i = 0; i < args.length; i++) {
+        files[i] = new File(args[i]);
+      }
+    }
+    for (File f : files) {
+      System.out.println(String.format("%s (%d bytes): %s", f.getName(), f.length(),
+          LoaderRegistry.getFormat(f) != null ? LoaderRegistry.getFormat(f).getName() : "unknown format"));
+      String single = run(f, 1);
+      String multi = run(f, Math.max(4, Runtime.getRuntime().availableProcessors()));
+      System.out.println(single.equals(multi) ? "  same content: OK" : "  content differs: ERROR");
+    }
+  }
+
+  /**
+   * Load a file several times and return a summary of its content.
+   */
+  private static String run(File f, int threads) {
+    BlastTabularParser parser = new BlastTabularParser();
+    SROutput sro = null;
+    long tim, best = Long.MAX_VALUE;
+
+    parser.setThreads(threads);
+    for (int i = 0; i < ROUNDS; i++) {
+      sro = null;
+      System.gc();
+      tim = System.nanoTime();
+      sro = parser.load(f);
+      best = Math.min(best, System.nanoTime() - tim);
+    }
+    System.out.println(String.format(Locale.ROOT,
+        "  %2d thread(s): %d lines, best of %d: %d ms, %.2f million lines/s",
+        threads, parser.getLines(), ROUNDS, best / 1000000, parser.getLines() * 1000d / best));
+    return summarize(sro);
+  }
+
+  private static String summarize(SROutput sro) {
+    int hits = 0, hsps = 0;
+    double evalues = 0;
+
+    for (int i = 0; i < sro.countIteration(); i++) {
+      SRIteration iteration = sro.getIteration(i);
+      hits += iteration.countHit();
+      for (SRHit hit : iteration.getHits()) {
+        hsps += hit.countHsp();
+        evalues += hit.getHsp(0).getScores().getEvalue();
+      }
+    }
+    return String.format(Locale.ROOT, "%d/%d/%d/%g", sro.countIteration(), hits, hsps, evalues);
+  }
+
+  /**
+   * Create a -outfmt 6 file using standard columns. Every other hit has two
+   * HSPs.
+   */
+  private static File makeTabularFile(int queries, int hits) throws IOException {
+    File out = File.createTempFile("bvbench", ".tsv");
+    Random rnd = new Random(0);
+
+    out.deleteOnExit();
+    try (BufferedWriter w = new BufferedWriter(new FileWriter(out), 1 << 20)) {
+      for (int q = 0; q < queries; q++) {
+        for (int h = 0; h < hits; h++) {
+          for (int k = 0; k <= h % 2; k++) {
+            int len = 50 + rnd.nextInt(400), start = 1 + rnd.nextInt(200);
+            w.write(String.format(Locale.ROOT, "query_%d\tsp|P%05d|PROT_%d\t%.3f\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%.2e\t%.1f\n",
+                q, h * 7 + q % 100, h, 30 + rnd.nextDouble() * 70, len, rnd.nextInt(len / 2), rnd.nextInt(5),
+                start, start + len - 1, start + 10, start + len + 9, Math.pow(10, -rnd.nextInt(150)) * rnd.nextDouble(),
+                20 + rnd.nextDouble() * 500));
+          }
+        }
+      }
+    }
+    return out;
+  }
+}
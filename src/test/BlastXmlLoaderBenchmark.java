@@ -0,0 +1,117 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.Function;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.bioinfo.api.data.searchresult.io.SRLoader;
+import bzh.plealog.bioinfo.io.searchresult.SerializerSystemFactory;
+import bzh.plealog.blastviewer.loader.BlastStreamParser;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+import bzh.plealog.blastviewer.loader.StaxBlastLoader;
+
+/**
+ * Compare loading time and memory footprint of the Castor-based NCBI loader
+ * and the StAX-based one, with and without lazy loading of HSP sequences.
+ *
+ * Usage: BlastXmlLoaderBenchmark [file ...]. Without argument, the benchmark
+ * uses data/blastp.xml and a large multi-query file made by replicating its
+ * query.
+ *
+ * @author Patrick G. Durand
+ */
+public class BlastXmlLoaderBenchmark {
+  private static final int ROUNDS = 5;
+  private static final int COPIES = 2000;
+
+  public static void main(String[] args) throws IOException {
+    File[] files;
+
+    CoreSystemConfigurator.initializeSystem();
+    if (args.length == 0) {
+      File f = new File("data/blastp.xml");
+      files = new File[] { f, makeMultiQueryFile(f, COPIES) };
+    } else {
+      files = new File[args.length];
+      for (int i = 0; i < args.length; i++) {
+        files[i] = new File(args[i]);
+      }
+    }
+    SRLoader castor = SerializerSystemFactory.getLoaderInstance(SerializerSystemFactory.NCBI_LOADER);
+    for (File f : files) {
+      System.out.println(String.format("%s (%d bytes)", f.getName(), f.length()));
+      if (castor.canRead(f)) {
+        run(castor.getSystemName(), castor::load, f);
+      }
+      run(StaxBlastLoader.SYSTEM_NAME, file -> {
+        BlastStreamParser parser = LoaderRegistry.getStreamParser(file);
+        parser.setLazySequences(false);
+        return parser.load(file);
+      }, f);
+      run(StaxBlastLoader.SYSTEM_NAME + " (lazy)", file -> {
+        BlastStreamParser parser = LoaderRegistry.getStreamParser(file);
+        parser.setLazySequences(true);
+        return parser.load(file);
+      }, f);
+    }
+  }
+
+  private static void run(String name, Function<File, SROutput> loader, File f) {
+    SROutput sro = null;
+    long tim, best = Long.MAX_VALUE, mem;
+
+    for (int i = 0; i < ROUNDS; i++) {
+      sro = null;
+      System.gc();
+      tim = System.nanoTime();
+      sro = loader.apply(f);
+      best = Math.min(best, System.nanoTime() - tim);
+    }
+    System.gc();
+    mem = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    System.out.println(String.format("  %-17s: %d queries, best of %d: %d ms, heap: %d MB",
+        name, sro.countIteration(), ROUNDS, best / 1000000, mem / (1024 * 1024)));
+  }
+
+  /**
+   * Create a legacy BLAST XML file containing many copies of the query of
+   * a single query file.
+   */
+  private static File makeMultiQueryFile(File f, int copies) throws IOException {
+    String data = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+    int from = data.indexOf("<Iteration>");
+    int to = data.lastIndexOf("</Iteration>") + "</Iteration>".length();
+    String iteration = data.substring(from, to);
+    StringBuilder buf = new StringBuilder(data.length() + copies * iteration.length());
+    File out = File.createTempFile("bvbench", ".xml");
+
+    out.deleteOnExit();
+    buf.append(data, 0, from);
+    for (int i = 0; i < copies; i++) {
+      buf.append(iteration.replace("<Iteration_iter-num>1<", "<Iteration_iter-num>" + (i + 1) + "<"));
+    }
+    buf.append(data.substring(to));
+    Files.write(out.toPath(), buf.toString().getBytes(StandardCharsets.UTF_8));
+    return out;
+  }
+}
@@ -0,0 +1,101 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+
+import bzh.plealog.bioinfo.api.core.config.CoreSystemConfigurator;
+import bzh.plealog.bioinfo.api.data.feature.FeatureTable;
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.blastviewer.data.DiskBackedQuery;
+import bzh.plealog.blastviewer.data.QueryResultView;
+import bzh.plealog.blastviewer.loader.LoaderRegistry;
+
+/**
+ * Edit results of a DiskBackedQuery, force their eviction from memory, then
+ * read them again: edits have to be preserved.
+ *
+ * @author Patrick G. Durand
+ */
+public class DiskBackedQueryTest {
+  private static final int CACHE_SIZE = 4;
+
+  private static void check(String name, boolean ok) {
+    if (!ok) {
+      throw new RuntimeException(name + ": edit lost");
+    }
+    System.out.println(name + ": OK");
+  }
+
+  public static void main(String[] args) throws Exception {
+    File f = new File(args.length > 0 ? args[0] : "data/blastp-71queries-swissprot-bco.zml");
+    DiskBackedQuery query = new DiskBackedQuery(CACHE_SIZE);
+    SROutput result, sro;
+    FeatureTable ft;
+
+    CoreSystemConfigurator.initializeSystem();
+    result = LoaderRegistry.getLoader(f).load(f);
+    for (int i = 0; i < result.countIteration(); i++) {
+      query.addResult(new QueryResultView(result, i));
+    }
+    result = null;
+
+    // 1. edit a hit and add query features, as an IPRscan import does
+    sro = query.getResult(0);
+    sro.getIteration(0).getHit(0).setHitDef("edited hit");
+    ft = CoreSystemConfigurator.getFeatureTableFactory().getFTInstance();
+    ft.addFeature("domain", 1, 10, 1);
+    sro.getIteration(0).setIterationQueryFeatureTable(ft);
+    sro = null;
+
+    // 2. evict the edited result
+    for (int i = 1; i <= 2 * CACHE_SIZE; i++) {
+      query.getResult(i);
+    }
+
+    // 3. read it again from disk
+    sro = query.getResult(0);
+    check("hit definition", "edited hit".equals(sro.getIteration(0).getHit(0).getHitDef()));
+    check("query features", sro.getIteration(0).getIterationQueryFeatureTable() != null
+        && sro.getIteration(0).getIterationQueryFeatureTable().features() == 1);
+
+    // 4. edit it twice: the second version is larger and is moved in the file
+    sro.getIteration(0).getHit(0).setHitDef("edited hit, second version with a longer definition");
+    for (int i = 1; i <= 2 * CACHE_SIZE; i++) {
+      query.getResult(i);
+    }
+    sro = query.getResult(0);
+    check("second edit", sro.getIteration(0).getHit(0).getHitDef().startsWith("edited hit, second"));
+    check("untouched result", query.getResult(1).getIteration(0).countHit() > 0);
+
+    // 5. a result still held by a caller is edited after its eviction
+    for (int i = 1; i <= 2 * CACHE_SIZE; i++) {
+      query.getResult(i);
+    }
+    sro.getIteration(0).getHit(0).setHitDef("edited after eviction");
+    check("same object", query.getResult(0) == sro);
+    for (int i = 1; i <= 2 * CACHE_SIZE; i++) {
+      query.getResult(i);
+    }
+    sro = null;
+    System.gc();
+    check("edit after eviction", "edited after eviction".equals(
+        query.getResult(0).getIteration(0).getHit(0).getHitDef()));
+
+    query.close();
+  }
+}
@@ -0,0 +1,151 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import bzh.plealog.blastviewer.util.HTTPClient;
+
+/**
+ * Compare the throughput of HTTPClient configurations on a local server
+ * that mimics a remote one: opening a connection costs some time, and
+ * bandwidth is limited.
+ *
+ * @author Patrick G. Durand
+ */
+public class HTTPClientBenchmark {
+  private static final int REQUESTS = 200;
+  private static final int THREADS = 4;
+  // cost (ms) of opening a connection, e.g. TCP and TLS handshakes
+  private static final long CONNECT_COST = 30;
+  // bandwidth (bytes/s) of each connection
+  private static final long BANDWIDTH = 10l * 1024l * 1024l;
+
+  private static HttpServer _server;
+  private static byte[] _data, _gzData;
+  private static Set<String> _connections = ConcurrentHashMap.newKeySet();
+
+  private static void handle(HttpExchange exchange) throws IOException {
+    String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    byte[] data = _data;
+    int off = 0, len;
+
+    if (_connections.add(exchange.getRemoteAddress().toString())) {
+      sleep(CONNECT_COST);
+    }
+    if (encoding != null && encoding.contains("gzip")) {
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      data = _gzData;
+    }
+    exchange.sendResponseHeaders(200, data.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      while (off < data.length) {
+        len = Math.min(64 * 1024, data.length - off);
+        os.write(data, off, len);
+        off += len;
+        sleep(len * 1000l / BANDWIDTH);
+      }
+    }
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void run(String name, boolean keepAlive, boolean compression) throws Exception {
+    HTTPClient client = new HTTPClient();
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    List<Future<Long>> results = new ArrayList<>();
+    String url = "http://127.0.0.1:" + _server.getAddress().getPort() + "/data";
+    long tim = System.currentTimeMillis(), size = 0;
+
+    client.setKeepAlive(keepAlive);
+    client.setCompression(compression);
+    _connections.clear();
+    for (int i = 0; i < REQUESTS; i++) {
+      results.add(pool.submit(() -> {
+        byte[] buf = new byte[64 * 1024];
+        long n = 0;
+        int r;
+        try (InputStream is = client.get(url, null).getInputStream()) {
+          while ((r = is.read(buf)) != -1) {
+            n += r;
+          }
+        }
+        return n;
+      }));
+    }
+    for (Future<Long> result : results) {
+      size += result.get();
+    }
+    pool.shutdown();
+    tim = System.currentTimeMillis() - tim;
+    if (size != (long) REQUESTS * _data.length) {
+      throw new RuntimeException(name + ": wrong number of bytes: " + size);
+    }
+    System.out.println(String.format(
+        "%-22s %6d ms %7.1f req/s %6.1f MB/s  latency %5.1f ms  %5.1f MB transferred  %3d connections",
+        name, tim, REQUESTS * 1000d / tim, size / (1024d * 1024d) * 1000d / tim,
+        client.getAverageLatency(), client.getWireBytes() / (1024d * 1024d), _connections.size()));
+  }
+
+  public static void main(String[] args) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    _data = Files.readAllBytes(new File(args.length > 0 ? args[0] : "data/p12253-refseq.xml").toPath());
+    try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+      gos.write(_data);
+    }
+    _gzData = bos.toByteArray();
+    // avoid Nagle's algorithm delays between answer header and body
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    _server.createContext("/data", HTTPClientBenchmark::handle);
+    _server.setExecutor(Executors.newCachedThreadPool());
+    _server.start();
+    System.out.println(String.format("%d requests of %d bytes (%d gzipped), %d threads",
+        REQUESTS, _data.length, _gzData.length, THREADS));
+    // warm up
+    run("warm up", true, true);
+    run("new connections", false, false);
+    run("keep-alive", true, false);
+    run("keep-alive + gzip", true, true);
+    _server.stop(0);
+    System.exit(0);
+  }
+}
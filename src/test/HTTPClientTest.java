@@ -0,0 +1,75 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+import bzh.plealog.blastviewer.util.HTTPBasicEngine;
+import bzh.plealog.blastviewer.util.HTTPClient;
+
+/**
+ * Check HTTPClient answers announcing a gzip body: HEAD answers and empty
+ * answers must not be decoded.
+ *
+ * @author Patrick G. Durand
+ */
+public class HTTPClientTest {
+
+  private static void check(String name, boolean ok) {
+    if (!ok) {
+      throw new RuntimeException(name + ": failed");
+    }
+    System.out.println(name + ": OK");
+  }
+
+  public static void main(String[] args) throws Exception {
+    byte[] data = "a small BLAST document".getBytes(StandardCharsets.US_ASCII);
+    RangeStubServer server = new RangeStubServer(data, "\"v1\"");
+    HTTPClient client = new HTTPClient();
+    HTTPClient.Response response;
+
+    server.setGzip(true);
+    server.start();
+
+    // 1. HEAD answer announcing a gzip body
+    response = client.head(server.getUrl());
+    try (InputStream is = response.getInputStream()) {
+      check("gzip HEAD", response.getCode() == 200 && is.read() == -1);
+    }
+    check("server available", HTTPBasicEngine.isServerAvailable(server.getUrl()));
+    check("not modified", !HTTPBasicEngine.isModified(server.getUrl(), "\"v1\""));
+
+    // 2. gzip GET answer is decoded
+    try (InputStream is = client.get(server.getUrl(), null).getInputStream()) {
+      check("gzip GET", Arrays.equals(IOUtils.toByteArray(is), data));
+    }
+
+    // 3. empty answer announcing a gzip body
+    server.setData(new byte[0], "\"v2\"");
+    try (InputStream is = client.get(server.getUrl(), null).getInputStream()) {
+      check("gzip empty GET", is.read() == -1);
+    }
+    check("bytes", client.getBytes() == data.length);
+
+    server.stop();
+    System.exit(0);
+  }
+}
@@ -0,0 +1,67 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import bzh.plealog.blastviewer.loader.MappedSequenceSource;
+
+/**
+ * Locate HSP sequences within a data file when some of them contain XML
+ * entities, so that they cannot be read as is from that file.
+ *
+ * @author Patrick G. Durand
+ */
+public class MappedSequenceSourceTest {
+  private static final byte[] QSEQ = "<Hsp_qseq>".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] HSEQ = "<Hsp_hseq>".getBytes(StandardCharsets.US_ASCII);
+
+  private static final String DATA =
+      "<Hsp>\n<Hsp_qseq>MK&lt;VL</Hsp_qseq>\n<Hsp_hseq>MKAVL</Hsp_hseq>\n</Hsp>\n"
+    + "<Hsp>\n<Hsp_qseq>MK</Hsp_qseq>\n<Hsp_hseq>MR</Hsp_hseq>\n</Hsp>\n"
+    + "<Hsp>\n<Hsp_qseq>WTYLA</Hsp_qseq>\n<Hsp_hseq>WTYLG</Hsp_hseq>\n</Hsp>\n";
+
+  private static void check(String name, MappedSequenceSource source, byte[] tag,
+      String value, boolean located) {
+    long pos = source.locate(tag, value);
+    if (located ? pos == -1 || !source.read(pos, value.length()).equals(value)
+        || DATA.charAt((int) pos + value.length()) != '<' : pos != -1) {
+      throw new RuntimeException(name + ": failed");
+    }
+    System.out.println(name + ": OK");
+  }
+
+  public static void main(String[] args) throws Exception {
+    File f = File.createTempFile("seqs", ".xml");
+    MappedSequenceSource source;
+
+    f.deleteOnExit();
+    Files.write(f.toPath(), DATA.getBytes(StandardCharsets.US_ASCII));
+    source = new MappedSequenceSource(f);
+    // sequence containing an entity: as read by the XML parser
+    check("entity", source, QSEQ, "MK<VL", false);
+    check("hit after entity", source, HSEQ, "MKAVL", true);
+    // value which is a prefix of the previous query sequence
+    check("prefix", source, QSEQ, "MK", true);
+    check("hit", source, HSEQ, "MR", true);
+    // value which is a prefix of the content of the element
+    check("partial", source, QSEQ, "WTY", false);
+    check("last hit", source, HSEQ, "WTYLG", true);
+  }
+}
@@ -0,0 +1,90 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+import java.util.List;
+
+import bzh.plealog.bioinfo.api.data.searchresult.SROutput;
+import bzh.plealog.blastviewer.client.ncbi.QBlastFetchPool;
+import bzh.plealog.blastviewer.client.ncbi.QBlastFetchPool.FetchReport;
+import bzh.plealog.blastviewer.loader.StaxBlastLoader;
+
+/**
+ * Download many job results from a local stand-in of the NCBI QBlast
+ * server, first one at a time, then with a download pool. Each result is
+ * parsed while other ones are being downloaded. An unknown job has to fail.
+ *
+ * @author Patrick G. Durand
+ */
+public class QBlastFetchPoolTest {
+  private static final int JOBS = 30;
+  // latency (ms) of the stand-in server
+  private static final long LATENCY = 150;
+
+  private static long fetch(QBlastStubServer server, String[] rids, int downloads) {
+    StaxBlastLoader loader = new StaxBlastLoader();
+    long tim = System.currentTimeMillis();
+    int[] parsed = new int[1];
+
+    QBlastFetchPool pool = new QBlastFetchPool(server.getUrl(), downloads, 20);
+    List<FetchReport> reports = pool.fetch(rids, new QBlastFetchPool.FetchListener() {
+      @Override
+      public void resultFetched(String rid, File result) {
+        SROutput sro = loader.load(result);
+        if (sro != null && sro.countIteration() > 0) {
+          parsed[0]++;
+        }
+        result.delete();
+      }
+
+      @Override
+      public void fetchFailed(String rid, String msg, boolean waiting) {
+        System.out.println(rid + ": failed: " + msg);
+      }
+    });
+    tim = System.currentTimeMillis() - tim;
+    System.out.println(String.format("%d download(s): %d/%d results parsed in %d ms",
+        downloads, parsed[0], rids.length, tim));
+    if (reports.size() != rids.length || parsed[0] != rids.length - 1) {
+      throw new RuntimeException("unexpected number of results");
+    }
+    return tim;
+  }
+
+  public static void main(String[] args) throws Exception {
+    QBlastStubServer server = new QBlastStubServer(new File("data/blastp.xml"), 0);
+    String[] rids = new String[JOBS + 1];
+
+    for (int i = 0; i < JOBS; i++) {
+      rids[i] = String.format("RID%04d", i);
+      server.addJob(rids[i]);
+    }
+    rids[JOBS] = "BADRID";
+    server.setLatency(LATENCY);
+    server.start();
+    long seq = fetch(server, rids, 1);
+    // jobs have been downloaded: declare them again
+    for (int i = 0; i < JOBS; i++) {
+      server.addJob(rids[i]);
+    }
+    long par = fetch(server, rids, 8);
+    server.stop();
+    System.out.println(String.format("speedup: %.1f", (double) seq / par));
+    System.exit(0);
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import bzh.plealog.blastviewer.client.ncbi.QBlastJobTracker;
+
+/**
+ * Track some jobs on a local stand-in of the NCBI QBlast server: jobs
+ * are WAITING for a while, then READY. An unknown job has to fail.
+ *
+ * @author Patrick G. Durand
+ */
+public class QBlastJobTrackerTest {
+  private static final String[] RIDS = { "RID0001", "RID0002", "RID0003" };
+
+  public static void main(String[] args) throws Exception {
+    QBlastStubServer server = new QBlastStubServer(new File("data/blastp.xml"), 3);
+    CountDownLatch latch = new CountDownLatch(RIDS.length + 1);
+    long tim = System.currentTimeMillis();
+
+    for (String rid : RIDS) {
+      server.addJob(rid);
+    }
+    server.start();
+    QBlastJobTracker tracker = new QBlastJobTracker(new QBlastJobTracker.JobListener() {
+      @Override
+      public void jobStatusChanged(String rid, String status) {
+        System.out.println(String.format("%6d ms: %s: %s", System.currentTimeMillis() - tim, rid, status));
+      }
+
+      @Override
+      public void jobReady(String rid, File result) {
+        System.out.println(String.format("%6d ms: %s: result: %d bytes",
+            System.currentTimeMillis() - tim, rid, result.length()));
+        result.delete();
+        latch.countDown();
+      }
+
+      @Override
+      public void jobFailed(String rid, String msg) {
+        System.out.println(String.format("%6d ms: %s: failed: %s", System.currentTimeMillis() - tim, rid, msg));
+        latch.countDown();
+      }
+    }, server.getUrl(), 100, 800, 50);
+    for (String rid : RIDS) {
+      tracker.track(rid);
+    }
+    tracker.track("BADRID");
+    boolean ok = latch.await(30, TimeUnit.SECONDS);
+    System.out.println(String.format("%s: %d requests in %d ms", ok ? "OK" : "TIMEOUT",
+        server.getRequests(), System.currentTimeMillis() - tim));
+    tracker.shutdown();
+    server.stop();
+    System.exit(ok ? 0 : 1);
+  }
+}
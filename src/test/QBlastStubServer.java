@@ -0,0 +1,145 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in of the NCBI QBlast server. Each job reports a WAITING
+ * status a given number of times, then it reports READY and its result can
+ * be downloaded. Unknown jobs are reported as UNKNOWN.
+ *
+ * @author Patrick G. Durand
+ */
+public class QBlastStubServer {
+  private HttpServer _server;
+  private byte[] _result;
+  private int _waitingPolls;
+  private Map<String, AtomicInteger> _polls = new ConcurrentHashMap<>();
+  private AtomicInteger _requests = new AtomicInteger();
+  private long _latency;
+
+  private static final String NOT_FOUND = "<html><body>\n<p class=\"error\">ERROR: Results for RID %s not found</p>\n</body></html>\n";
+  private static final String INFO = "<html><!--\nQBlastInfoBegin\n\tStatus=%s\nQBlastInfoEnd\n--></html>\n";
+
+  /**
+   * Constructor.
+   *
+   * @param result file returned as the result of all READY jobs
+   * @param waitingPolls number of status requests answered by WAITING
+   * before a job is READY
+   */
+  public QBlastStubServer(File result, int waitingPolls) throws IOException {
+    _result = Files.readAllBytes(result.toPath());
+    _waitingPolls = waitingPolls;
+    _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    _server.createContext("/Blast.cgi", this::handle);
+    // serve concurrent clients
+    _server.setExecutor(Executors.newCachedThreadPool());
+  }
+
+  /**
+   * Declare a job known by this server.
+   */
+  public void addJob(String rid) {
+    _polls.put(rid, new AtomicInteger());
+  }
+
+  public void start() {
+    _server.start();
+  }
+
+  public void stop() {
+    _server.stop(0);
+    ((ExecutorService) _server.getExecutor()).shutdownNow();
+  }
+
+  /**
+   * Set a delay (ms) applied before answering each request, to mimic a
+   * remote server.
+   */
+  public void setLatency(long latency) {
+    _latency = latency;
+  }
+
+  /**
+   * Return the URL to use in place of QBlastRetriever.NCBI_SERVER.
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + _server.getAddress().getPort() + "/Blast.cgi";
+  }
+
+  /**
+   * Return the number of requests received so far.
+   */
+  public int getRequests() {
+    return _requests.get();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    Map<String, String> params = new HashMap<>();
+    String query = exchange.getRequestURI().getQuery();
+    AtomicInteger polls;
+    byte[] data;
+
+    _requests.incrementAndGet();
+    if (_latency > 0) {
+      try {
+        Thread.sleep(_latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (String param : query.split("&")) {
+      String[] kv = param.split("=", 2);
+      params.put(kv[0], kv.length > 1 ? kv[1] : "");
+    }
+    polls = _polls.get(params.get("RID"));
+    if (polls == null && "SearchInfo".equals(params.get("FORMAT_OBJECT"))) {
+      data = String.format(INFO, "UNKNOWN").getBytes(StandardCharsets.US_ASCII);
+    } else if (polls == null) {
+      // like NCBI, results of an unknown job are replaced by an error page
+      // without any status
+      data = String.format(NOT_FOUND, params.get("RID")).getBytes(StandardCharsets.US_ASCII);
+    } else if ("SearchInfo".equals(params.get("FORMAT_OBJECT"))) {
+      data = String.format(INFO, polls.getAndIncrement() < _waitingPolls ? "WAITING" : "READY")
+          .getBytes(StandardCharsets.US_ASCII);
+    } else if (polls.getAndIncrement() < _waitingPolls) {
+      data = String.format(INFO, "WAITING").getBytes(StandardCharsets.US_ASCII);
+    } else {
+      data = _result;
+    }
+    exchange.sendResponseHeaders(200, data.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(data);
+    }
+  }
+}
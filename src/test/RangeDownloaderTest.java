@@ -0,0 +1,109 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import bzh.plealog.blastviewer.util.HTTPEngineException;
+import bzh.plealog.blastviewer.util.RangeDownloader;
+
+/**
+ * Download a document from a local server handling Range requests, while
+ * connections are dropped, then resume an interrupted download.
+ *
+ * @author Patrick G. Durand
+ */
+public class RangeDownloaderTest {
+  private static final int SIZE = 24 * 1024 * 1024;
+
+  private static void check(String name, File f, byte[] data) throws Exception {
+    if (!Arrays.equals(Files.readAllBytes(f.toPath()), data)) {
+      throw new RuntimeException(name + ": downloaded data differs");
+    }
+    System.out.println(name + ": OK");
+  }
+
+  private static RangeDownloader createDownloader(int maxRetries) {
+    RangeDownloader downloader = new RangeDownloader();
+    downloader.setMinSegmentSize(4 * 1024 * 1024);
+    downloader.setMaxRetries(maxRetries);
+    downloader.setRetryDelay(50);
+    return downloader;
+  }
+
+  public static void main(String[] args) throws Exception {
+    byte[] data = new byte[SIZE], data2 = new byte[SIZE];
+    File target = File.createTempFile("range", ".dat");
+    RangeStubServer server;
+    RangeDownloader downloader;
+    long sent;
+
+    new Random(1).nextBytes(data);
+    new Random(2).nextBytes(data2);
+    server = new RangeStubServer(data, "\"v1\"");
+    server.start();
+    target.delete();
+
+    // 1. parallel segments, some connections dropped
+    server.setFailures(3 * 1024 * 1024, 3);
+    downloader = createDownloader(5);
+    downloader.download(server.getUrl(), target);
+    check("segments with " + downloader.getRetries() + " retries", target, data);
+    target.delete();
+    server.resetBytesSent();
+
+    // 2. interrupted download, then resumed
+    server.setFailures(2 * 1024 * 1024, 1);
+    try {
+      createDownloader(0).download(server.getUrl(), target);
+      throw new RuntimeException("download should have failed");
+    } catch (HTTPEngineException e) {
+      System.out.println("interrupted: " + e.getMessage() + ", journal: "
+          + RangeDownloader.getJournalFile(target).exists());
+    }
+    sent = server.resetBytesSent();
+    createDownloader(0).download(server.getUrl(), target);
+    check(String.format("resumed (%d + %d bytes sent)", sent, server.resetBytesSent()), target, data);
+    target.delete();
+
+    // 3. interrupted download, document changed on server: restarted
+    server.setFailures(2 * 1024 * 1024, 1);
+    try {
+      createDownloader(0).download(server.getUrl(), target);
+    } catch (HTTPEngineException e) {
+      // expected
+    }
+    server.setData(data2, "\"v2\"");
+    createDownloader(0).download(server.getUrl(), target);
+    check("changed document", target, data2);
+    target.delete();
+
+    // 4. server without Range support
+    server.setRanges(false);
+    server.setFailures(1024 * 1024, 1);
+    downloader = createDownloader(2);
+    downloader.download(server.getUrl(), target);
+    check("no range support", target, data2);
+    target.delete();
+
+    server.stop();
+    System.exit(0);
+  }
+}
@@ -0,0 +1,172 @@
+/* Copyright (C) 2021 Patrick G. Durand
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  You may obtain a copy of the License at
+ *
+ *     https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ */
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server handling Range requests. It can drop connections in
+ * the middle of answers to mimic network failures.
+ *
+ * @author Patrick G. Durand
+ */
+public class RangeStubServer {
+  private HttpServer _server;
+  private volatile byte[] _data;
+  private volatile String _etag;
+  private volatile boolean _ranges = true;
+  private volatile boolean _gzip;
+  private volatile long _failAfter;
+  private AtomicInteger _failures = new AtomicInteger();
+  private AtomicLong _bytesSent = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param data the document served by this server
+   * @param etag version of that document
+   */
+  public RangeStubServer(byte[] data, String etag) throws IOException {
+    setData(data, etag);
+    _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    _server.createContext("/doc", this::handle);
+    _server.setExecutor(Executors.newCachedThreadPool());
+  }
+
+  /**
+   * Change the document served by this server.
+   */
+  public void setData(byte[] data, String etag) {
+    _data = data;
+    _etag = etag;
+  }
+
+  /**
+   * Set whether or not Range requests are supported.
+   */
+  public void setRanges(boolean ranges) {
+    _ranges = ranges;
+  }
+
+  /**
+   * Set whether or not answers are gzip compressed. Range requests are
+   * ignored when compression is on.
+   */
+  public void setGzip(boolean gzip) {
+    _gzip = gzip;
+  }
+
+  /**
+   * Drop the connection after having sent some bytes of an answer.
+   *
+   * @param bytes number of bytes sent before dropping the connection
+   * @param times number of answers to interrupt
+   */
+  public void setFailures(long bytes, int times) {
+    _failAfter = bytes;
+    _failures.set(times);
+  }
+
+  public void start() {
+    _server.start();
+  }
+
+  public void stop() {
+    _server.stop(0);
+    ((ExecutorService) _server.getExecutor()).shutdownNow();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + _server.getAddress().getPort() + "/doc";
+  }
+
+  /**
+   * Return the number of bytes sent so far, then reset that counter.
+   */
+  public long resetBytesSent() {
+    return _bytesSent.getAndSet(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+    byte[] data = _data;
+    long start = 0, end = data.length - 1, len;
+    int code = 200;
+
+    if (_ranges) {
+      exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+    }
+    if (_etag != null) {
+      exchange.getResponseHeaders().set("ETag", _etag);
+    }
+    if (_gzip) {
+      // like some servers, HEAD answers announce a compressed body too
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      if (data.length != 0) {
+        data = gzip(data);
+        end = data.length - 1;
+      }
+    }
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Content-Length", String.valueOf(data.length));
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+      return;
+    }
+    if (_ranges && !_gzip && range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(_etag))) {
+      String[] bounds = range.substring(6).split("-");
+      start = Long.parseLong(bounds[0]);
+      end = bounds.length > 1 && !bounds[1].isEmpty() ? Math.min(end, Long.parseLong(bounds[1])) : end;
+      exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+      code = 206;
+    }
+    len = end - start + 1;
+    // -1 means no body, see HttpExchange.sendResponseHeaders()
+    exchange.sendResponseHeaders(code, len == 0 ? -1 : len);
+    OutputStream os = exchange.getResponseBody();
+    if (_failAfter < len && _failures.getAndDecrement() > 0) {
+      os.write(data, (int) start, (int) _failAfter);
+      os.flush();
+      _bytesSent.addAndGet(_failAfter);
+      // drop the connection
+      throw new IOException("connection dropped on purpose");
+    }
+    os.write(data, (int) start, (int) len);
+    _bytesSent.addAndGet(len);
+    os.close();
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+      gos.write(data);
+    }
+    return bos.toByteArray();
+  }
+}